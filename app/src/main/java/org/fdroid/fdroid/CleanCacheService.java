@@ -10,6 +10,7 @@ import android.os.Process;
 import android.os.SystemClock;
 
 import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
 
 import java.io.File;
 import java.util.concurrent.TimeUnit;
@@ -68,12 +69,27 @@ public class CleanCacheService extends IntentService {
 
     /**
      * All downloaded APKs will be cached for a certain amount of time, which is
-     * specified by the user in the "Keep Cache Time" preference.  This removes
-     * any APK in the cache that is older than that preference specifies.
+     * specified by the user in the "Keep Cache Time" preference, and up to the
+     * size in the "Cached apps size limit" preference.  APKs which are tracked by
+     * {@link ApkCacheIndex} are evicted by their last use without looking at the
+     * directory.  Everything else in there, like OBB files, partial downloads
+     * and the per-host directories of older versions, is removed by its age.
      */
     private void deleteExpiredApksFromCache() {
         File cacheDir = ApkCache.getApkCacheDir(getBaseContext());
-        clearOldFiles(cacheDir, Preferences.get().getKeepCacheTime());
+        long keepTime = Preferences.get().getKeepCacheTime();
+        ApkCacheIndex index = ApkCacheIndex.get(this);
+        index.evict(cacheDir, Preferences.get().getApkCacheSize(), System.currentTimeMillis() - keepTime);
+
+        final File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (!index.contains(f)) {
+                clearOldFiles(f, keepTime);
+            }
+        }
     }
 
     /**
@@ -29,7 +29,6 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.collection.LongSparseArray;
 import androidx.multidex.MultiDexApplication;
 
 import com.nostra13.universalimageloader.cache.disc.DiskCache;
@@ -42,13 +41,13 @@ import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
 import org.fdroid.fdroid.Preferences.Theme;
 import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.InstalledAppProviderService;
-import org.fdroid.fdroid.data.Repo;
-import org.fdroid.fdroid.data.RepoProvider;
+import org.fdroid.fdroid.net.HttpConnections;
 import org.fdroid.fdroid.net.ImageLoaderForUIL;
 import org.ligi.tracedroid.TraceDroid;
 
 import java.io.IOException;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import info.guardianproject.netcipher.NetCipher;
 import info.guardianproject.netcipher.proxy.OrbotHelper;
@@ -131,8 +130,17 @@ public class FDroidApp extends MultiDexApplication {
     private void applyLanguage() {
         Context ctx = getBaseContext();
         Configuration cfg = new Configuration();
-        cfg.locale = locale == null ? Locale.getDefault() : locale;
+        cfg.locale = getLocale();
         ctx.getResources().updateConfiguration(cfg, null);
+        AppProvider.Helper.updateNameSortKeys(ctx, cfg.locale);
+    }
+
+    /**
+     * The locale F-Droid is shown in, which is either the language picked in the
+     * preferences, or the one of the device.
+     */
+    public static Locale getLocale() {
+        return locale == null ? Locale.getDefault() : locale;
     }
 
     @Override
@@ -140,49 +148,7 @@ public class FDroidApp extends MultiDexApplication {
         super.onConfigurationChanged(newConfig);
         applyLanguage();
     }
-    public static int getTimeout() {
-        return timeout;
-    }
-    public static String getMirror(String urlString, long repoId) throws IOException {
-        return getMirror(urlString, RepoProvider.Helper.findById(getInstance(), repoId));
-    }
 
-    public static String getMirror(String urlString, Repo repo) throws IOException {
-        if (repo.hasMirrors()) {
-            String lastWorkingMirror = lastWorkingMirrorArray.get(repo.getId());
-            if (lastWorkingMirror == null) {
-                lastWorkingMirror = repo.address;
-            }
-            if (numTries <= 0) {
-                if (timeout == 10000) {
-                    timeout = 30000;
-                    numTries = Integer.MAX_VALUE;
-                } else if (timeout == 30000) {
-                    timeout = 60000;
-                    numTries = Integer.MAX_VALUE;
-                } else {
-                    Utils.debugLog(TAG, "Mirrors: Giving up");
-                    throw new IOException("Ran out of mirrors");
-                }
-            }
-            if (numTries == Integer.MAX_VALUE) {
-                numTries = repo.getMirrorCount();
-            }
-            String mirror = repo.getMirror(lastWorkingMirror);
-            if(mirror == null)
-            {
-                throw new IOException("No mirrors available");
-            }
-            String newUrl = urlString.replace(lastWorkingMirror, mirror);
-            Utils.debugLog(TAG, "Trying mirror " + mirror + " after " + lastWorkingMirror + " failed," +
-                    " timeout=" + timeout / 1000 + "s");
-            lastWorkingMirrorArray.put(repo.getId(), mirror);
-            numTries--;
-            return newUrl;
-        } else {
-            throw new IOException("No mirrors available");
-        }
-    }
     @Override
     public void onCreate() {
         super.onCreate();
@@ -203,6 +169,11 @@ public class FDroidApp extends MultiDexApplication {
         Preferences.setup(this);
         curTheme = Preferences.get().getTheme();
         Preferences.get().configureProxy();
+        // enough idle connections for all downloads and repo updates that can run at once
+        HttpConnections.configureKeepAlive(
+                Preferences.get().getDownloadSlots() * Preferences.get().getDownloadSegments()
+                        + Preferences.get().getUpdateParallelDownloads(),
+                TimeUnit.SECONDS.toMillis(Preferences.get().getConnectionKeepAliveSeconds()));
 
         InstalledAppProviderService.compareToPackageManager(this);
 
@@ -277,18 +248,6 @@ public class FDroidApp extends MultiDexApplication {
         return 2;
     }
 
-    private static final LongSparseArray<String> lastWorkingMirrorArray = new LongSparseArray<>(1);
-    private static volatile int numTries = Integer.MAX_VALUE;
-    private static volatile int timeout = 10000;
-    public static void resetMirrorVars() {
-        // Reset last working mirror, numtries, and timeout
-        for (int i = 0; i < lastWorkingMirrorArray.size(); i++) {
-            lastWorkingMirrorArray.removeAt(i);
-        }
-        numTries = Integer.MAX_VALUE;
-        timeout = 10000;
-    }
-
     private static boolean useTor;
 
     /**
@@ -27,6 +27,8 @@ import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Locale;
 
 public class HashingUtils {
@@ -69,6 +71,38 @@ public class HashingUtils {
         return calculatedHash.equals(targetHash.toLowerCase(Locale.ENGLISH));
     }
 
+    /**
+     * @return a new digest for one of the hash types used in the index, like {@code sha256},
+     * to hash a file while it is downloaded or copied
+     */
+    public static MessageDigest getMessageDigest(String hashType) {
+        String algorithm;
+        switch (hashType) {
+            case "sha256":
+                algorithm = "SHA-256";
+                break;
+            case "sha512":
+                algorithm = "SHA-512";
+                break;
+            case "sha384":
+                algorithm = "SHA-384";
+                break;
+            case "sha1":
+                algorithm = "SHA-1";
+                break;
+            case "md5":
+                algorithm = "MD5";
+                break;
+            default:
+                throw new RuntimeException(String.format("HashType %s is unsupported", hashType));
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static String hex(byte[] sig) {
         return BaseEncoding.base16().lowerCase().encode(sig);
     }
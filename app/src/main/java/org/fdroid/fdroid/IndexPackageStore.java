@@ -0,0 +1,80 @@
+package org.fdroid.fdroid;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+/**
+ * Keeps the entries of the {@code packages} section of {@code index-v1.json}
+ * in a file rather than on the heap, so they can be looked up by package name
+ * whenever the matching app is parsed.  Each value is stored as a length
+ * prefixed blob, only the offsets of the blobs are kept in memory.
+ * <p>
+ * All values must be added before the first one is read back, the backing
+ * file is deleted when this is closed.
+ */
+class IndexPackageStore implements Closeable {
+    private static final String TAG = "IndexPackageStore";
+
+    private final File file;
+    private final HashMap<String, Long> offsets = new HashMap<>();
+
+    private DataOutputStream output;
+    private RandomAccessFile input;
+    private long length;
+
+    IndexPackageStore(File file) throws IOException {
+        this.file = file;
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    void put(String packageName, byte[] value) throws IOException {
+        if (output == null) {
+            throw new IllegalStateException("Cannot add to " + file + " after reading from it");
+        }
+        offsets.put(packageName, length);
+        output.writeInt(value.length);
+        output.write(value);
+        length += 4 + value.length;
+    }
+
+    @Nullable
+    byte[] get(String packageName) throws IOException {
+        Long offset = offsets.get(packageName);
+        if (offset == null) {
+            return null;
+        }
+        if (input == null) {
+            output.close();
+            output = null;
+            input = new RandomAccessFile(file, "r");
+        }
+        input.seek(offset);
+        byte[] value = new byte[input.readInt()];
+        input.readFully(value);
+        return value;
+    }
+
+    int size() {
+        return offsets.size();
+    }
+
+    @Override
+    public void close() {
+        Utils.closeQuietly(output);
+        Utils.closeQuietly(input);
+        output = null;
+        input = null;
+        offsets.clear();
+        if (file.exists() && !file.delete()) {
+            Utils.debugLog(TAG, "Could not delete " + file);
+        }
+    }
+}
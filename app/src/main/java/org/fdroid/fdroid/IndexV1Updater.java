@@ -24,6 +24,7 @@ package org.fdroid.fdroid;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -33,11 +34,14 @@ import androidx.annotation.NonNull;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
@@ -47,7 +51,9 @@ import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.MirrorRanking;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -86,35 +92,85 @@ import javax.net.ssl.SSLProtocolException;
  * This setup prevents the situation where future developers add variables to the
  * App/Apk classes, resulting in malicious servers being able to populate those
  * variables.
+ * <p>
+ * Once a repo has a verified index in the database, {@link #update()} first asks
+ * for a diff against it in {@link #DIFF_DIR}, named after {@link Repo#timestamp}.
+ * That is a jar signed with the same key, holding an {@link #DATA_FILE_NAME} with
+ * only the apps which changed or were added, all the packages of those apps, and
+ * the package names of the apps which were removed in {@code removedApps}.  Its
+ * {@code repo} section names the index it was made from in {@code baseTimestamp},
+ * since the URL of the diff is not signed.  If the repo has no such diff, or the
+ * diff was made from another index, the whole index is downloaded as before.
+ * A repo which had no diff when its index changed is not asked for one again,
+ * until the {@code repo} section of its index says it has them, in {@code diffs}.
+ * <p>
+ * Since a diff says nothing about the whole index, the stored {@link Repo#lastetag}
+ * is out of date after one was applied, so the next whole index which is downloaded
+ * may well be the one the database already has.  Such an index is only verified,
+ * its {@code ETag} is stored, and nothing else is written.
  */
 public class IndexV1Updater extends IndexUpdater {
     public static final String TAG = "IndexV1Updater";
 
     public static final String SIGNED_FILE_NAME = "index-v1.jar";
     public static final String DATA_FILE_NAME = "index-v1.json";
+    public static final String DIFF_DIR = "diff";
+
+    /**
+     * The repos which have no diffs, by their address.
+     */
+    private static final String DIFF_PREFERENCES_FILE = "index-diffs";
+
+    /**
+     * Indexes of several repos can be downloaded at the same time, but they all go
+     * through the same temporary tables, so only one of them is processed at a time.
+     */
+    private static final Object PROCESS_LOCK = new Object();
+
+    private boolean deferAppDetails;
+
+    /**
+     * Whether the repo had no diff from the index in the database during this update.
+     */
+    private boolean diffNotFound;
 
     public IndexV1Updater(@NonNull Context context, @NonNull Repo repo) {
         super(context, repo);
     }
 
+    /**
+     * When several repos are updated together, the app details only need to be calculated once
+     * after all of them, see {@link org.fdroid.fdroid.data.AppProvider.Helper#updateDeferredAppDetails(Context)}.
+     */
+    public void setDeferAppDetails(boolean deferAppDetails) {
+        this.deferAppDetails = deferAppDetails;
+    }
+
     @Override
     protected String getIndexUrl(@NonNull Repo repo) {
         return Uri.parse(repo.address).buildUpon().appendPath(SIGNED_FILE_NAME).build().toString();
     }
 
+    static String getDiffUrl(@NonNull Repo repo) {
+        return Uri.parse(repo.address).buildUpon()
+                .appendPath(DIFF_DIR)
+                .appendPath(repo.timestamp + ".jar")
+                .build().toString();
+    }
+
     /**
      * @return whether this successfully found an index of this version
      * @throws IndexUpdater.UpdateException
      * @see org.fdroid.fdroid.net.DownloaderService#handleIntent(android.content.Intent)
      */
     public boolean update() throws IndexUpdater.UpdateException {
+        if (updateFromDiff()) {
+            return true;
+        }
+
         Downloader downloader = null;
         try {
-            // read file name from file
-            downloader = DownloaderFactory.create(context, indexUrl);
-            downloader.setCacheTag(repo.lastetag);
-            downloader.setListener(downloadListener);
-            downloader.download();
+            downloader = downloadFromMirrors(indexUrl);
             if (downloader.isNotFound()) {
                 return false;
             }
@@ -125,70 +181,146 @@ public class IndexV1Updater extends IndexUpdater {
             }
 
             processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
-        } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
-                | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
-                | ProtocolException | UnknownHostException e) {
-            // if the above list changes, also change below and in DownloaderService.handleIntent()
-            Utils.debugLog(TAG, "Trying to download the index from a mirror");
-            // Mirror logic here, so that the default download code is untouched.
-            String mirrorUrl;
-            String prevMirrorUrl = indexUrl;
-            FDroidApp.resetMirrorVars();
-            int n = repo.getMirrorCount() * 3; // 3 is the number of timeouts we have. 10s, 30s & 60s
-            for (int i = 0; i <= n; i++) {
-                try {
-                    mirrorUrl = FDroidApp.getMirror(prevMirrorUrl, repo);
-                    prevMirrorUrl = mirrorUrl;
-                    downloader = DownloaderFactory.create(context, mirrorUrl);
-                    downloader.setCacheTag(repo.lastetag);
-                    downloader.setListener(downloadListener);
-                    downloader.setTimeout(FDroidApp.getTimeout());
-                    downloader.download();
-                    if (downloader.isNotFound()) {
-                        return false;
-                    }
-                    hasChanged = downloader.hasChanged();
+        } catch (IOException e) {
+            throw new IndexUpdater.UpdateException("Error getting index file", e);
+        } catch (InterruptedException e) {
+            // ignored if canceled, the local database just won't be updated
+        }
 
-                    if (!hasChanged) {
-                        return true;
-                    }
+        return true;
+    }
 
-                    processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
-                    break;
-                } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
-                        | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
-                        | ProtocolException | UnknownHostException e2) {
-                    // We'll just let this try the next mirror
-                    Utils.debugLog(TAG, "Trying next mirror");
-                } catch (IOException e2) {
-                    if (downloader != null) {
-                        downloader.outputFile.delete();
-                    }
-                    throw new IndexUpdater.UpdateException("Error getting index file", e2);
-                } catch (InterruptedException e2) {
-                    // ignored if canceled, the local database just won't be updated
+    /**
+     * Downloads the file at {@code urlString} from the best mirror of the repo,
+     * going on to the next one when a mirror cannot be reached.  Each round
+     * through the mirrors gets a longer timeout.  If hedging is enabled and the
+     * best mirror is slow to answer the first time, the second best one is asked
+     * as well, and the first complete download is used.
+     *
+     * @see MirrorRanking#getRankedUrls(Repo, String)
+     * @see Preferences#isHedgedIndexDownloadsEnabled()
+     */
+    private Downloader downloadFromMirrors(String urlString) throws IOException, InterruptedException {
+        MirrorRanking ranking = MirrorRanking.get(context);
+        List<String> urls = ranking.getRankedUrls(repo, urlString);
+        int attempts = MirrorRanking.getAttempts(urls.size());
+        for (int attempt = 0; ; attempt++) {
+            String url = urls.get(attempt % urls.size());
+            boolean hedged = attempt == 0 && urls.size() > 1 && Preferences.get().isHedgedIndexDownloadsEnabled();
+            Downloader downloader = createIndexDownloader(url, attempt, urls.size());
+            try {
+                if (hedged) {
+                    Downloader hedge = createIndexDownloader(urls.get(1), attempt, urls.size());
+                    return ranking.hedge(repo, downloader, hedge, ranking.getHedgeDelay(repo, url));
+                }
+                downloader.download();
+                if (!downloader.isNotFound()) {
+                    ranking.recordSuccess(repo, url, downloader);
+                }
+                return downloader;
+            } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
+                    | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
+                    | ProtocolException | UnknownHostException e) {
+                // if the above list changes, also change in DownloaderService.handleIntent()
+                if (!hedged) {
+                    ranking.recordFailure(repo, url);
+                }
+                downloader.outputFile.delete();
+                if (attempt + 1 >= attempts) {
+                    throw e;
                 }
+                Utils.debugLog(TAG, "Trying the next mirror after " + url + " failed: " + e);
+            } catch (IOException | InterruptedException e) {
+                downloader.outputFile.delete();
+                throw e;
             }
+        }
+    }
+
+    private Downloader createIndexDownloader(String url, int attempt, int mirrors) throws IOException {
+        Downloader downloader = DownloaderFactory.create(context, url);
+        downloader.setCacheTag(repo.lastetag);
+        downloader.setListener(downloadListener);
+        downloader.setTimeout(MirrorRanking.getTimeout(attempt, mirrors));
+        return downloader;
+    }
+
+    /**
+     * Tries to apply the diff between the index in the database and the current one,
+     * which is only possible once an index of this repo was verified.  Any problem
+     * getting the diff means falling back to the whole index, except for a diff which
+     * is not signed by the repo key.
+     *
+     * @return whether the diff was applied, or the update was canceled
+     */
+    private boolean updateFromDiff() throws IndexUpdater.UpdateException {
+        if (repo.timestamp <= 0 || TextUtils.isEmpty(repo.signingCertificate)) {
+            return false;
+        }
+        if (getDiffPreferences().getBoolean(repo.address, false)) {
+            Utils.debugLog(TAG, repo.address + " has no diffs");
+            return false;
+        }
+        Downloader downloader = null;
+        try {
+            MirrorRanking ranking = MirrorRanking.get(context);
+            List<String> urls = ranking.getRankedUrls(repo, getDiffUrl(repo));
+            downloader = DownloaderFactory.create(context, urls.get(0));
+            downloader.setListener(downloadListener);
+            if (urls.size() > 1) {
+                // diffs are small, so the mirror which answers first is the fastest
+                Downloader second = DownloaderFactory.create(context, urls.get(1));
+                second.setListener(downloadListener);
+                downloader = ranking.race(repo, downloader, second);
+            } else {
+                downloader.download();
+            }
+            if (downloader.isNotFound()) {
+                Utils.debugLog(TAG, "No diff for " + repo.address + " since " + repo.timestamp);
+                diffNotFound = true;
+                return false;
+            }
+            if (!processDownloadedDiff(downloader.outputFile)) {
+                return false;
+            }
+            hasChanged = true;
+            return true;
         } catch (IOException e) {
+            Utils.debugLog(TAG, "Could not apply the diff, downloading the whole index", e);
+            return false;
+        } catch (InterruptedException e) {
+            // ignored if canceled, the local database just won't be updated
+            return true;
+        } finally {
             if (downloader != null) {
                 downloader.outputFile.delete();
             }
-            throw new IndexUpdater.UpdateException("Error getting index file", e);
-        } catch (InterruptedException e) {
-            // ignored if canceled, the local database just won't be updated
         }
-
-        return true;
     }
 
     public void processDownloadedIndex(File outputFile, String cacheTag)
             throws IOException, IndexUpdater.UpdateException {
         JarFile jarFile = new JarFile(outputFile, true);
-        JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
-        InputStream indexInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(indexEntry),
-                processIndexListener, repo.address, (int) indexEntry.getSize());
-        processIndexV1(indexInputStream, indexEntry, cacheTag);
-        jarFile.close();
+        try {
+            JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
+            processIndexV1(jarFile, indexEntry, cacheTag);
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * @return whether the diff was committed, it is not if it lacks {@link #DATA_FILE_NAME}
+     * or its {@code repo} section, or it was not made from the index in the database
+     */
+    boolean processDownloadedDiff(File outputFile) throws IOException, IndexUpdater.UpdateException {
+        JarFile jarFile = new JarFile(outputFile, true);
+        try {
+            JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
+            return indexEntry != null && processIndexV1(jarFile, indexEntry, null, true);
+        } finally {
+            jarFile.close();
+        }
     }
 
     /**
@@ -217,135 +349,374 @@ public class IndexV1Updater extends IndexUpdater {
      * in the database, then fetch the ID from the database to populate
      * {@link Repo#id}.  That has to happen first, then the rest of the {@code Repo}
      * data must be added later.
+     * <p>
+     * The {@code apps} and {@code packages} sections are streamed one entry at a
+     * time rather than bound as a whole.  Each entry of {@code packages} is copied
+     * into an {@link IndexPackageStore} in the cache dir, so that each app can be
+     * joined with its packages and handed to the {@link RepoPersister} as soon as
+     * it is parsed.  Since {@code apps} usually comes before {@code packages}, it
+     * is skipped on the first pass over the entry and read on a second one.
+     * Nothing leaves the temporary tables until the signing certificate has been
+     * verified, which is only possible once the whole entry was read.
      *
-     * @param indexInputStream {@link InputStream} to {@code index-v1.json}
-     * @param etag             the {@code etag} value from HTTP headers
+     * @param jarFile    the downloaded {@code index-v1.jar}
+     * @param indexEntry the {@code index-v1.json} entry in {@code jarFile}
+     * @param etag       the {@code etag} value from HTTP headers
      * @throws IOException
      * @throws UpdateException
      */
-    public void processIndexV1(InputStream indexInputStream, JarEntry indexEntry, String etag)
+    public void processIndexV1(JarFile jarFile, JarEntry indexEntry, String etag)
+            throws IOException, UpdateException {
+        processIndexV1(jarFile, indexEntry, etag, false);
+    }
+
+    /**
+     * @param isDiff whether {@code indexEntry} only holds the changes since {@link Repo#timestamp},
+     *               in which case the apps of the repo which are not in it are kept.
+     * @return whether anything was committed
+     */
+    private boolean processIndexV1(JarFile jarFile, JarEntry indexEntry, String etag, boolean isDiff)
+            throws IOException, UpdateException {
+        synchronized (PROCESS_LOCK) {
+            return writeIndexV1(jarFile, indexEntry, etag, isDiff);
+        }
+    }
+
+    private boolean writeIndexV1(JarFile jarFile, JarEntry indexEntry, String etag, boolean isDiff)
             throws IOException, UpdateException {
         Utils.Profiler profiler = new Utils.Profiler(TAG);
         profiler.log("Starting to process index-v1.json");
+        RepoPersister repoPersister = new RepoPersister(context, repo, isDiff, deferAppDetails);
+        try {
+            HashMap<String, Object> repoMap = parseIndexV1(jarFile, indexEntry, repoPersister, isDiff, profiler);
+            profiler.log("Finished processing index-v1.json. Now verifying certificate...");
+
+            if (repoMap == null) {
+                return false;
+            }
+
+            long timestamp = (Long) repoMap.get("timestamp") / 1000;
+            X509Certificate certificate = getSigningCertFromJar(indexEntry);
+            verifySigningCertificate(certificate);
+
+            if (!isDiff && isCommitted(repoMap)) {
+                Utils.debugLog(TAG, repo.address + " is already at " + timestamp + ", only storing its etag");
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
+                contentValues.put(Schema.RepoTable.Cols.LAST_ETAG, etag);
+                RepoProvider.Helper.update(context, repo, contentValues);
+                repo.lastetag = etag;
+                hasChanged = false;
+                rememberDiffs(repoMap, false);
+                return true;
+            }
+
+            profiler.log("Certificate verified. Now persisting to database...");
+
+            // timestamp is absolutely required
+            repo.timestamp = timestamp;
+            // below are optional, can be null, a diff has no etag of the whole index
+            if (!isDiff) {
+                repo.lastetag = etag;
+            }
+            repo.name = getStringRepoValue(repoMap, "name");
+            repo.icon = getStringRepoValue(repoMap, "icon");
+            repo.description = getStringRepoValue(repoMap, "description");
+            repo.mirrors = getStringArrayRepoValue(repoMap, "mirrors");
+            // below are optional, can be default value
+            repo.maxage = getIntRepoValue(repoMap, "maxage");
+            repo.version = getIntRepoValue(repoMap, "version");
+
+            notifyCommittingToDb();
+
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
+            contentValues.put(Schema.RepoTable.Cols.TIMESTAMP, repo.timestamp);
+            if (!isDiff) {
+                contentValues.put(Schema.RepoTable.Cols.LAST_ETAG, repo.lastetag);
+            }
+            if (repo.version != Repo.INT_UNSET_VALUE) {
+                contentValues.put(Schema.RepoTable.Cols.VERSION, repo.version);
+            }
+            if (repo.maxage != Repo.INT_UNSET_VALUE) {
+                contentValues.put(Schema.RepoTable.Cols.MAX_AGE, repo.maxage);
+            }
+            if (repo.description != null) {
+                contentValues.put(Schema.RepoTable.Cols.DESCRIPTION, repo.description);
+            }
+            if (repo.name != null) {
+                contentValues.put(Schema.RepoTable.Cols.NAME, repo.name);
+            }
+            if (repo.icon != null) {
+                contentValues.put(Schema.RepoTable.Cols.ICON, repo.icon);
+            }
+            if (repo.mirrors != null && repo.mirrors.length > 0) {
+                contentValues.put(Schema.RepoTable.Cols.MIRRORS, Utils.serializeCommaSeparatedString(repo.mirrors));
+            }
+            repoPersister.commit(contentValues, repo.getId());
+            if (!isDiff) {
+                rememberDiffs(repoMap, true);
+            }
+            profiler.log("Persisted to database.");
+            return true;
+        } finally {
+            repoPersister.close();
+        }
+    }
+
+    /**
+     * Makes one or two passes over {@code index-v1.json}, handing all apps and their
+     * packages to {@code repoPersister}, as well as the {@code removedApps} of a diff.
+     *
+     * @return the contents of the {@code repo} section, or null if there was none
+     */
+    private HashMap<String, Object> parseIndexV1(JarFile jarFile, JarEntry indexEntry, RepoPersister repoPersister,
+                                                 boolean isDiff, Utils.Profiler profiler)
+            throws IOException, UpdateException {
         ObjectMapper mapper = getObjectMapperInstance(repo.getId());
+        ObjectReader appReader = mapper.readerFor(App.class);
+        ObjectReader apksReader = mapper.readerFor(new TypeReference<List<Apk>>() {
+        });
         JsonFactory f = mapper.getFactory();
-        JsonParser parser = f.createParser(indexInputStream);
         HashMap<String, Object> repoMap = null;
-        App[] apps = null;
-        Map<String, String[]> requests = null;
-        Map<String, List<Apk>> packages = null;
-
-        parser.nextToken(); // go into the main object block
-        while (true) {
-            String fieldName = parser.nextFieldName();
-            if (fieldName == null) {
-                break;
-            }
-            switch (fieldName) {
-                case "repo":
-                    repoMap = parseRepo(mapper, parser);
-                    break;
-                case "requests":
-                    // unused, but we always need to consume the whole file.
-                    parseRequests(mapper, parser);
-                    break;
-                case "apps":
-                    apps = parseApps(mapper, parser);
-                    break;
-                case "packages":
-                    packages = parsePackages(mapper, parser);
+        int skippedApps = 0;
+        boolean hasPackages = false;
+
+        File packageStoreFile = File.createTempFile("index-v1-packages-", ".bin", context.getCacheDir());
+        IndexPackageStore packageStore = new IndexPackageStore(packageStoreFile);
+        try {
+            InputStream indexInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(indexEntry),
+                    processIndexListener, repo.address, (int) indexEntry.getSize());
+            JsonParser parser = f.createParser(indexInputStream);
+            parser.nextToken(); // go into the main object block
+            while (true) {
+                String fieldName = parser.nextFieldName();
+                if (fieldName == null) {
                     break;
+                }
+                switch (fieldName) {
+                    case "repo":
+                        repoMap = parseRepo(mapper, parser);
+                        if (isDiff && !isDiffFromCommitted(repoMap)) {
+                            Utils.debugLog(TAG, "The diff for " + repo.address + " was made from "
+                                    + repoMap.get("baseTimestamp") + ", not from " + repo.timestamp);
+                            parser.close();
+                            return null;
+                        }
+                        checkRepoTimestamp(repoMap);
+                        if (!isDiff && isCommitted(repoMap)) {
+                            skipRest(parser);
+                        }
+                        break;
+                    case "apps":
+                        if (hasPackages) {
+                            saveApps(parser, appReader, apksReader, packageStore, repoPersister, -1);
+                        } else {
+                            skippedApps = skipApps(parser);
+                        }
+                        break;
+                    case "packages":
+                        storePackages(f, parser, packageStore);
+                        hasPackages = true;
+                        break;
+                    case "removedApps":
+                        if (isDiff) {
+                            removeApps(parser, repoPersister);
+                        } else {
+                            parser.nextToken();
+                            parser.skipChildren();
+                        }
+                        break;
+                    default:
+                        // "requests" is unused, but we always need to consume the whole file.
+                        parser.nextToken();
+                        parser.skipChildren();
+                        break;
+                }
             }
+            parser.close(); // ensure resources get cleaned up timely and properly
+            profiler.log("Finished first pass over index-v1.json, stored "
+                    + packageStore.size() + " packages.");
+
+            if (skippedApps > 0) {
+                parser = f.createParser(jarFile.getInputStream(indexEntry));
+                parser.nextToken(); // go into the main object block
+                while (true) {
+                    String fieldName = parser.nextFieldName();
+                    if (fieldName == null) {
+                        break;
+                    }
+                    if ("apps".equals(fieldName)) {
+                        saveApps(parser, appReader, apksReader, packageStore, repoPersister, skippedApps);
+                        break;
+                    }
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+                parser.close();
+            }
+        } finally {
+            packageStore.close();
         }
-        parser.close(); // ensure resources get cleaned up timely and properly
-        profiler.log("Finished processing index-v1.json. Now verifying certificate...");
-
-        if (repoMap == null) {
-            return;
-        }
+        return repoMap;
+    }
 
+    /**
+     * The {@code repo} section comes first in {@code index-v1.json}, so an outdated
+     * index can be rejected before any apps are parsed.
+     */
+    private void checkRepoTimestamp(Map<String, Object> repoMap) throws UpdateException {
         long timestamp = (Long) repoMap.get("timestamp") / 1000;
-
         if (repo.timestamp > timestamp) {
             throw new IndexUpdater.UpdateException("index-v1.jar is older that current index! "
                     + timestamp + " < " + repo.timestamp);
         }
-        X509Certificate certificate = getSigningCertFromJar(indexEntry);
-        verifySigningCertificate(certificate);
-
-        profiler.log("Certificate verified. Now saving to database...");
-
-        // timestamp is absolutely required
-        repo.timestamp = timestamp;
-        // below are optional, can be null
-        repo.lastetag = etag;
-        repo.name = getStringRepoValue(repoMap, "name");
-        repo.icon = getStringRepoValue(repoMap, "icon");
-        repo.description = getStringRepoValue(repoMap, "description");
-        repo.mirrors = getStringArrayRepoValue(repoMap, "mirrors");
-        // below are optional, can be default value
-        repo.maxage = getIntRepoValue(repoMap, "maxage");
-        repo.version = getIntRepoValue(repoMap, "version");
-
-        RepoPersister repoPersister = new RepoPersister(context, repo);
-        if (apps != null && apps.length > 0) {
-            int appCount = 0;
-            for (App app : apps) {
-                appCount++;
-                List<Apk> apks = null;
-                if (packages != null) {
-                    apks = packages.get(app.packageName);
-                }
-
-                if (apks == null) {
-                    Log.i(TAG, "processIndexV1 empty packages");
-                    apks = new ArrayList<>(0);
-                }
+    }
 
-                if (apks.size() > 0) {
-                    app.preferredSigner = apks.get(0).sig;
-                    app.isApk = true;
-                    for (Apk apk : apks) {
-                        if (!apk.isApk()) {
-                            app.isApk = false;
-                        }
-                    }
-                }
+    /**
+     * A stale or broken mirror could serve a diff made from another index at the URL
+     * of the diff from {@link Repo#timestamp}, applying it would lose all changes in
+     * between, so a diff is only applied if its signed {@code baseTimestamp} matches.
+     */
+    private boolean isDiffFromCommitted(Map<String, Object> repoMap) {
+        Object baseTimestamp = repoMap.get("baseTimestamp");
+        return baseTimestamp instanceof Number && ((Number) baseTimestamp).longValue() / 1000 == repo.timestamp;
+    }
 
-                if (appCount % 50 == 0) {
-                    notifyProcessingApps(appCount, apps.length);
-                }
+    /**
+     * @return whether the index with this {@code repo} section is the one which was
+     * last committed, which happens when a diff was applied since the last time the
+     * whole index was downloaded, so its {@code ETag} is not known
+     */
+    private boolean isCommitted(Map<String, Object> repoMap) {
+        long timestamp = (Long) repoMap.get("timestamp") / 1000;
+        return repo.timestamp > 0 && repo.timestamp == timestamp
+                && !TextUtils.isEmpty(repo.signingCertificate);
+    }
 
-                repoPersister.saveToDb(app, apks);
+    /**
+     * Stops asking for diffs if there was none while the index changed, which means
+     * the repo does not publish them, so asking again would only cost another request
+     * on every update.  Once the verified index says that diffs are available, they
+     * are asked for again.
+     *
+     * @param changed whether the index in the database was replaced by this one
+     */
+    private void rememberDiffs(Map<String, Object> repoMap, boolean changed) {
+        SharedPreferences preferences = getDiffPreferences();
+        if (Boolean.TRUE.equals(repoMap.get("diffs"))) {
+            if (preferences.contains(repo.address)) {
+                preferences.edit().remove(repo.address).apply();
             }
+        } else if (changed && diffNotFound) {
+            Utils.debugLog(TAG, "Not asking " + repo.address + " for diffs until its index has them");
+            preferences.edit().putBoolean(repo.address, true).apply();
         }
-        profiler.log("Saved to database, but only a temporary table. Now persisting to database...");
-        notifyCommittingToDb();
-
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
-        contentValues.put(Schema.RepoTable.Cols.TIMESTAMP, repo.timestamp);
-        contentValues.put(Schema.RepoTable.Cols.LAST_ETAG, repo.lastetag);
-        if (repo.version != Repo.INT_UNSET_VALUE) {
-            contentValues.put(Schema.RepoTable.Cols.VERSION, repo.version);
+    }
+
+    private SharedPreferences getDiffPreferences() {
+        return context.getSharedPreferences(DIFF_PREFERENCES_FILE, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reads through the rest of {@code index-v1.json} without binding anything, since
+     * the signature of a {@link JarEntry} is only verified once it was read completely.
+     */
+    private void skipRest(JsonParser parser) throws IOException {
+        while (parser.nextFieldName() != null) {
+            parser.nextToken();
+            parser.skipChildren();
         }
-        if (repo.maxage != Repo.INT_UNSET_VALUE) {
-            contentValues.put(Schema.RepoTable.Cols.MAX_AGE, repo.maxage);
+    }
+
+    /**
+     * Streams the {@code apps} array one {@link App} at a time, looking up the
+     * packages for each one in {@code packageStore}.
+     */
+    private void saveApps(JsonParser parser, ObjectReader appReader, ObjectReader apksReader,
+                          IndexPackageStore packageStore, RepoPersister repoPersister, int totalApps)
+            throws IOException, UpdateException {
+        int appCount = 0;
+        parser.nextToken(); // START_ARRAY
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            App app = appReader.readValue(parser);
+            byte[] packages = packageStore.get(app.packageName);
+            List<Apk> apks = packages == null ? null : apksReader.<List<Apk>>readValue(packages);
+            saveAppToDb(repoPersister, app, apks);
+            appCount++;
+            if (appCount % 50 == 0) {
+                notifyProcessingApps(appCount, totalApps);
+            }
         }
-        if (repo.description != null) {
-            contentValues.put(Schema.RepoTable.Cols.DESCRIPTION, repo.description);
+    }
+
+    /**
+     * Skips over the {@code apps} array without binding anything.
+     *
+     * @return the number of apps in the array
+     */
+    private int skipApps(JsonParser parser) throws IOException {
+        int count = 0;
+        parser.nextToken(); // START_ARRAY
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Hands each package name in the {@code removedApps} array of a diff to
+     * {@link RepoPersister#removeFromDb(String)}.
+     */
+    private void removeApps(JsonParser parser, RepoPersister repoPersister) throws IOException, UpdateException {
+        parser.nextToken(); // START_ARRAY
+        while (parser.nextToken() == JsonToken.VALUE_STRING) {
+            repoPersister.removeFromDb(parser.getText());
         }
-        if (repo.name != null) {
-            contentValues.put(Schema.RepoTable.Cols.NAME, repo.name);
+    }
+
+    /**
+     * Copies the JSON of each entry in the {@code packages} object as is into
+     * {@code packageStore}, keyed by package name.  The packages are only bound
+     * to {@link Apk} instances once the app they belong to is being saved.
+     */
+    private void storePackages(JsonFactory f, JsonParser parser, IndexPackageStore packageStore)
+            throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        parser.nextToken(); // START_OBJECT
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String packageName = parser.getCurrentName();
+            parser.nextToken(); // START_ARRAY
+            buffer.reset();
+            JsonGenerator generator = f.createGenerator(buffer);
+            generator.copyCurrentStructure(parser);
+            generator.close();
+            packageStore.put(packageName, buffer.toByteArray());
         }
-        if (repo.icon != null) {
-            contentValues.put(Schema.RepoTable.Cols.ICON, repo.icon);
+    }
+
+    /**
+     * Fills in the details of {@code app} which are derived from its packages, then
+     * hands both over to {@link RepoPersister}, which writes them out in batches.
+     */
+    private void saveAppToDb(RepoPersister repoPersister, App app, List<Apk> apks) throws UpdateException {
+        if (apks == null) {
+            Log.i(TAG, "processIndexV1 empty packages");
+            apks = new ArrayList<>(0);
         }
-        if (repo.mirrors != null && repo.mirrors.length > 0) {
-            contentValues.put(Schema.RepoTable.Cols.MIRRORS, Utils.serializeCommaSeparatedString(repo.mirrors));
+
+        if (apks.size() > 0) {
+            app.preferredSigner = apks.get(0).sig;
+            app.isApk = true;
+            for (Apk apk : apks) {
+                if (!apk.isApk()) {
+                    app.isApk = false;
+                }
+            }
         }
-        repoPersister.commit(contentValues, repo.getId());
-        profiler.log("Persisted to database.");
+
+        repoPersister.saveToDb(app, apks);
     }
 
     private int getIntRepoValue(Map<String, Object> repoMap, String key) {
@@ -382,27 +753,6 @@ public class IndexV1Updater extends IndexUpdater {
         return mapper.readValue(parser, typeRef);
     }
 
-    private void parseRequests(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<HashMap<String, String[]>> typeRef = new TypeReference<HashMap<String, String[]>>() {
-        };
-        parser.nextToken(); // START_OBJECT
-        mapper.readValue(parser, typeRef);
-    }
-
-    private App[] parseApps(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<App[]> typeRef = new TypeReference<App[]>() {
-        };
-        parser.nextToken(); // START_ARRAY
-        return mapper.readValue(parser, typeRef);
-    }
-
-    private Map<String, List<Apk>> parsePackages(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<HashMap<String, List<Apk>>> typeRef = new TypeReference<HashMap<String, List<Apk>>>() {
-        };
-        parser.nextToken(); // START_OBJECT
-        return mapper.readValue(parser, typeRef);
-    }
-
     /**
      * Verify that the signing certificate used to sign {@link #SIGNED_FILE_NAME}
      * matches the signing stored in the database for this repo.  {@link #repo} and
@@ -42,12 +42,19 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     public static final String PREF_AUTO_DOWNLOAD_INSTALL_UPDATES = "updateAutoDownload";
     public static final String PREF_UPD_NOTIFY = "updateNotify";
     public static final String PREF_UPD_HISTORY = "updateHistoryDays";
+    public static final String PREF_UPD_PARALLEL_DOWNLOADS = "updateParallelDownloads";
+    public static final String PREF_DOWNLOAD_SLOTS = "downloadSlots";
+    public static final String PREF_DOWNLOAD_CONNECTIONS_PER_HOST = "downloadConnectionsPerHost";
+    public static final String PREF_DOWNLOAD_SEGMENTS = "downloadSegments";
+    public static final String PREF_CONNECTION_KEEP_ALIVE = "connectionKeepAlive";
+    public static final String PREF_HEDGED_INDEX_DOWNLOADS = "hedgedIndexDownloads";
     public static final String PREF_ROOTED = "rooted";
     public static final String PREF_HIDE_ANTI_FEATURE_APPS = "hideAntiFeatureApps";
     public static final String PREF_INCOMP_VER = "incompatibleVersions";
     public static final String PREF_THEME = "theme";
     public static final String PREF_IGN_TOUCH = "ignoreTouchscreen";
     public static final String PREF_KEEP_CACHE_TIME = "keepCacheFor";
+    public static final String PREF_APK_CACHE_SIZE = "apkCacheSize";
     public static final String PREF_SHOW_ANTI_FEATURE_APPS = "showAntiFeatureApps";
     public static final String PREF_UNSTABLE_UPDATES = "unstableUpdates";
     public static final String PREF_EXPERT = "expert";
@@ -62,8 +69,15 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     private static final boolean DEFAULT_ROOTED = true;
     private static final boolean DEFAULT_HIDE_ANTI_FEATURE_APPS = false;
     private static final int DEFAULT_UPD_HISTORY = 14;
+    private static final int DEFAULT_UPD_PARALLEL_DOWNLOADS = 3;
+    private static final int DEFAULT_DOWNLOAD_SLOTS = 4;
+    private static final int DEFAULT_DOWNLOAD_CONNECTIONS_PER_HOST = 2;
+    private static final int DEFAULT_DOWNLOAD_SEGMENTS = 4;
+    private static final int DEFAULT_CONNECTION_KEEP_ALIVE = 120;
+    private static final boolean DEFAULT_HEDGED_INDEX_DOWNLOADS = true;
     private static final boolean DEFAULT_PRIVILEGED_INSTALLER = true;
     private static final long DEFAULT_KEEP_CACHE_TIME = TimeUnit.DAYS.toMillis(1);
+    private static final int DEFAULT_APK_CACHE_SIZE = 500;
     private static final boolean DEFAULT_UNSTABLE_UPDATES = false;
     private static final boolean DEFAULT_INCOMP_VER = false;
     private static final boolean DEFAULT_EXPERT = false;
@@ -181,6 +195,14 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         }
     }
 
+    /**
+     * How many bytes of APKs to keep in the cache at most, which is set in megabytes.
+     * The least recently used APKs are deleted first to make room for new ones.
+     */
+    public long getApkCacheSize() {
+        return getPositiveInt(PREF_APK_CACHE_SIZE, DEFAULT_APK_CACHE_SIZE) * 1024L * 1024L;
+    }
+
     public boolean getUnstableUpdates() {
         return preferences.getBoolean(PREF_UNSTABLE_UPDATES, DEFAULT_UNSTABLE_UPDATES);
     }
@@ -257,6 +279,65 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         }
     }
 
+    /**
+     * How many repos {@link UpdateService} downloads at the same time, at least one.
+     */
+    public int getUpdateParallelDownloads() {
+        return getPositiveInt(PREF_UPD_PARALLEL_DOWNLOADS, DEFAULT_UPD_PARALLEL_DOWNLOADS);
+    }
+
+    /**
+     * How many APKs and other files {@link org.fdroid.fdroid.net.DownloaderService}
+     * downloads at the same time, at least one.
+     */
+    public int getDownloadSlots() {
+        return getPositiveInt(PREF_DOWNLOAD_SLOTS, DEFAULT_DOWNLOAD_SLOTS);
+    }
+
+    /**
+     * How many of the {@link #getDownloadSlots()} can download from the same host, at least one.
+     */
+    public int getDownloadConnectionsPerHost() {
+        return getPositiveInt(PREF_DOWNLOAD_CONNECTIONS_PER_HOST, DEFAULT_DOWNLOAD_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * Into how many segments a big file is split to download them at the same time,
+     * one means files are always downloaded in one piece.
+     */
+    public int getDownloadSegments() {
+        return getPositiveInt(PREF_DOWNLOAD_SEGMENTS, DEFAULT_DOWNLOAD_SEGMENTS);
+    }
+
+    /**
+     * How many seconds an idle connection is kept open to be reused by the next
+     * download from the same host, this takes effect when F-Droid is restarted.
+     */
+    public int getConnectionKeepAliveSeconds() {
+        return getPositiveInt(PREF_CONNECTION_KEEP_ALIVE, DEFAULT_CONNECTION_KEEP_ALIVE);
+    }
+
+    /**
+     * Whether an index is also requested from a second mirror when the best one
+     * is slow to answer, to use whichever is complete first.
+     */
+    public boolean isHedgedIndexDownloadsEnabled() {
+        return preferences.getBoolean(PREF_HEDGED_INDEX_DOWNLOADS, DEFAULT_HEDGED_INDEX_DOWNLOADS);
+    }
+
+    /**
+     * Reads a number which is stored as a {@code String}, since that is what
+     * {@link androidx.preference.EditTextPreference} stores.
+     */
+    private int getPositiveInt(String key, int defaultValue) {
+        final String value = preferences.getString(key, Integer.toString(defaultValue));
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     /**
      * Calculate the cutoff date we'll use for What's New and Recently
      * Updated...
@@ -51,9 +51,18 @@ import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.installer.InstallManagerService;
+import org.fdroid.fdroid.net.DownloadScheduler;
+import org.fdroid.fdroid.net.HttpConnections;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class UpdateService extends IntentService {
 
@@ -86,6 +95,13 @@ public class UpdateService extends IntentService {
 
     private static Handler toastHandler;
 
+    /**
+     * The bytes read and the total bytes of each index which is being downloaded,
+     * keyed by {@link IndexUpdater#indexUrl}, so that the progress of parallel
+     * downloads can be shown as one.
+     */
+    private static final Map<String, long[]> DOWNLOAD_PROGRESS = new ConcurrentHashMap<>();
+
     private NotificationManager notificationManager;
     private NotificationCompat.Builder notificationBuilder;
 
@@ -360,6 +376,9 @@ public class UpdateService extends IntentService {
             LocalBroadcastManager.getInstance(this).registerReceiver(updateStatusReceiver,
                     new IntentFilter(LOCAL_ACTION_STATUS));
 
+            // in case the last update was stopped before it calculated them
+            AppProvider.Helper.updateDeferredAppDetails(this);
+
             // Grab some preliminary information, then we can release the
             // database while we do all the downloading, etc...
             List<Repo> repos = RepoProvider.Helper.all(this);
@@ -371,6 +390,7 @@ public class UpdateService extends IntentService {
             boolean changes = false;
             boolean singleRepoUpdate = !TextUtils.isEmpty(address);
             final Preferences fdroidPrefs = Preferences.get();
+            List<Repo> reposToUpdate = new ArrayList<>();
             for (final Repo repo : repos) {
                 if (!repo.inuse) {
                     continue;
@@ -382,28 +402,65 @@ public class UpdateService extends IntentService {
                 if (!singleRepoUpdate && repo.isSwap) {
                     continue;
                 }
+                reposToUpdate.add(repo);
+            }
 
-                sendStatus(this, STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
-                IndexV1Updater updater = new IndexV1Updater(getBaseContext(), repo);
-                //setProgressListeners(updater);
-                try {
-                    updater.update();
-                    if (updater.hasChanged()) {
-                        updatedRepos++;
-                        changes = true;
-                    } else {
-                        unchangedRepos++;
+            // The indexes are downloaded in parallel, IndexV1Updater then makes sure
+            // that only one of them at a time is written to the database.
+            int threads = Math.max(1, Math.min(fdroidPrefs.getUpdateParallelDownloads(), reposToUpdate.size()));
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<IndexV1Updater>> updaters = new ArrayList<>(reposToUpdate.size());
+            DOWNLOAD_PROGRESS.clear();
+            try {
+                for (final Repo repo : reposToUpdate) {
+                    updaters.add(executor.submit(new Callable<IndexV1Updater>() {
+                        @Override
+                        public IndexV1Updater call() throws IndexUpdater.UpdateException {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            sendStatus(UpdateService.this, STATUS_INFO,
+                                    getString(R.string.status_connecting_to_repo, repo.address));
+                            IndexV1Updater updater = new IndexV1Updater(getBaseContext(), repo);
+                            updater.setDeferAppDetails(true);
+                            try {
+                                updater.update();
+                            } finally {
+                                DOWNLOAD_PROGRESS.remove(updater.indexUrl);
+                            }
+                            return updater;
+                        }
+                    }));
+                }
+                for (int i = 0; i < reposToUpdate.size(); i++) {
+                    Repo repo = reposToUpdate.get(i);
+                    try {
+                        if (updaters.get(i).get().hasChanged()) {
+                            updatedRepos++;
+                            changes = true;
+                        } else {
+                            unchangedRepos++;
+                        }
+                    } catch (ExecutionException e) {
+                        errorRepos++;
+                        repoErrors.add(e.getCause().getMessage());
+                        Log.e(TAG, "Error updating repository " + repo.address, e.getCause());
                     }
-                } catch (IndexUpdater.UpdateException e) {
-                    errorRepos++;
-                    repoErrors.add(e.getMessage());
-                    Log.e(TAG, "Error updating repository " + repo.address, e);
                 }
+            } finally {
+                executor.shutdownNow();
+                DOWNLOAD_PROGRESS.clear();
+
+                // instead of after each repo, for just the packages changed by any of them,
+                // also when this failed after some repos were committed
+                Utils.Profiler profiler = new Utils.Profiler(TAG);
+                AppProvider.Helper.updateDeferredAppDetails(this);
+                profiler.log("Updated app details once for " + updatedRepos + " updated repos");
+            }
+            Utils.debugLog(TAG, "Kept-alive connections avoided " + HttpConnections.getHandshakesAvoided()
+                    + " of " + HttpConnections.getHttpsRequests() + " TLS handshakes since F-Droid started");
 
-                // now that downloading the index is done, start downloading updates
-                if (changes && fdroidPrefs.isAutoDownloadEnabled()) {
-                    autoDownloadUpdates(this);
-                }
+            // now that downloading the indexes is done, start downloading updates
+            if (changes && fdroidPrefs.isAutoDownloadEnabled()) {
+                autoDownloadUpdates(this);
             }
 
             if (!changes) {
@@ -511,10 +568,10 @@ public class UpdateService extends IntentService {
                 continue;
             }
             Apk apk = ApkProvider.Helper.findSuggestedApk(context, app);
-            InstallManagerService.queue(context, app, apk);
+            InstallManagerService.queue(context, app, apk, DownloadScheduler.PRIORITY_AUTO_DOWNLOAD);
         }
         if (updateLastApp != null && updateLastApk != null) {
-            InstallManagerService.queue(context, updateLastApp, updateLastApk);
+            InstallManagerService.queue(context, updateLastApp, updateLastApk, DownloadScheduler.PRIORITY_AUTO_DOWNLOAD);
         }
     }
 
@@ -541,6 +598,11 @@ public class UpdateService extends IntentService {
     public static void reportDownloadProgress(Context context, IndexUpdater updater,
                                               long bytesRead, long totalBytes) {
         Utils.debugLog(TAG, "Downloading " + updater.indexUrl + "(" + bytesRead + "/" + totalBytes + ")");
+        DOWNLOAD_PROGRESS.put(updater.indexUrl, new long[]{bytesRead, totalBytes});
+        if (DOWNLOAD_PROGRESS.size() > 1) {
+            reportCombinedDownloadProgress(context);
+            return;
+        }
         String downloadedSizeFriendly = Utils.getFriendlySize(bytesRead);
         int percent = -1;
         if (totalBytes > 0) {
@@ -559,8 +621,33 @@ public class UpdateService extends IntentService {
         sendStatus(context, STATUS_INFO, message, percent);
     }
 
+    /**
+     * Sums up the progress of all indexes which are being downloaded.  Downloads of
+     * unknown size count as complete towards the total, and make the progress bar
+     * indeterminate.
+     */
+    private static void reportCombinedDownloadProgress(Context context) {
+        long bytesRead = 0;
+        long totalBytes = 0;
+        boolean sizeKnown = true;
+        for (long[] progress : DOWNLOAD_PROGRESS.values()) {
+            bytesRead += progress[0];
+            if (progress[1] > 0) {
+                totalBytes += progress[1];
+            } else {
+                totalBytes += progress[0];
+                sizeKnown = false;
+            }
+        }
+        int percent = Utils.getPercent(bytesRead, Math.max(1, totalBytes));
+        String message = context.getString(R.string.status_download_repos, DOWNLOAD_PROGRESS.size(),
+                Utils.getFriendlySize(bytesRead), Utils.getFriendlySize(totalBytes), percent);
+        sendStatus(context, STATUS_INFO, message, sizeKnown ? percent : -1);
+    }
+
     public static void reportProcessIndexProgress(Context context, IndexUpdater updater,
                                                   long bytesRead, long totalBytes) {
+        DOWNLOAD_PROGRESS.remove(updater.indexUrl);
         Utils.debugLog(TAG, "Processing " + updater.indexUrl + "(" + bytesRead + "/" + totalBytes + ")");
         String downloadedSize = Utils.getFriendlySize(bytesRead);
         String totalSize = Utils.getFriendlySize(totalBytes);
@@ -46,6 +46,7 @@ import com.nostra13.universalimageloader.core.display.FadeInBitmapDisplayer;
 import com.nostra13.universalimageloader.utils.StorageUtils;
 
 import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.net.FileTransfer;
 import org.xml.sax.XMLReader;
 
 import java.io.BufferedInputStream;
@@ -88,10 +89,9 @@ public final class Utils {
 
     private static final String TAG = "Utils";
 
-    private static final int BUFFER_SIZE = 4096;
-
     // The date format used for storing dates (e.g. lastupdated, added) in the
-    // database.
+    // database.  SimpleDateFormat is not thread-safe, so these are only used
+    // while holding their own lock.
     private static final SimpleDateFormat DATE_FORMAT =
             new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
 
@@ -171,16 +171,11 @@ public final class Utils {
         return stat.getBlockCountLong() * stat.getBlockSizeLong();
     }
 
+    /**
+     * @see FileTransfer#copy(InputStream, OutputStream)
+     */
     public static void copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        while (true) {
-            int count = input.read(buffer);
-            if (count == -1) {
-                break;
-            }
-            output.write(buffer, 0, count);
-        }
-        output.flush();
+        FileTransfer.copy(input, output);
     }
 
     public static void closeQuietly(Closeable closeable) {
@@ -485,12 +480,14 @@ public final class Utils {
             return fallback;
         }
         Date result;
-        try {
-            format.setTimeZone(UTC);
-            result = format.parse(str);
-        } catch (ArrayIndexOutOfBoundsException | NumberFormatException | ParseException e) {
-            e.printStackTrace();
-            result = fallback;
+        synchronized (format) {
+            try {
+                format.setTimeZone(UTC);
+                result = format.parse(str);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException | ParseException e) {
+                e.printStackTrace();
+                result = fallback;
+            }
         }
         return result;
     }
@@ -499,8 +496,10 @@ public final class Utils {
         if (date == null) {
             return fallback;
         }
-        format.setTimeZone(UTC);
-        return format.format(date);
+        synchronized (format) {
+            format.setTimeZone(UTC);
+            return format.format(date);
+        }
     }
 
     /**
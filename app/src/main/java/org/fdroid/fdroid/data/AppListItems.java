@@ -0,0 +1,163 @@
+package org.fdroid.fdroid.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppListItemTable;
+import org.fdroid.fdroid.data.Schema.AppListItemTable.Cols;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppPrefsTable;
+import org.fdroid.fdroid.data.Schema.InstalledAppTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.fdroid.fdroid.data.Schema.RepoTable;
+
+/**
+ * Keeps the {@link AppListItemTable} in line with the tables it is made from.  Its rows
+ * are written again for each package whose preferred metadata, compatible flag, suggested
+ * version, installed version or preferences may have changed, which {@link AppProvider},
+ * {@link TempAppProvider} and {@link AppPrefsProvider} do right after changing them.
+ * <p>
+ * There is an index for each list and the order it is sorted in, so that a list is read
+ * in order from the index without sorting it.  The names are sorted by their
+ * {@link NameSortKeys}, which are copied from {@link AppMetadataTable}.
+ */
+final class AppListItems {
+
+    private AppListItems() {
+    }
+
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + AppListItemTable.NAME + " ("
+                + Cols.APP_ID + " INTEGER PRIMARY KEY, "
+                + Cols.PACKAGE_ID + " INTEGER NOT NULL UNIQUE, "
+                + Cols.PACKAGE_NAME + " TEXT NOT NULL, "
+                + Cols.REPO_ID + " INTEGER, "
+                + Cols.NAME + " TEXT, "
+                + Cols.NAME_SORT_KEY + " BLOB, "
+                + Cols.SUMMARY + " TEXT, "
+                + Cols.IS_COMPATIBLE + " INTEGER, "
+                + Cols.LICENSE + " TEXT, "
+                + Cols.ICON + " TEXT, "
+                + Cols.ICON_URL + " TEXT, "
+                + Cols.REQUIREMENTS + " TEXT, "
+                + Cols.ANTI_FEATURES + " TEXT, "
+                + Cols.IS_APK + " INTEGER, "
+                + Cols.ADDED + " TEXT, "
+                + Cols.LAST_UPDATED + " TEXT, "
+                + Cols.SUGGESTED_VERSION_CODE + " INTEGER, "
+                + Cols.SUGGESTED_VERSION_NAME + " TEXT, "
+                + Cols.INSTALLED_VERSION_CODE + " INTEGER, "
+                + Cols.INSTALLED_VERSION_NAME + " TEXT, "
+                + Cols.IS_INSTALLED + " INTEGER NOT NULL, "
+                + Cols.CAN_UPDATE + " INTEGER NOT NULL)");
+
+        createIndex(db, "appListItem_nameSortKey", Cols.NAME_SORT_KEY);
+        createIndex(db, "appListItem_isInstalled_nameSortKey", Cols.IS_INSTALLED + ", " + Cols.NAME_SORT_KEY);
+        createIndex(db, "appListItem_canUpdate_nameSortKey", Cols.CAN_UPDATE + ", " + Cols.NAME_SORT_KEY);
+        createIndex(db, "appListItem_added", Cols.ADDED);
+        createIndex(db, "appListItem_lastUpdated", Cols.LAST_UPDATED);
+    }
+
+    private static void createIndex(SQLiteDatabase db, String index, String columns) {
+        db.execSQL("CREATE INDEX " + index + " ON " + AppListItemTable.NAME + " (" + columns + ")");
+    }
+
+    static void drop(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + AppListItemTable.NAME);
+    }
+
+    /**
+     * Creates the table from scratch, with every package which is in the database.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        drop(db);
+        create(db);
+        refresh(db, null);
+    }
+
+    /**
+     * Takes apps out of the lists before they are deleted, for when they are not replaced.
+     *
+     * @param appIds a subquery or comma separated list of the rowids of the apps
+     */
+    static void remove(SQLiteDatabase db, String appIds, Object... args) {
+        db.execSQL("DELETE FROM " + AppListItemTable.NAME + " WHERE " + Cols.APP_ID + " IN (" + appIds + ")", args);
+    }
+
+    /**
+     * Writes the rows of packages again from the tables they are made from, leaving out
+     * packages which are not listed any more.
+     *
+     * @param packageIds a subquery or comma separated list of the rowids of the packages,
+     *                   or null for all of them
+     */
+    static void refresh(SQLiteDatabase db, String packageIds, Object... args) {
+        final String pkg = PackageTable.NAME;
+        final String app = AppMetadataTable.NAME;
+        final String apk = ApkTable.NAME;
+        final String repo = RepoTable.NAME;
+        final String installed = InstalledAppTable.NAME;
+        final String prefs = AppPrefsTable.NAME;
+
+        String delete = "DELETE FROM " + AppListItemTable.NAME;
+        if (packageIds != null) {
+            delete += " WHERE " + Cols.PACKAGE_ID + " IN (" + packageIds + ")";
+        }
+        db.execSQL(delete, args);
+
+        final String suggestedVersionCode = app + "." + AppMetadataTable.Cols.SUGGESTED_VERSION_CODE;
+        final String installedVersionCode = installed + "." + InstalledAppTable.Cols.VERSION_CODE;
+        final String isInstalled = installed + "." + InstalledAppTable.Cols.PACKAGE_ID + " IS NOT NULL";
+
+        // The same as AppProvider#queryCanUpdate(), for the one app of each package.
+        final String canUpdate = isInstalled
+                + " AND COALESCE(" + suggestedVersionCode + " > " + installedVersionCode + ", 0)"
+                + " AND COALESCE(" + prefs + "." + AppPrefsTable.Cols.IGNORE_THIS_UPDATE + ", 0) != COALESCE(" + suggestedVersionCode + ", 0)"
+                + " AND COALESCE(" + prefs + "." + AppPrefsTable.Cols.IGNORE_ALL_UPDATES + ", 0) != 1";
+
+        final String suggestedVersionName = "SELECT " + ApkTable.Cols.VERSION_NAME + " FROM " + apk
+                + " WHERE " + apk + "." + ApkTable.Cols.APP_ID + " = " + app + "." + AppMetadataTable.Cols.ROW_ID
+                + " AND " + apk + "." + ApkTable.Cols.VERSION_CODE + " = " + suggestedVersionCode + " LIMIT 1";
+
+        String sql = "INSERT INTO " + AppListItemTable.NAME + " ("
+                + Cols.APP_ID + ", " + Cols.PACKAGE_ID + ", " + Cols.PACKAGE_NAME + ", " + Cols.REPO_ID + ", "
+                + Cols.NAME + ", " + Cols.NAME_SORT_KEY + ", " + Cols.SUMMARY + ", " + Cols.IS_COMPATIBLE + ", " + Cols.LICENSE + ", "
+                + Cols.ICON + ", " + Cols.ICON_URL + ", " + Cols.REQUIREMENTS + ", " + Cols.ANTI_FEATURES + ", "
+                + Cols.IS_APK + ", " + Cols.ADDED + ", " + Cols.LAST_UPDATED + ", "
+                + Cols.SUGGESTED_VERSION_CODE + ", " + Cols.SUGGESTED_VERSION_NAME + ", "
+                + Cols.INSTALLED_VERSION_CODE + ", " + Cols.INSTALLED_VERSION_NAME + ", "
+                + Cols.IS_INSTALLED + ", " + Cols.CAN_UPDATE + ") "
+                + "SELECT " + app + "." + AppMetadataTable.Cols.ROW_ID + ", "
+                + pkg + "." + PackageTable.Cols.ROW_ID + ", "
+                + pkg + "." + PackageTable.Cols.PACKAGE_NAME + ", "
+                + app + "." + AppMetadataTable.Cols.REPO_ID + ", "
+                + app + "." + AppMetadataTable.Cols.NAME + ", "
+                + app + "." + AppMetadataTable.Cols.NAME_SORT_KEY + ", "
+                + app + "." + AppMetadataTable.Cols.SUMMARY + ", "
+                + app + "." + AppMetadataTable.Cols.IS_COMPATIBLE + ", "
+                + app + "." + AppMetadataTable.Cols.LICENSE + ", "
+                + app + "." + AppMetadataTable.Cols.ICON + ", "
+                + app + "." + AppMetadataTable.Cols.ICON_URL + ", "
+                + app + "." + AppMetadataTable.Cols.REQUIREMENTS + ", "
+                + app + "." + AppMetadataTable.Cols.ANTI_FEATURES + ", "
+                + app + "." + AppMetadataTable.Cols.IS_APK + ", "
+                + app + "." + AppMetadataTable.Cols.ADDED + ", "
+                + app + "." + AppMetadataTable.Cols.LAST_UPDATED + ", "
+                + suggestedVersionCode + ", "
+                + "(" + suggestedVersionName + "), "
+                + installedVersionCode + ", "
+                + installed + "." + InstalledAppTable.Cols.VERSION_NAME + ", "
+                + "(" + isInstalled + "), "
+                + "(" + canUpdate + ") "
+                + "FROM " + pkg
+                + " JOIN " + app + " ON (" + app + "." + AppMetadataTable.Cols.ROW_ID + " = " + pkg + "." + PackageTable.Cols.PREFERRED_METADATA + ")"
+                + " JOIN " + repo + " ON (" + repo + "." + RepoTable.Cols._ID + " = " + app + "." + AppMetadataTable.Cols.REPO_ID + ")"
+                + " LEFT JOIN " + installed + " ON (" + installed + "." + InstalledAppTable.Cols.PACKAGE_ID + " = " + pkg + "." + PackageTable.Cols.ROW_ID + ")"
+                + " LEFT JOIN " + prefs + " ON (" + prefs + "." + AppPrefsTable.Cols.PACKAGE_NAME + " = " + pkg + "." + PackageTable.Cols.PACKAGE_NAME + ")"
+                + " WHERE COALESCE(" + repo + "." + RepoTable.Cols.IS_SWAP + ", 0) = 0";
+        if (packageIds != null) {
+            sql += " AND " + pkg + "." + PackageTable.Cols.ROW_ID + " IN (" + packageIds + ")";
+        }
+        db.execSQL(sql, args);
+    }
+}
@@ -144,6 +144,7 @@ public class AppPrefsProvider extends FDroidProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         db().insertOrThrow(getTableName(), null, values);
+        AppListItems.refresh(db(), getPackageIdFromPackageNameQuery(), values.getAsString(Cols.PACKAGE_NAME));
         Log.d(TAG, "insert: notifying " + AppProvider.getCanUpdateUri());
         getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
         return getAppUri(values.getAsString(Cols.PACKAGE_NAME));
@@ -157,6 +158,7 @@ public class AppPrefsProvider extends FDroidProvider {
 
         QuerySelection query = new QuerySelection(where, whereArgs).add(querySingle(uri.getLastPathSegment()));
         int count = db().update(getTableName(), values, query.getSelection(), query.getArgs());
+        AppListItems.refresh(db(), getPackageIdFromPackageNameQuery(), uri.getLastPathSegment());
         Log.d(TAG, "update: notifying " + AppProvider.getCanUpdateUri());
         getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
         return count;
@@ -6,17 +6,21 @@ import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppListItemTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
 import org.fdroid.fdroid.data.Schema.AppPrefsTable;
@@ -24,12 +28,14 @@ import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.CategoryTable;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.fdroid.fdroid.data.Schema.PendingAppDetailsTable;
 import org.fdroid.fdroid.data.Schema.RepoTable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 /**
@@ -54,6 +60,8 @@ public class AppProvider extends FDroidProvider {
 
     private static final String TAG = "AppProvider";
 
+    private static final Set<String> LISTED_COLUMNS = new HashSet<>(Arrays.asList(AppListItemTable.Cols.LISTED));
+
     public static final class Helper {
 
         private Helper() {
@@ -150,10 +158,39 @@ public class AppProvider extends FDroidProvider {
             return cursorToList(context.getContentResolver().query(AppProvider.getCanUpdateUri(), projection, null, null, null));
         }
 
+        /**
+         * Whether the apps found by searching for {@code query} are all among those found by
+         * {@code previousQuery}, so the search can be narrowed down to those apps.
+         */
+        public static boolean narrowsSearch(String previousQuery, String query) {
+            return AppSearchIndex.narrows(AppSearchIndex.getTerms(previousQuery), AppSearchIndex.getTerms(query));
+        }
+
         static void recalculatePreferredMetadata(Context context) {
             Uri uri = Uri.withAppendedPath(AppProvider.getContentUri(), PATH_CALC_PREFERRED_METADATA);
             context.getContentResolver().query(uri, null, null, null, null);
         }
+
+        /**
+         * Calculates the preferred metadata, compatible flags and suggested versions of the
+         * packages which changed in the repos committed with {@code deferAppDetails} since
+         * this was last called, including those of an update which was stopped before it got
+         * to call this.  Does nothing if there are none.
+         *
+         * @see RepoPersister#commit(ContentValues, long, boolean)
+         */
+        public static void updateDeferredAppDetails(Context context) {
+            Uri uri = Uri.withAppendedPath(AppProvider.getContentUri(), PATH_CALC_DEFERRED_APP_DETAILS);
+            context.getContentResolver().update(uri, null, null, null);
+        }
+
+        /**
+         * Sorts the names of apps for {@code locale} from now on, if they were sorted for
+         * another one so far.  This happens in the background.
+         */
+        public static void updateNameSortKeys(Context context, Locale locale) {
+            NameSortKeys.update(context, locale);
+        }
     }
 
     /**
@@ -445,6 +482,29 @@ public class AppProvider extends FDroidProvider {
         }
     }
 
+    /**
+     * Reads the {@link AppListItemTable} under the name of {@link #getTableName()}, so that
+     * the selections and sort orders of the app table work on it as well, as long as they
+     * only use the columns which it has.  Each of its rows is a single app from the repo
+     * with the highest priority, which is not a swap repo, so there is nothing to join.
+     */
+    protected class ListQuery extends QueryBuilder {
+
+        @Override
+        protected String getRequiredTables() {
+            return AppListItemTable.NAME + " AS " + getTableName();
+        }
+
+        @Override
+        public void addField(String field) {
+            if (Cols._COUNT.equals(field)) {
+                appendField("COUNT(*) AS " + Cols._COUNT);
+            } else {
+                appendField(field);
+            }
+        }
+    }
+
     private static final String PROVIDER_NAME = "AppProvider";
 
     private static final UriMatcher MATCHER = new UriMatcher(-1);
@@ -463,8 +523,13 @@ public class AppProvider extends FDroidProvider {
     private static final String PATH_HIGHEST_PRIORITY = "highestPriority";
     private static final String PATH_CALC_PREFERRED_METADATA = "calcPreferredMetadata";
     private static final String PATH_CALC_SUGGESTED_APKS = "calcNonRepoDetailsFromIndex";
+    private static final String PATH_CALC_DEFERRED_APP_DETAILS = "calcDeferredAppDetails";
     private static final String PATH_INSTALLED_WITH_KNOWN_VULNS = "installedWithKnownVulns";
 
+    private static final String QUERY_PAGE_SIZE = "pageSize";
+    private static final String QUERY_PAGE_OFFSET = "pageOffset";
+    private static final String QUERY_PAGE_AFTER = "pageAfter";
+
     private static final int CAN_UPDATE = CODE_SINGLE + 1;
     private static final int INSTALLED = CAN_UPDATE + 1;
     private static final int SEARCH_TEXT = INSTALLED + 1;
@@ -478,6 +543,12 @@ public class AppProvider extends FDroidProvider {
     private static final int HIGHEST_PRIORITY = SEARCH_CAN_UPDATE + 1;
     private static final int CALC_PREFERRED_METADATA = HIGHEST_PRIORITY + 1;
     private static final int INSTALLED_WITH_KNOWN_VULNS = CALC_PREFERRED_METADATA + 1;
+    private static final int CALC_DEFERRED_APP_DETAILS = INSTALLED_WITH_KNOWN_VULNS + 1;
+
+    /**
+     * Scratch table in the {@code temp} schema used by {@link #updateSuggested(String, String[], boolean)}.
+     */
+    private static final String SUGGESTED_VERSION_TABLE = "suggested_version";
 
     static {
         MATCHER.addURI(getAuthority(), null, CODE_LIST);
@@ -496,6 +567,7 @@ public class AppProvider extends FDroidProvider {
         MATCHER.addURI(getAuthority(), PATH_SPECIFIC_APP + "/#/*", CODE_SINGLE);
         MATCHER.addURI(getAuthority(), PATH_CALC_PREFERRED_METADATA, CALC_PREFERRED_METADATA);
         MATCHER.addURI(getAuthority(), PATH_INSTALLED_WITH_KNOWN_VULNS, INSTALLED_WITH_KNOWN_VULNS);
+        MATCHER.addURI(getAuthority(), PATH_CALC_DEFERRED_APP_DETAILS, CALC_DEFERRED_APP_DETAILS);
     }
 
     public static Uri getContentUri() {
@@ -596,11 +668,38 @@ public class AppProvider extends FDroidProvider {
         return builder.build();
     }
 
+    /**
+     * A page of the list of apps at {@code uri}, which is the {@code pageSize} apps from
+     * {@code offset} on.  For a list sorted by name, the page can start right after
+     * {@code afterAppId}, the last app of the page before, instead.  It is then read
+     * from where that app is in the index of the names, where an offset would have to
+     * step over every app before it.
+     *
+     * @param afterAppId the rowid of the last app of the page before, or 0 if not known
+     */
+    public static Uri getPageUri(Uri uri, int offset, int pageSize, long afterAppId) {
+        Uri.Builder builder = uri.buildUpon()
+                .appendQueryParameter(QUERY_PAGE_SIZE, Integer.toString(pageSize))
+                .appendQueryParameter(QUERY_PAGE_OFFSET, Integer.toString(offset));
+        if (afterAppId > 0) {
+            builder.appendQueryParameter(QUERY_PAGE_AFTER, Long.toString(afterAppId));
+        }
+        return builder.build();
+    }
+
     @Override
     protected String getTableName() {
         return AppMetadataTable.NAME;
     }
 
+    /**
+     * Whether {@link #getTableName()} is the live table, which the {@link AppSearchIndex}
+     * and the {@link AppListItems} are kept in line with.
+     */
+    protected boolean isLive() {
+        return true;
+    }
+
     protected String getCatJoinTableName() {
         return CatJoinTable.NAME;
     }
@@ -641,6 +740,14 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection(where).requireNaturalInstalledTable().requireLeftJoinPrefs();
     }
 
+    private AppQuerySelection queryListedCanUpdate() {
+        return new AppQuerySelection(getTableName() + "." + AppListItemTable.Cols.CAN_UPDATE + " = 1");
+    }
+
+    private AppQuerySelection queryListedInstalled() {
+        return new AppQuerySelection(getTableName() + "." + AppListItemTable.Cols.IS_INSTALLED + " = 1");
+    }
+
     private AppQuerySelection queryRepo(long repoId) {
         final String selection = getTableName() + "." + Cols.REPO_ID + " = ? ";
         final String[] args = {String.valueOf(repoId)};
@@ -651,56 +758,16 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection().requireNaturalInstalledTable();
     }
 
+    /**
+     * Selects the apps which have every term of {@code query} in the {@link AppSearchIndex}.
+     */
     private AppQuerySelection querySearch(String query) {
-        // Put in a Set to remove duplicates
-        final Set<String> keywordSet = new HashSet<>(Arrays.asList(query.split("\\s")));
-
-        if (keywordSet.size() == 0) {
+        List<String> terms = AppSearchIndex.getTerms(query);
+        if (terms.isEmpty()) {
             return new AppQuerySelection();
         }
-
-        // Surround each keyword in % for wildcard searching
-        final String[] keywords = new String[keywordSet.size()];
-        int iKeyword = 0;
-        for (final String keyword : keywordSet) {
-            keywords[iKeyword] = "%" + keyword + "%";
-            iKeyword++;
-        }
-
-        final String app = getTableName();
-        final String[] columns = {
-                PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME,
-                app + "." + Cols.NAME,
-                app + "." + Cols.SUMMARY,
-                app + "." + Cols.DESCRIPTION,
-        };
-
-        // Build selection string and fill out keyword arguments
-        final StringBuilder selection = new StringBuilder();
-        final String[] selectionKeywords = new String[columns.length * keywords.length];
-        iKeyword = 0;
-        boolean firstColumn = true;
-        for (final String column : columns) {
-            if (firstColumn) {
-                firstColumn = false;
-            } else {
-                selection.append(" OR ");
-            }
-            selection.append('(');
-            boolean firstKeyword = true;
-            for (final String keyword : keywords) {
-                if (firstKeyword) {
-                    firstKeyword = false;
-                } else {
-                    selection.append(" AND ");
-                }
-                selection.append(column).append(" LIKE ?");
-                selectionKeywords[iKeyword] = keyword;
-                iKeyword++;
-            }
-            selection.append(") ");
-        }
-        return new AppQuerySelection(selection.toString(), selectionKeywords);
+        String appRowId = getTableName() + "." + Cols.ROW_ID;
+        return new AppQuerySelection(AppSearchIndex.selectMatching(appRowId, terms), AppSearchIndex.getMatchArgs(terms));
     }
 
     protected AppQuerySelection querySingle(String packageName, long repoId) {
@@ -729,6 +796,21 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection(selection);
     }
 
+    /**
+     * The apps which come after {@code appId} when sorted by name, with the same
+     * order as the sort order for {@link Cols#NAME}.  The first half is a range of the
+     * index of the sort keys, the second only tells apart the apps with the same key.
+     */
+    private AppQuerySelection queryAfterByName(String appId) {
+        final String app = getTableName();
+        final String sortKey = app + "." + Cols.NAME_SORT_KEY;
+        final String sortKeyOfApp = "(SELECT " + Cols.NAME_SORT_KEY + " FROM " + app + " WHERE " + Cols.ROW_ID + " = ?)";
+        final String selection = sortKey + " >= " + sortKeyOfApp
+                + " AND (" + sortKey + " > " + sortKeyOfApp + " OR " + app + "." + Cols.ROW_ID + " > ?)";
+        final String[] args = {appId, appId, appId};
+        return new AppQuerySelection(selection, args);
+    }
+
     private AppQuerySelection queryPackageName(String packageName) {
         final String selection = PackageTable.NAME + "." + PackageTable.Cols.PACKAGE_NAME + " = ? ";
         final String[] args = {packageName};
@@ -748,6 +830,25 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection(selection, args);
     }
 
+    /**
+     * The same as {@link #queryCategory(String)}, for the list items, which are not joined
+     * with the categories.
+     */
+    private AppQuerySelection queryListedCategory(String category) {
+        if (TextUtils.isEmpty(category)) {
+            return new AppQuerySelection();
+        }
+
+        final String catJoin = getCatJoinTableName();
+        final String cat = CategoryTable.NAME;
+        final String selection = getTableName() + "." + Cols.ROW_ID + " IN ("
+                + "SELECT " + catJoin + "." + CatJoinTable.Cols.APP_METADATA_ID + " FROM " + catJoin
+                + " JOIN " + cat + " ON (" + cat + "." + CategoryTable.Cols.ROW_ID + " = " + catJoin + "." + CatJoinTable.Cols.CATEGORY_ID + ")"
+                + " WHERE " + cat + "." + CategoryTable.Cols.NAME + " = ? COLLATE NOCASE)";
+        final String[] args = {category};
+        return new AppQuerySelection(selection, args);
+    }
+
     private AppQuerySelection queryInstalledWithKnownVulns() {
         String apk = getApkTableName();
 
@@ -774,6 +875,16 @@ public class AppProvider extends FDroidProvider {
 
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String customSelection, String[] selectionArgs, String sortOrder) {
+        return query(uri, projection, customSelection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Searches pass the {@link CancellationSignal} of their loader, so that a search
+     * which was overtaken by the next one typed stops using the database.
+     */
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String customSelection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
         AppQuerySelection selection = new AppQuerySelection(customSelection, selectionArgs);
 
         // It is usually the case that we ask for app(s) for which we don't care what repo is
@@ -784,12 +895,16 @@ public class AppProvider extends FDroidProvider {
         // querying from.
         boolean repoIsKnown = false;
 
+        // The lists of apps are read from the list items alone when they can be.
+        boolean listed = isLive() && isListed(projection);
+
         int limit = 0;
 
         List<String> pathSegments = uri.getPathSegments();
         switch (MATCHER.match(uri)) {
             case CALC_PREFERRED_METADATA:
-                updatePreferredMetadata();
+                updatePreferredMetadata(null);
+                AppListItems.refresh(db(), null);
                 return null;
 
             case CODE_LIST:
@@ -800,19 +915,21 @@ public class AppProvider extends FDroidProvider {
                 String packageName = pathSegments.get(2);
                 selection = selection.add(querySingle(packageName, repoId));
                 repoIsKnown = true;
+                listed = false;
                 break;
 
             case CAN_UPDATE:
-                selection = selection.add(queryCanUpdate());
+                selection = selection.add(listed ? queryListedCanUpdate() : queryCanUpdate());
                 break;
 
             case REPO:
                 selection = selection.add(queryRepo(Long.parseLong(uri.getLastPathSegment())));
                 repoIsKnown = true;
+                listed = false;
                 break;
 
             case INSTALLED:
-                selection = selection.add(queryInstalled());
+                selection = selection.add(listed ? queryListedInstalled() : queryInstalled());
                 sortOrder = Cols.NAME;
                 break;
 
@@ -822,15 +939,18 @@ public class AppProvider extends FDroidProvider {
                 break;
 
             case SEARCH_INSTALLED:
-                selection = querySearch(uri.getLastPathSegment()).add(queryInstalled());
+                selection = selection.add(querySearch(uri.getLastPathSegment()))
+                        .add(listed ? queryListedInstalled() : queryInstalled());
                 break;
 
             case SEARCH_CAN_UPDATE:
-                selection = querySearch(uri.getLastPathSegment()).add(queryCanUpdate());
+                selection = selection.add(querySearch(uri.getLastPathSegment()))
+                        .add(listed ? queryListedCanUpdate() : queryCanUpdate());
                 break;
 
             case CATEGORY:
-                selection = selection.add(queryCategory(uri.getLastPathSegment()));
+                String category = uri.getLastPathSegment();
+                selection = selection.add(listed ? queryListedCategory(category) : queryCategory(category));
                 break;
 
             case NEWLY_ADDED:
@@ -841,6 +961,7 @@ public class AppProvider extends FDroidProvider {
 
             case INSTALLED_WITH_KNOWN_VULNS:
                 selection = selection.add(queryInstalledWithKnownVulns());
+                listed = false;
                 break;
 
             case RECENTLY_UPDATED:
@@ -850,6 +971,7 @@ public class AppProvider extends FDroidProvider {
 
             case HIGHEST_PRIORITY:
                 selection = selection.add(queryPackageName(uri.getLastPathSegment()));
+                listed = false;
                 break;
 
             default:
@@ -857,35 +979,68 @@ public class AppProvider extends FDroidProvider {
                 throw new UnsupportedOperationException("Invalid URI for app content provider: " + uri);
         }
 
+        int offset = 0;
+        String pageSize = uri.getQueryParameter(QUERY_PAGE_SIZE);
+        if (pageSize != null) {
+            limit = Integer.parseInt(pageSize);
+            String afterAppId = uri.getQueryParameter(QUERY_PAGE_AFTER);
+            if (afterAppId != null && Cols.NAME.equals(sortOrder)) {
+                selection = selection.add(queryAfterByName(afterAppId));
+            } else {
+                offset = Integer.parseInt(uri.getQueryParameter(QUERY_PAGE_OFFSET));
+            }
+        }
+
+        if (listed) {
+            return runListQuery(uri, selection, projection, sortOrder, limit, offset, cancellationSignal);
+        }
+
         if (!repoIsKnown) {
             selection = selection.add(queryHighestPriority());
         }
 
-        return runQuery(uri, selection, projection, sortOrder, limit);
+        return runQuery(uri, selection, projection, sortOrder, limit, offset, cancellationSignal);
     }
 
-    private String getSearchSortOrder(String searchTerms) {
-        final String LAST_UPDATED = Schema.AppMetadataTable.NAME + "." + Schema.AppMetadataTable.Cols.LAST_UPDATED + " desc";
-        final String NAME_COL = Schema.AppMetadataTable.NAME + "." + Schema.AppMetadataTable.Cols.NAME;
-        final String SUMMARY_COL = Schema.AppMetadataTable.NAME + "." + Schema.AppMetadataTable.Cols.SUMMARY;
-        final String[] terms = searchTerms.trim().split("\\s+");
-        if (terms.length == 0 || terms[0].equals("")) {
-            return LAST_UPDATED;
+    /**
+     * @return whether every column of {@code projection} is in the {@link AppListItemTable}
+     */
+    private static boolean isListed(@Nullable String[] projection) {
+        if (projection == null) {
+            return false;
         }
-
-        for (int i = 0; i < terms.length; i++) {
-            terms[i] = DatabaseUtils.sqlEscapeString('%' + terms[i] + '%');
+        for (String column : projection) {
+            if (!LISTED_COLUMNS.contains(column) && !Cols._COUNT.equals(column)) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        StringBuilder titleCase = new StringBuilder(NAME_COL + " like " + terms[0]);
-        StringBuilder summaryCase = new StringBuilder(NAME_COL + " like " + terms[0]);
-        for (int i = 1; i < terms.length; i++) {
-            titleCase.append(" and " + NAME_COL + " like ").append(terms[i]);
-            summaryCase.append(" and " + NAME_COL + " like ").append(terms[i]);
-        }
+    private Cursor runListQuery(Uri uri, AppQuerySelection selection, String[] projection, String sortOrder,
+                                int limit, int offset, @Nullable CancellationSignal cancellationSignal) {
+        ListQuery query = new ListQuery();
+        query.addSelection(selection);
+        query.addFields(projection);
+        query.addOrderBy(getSortOrder(sortOrder));
+        query.addLimit(limit, offset);
+
+        Cursor cursor = LoggingQuery.query(db(), query.toString(), query.getArgs(), cancellationSignal);
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }
 
-        return String.format("case when %s then 1 when %s then 2 else 3 end, %s",
-                titleCase.toString(), summaryCase.toString(), LAST_UPDATED);
+    /**
+     * Sorts the search results by their score in the {@link AppSearchIndex}, then the
+     * most recently updated first.
+     */
+    private String getSearchSortOrder(String query) {
+        final String lastUpdated = getTableName() + "." + Cols.LAST_UPDATED + " DESC";
+        List<String> terms = AppSearchIndex.getTerms(query);
+        if (terms.isEmpty()) {
+            return lastUpdated;
+        }
+        return AppSearchIndex.getScore(db(), getTableName() + "." + Cols.ROW_ID, terms) + " DESC, " + lastUpdated;
     }
 
     private AppQuerySelection queryNewlyAdded() {
@@ -903,24 +1058,33 @@ public class AppProvider extends FDroidProvider {
     }
 
 
+    /**
+     * Sorts by the {@link NameSortKeys} for {@link Cols#NAME}, which is the order the
+     * lists of {@link AppListItemTable} are indexed in.  The rowid comes last so that
+     * apps with the same name are always in the same order, which paging relies on.
+     */
+    private String getSortOrder(String sortOrder) {
+        if (Cols.NAME.equals(sortOrder)) {
+            return getTableName() + "." + Cols.NAME_SORT_KEY + ", " + getTableName() + "." + Cols.ROW_ID;
+        }
+        return sortOrder;
+    }
+
     /**
      * Helper method used by both the genuine {@link AppProvider} and the temporary version used
      * by the repo updater ({@link TempAppProvider}).
      */
-    protected Cursor runQuery(Uri uri, AppQuerySelection selection, String[] projection, String sortOrder, int limit) {
+    protected Cursor runQuery(Uri uri, AppQuerySelection selection, String[] projection, String sortOrder,
+                              int limit, int offset, @Nullable CancellationSignal cancellationSignal) {
         selection = selection.add(queryExcludeSwap());
 
-        if (Cols.NAME.equals(sortOrder)) {
-            sortOrder = getTableName() + "." + sortOrder + " COLLATE LOCALIZED ";
-        }
-
         Query query = new Query();
         query.addSelection(selection);
         query.addFields(projection); // TODO: Make the order of addFields/addSelection not dependent on each other...
-        query.addOrderBy(sortOrder);
-        query.addLimit(limit);
+        query.addOrderBy(getSortOrder(sortOrder));
+        query.addLimit(limit, offset);
 
-        Cursor cursor = LoggingQuery.query(db(), query.toString(), query.getArgs());
+        Cursor cursor = LoggingQuery.query(db(), query.toString(), query.getArgs(), cancellationSignal);
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -940,6 +1104,11 @@ public class AppProvider extends FDroidProvider {
         db().execSQL(query, new String[]{String.valueOf(repoId)});
 
         AppQuerySelection selection = new AppQuerySelection(where, whereArgs).add(queryRepo(repoId));
+        if (isLive()) {
+            String appIds = "SELECT " + Cols.ROW_ID + " FROM " + app + " WHERE " + selection.getSelection();
+            AppSearchIndex.remove(db(), appIds, (Object[]) selection.getArgs());
+            AppListItems.remove(db(), appIds, (Object[]) selection.getArgs());
+        }
         int result = db().delete(getTableName(), selection.getSelection(), selection.getArgs());
 
         Log.d(TAG, "delete: notifying" + ApkProvider.getContentUri() + ", " + AppProvider.getContentUri() + ", " + CategoryProvider.getContentUri());
@@ -964,6 +1133,9 @@ public class AppProvider extends FDroidProvider {
         // Trim these to avoid unwanted newlines in the UI
         values.put(Cols.SUMMARY, values.getAsString(Cols.SUMMARY).trim());
         values.put(Cols.NAME, values.getAsString(Cols.NAME).trim());
+        if (!values.containsKey(Cols.NAME_SORT_KEY)) {
+            values.put(Cols.NAME_SORT_KEY, new NameSortKeys(FDroidApp.getLocale()).get(values.getAsString(Cols.NAME)));
+        }
 
         String[] categories = null;
         boolean saveCategories = false;
@@ -976,6 +1148,9 @@ public class AppProvider extends FDroidProvider {
         }
 
         long appMetadataId = db().insertOrThrow(getTableName(), null, values);
+        if (isLive()) {
+            AppSearchIndex.add(db(), Long.toString(appMetadataId));
+        }
         if (!isApplyingBatch()) {
             Log.d(TAG, "insert: Notifying " + uri);
             getContext().getContentResolver().notifyChange(uri, null);
@@ -1013,7 +1188,11 @@ public class AppProvider extends FDroidProvider {
 
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
-        if (MATCHER.match(uri) != CALC_SUGGESTED_APKS) {
+        int match = MATCHER.match(uri);
+        if (match == CALC_DEFERRED_APP_DETAILS) {
+            return updateDeferredAppDetails();
+        }
+        if (match != CALC_SUGGESTED_APKS) {
             throw new UnsupportedOperationException("Update not supported for " + uri + ".");
         }
 
@@ -1021,17 +1200,52 @@ public class AppProvider extends FDroidProvider {
         if (segments.size() > 1) {
             String packageName = segments.get(1);
             updateSuggestedApk(packageName);
+            AppListItems.refresh(db(), getPackageIdFromPackageNameQuery(), packageName);
         } else {
             updateSuggestedApks();
+            AppListItems.refresh(db(), null);
         }
         getContext().getContentResolver().notifyChange(getCanUpdateUri(), null);
         return 0;
     }
 
     protected void updateAllAppDetails() {
-        updatePreferredMetadata();
-        updateCompatibleFlags();
-        updateSuggestedFromUpstream(null);
+        updatePreferredMetadata(null);
+        updateCompatibleFlags(null);
+        updateSuggestedFromUpstream(null, null);
+    }
+
+    /**
+     * Does the work of {@link #updateAllAppDetails()} on the live tables, but only for the
+     * packages in {@link PendingAppDetailsTable}, which are then removed from it in the same
+     * transaction.  That way, when several repos are updated one after the other, the details
+     * are calculated once at the end rather than for every app of every repo after each of them.
+     *
+     * @return the number of packages which were updated
+     */
+    private int updateDeferredAppDetails() {
+        final SQLiteDatabase db = db();
+        int count;
+        Utils.Profiler profiler = new Utils.Profiler(TAG);
+        try {
+            db.beginTransaction();
+            count = (int) DatabaseUtils.queryNumEntries(db, PendingAppDetailsTable.NAME);
+            if (count > 0) {
+                String ids = "SELECT " + PendingAppDetailsTable.Cols.PACKAGE_ID + " FROM " + PendingAppDetailsTable.NAME;
+                updatePreferredMetadata(ids);
+                updateCompatibleFlags(ids);
+                updateSuggestedFromUpstream(null, ids);
+                AppListItems.refresh(db, ids);
+                db.delete(PendingAppDetailsTable.NAME, null, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            profiler.log("Updated app details of " + count + " changed packages");
+        }
+        return count;
     }
 
     /**
@@ -1051,16 +1265,20 @@ public class AppProvider extends FDroidProvider {
      * {@link android.app.IntentService} as described in https://gitlab.com/fdroid/fdroidclient/issues/520.
      */
     protected void updateSuggestedApks() {
-        updateSuggestedFromUpstream(null);
+        updateSuggestedFromUpstream(null, null);
         updateSuggestedFromLatest(null);
     }
 
     protected void updateSuggestedApk(String packageName) {
-        updateSuggestedFromUpstream(packageName);
+        updateSuggestedFromUpstream(packageName, null);
         updateSuggestedFromLatest(packageName);
     }
 
-    private void updatePreferredMetadata() {
+    /**
+     * @param packageIds comma separated IDs of the packages to update, or a query selecting them,
+     *                   or null for all of them
+     */
+    private void updatePreferredMetadata(@Nullable String packageIds) {
         Utils.debugLog(TAG, "Deciding on which metadata should take priority for each package.");
 
         final String app = getTableName();
@@ -1079,7 +1297,11 @@ public class AppProvider extends FDroidProvider {
                         " JOIN " + RepoTable.NAME + " AS repo ON (metadata." + Cols.REPO_ID + " = repo." + RepoTable.Cols._ID + ") " +
                         " WHERE metadata." + Cols.PACKAGE_ID + " = " + PackageTable.NAME + "." + PackageTable.Cols.ROW_ID +
                         " AND repo." + RepoTable.Cols.PRIORITY + " = (" + highestPriority + ")" +
-                        ");";
+                        ")";
+
+        if (packageIds != null) {
+            updateSql += " WHERE " + PackageTable.Cols.ROW_ID + " IN (" + packageIds + ")";
+        }
 
         db().execSQL(updateSql);
     }
@@ -1087,8 +1309,11 @@ public class AppProvider extends FDroidProvider {
     /**
      * For each app, we want to set the isCompatible flag to 1 if any of the apks we know
      * about are compatible, and 0 otherwise.
+     *
+     * @param packageIds comma separated IDs of the packages to update, or a query selecting them,
+     *                   or null for all of them
      */
-    private void updateCompatibleFlags() {
+    private void updateCompatibleFlags(@Nullable String packageIds) {
         Utils.debugLog(TAG, "Calculating whether apps are compatible, based on whether any of their apks are compatible");
 
         final String apk = getApkTableName();
@@ -1098,7 +1323,11 @@ public class AppProvider extends FDroidProvider {
                 "UPDATE " + app + " SET " + Cols.IS_COMPATIBLE + " = ( " +
                         " SELECT TOTAL( " + apk + "." + ApkTable.Cols.IS_COMPATIBLE + ") > 0 " +
                         " FROM " + apk +
-                        " WHERE " + apk + "." + ApkTable.Cols.APP_ID + " = " + app + "." + Cols.ROW_ID + " );";
+                        " WHERE " + apk + "." + ApkTable.Cols.APP_ID + " = " + app + "." + Cols.ROW_ID + " )";
+
+        if (packageIds != null) {
+            updateSql += " WHERE " + Cols.PACKAGE_ID + " IN (" + packageIds + ")";
+        }
 
         db().execSQL(updateSql);
     }
@@ -1111,54 +1340,28 @@ public class AppProvider extends FDroidProvider {
      * If the app is installed, then all apks signed by a different certificate are
      * ignored for the purpose of this calculation.
      *
+     * @param packageIds comma separated IDs of the packages to update, or a query selecting them,
+     *                   or null for all of them
      * @see #updateSuggestedFromLatest(String)
      */
-    private void updateSuggestedFromUpstream(@Nullable String packageName) {
+    private void updateSuggestedFromUpstream(@Nullable String packageName, @Nullable String packageIds) {
         Utils.debugLog(TAG, "Calculating suggested versions for all NON-INSTALLED apps which specify an upstream version code.");
 
-        final String apk = getApkTableName();
         final String app = getTableName();
-        final String installed = InstalledAppTable.NAME;
 
-        final boolean unstableUpdates = Preferences.get().getUnstableUpdates();
-        String restrictToStable = unstableUpdates ? "" : (apk + "." + ApkTable.Cols.VERSION_CODE + " <= " + app + "." + Cols.UPSTREAM_VERSION_CODE + " AND ");
-
-        String restrictToApp = "";
+        String restrictToApps = app + "." + Cols.UPSTREAM_VERSION_CODE + " > 0 ";
         String[] args = null;
 
         if (packageName != null) {
-            restrictToApp = " AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
+            restrictToApps += " AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
             args = new String[]{packageName};
         }
+        if (packageIds != null) {
+            restrictToApps += " AND " + app + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ") ";
+        }
 
-        // The join onto `appForThisApk` is to ensure that the MAX(apk.versionCode) is chosen from
-        // all apps regardless of repo. If we joined directly onto the outer `app` table we are
-        // in the process of updating, then it would be limited to only apks from the same repo.
-        // By adding the extra join, and then joining based on the packageId of this inner app table
-        // and the app table we are updating, we take into account all apks for this app.
-
-        // The check apk.sig = COALESCE(installed.sig, apk.sig) would ideally be better written as:
-        //   `installedSig IS NULL OR installedSig = apk.sig`
-        // however that would require a separate sub query for each `installedSig` which is more
-        // expensive. Using a COALESCE is a less expressive way to write the same thing with only
-        // a single subquery.
-        // Also note that the `installedSig IS NULL` is not because there is a `NULL` entry in the
-        // installed table (this is impossible), but rather because the subselect above returned
-        // zero rows.
-        String updateSql =
-                "UPDATE " + app + " SET " + Cols.SUGGESTED_VERSION_CODE + " = ( " +
-                        " SELECT MAX( " + apk + "." + ApkTable.Cols.VERSION_CODE + " ) " +
-                        " FROM " + apk +
-                        "   JOIN " + app + " AS appForThisApk ON (appForThisApk." + Cols.ROW_ID + " = " + apk + "." + ApkTable.Cols.APP_ID + ") " +
-                        "   LEFT JOIN " + installed + " ON (" + installed + "." + InstalledAppTable.Cols.PACKAGE_ID + " = " + app + "." + Cols.PACKAGE_ID + ") " +
-                        " WHERE " +
-                        app + "." + Cols.PACKAGE_ID + " = appForThisApk." + Cols.PACKAGE_ID + " AND " +
-                        apk + "." + ApkTable.Cols.SIGNATURE + " IS COALESCE(" + installed + "." + InstalledAppTable.Cols.SIGNATURE + ", " + apk + "." + ApkTable.Cols.SIGNATURE + ") AND " +
-                        restrictToStable +
-                        " ( " + app + "." + Cols.IS_COMPATIBLE + " = 0 OR " + apk + "." + Cols.IS_COMPATIBLE + " = 1 ) ) " +
-                        " WHERE " + Cols.UPSTREAM_VERSION_CODE + " > 0 " + restrictToApp;
-
-        LoggingQuery.execSQL(db(), updateSql, args);
+        final boolean unstableUpdates = Preferences.get().getUnstableUpdates();
+        updateSuggested(restrictToApps, args, !unstableUpdates);
     }
 
     /**
@@ -1169,40 +1372,103 @@ public class AppProvider extends FDroidProvider {
      * out from the upstream vercode. In such a case, fall back to the simpler
      * algorithm as if upstreamVercode was 0.
      *
-     * @see #updateSuggestedFromUpstream(String)
+     * @see #updateSuggestedFromUpstream(String, String)
      */
     private void updateSuggestedFromLatest(@Nullable String packageName) {
         Utils.debugLog(TAG, "Calculating suggested versions for all apps which don't specify an upstream version code.");
 
-        final String apk = getApkTableName();
         final String app = getTableName();
-        final String installed = InstalledAppTable.NAME;
 
         final String restrictToApps;
         final String[] args;
 
         if (packageName == null) {
-            restrictToApps = " COALESCE(" + Cols.UPSTREAM_VERSION_CODE + ", 0) = 0 OR " + Cols.SUGGESTED_VERSION_CODE + " IS NULL ";
+            restrictToApps = " (COALESCE(" + app + "." + Cols.UPSTREAM_VERSION_CODE + ", 0) = 0 OR " + app + "." + Cols.SUGGESTED_VERSION_CODE + " IS NULL) ";
             args = null;
         } else {
             // Don't update an app with an upstream version code, because that would have been updated
             // by updateSuggestedFromUpdate(packageName).
-            restrictToApps = " COALESCE(" + Cols.UPSTREAM_VERSION_CODE + ", 0) = 0 AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
+            restrictToApps = " COALESCE(" + app + "." + Cols.UPSTREAM_VERSION_CODE + ", 0) = 0 AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
             args = new String[]{packageName};
         }
 
+        updateSuggested(restrictToApps, args, false);
+    }
+
+    /**
+     * Sets the suggested version of the apps matching {@code restrictToApps} in two set based
+     * steps, instead of running a subquery over all apks of the package for each of the apps:
+     * <p>
+     * First the highest version code of each package is collected in a temporary table, in a
+     * single grouped pass over the apks of all repos.  Only apks signed by the installed
+     * certificate count if the package is installed.  There is a row for each upper limit used
+     * by any of the apps, either their upstream version code when {@code capToUpstream} is set,
+     * or 0 for "no limit".  The highest compatible version code is collected alongside.
+     * <p>
+     * Then each app looks up the row of its package and upper limit by its primary key, and
+     * takes the highest compatible version code, or the highest overall if the app is not
+     * compatible at all.
+     * <p>
+     * Both steps run on the same connection in one transaction, which the temporary table
+     * is dropped at the end of.
+     *
+     * @param restrictToApps which rows of the app table to update, as a WHERE clause with the
+     *                       columns qualified by the table name, which {@code args} are bound to
+     * @param capToUpstream  whether to ignore apks above the upstream version code of the app
+     */
+    private void updateSuggested(String restrictToApps, String[] args, boolean capToUpstream) {
+        final String apk = getApkTableName();
+        final String app = getTableName();
+        final String installed = InstalledAppTable.NAME;
+        final String suggested = "temp." + SUGGESTED_VERSION_TABLE;
+
+        final String cap = capToUpstream ? app + "." + Cols.UPSTREAM_VERSION_CODE : "0";
+        final String restrictToStable = capToUpstream
+                ? " AND " + apk + "." + ApkTable.Cols.VERSION_CODE + " <= caps.cap "
+                : "";
+
+        // The check apk.sig = COALESCE(installed.sig, apk.sig) would ideally be better written as:
+        //   `installedSig IS NULL OR installedSig = apk.sig`
+        // however that would require a separate sub query for each `installedSig` which is more
+        // expensive. Using a COALESCE is a less expressive way to write the same thing with only
+        // a single subquery.
+        // Also note that the `installedSig IS NULL` is not because there is a `NULL` entry in the
+        // installed table (this is impossible), but rather because the left join found no row.
+        String aggregateSql =
+                "INSERT INTO " + suggested + " " +
+                        " SELECT caps." + Cols.PACKAGE_ID + ", caps.cap, " +
+                        "   MAX( " + apk + "." + ApkTable.Cols.VERSION_CODE + " ), " +
+                        "   MAX( CASE WHEN " + apk + "." + ApkTable.Cols.IS_COMPATIBLE + " = 1 THEN " + apk + "." + ApkTable.Cols.VERSION_CODE + " END ) " +
+                        " FROM ( SELECT DISTINCT " + app + "." + Cols.PACKAGE_ID + ", " + cap + " AS cap FROM " + app + " WHERE " + restrictToApps + " ) AS caps " +
+                        "   JOIN " + app + " AS appForThisApk ON (appForThisApk." + Cols.PACKAGE_ID + " = caps." + Cols.PACKAGE_ID + ") " +
+                        "   JOIN " + apk + " ON (" + apk + "." + ApkTable.Cols.APP_ID + " = appForThisApk." + Cols.ROW_ID + ") " +
+                        "   LEFT JOIN " + installed + " ON (" + installed + "." + InstalledAppTable.Cols.PACKAGE_ID + " = caps." + Cols.PACKAGE_ID + ") " +
+                        " WHERE " +
+                        apk + "." + ApkTable.Cols.SIGNATURE + " IS COALESCE(" + installed + "." + InstalledAppTable.Cols.SIGNATURE + ", " + apk + "." + ApkTable.Cols.SIGNATURE + ") " +
+                        restrictToStable +
+                        " GROUP BY caps." + Cols.PACKAGE_ID + ", caps.cap";
+
         String updateSql =
                 "UPDATE " + app + " SET " + Cols.SUGGESTED_VERSION_CODE + " = ( " +
-                        " SELECT MAX( " + apk + "." + ApkTable.Cols.VERSION_CODE + " ) " +
-                        " FROM " + apk +
-                        "   JOIN " + app + " AS appForThisApk ON (appForThisApk." + Cols.ROW_ID + " = " + apk + "." + ApkTable.Cols.APP_ID + ") " +
-                        "   LEFT JOIN " + installed + " ON (" + installed + "." + InstalledAppTable.Cols.PACKAGE_ID + " = " + app + "." + Cols.PACKAGE_ID + ") " +
-                        " WHERE " +
-                        app + "." + Cols.PACKAGE_ID + " = appForThisApk." + Cols.PACKAGE_ID + " AND " +
-                        apk + "." + ApkTable.Cols.SIGNATURE + " IS COALESCE(" + installed + "." + InstalledAppTable.Cols.SIGNATURE + ", " + apk + "." + ApkTable.Cols.SIGNATURE + ") AND " +
-                        " ( " + app + "." + Cols.IS_COMPATIBLE + " = 0 OR " + apk + "." + ApkTable.Cols.IS_COMPATIBLE + " = 1 ) ) " +
+                        " SELECT CASE WHEN " + app + "." + Cols.IS_COMPATIBLE + " = 0 THEN s.maxVersionCode ELSE s.maxCompatibleVersionCode END " +
+                        " FROM " + suggested + " AS s " +
+                        " WHERE s." + Cols.PACKAGE_ID + " = " + app + "." + Cols.PACKAGE_ID + " AND s.cap = " + cap + " ) " +
                         " WHERE " + restrictToApps;
 
-        LoggingQuery.execSQL(db(), updateSql, args);
+        final SQLiteDatabase db = db();
+        try {
+            db.beginTransaction();
+            db.execSQL("DROP TABLE IF EXISTS " + suggested);
+            db.execSQL("CREATE TABLE " + suggested + " ( " +
+                    Cols.PACKAGE_ID + " INTEGER NOT NULL, cap INTEGER NOT NULL, " +
+                    "maxVersionCode INTEGER, maxCompatibleVersionCode INTEGER, " +
+                    "PRIMARY KEY (" + Cols.PACKAGE_ID + ", cap) )");
+            LoggingQuery.execSQL(db, aggregateSql, args);
+            LoggingQuery.execSQL(db, updateSql, args);
+            db.execSQL("DROP TABLE " + suggested);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 }
@@ -0,0 +1,244 @@
+package org.fdroid.fdroid.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.text.TextUtils;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.AppDescriptionSearchTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppSearchTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The full-text index which {@link AppProvider} searches apps with, made of
+ * {@link AppSearchTable} and {@link AppDescriptionSearchTable}.  Every row of
+ * {@link AppMetadataTable} is indexed, whichever repo it is from, and the index
+ * is kept up to date by {@link TempAppProvider} for just the rows which changed
+ * when a repo is committed.
+ * <p>
+ * Each term of a search matches words starting with it, so apps are found while
+ * the words are still being typed.  An app is found if it has every term in any
+ * of its columns.  The apps are ranked in the style of BM25, by adding up the
+ * weights of the columns each term was found in, times the inverse document
+ * frequency of the term.  The term frequencies which BM25 would need are not
+ * available in SQL on Android, which only has FTS4 without any ranking function,
+ * so each column counts once per term.
+ */
+final class AppSearchIndex {
+    private static final String TAG = "AppSearchIndex";
+
+    /**
+     * How much a term found in each column is worth.  Every app which is found
+     * has each term somewhere, so a term which is only in the description adds
+     * nothing, which ranks these apps below those with the term anywhere else.
+     */
+    static final int NAME_WEIGHT = 4;
+    static final int PACKAGE_NAME_WEIGHT = 2;
+    static final int SUMMARY_WEIGHT = 2;
+
+    /**
+     * Terms shorter than this only match whole words in the descriptions, otherwise
+     * the first letter typed would find almost every app by some word of its
+     * description, and take the longest of all searches to do it.
+     */
+    static final int MIN_DESCRIPTION_PREFIX = 3;
+
+    private static final String DOC_ID = AppSearchTable.Cols.DOC_ID;
+
+    private AppSearchIndex() {
+    }
+
+    /**
+     * Creates the tables of the index, with the {@code unicode61} tokenizer which
+     * folds the case and removes the accents of every script, or the ASCII only
+     * {@code simple} tokenizer where SQLite was built without it.
+     */
+    static void create(SQLiteDatabase db) {
+        try {
+            create(db, "unicode61");
+        } catch (SQLiteException e) {
+            Utils.debugLog(TAG, "Using the simple tokenizer: " + e.getMessage());
+            create(db, "simple");
+        }
+    }
+
+    private static void create(SQLiteDatabase db, String tokenizer) {
+        db.execSQL("CREATE VIRTUAL TABLE " + AppSearchTable.NAME + " USING fts4("
+                + AppSearchTable.Cols.NAME + ", "
+                + AppSearchTable.Cols.SUMMARY + ", "
+                + AppSearchTable.Cols.PACKAGE_NAME + ", "
+                + "tokenize=" + tokenizer + ")");
+        db.execSQL("CREATE VIRTUAL TABLE " + AppDescriptionSearchTable.NAME + " USING fts4("
+                + "content=\"" + AppMetadataTable.NAME + "\", "
+                + AppDescriptionSearchTable.Cols.DESCRIPTION + ", "
+                + "tokenize=" + tokenizer + ")");
+    }
+
+    static void drop(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + AppSearchTable.NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + AppDescriptionSearchTable.NAME);
+    }
+
+    /**
+     * Creates the index from scratch, with every app which is in the database.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        drop(db);
+        create(db);
+        add(db, "SELECT " + AppMetadataTable.Cols.ROW_ID + " FROM " + AppMetadataTable.NAME);
+    }
+
+    /**
+     * Indexes apps which were inserted into {@link AppMetadataTable}, or inserted
+     * again after they were {@link #remove(SQLiteDatabase, String, Object...) removed}.
+     *
+     * @param appIds a subquery or comma separated list of the rowids of the apps
+     */
+    static void add(SQLiteDatabase db, String appIds, Object... args) {
+        final String app = AppMetadataTable.NAME;
+        final String pkg = PackageTable.NAME;
+        db.execSQL("INSERT INTO " + AppSearchTable.NAME + " (" + DOC_ID + ", "
+                + AppSearchTable.Cols.NAME + ", " + AppSearchTable.Cols.SUMMARY + ", " + AppSearchTable.Cols.PACKAGE_NAME + ") "
+                + "SELECT " + app + "." + AppMetadataTable.Cols.ROW_ID + ", "
+                + app + "." + AppMetadataTable.Cols.NAME + ", "
+                + app + "." + AppMetadataTable.Cols.SUMMARY + ", "
+                + pkg + "." + PackageTable.Cols.PACKAGE_NAME + " FROM " + app
+                + " JOIN " + pkg + " ON (" + pkg + "." + PackageTable.Cols.ROW_ID + " = " + app + "." + AppMetadataTable.Cols.PACKAGE_ID + ")"
+                + " WHERE " + app + "." + AppMetadataTable.Cols.ROW_ID + " IN (" + appIds + ")", args);
+        db.execSQL("INSERT INTO " + AppDescriptionSearchTable.NAME + " (" + DOC_ID + ", " + AppDescriptionSearchTable.Cols.DESCRIPTION + ") "
+                + "SELECT " + AppMetadataTable.Cols.ROW_ID + ", " + AppMetadataTable.Cols.DESCRIPTION + " FROM " + app
+                + " WHERE " + AppMetadataTable.Cols.ROW_ID + " IN (" + appIds + ")", args);
+    }
+
+    /**
+     * Takes apps out of the index.  This has to be done before their rows in
+     * {@link AppMetadataTable} are changed or deleted, since the words to take
+     * out of the index of the descriptions are read from there.
+     *
+     * @param appIds a subquery or comma separated list of the rowids of the apps
+     */
+    static void remove(SQLiteDatabase db, String appIds, Object... args) {
+        db.execSQL("DELETE FROM " + AppSearchTable.NAME + " WHERE " + DOC_ID + " IN (" + appIds + ")", args);
+        db.execSQL("DELETE FROM " + AppDescriptionSearchTable.NAME + " WHERE " + DOC_ID + " IN (" + appIds + ")", args);
+    }
+
+    /**
+     * Splits a search into its terms, which are the runs of letters and digits in
+     * lower case, the same as the tokenizers of the index split the text into words.
+     * Everything else only separates terms, so there is no way to sneak the syntax
+     * of full-text queries into a search.
+     */
+    static List<String> getTerms(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            int c = i < query.length() ? query.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.appendCodePoint(c);
+                if (Character.isSupplementaryCodePoint(c)) {
+                    i++;
+                }
+            } else if (term.length() > 0) {
+                terms.add(term.toString().toLowerCase(Locale.ENGLISH));
+                term.setLength(0);
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * Whether every app found by the {@code terms} is also found by the {@code previousTerms},
+     * which is the case when each previous term is still there, or was typed further.  A
+     * shorter term than {@link #MIN_DESCRIPTION_PREFIX} only matches whole words in the
+     * descriptions, so typing further from it can find apps which it did not.
+     */
+    static boolean narrows(List<String> previousTerms, List<String> terms) {
+        for (String previousTerm : previousTerms) {
+            boolean narrowed = false;
+            for (String term : terms) {
+                if (term.equals(previousTerm)
+                        || term.startsWith(previousTerm) && previousTerm.length() >= MIN_DESCRIPTION_PREFIX) {
+                    narrowed = true;
+                    break;
+                }
+            }
+            if (!narrowed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Selects the apps which have each of the {@code terms} in one of their columns.
+     * Takes the args from {@link #getMatchArgs(List)}.
+     *
+     * @param appRowId the rowid column of {@link AppMetadataTable} in the query
+     */
+    static String selectMatching(String appRowId, List<String> terms) {
+        List<String> selections = new ArrayList<>(terms.size());
+        for (int i = 0; i < terms.size(); i++) {
+            selections.add("(" + appRowId + " IN (" + selectDocIds(AppSearchTable.NAME) + ") OR "
+                    + appRowId + " IN (" + selectDocIds(AppDescriptionSearchTable.NAME) + "))");
+        }
+        return TextUtils.join(" AND ", selections);
+    }
+
+    static String[] getMatchArgs(List<String> terms) {
+        String[] args = new String[terms.size() * 2];
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            args[i * 2] = term + "*";
+            args[i * 2 + 1] = term.length() < MIN_DESCRIPTION_PREFIX ? term : term + "*";
+        }
+        return args;
+    }
+
+    /**
+     * The score of an app which was found by {@link #selectMatching(String, List)},
+     * to sort the results by in descending order.  The inverse document frequencies
+     * are queried here, and only if there is more than one term, since they make no
+     * difference to the order otherwise.
+     */
+    static String getScore(SQLiteDatabase db, String appRowId, List<String> terms) {
+        long apps = DatabaseUtils.queryNumEntries(db, AppMetadataTable.NAME);
+        String[] matchArgs = getMatchArgs(terms);
+        List<String> scores = new ArrayList<>(terms.size());
+        for (int i = 0; i < terms.size(); i++) {
+            String prefix = matchArgs[i * 2];
+            String score = "(" + NAME_WEIGHT + " * " + selectColumnMatch(appRowId, AppSearchTable.Cols.NAME, prefix)
+                    + " + " + PACKAGE_NAME_WEIGHT + " * " + selectColumnMatch(appRowId, AppSearchTable.Cols.PACKAGE_NAME, prefix)
+                    + " + " + SUMMARY_WEIGHT + " * " + selectColumnMatch(appRowId, AppSearchTable.Cols.SUMMARY, prefix) + ")";
+            if (terms.size() > 1) {
+                long appsWithTerm = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM ("
+                                + selectDocIds(AppSearchTable.NAME) + " UNION " + selectDocIds(AppDescriptionSearchTable.NAME) + ")",
+                        new String[]{matchArgs[i * 2], matchArgs[i * 2 + 1]});
+                double idf = Math.log(1 + (apps - appsWithTerm + 0.5) / (appsWithTerm + 0.5));
+                score = String.format(Locale.ENGLISH, "%.4f", idf) + " * " + score;
+            }
+            scores.add(score);
+        }
+        return "(" + TextUtils.join(" + ", scores) + ")";
+    }
+
+    private static String selectDocIds(String table) {
+        return "SELECT " + DOC_ID + " FROM " + table + " WHERE " + table + " MATCH ?";
+    }
+
+    /**
+     * @return 1 if the app has a word starting with {@code prefix} in {@code column}
+     * of {@link AppSearchTable}, otherwise 0
+     */
+    private static String selectColumnMatch(String appRowId, String column, String prefix) {
+        return "(" + appRowId + " IN (SELECT " + DOC_ID + " FROM " + AppSearchTable.NAME
+                + " WHERE " + AppSearchTable.NAME + " MATCH " + DatabaseUtils.sqlEscapeString(column + ":" + prefix) + "))";
+    }
+}
@@ -29,6 +29,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
@@ -39,8 +40,11 @@ import org.fdroid.fdroid.data.Schema.AppPrefsTable;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.fdroid.fdroid.data.Schema.PendingAppDetailsTable;
 import org.fdroid.fdroid.data.Schema.RepoTable;
 
+import java.util.Locale;
+
 /**
  * This is basically a singleton used to represent the database at the core
  * of all of the {@link android.content.ContentProvider}s used at the core
@@ -157,6 +161,7 @@ public class DBHelper extends SQLiteOpenHelper {
             + AppMetadataTable.Cols.TV_SCREENSHOTS + " string,"
             + AppMetadataTable.Cols.WEAR_SCREENSHOTS + " string,"
             + AppMetadataTable.Cols.IS_APK + " boolean,"
+            + AppMetadataTable.Cols.NAME_SORT_KEY + " blob,"
             + "primary key(" + AppMetadataTable.Cols.PACKAGE_ID + ", " + AppMetadataTable.Cols.REPO_ID + "));";
 
     private static final String CREATE_TABLE_APP_PREFS = "CREATE TABLE " + AppPrefsTable.NAME
@@ -212,7 +217,12 @@ public class DBHelper extends SQLiteOpenHelper {
             + "primary key(" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") "
             + " );";
 
-    protected static final int DB_VERSION = 85;
+    static final String CREATE_TABLE_PENDING_APP_DETAILS = "CREATE TABLE " + PendingAppDetailsTable.NAME
+            + " ( "
+            + PendingAppDetailsTable.Cols.PACKAGE_ID + " INTEGER PRIMARY KEY "
+            + " );";
+
+    protected static final int DB_VERSION = 89;
 
     private final Context context;
 
@@ -242,6 +252,9 @@ public class DBHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_TABLE_APP_PREFS);
         db.execSQL(CREATE_TABLE_ANTI_FEATURE);
         db.execSQL(CREATE_TABLE_APK_ANTI_FEATURE_JOIN);
+        db.execSQL(CREATE_TABLE_PENDING_APP_DETAILS);
+        AppSearchIndex.create(db);
+        AppListItems.create(db);
         ensureIndexes(db);
 
         String[] defaultRepos = context.getResources().getStringArray(R.array.default_repos);
@@ -275,6 +288,11 @@ public class DBHelper extends SQLiteOpenHelper {
         Utils.debugLog(TAG, "Upgrading database from v" + oldVersion + " v" + newVersion);
         addOpenCollective(db, oldVersion);
         addTranslation(db, oldVersion);
+        addAppSearchIndex(db, oldVersion);
+        addNameSortKey(db, oldVersion);
+        addAppListItems(db, oldVersion);
+        addAppListItemNameSortKey(db, oldVersion);
+        addPendingAppDetails(db, oldVersion);
     }
 
     private void addOpenCollective(SQLiteDatabase db, int oldVersion) {
@@ -302,6 +320,63 @@ public class DBHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void addAppSearchIndex(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 86) {
+            return;
+        }
+        Utils.debugLog(TAG, "Indexing the apps in " + AppMetadataTable.NAME + " for full-text search.");
+        AppSearchIndex.rebuild(db);
+    }
+
+    private void addNameSortKey(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 88) {
+            return;
+        }
+        if (!columnExists(db, AppMetadataTable.NAME, AppMetadataTable.Cols.NAME_SORT_KEY)) {
+            Utils.debugLog(TAG, "Adding " + AppMetadataTable.Cols.NAME_SORT_KEY + " field to "
+                    + AppMetadataTable.NAME + " table in db.");
+            db.execSQL("alter table " + AppMetadataTable.NAME + " add column "
+                    + AppMetadataTable.Cols.NAME_SORT_KEY + " blob;");
+        }
+        Locale locale = FDroidApp.getLocale();
+        NameSortKeys.update(db, locale);
+        NameSortKeys.setLocale(context, locale);
+    }
+
+    private void addAppListItems(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 87) {
+            return;
+        }
+        Utils.debugLog(TAG, "Filling " + Schema.AppListItemTable.NAME + " with the apps which are listed.");
+        AppListItems.rebuild(db);
+        ensureIndexes(db);
+    }
+
+    /**
+     * The list item table is made from the other tables, so rather than adding the column
+     * and swapping its indexes for ones on the sort key, it is made again from scratch.
+     */
+    private void addAppListItemNameSortKey(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 88) {
+            return;
+        }
+        if (!columnExists(db, Schema.AppListItemTable.NAME, Schema.AppListItemTable.Cols.NAME_SORT_KEY)) {
+            Utils.debugLog(TAG, "Rebuilding " + Schema.AppListItemTable.NAME + " with the "
+                    + Schema.AppListItemTable.Cols.NAME_SORT_KEY + " field.");
+            AppListItems.rebuild(db);
+        }
+    }
+
+    private void addPendingAppDetails(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 89) {
+            return;
+        }
+        if (!tableExists(db, PendingAppDetailsTable.NAME)) {
+            Utils.debugLog(TAG, "Creating " + PendingAppDetailsTable.NAME + " table in db.");
+            db.execSQL(CREATE_TABLE_PENDING_APP_DETAILS);
+        }
+    }
+
     /**
      * By clearing the etags stored in the repo table, it means that next time the user updates
      * their repos (either manually or on a scheduled task), they will update regardless of whether
@@ -346,6 +421,12 @@ public class DBHelper extends SQLiteOpenHelper {
                 db.execSQL("DROP TABLE " + ApkAntiFeatureJoinTable.NAME);
             }
 
+            if (tableExists(db, PendingAppDetailsTable.NAME)) {
+                db.execSQL("DROP TABLE " + PendingAppDetailsTable.NAME);
+            }
+
+            AppSearchIndex.drop(db);
+            AppListItems.drop(db);
             db.execSQL("DROP TABLE " + AppMetadataTable.NAME);
             db.execSQL("DROP TABLE " + ApkTable.NAME);
 
@@ -356,6 +437,9 @@ public class DBHelper extends SQLiteOpenHelper {
             db.execSQL(CREATE_TABLE_CAT_JOIN);
             db.execSQL(CREATE_TABLE_ANTI_FEATURE);
             db.execSQL(CREATE_TABLE_APK_ANTI_FEATURE_JOIN);
+            db.execSQL(CREATE_TABLE_PENDING_APP_DETAILS);
+            AppSearchIndex.create(db);
+            AppListItems.create(db);
             clearRepoEtags(db);
             ensureIndexes(db);
             db.setTransactionSuccessful();
@@ -383,6 +467,11 @@ public class DBHelper extends SQLiteOpenHelper {
             db.execSQL("CREATE INDEX IF NOT EXISTS metadata_repoId ON " + AppMetadataTable.NAME + " (" + AppMetadataTable.Cols.REPO_ID + ");");
         }
 
+        if (tableExists(db, CatJoinTable.NAME)) {
+            Utils.debugLog(TAG, "Ensuring indexes exist for " + CatJoinTable.NAME);
+            db.execSQL("CREATE INDEX IF NOT EXISTS catJoin_categoryId ON " + CatJoinTable.NAME + " (" + CatJoinTable.Cols.CATEGORY_ID + ");"); // Used for listing a category
+        }
+
         Utils.debugLog(TAG, "Ensuring indexes exist for " + ApkTable.NAME);
         db.execSQL("CREATE INDEX IF NOT EXISTS apk_vercode on " + ApkTable.NAME + " (" + ApkTable.Cols.VERSION_CODE + ");");
         db.execSQL("CREATE INDEX IF NOT EXISTS apk_appId on " + ApkTable.NAME + " (" + ApkTable.Cols.APP_ID + ");");
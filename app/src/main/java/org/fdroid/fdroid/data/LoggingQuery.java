@@ -3,6 +3,9 @@ package org.fdroid.fdroid.data;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+
+import androidx.annotation.Nullable;
 
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.Utils;
@@ -42,11 +45,13 @@ final class LoggingQuery {
     private final SQLiteDatabase db;
     private final String query;
     private final String[] queryArgs;
+    private final CancellationSignal cancellationSignal;
 
-    private LoggingQuery(SQLiteDatabase db, String query, String[] queryArgs) {
+    private LoggingQuery(SQLiteDatabase db, String query, String[] queryArgs, CancellationSignal cancellationSignal) {
         this.db = db;
         this.query = query;
         this.queryArgs = queryArgs;
+        this.cancellationSignal = cancellationSignal;
     }
 
     /**
@@ -56,7 +61,7 @@ final class LoggingQuery {
     private Cursor rawQuery() {
         if (BuildConfig.DEBUG) {
             long startTime = System.currentTimeMillis();
-            Cursor cursor = db.rawQuery(query, queryArgs);
+            Cursor cursor = db.rawQuery(query, queryArgs, cancellationSignal);
             long queryDuration = System.currentTimeMillis() - startTime;
 
             if (queryDuration >= SLOW_QUERY_DURATION) {
@@ -65,7 +70,7 @@ final class LoggingQuery {
 
             return new LogGetCountCursorWrapper(cursor);
         }
-        return db.rawQuery(query, queryArgs);
+        return db.rawQuery(query, queryArgs, cancellationSignal);
     }
 
     /**
@@ -162,10 +167,20 @@ final class LoggingQuery {
     }
 
     public static Cursor query(SQLiteDatabase db, String query, String[] queryBuilderArgs) {
-        return new LoggingQuery(db, query, queryBuilderArgs).rawQuery();
+        return query(db, query, queryBuilderArgs, null);
+    }
+
+    /**
+     * @param cancellationSignal lets the query be cancelled while it runs, which
+     *                           for a {@link android.database.sqlite.SQLiteCursor}
+     *                           is when it is first moved or counted
+     */
+    public static Cursor query(SQLiteDatabase db, String query, String[] queryBuilderArgs,
+                               @Nullable CancellationSignal cancellationSignal) {
+        return new LoggingQuery(db, query, queryBuilderArgs, cancellationSignal).rawQuery();
     }
 
     public static void execSQL(SQLiteDatabase db, String sql, String[] queryArgs) {
-        new LoggingQuery(db, sql, queryArgs).execSQLInternal();
+        new LoggingQuery(db, sql, queryArgs, null).execSQLInternal();
     }
 }
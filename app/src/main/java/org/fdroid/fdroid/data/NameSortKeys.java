@@ -0,0 +1,117 @@
+package org.fdroid.fdroid.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+
+import java.text.Collator;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The keys which the names of apps are sorted by, made with a {@link Collator} for the
+ * language F-Droid is shown in.  SQLite compares them byte by byte, which puts the names
+ * in the same order as the collator does, so the lists sorted by name are read in order
+ * from an index of the {@link Schema.AppListItemTable}.  Sorting by the name with
+ * {@code COLLATE LOCALIZED} instead sorts every app again each time a list is loaded.
+ * <p>
+ * {@link RepoPersister} makes the keys while it saves the apps of an index, and they are
+ * all made again when the language changes, see {@link #update(Context, Locale)}.
+ */
+final class NameSortKeys {
+    private static final String TAG = "NameSortKeys";
+
+    private static final String PREFERENCES_FILE = "name-sort-keys";
+    private static final String PREF_LOCALE = "locale";
+
+    /**
+     * Runs the updates one after the other, so the keys end up made for the last
+     * language picked even when it is changed again before they were done.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Collator collator;
+
+    /**
+     * A {@link Collator} is not thread safe, so each thread making keys needs its own.
+     */
+    NameSortKeys(Locale locale) {
+        collator = Collator.getInstance(locale);
+    }
+
+    byte[] get(String name) {
+        return collator.getCollationKey(name).toByteArray();
+    }
+
+    /**
+     * Makes the keys of every app again in the background, if they were made for another
+     * locale than {@code locale}.  The first time this runs, the keys were made for the
+     * locale in use, by {@link RepoPersister} or when the database was upgraded.
+     */
+    static void update(Context context, final Locale locale) {
+        final Context appContext = context.getApplicationContext();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                SharedPreferences prefs = appContext.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+                String previousLocale = prefs.getString(PREF_LOCALE, null);
+                if (previousLocale != null && !previousLocale.equals(locale.toString())) {
+                    Utils.debugLog(TAG, "Sorting the names of apps for " + locale + " instead of " + previousLocale);
+                    SQLiteDatabase db = DBHelper.getInstance(appContext).getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        update(db, locale);
+                        AppListItems.refresh(db, null);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    appContext.getContentResolver().notifyChange(AppProvider.getContentUri(), null);
+                }
+                if (!locale.toString().equals(previousLocale)) {
+                    setLocale(appContext, locale);
+                }
+            }
+        });
+    }
+
+    /**
+     * Makes the keys of every row of {@link AppMetadataTable} for {@code locale}.
+     */
+    static void update(SQLiteDatabase db, Locale locale) {
+        NameSortKeys keys = new NameSortKeys(locale);
+        SQLiteStatement statement = db.compileStatement("UPDATE " + AppMetadataTable.NAME
+                + " SET " + Cols.NAME_SORT_KEY + " = ? WHERE " + Cols.ROW_ID + " = ?");
+        Cursor cursor = db.query(AppMetadataTable.NAME, new String[]{Cols.ROW_ID, Cols.NAME},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                statement.bindBlob(1, keys.get(cursor.getString(1)));
+                statement.bindLong(2, cursor.getLong(0));
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
+    }
+
+    /**
+     * Records which locale the keys in the database were made for.
+     */
+    static void setLocale(Context context, Locale locale) {
+        context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE)
+                .edit()
+                .putString(PREF_LOCALE, locale.toString())
+                .apply();
+    }
+}
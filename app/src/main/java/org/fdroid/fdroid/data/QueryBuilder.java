@@ -15,6 +15,7 @@ abstract class QueryBuilder {
     private String[] selectionArgs;
     private final List<OrderClause> orderBys = new ArrayList<>();
     private int limit = 0;
+    private int offset = 0;
 
     protected abstract String getRequiredTables();
 
@@ -90,7 +91,15 @@ abstract class QueryBuilder {
     }
 
     public void addLimit(int limit) {
+        addLimit(limit, 0);
+    }
+
+    /**
+     * @param offset how many rows to skip, which only applies with a {@code limit}
+     */
+    public void addLimit(int limit, int offset) {
         this.limit = limit;
+        this.offset = offset;
     }
 
     public String[] getArgs() {
@@ -162,7 +171,10 @@ abstract class QueryBuilder {
     }
 
     private String limitSql() {
-        return limit > 0 ? " LIMIT " + limit : "";
+        if (limit <= 0) {
+            return "";
+        }
+        return offset > 0 ? " LIMIT " + limit + " OFFSET " + offset : " LIMIT " + limit;
     }
 
     public String toString() {
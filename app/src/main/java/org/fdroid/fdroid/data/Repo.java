@@ -27,8 +27,6 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.text.TextUtils;
 
-import androidx.annotation.Nullable;
-
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Utils;
@@ -38,7 +36,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -357,46 +354,24 @@ public class Repo extends ValueObject{
     }
 
     /**
-     * Get the number of available mirrors, including the canonical repo.
+     * Get the canonical address followed by the mirrors which can be used right now,
+     * which are all of them except {@code .onion} mirrors when Tor is not used.
+     *
+     * @see org.fdroid.fdroid.net.MirrorRanking
      */
-    public int getMirrorCount() {
-        int count = 0;
+    public List<String> getUsableMirrorList() {
+        final List<String> usableMirrors = new ArrayList<>();
+        if (address != null) {
+            usableMirrors.add(address);
+        }
         for (String m : getMirrorList()) {
-            if (!m.equals(address)) {
-                if (FDroidApp.isUsingTor()) {
-                    count++;
-                } else {
-                    if (!m.contains(".onion")) {
-                        count++;
-                    }
-                }
+            if (m.endsWith("/")) {
+                m = m.substring(0, m.length() - 1);
             }
-        }
-        return count;
-    }
-
-    @Nullable
-    public String getMirror(String lastWorkingMirror) {
-        if (TextUtils.isEmpty(lastWorkingMirror)) {
-            lastWorkingMirror = address;
-        }
-        List<String> shuffledMirrors = getMirrorList();
-        Collections.shuffle(shuffledMirrors);
-        if (shuffledMirrors.size() > 1) {
-            for (String m : shuffledMirrors) {
-                // Return a non default, and not last used mirror
-                if (!m.equals(address) && !m.equals(lastWorkingMirror)) {
-                    if (FDroidApp.isUsingTor()) {
-                        return m;
-                    } else {
-                        // Filter-out onion mirrors for non-tor connections
-                        if (!m.contains(".onion")) {
-                            return m;
-                        }
-                    }
-                }
+            if (!usableMirrors.contains(m) && (FDroidApp.isUsingTor() || !m.contains(".onion"))) {
+                usableMirrors.add(m);
             }
         }
-        return null; // In case we are out of mirrors.
+        return usableMirrors;
     }
 }
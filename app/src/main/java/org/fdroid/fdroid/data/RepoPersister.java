@@ -1,14 +1,12 @@
 package org.fdroid.fdroid.data;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
-import android.net.Uri;
-import android.os.RemoteException;
+import android.database.SQLException;
 import androidx.annotation.NonNull;
 
 import org.fdroid.fdroid.CompatibilityChecker;
+import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.IndexUpdater;
 import org.fdroid.fdroid.Utils;
 
@@ -16,7 +14,35 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Saves the apps and packages parsed from an index to the temporary tables, then
+ * commits them to the real tables once the index has been verified.
+ * <p>
+ * Saving is pipelined: the thread calling {@link #saveToDb(App, List)} only
+ * collects apps into batches.  Each batch is then prepared on a small pool of
+ * threads, which runs the {@link CompatibilityChecker} and builds the
+ * {@link ContentValues} with the {@link NameSortKeys}, and written by a single
+ * writer thread, which is the only one touching the database until
+ * {@link #commit(ContentValues, long)}.  The writer
+ * inserts the rows with {@link TempTableWriter} rather than going through the
+ * {@link TempAppProvider} and {@link TempApkProvider}.  At most
+ * {@link #MAX_BATCHES_IN_FLIGHT} batches are handed off at any time, beyond that
+ * {@link #saveToDb(App, List)} blocks until the writer has caught up.
+ * <p>
+ * A persister created for an index diff starts from the apps which are already
+ * in the database for the repo, the diff only needs to contain the apps which
+ * changed, and the ones which were removed are passed to {@link #removeFromDb(String)}.
+ */
 public class RepoPersister {
 
     private static final String TAG = "RepoPersister";
@@ -32,6 +58,12 @@ public class RepoPersister {
      */
     private static final int MAX_APP_BUFFER = 50;
 
+    /**
+     * The number of batches which can be waiting to be prepared or written, this
+     * bounds the memory used by the pipeline to a few times {@link #MAX_APP_BUFFER}.
+     */
+    private static final int MAX_BATCHES_IN_FLIGHT = 4;
+
     @NonNull
     private final Repo repo;
 
@@ -41,17 +73,55 @@ public class RepoPersister {
     private final Context context;
 
     @NonNull
-    private final List<App> appsToSave = new ArrayList<>();
+    private List<App> appsToSave = new ArrayList<>();
 
     @NonNull
-    private final Map<String, List<Apk>> apksToSave = new HashMap<>();
+    private Map<String, List<Apk>> apksToSave = new HashMap<>();
+
+    @NonNull
+    private List<String> packagesToRemove = new ArrayList<>();
+
+    private final boolean isDiff;
+
+    private final boolean deferAppDetails;
 
     @NonNull
     private final CompatibilityChecker checker;
 
+    private final Utils.Profiler profiler = new Utils.Profiler(TAG);
+    private final Semaphore batchesInFlight = new Semaphore(MAX_BATCHES_IN_FLIGHT);
+    private final AtomicReference<Exception> writeError = new AtomicReference<>();
+    private final AtomicLong prepareMillis = new AtomicLong();
+    private final AtomicLong writeMillis = new AtomicLong();
+    private long waitMillis;
+
+    private ExecutorService preparePool;
+    private ExecutorService writer;
+    private TempTableWriter tempTableWriter;
+
     public RepoPersister(@NonNull Context context, @NonNull Repo repo) {
+        this(context, repo, false);
+    }
+
+    /**
+     * @param isDiff whether the index only lists the apps which changed since the
+     *               last update, rather than every app in the repo.
+     */
+    public RepoPersister(@NonNull Context context, @NonNull Repo repo, boolean isDiff) {
+        this(context, repo, isDiff, false);
+    }
+
+    /**
+     * @param deferAppDetails whether the app details of the changed packages are calculated
+     *                        later by {@link AppProvider.Helper#updateDeferredAppDetails(Context)},
+     *                        once all repos being updated have been committed.  Then the apps
+     *                        of the other repos are not needed in the temporary tables.
+     */
+    public RepoPersister(@NonNull Context context, @NonNull Repo repo, boolean isDiff, boolean deferAppDetails) {
         this.repo = repo;
         this.context = context;
+        this.isDiff = isDiff;
+        this.deferAppDetails = deferAppDetails;
         checker = new CompatibilityChecker(context);
     }
 
@@ -64,12 +134,63 @@ public class RepoPersister {
         }
     }
 
+    /**
+     * Removes an app of the repo along with all of its packages, this is only
+     * needed when applying an index diff.
+     */
+    public void removeFromDb(String packageName) throws IndexUpdater.UpdateException {
+        packagesToRemove.add(packageName);
+
+        if (packagesToRemove.size() >= MAX_APP_BUFFER) {
+            flushBufferToDb();
+        }
+    }
+
     public void commit(ContentValues repoDetailsToSave, long repoIdToCommit) throws IndexUpdater.UpdateException {
         flushBufferToDb();
-        TempAppProvider.Helper.commitAppsAndApks(context, repoIdToCommit);
+        waitForWriter();
+        TempAppProvider.Helper.commitAppsAndApks(context, repoIdToCommit, deferAppDetails);
         RepoProvider.Helper.update(context, repo, repoDetailsToSave);
     }
 
+    /**
+     * Stops the pipeline threads, dropping any batches which were not written yet.
+     * This must always be called once the index has been processed, whether it was
+     * committed or not.  Interrupting the writer does not stop a batch which SQLite is
+     * already writing, so this waits for it to finish, otherwise it could still be
+     * writing to the temporary tables once the next repo is being updated.
+     */
+    public void close() {
+        if (preparePool != null) {
+            preparePool.shutdownNow();
+        }
+        if (writer != null) {
+            writer.shutdownNow();
+        }
+        boolean interrupted = false;
+        for (ExecutorService executor : new ExecutorService[]{writer, preparePool}) {
+            while (executor != null) {
+                try {
+                    if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                        break;
+                    }
+                    Utils.debugLog(TAG, "Waiting for the batch being written to be done...");
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        preparePool = null;
+        writer = null;
+        if (tempTableWriter != null) {
+            tempTableWriter.close();
+            tempTableWriter = null;
+        }
+    }
+
     private void flushBufferToDb() throws IndexUpdater.UpdateException {
         if (!hasBeenInitialized) {
             // This is where we will store all of the metadata before committing at the
@@ -77,100 +198,167 @@ public class RepoPersister {
             // the index was signed with until we've finished reading it - and we don't
             // want to put stuff in the real database until we are sure it is from a
             // trusted source. It also helps performance as it is done via an in-memory database.
-            TempAppProvider.Helper.init(context, repo.getId());
+            TempAppProvider.Helper.init(context, repo.getId(), isDiff, deferAppDetails);
+            tempTableWriter = new TempTableWriter(context, repo.getId(), isDiff);
+            int poolSize = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+            preparePool = Executors.newFixedThreadPool(poolSize);
+            writer = Executors.newSingleThreadExecutor();
             hasBeenInitialized = true;
         }
+        throwIfWriteFailed();
 
-        if (apksToSave.size() > 0 || appsToSave.size() > 0) {
+        if (apksToSave.size() > 0 || appsToSave.size() > 0 || packagesToRemove.size() > 0) {
             Utils.debugLog(TAG, "Flushing details of up to " + MAX_APP_BUFFER + " apps/packages to the database.");
-            Map<String, Long> appIds = flushAppsToDbInBatch();
-            flushApksToDbInBatch(appIds);
-            apksToSave.clear();
-            appsToSave.clear();
+            final List<App> apps = appsToSave;
+            final Map<String, List<Apk>> apks = apksToSave;
+            final List<String> removed = packagesToRemove;
+            appsToSave = new ArrayList<>();
+            apksToSave = new HashMap<>();
+            packagesToRemove = new ArrayList<>();
+
+            long start = System.currentTimeMillis();
+            try {
+                batchesInFlight.acquire();
+            } catch (InterruptedException e) {
+                throw new IndexUpdater.UpdateException("Interrupted while saving to the database", e);
+            }
+            waitMillis += System.currentTimeMillis() - start;
+
+            final Future<PreparedBatch> prepared = preparePool.submit(new Callable<PreparedBatch>() {
+                @Override
+                public PreparedBatch call() {
+                    long start = System.currentTimeMillis();
+                    PreparedBatch batch = prepareBatch(apps, apks, removed);
+                    prepareMillis.addAndGet(System.currentTimeMillis() - start);
+                    return batch;
+                }
+            });
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (writeError.get() == null) {
+                            PreparedBatch batch = prepared.get();
+                            long start = System.currentTimeMillis();
+                            writeBatch(batch);
+                            writeMillis.addAndGet(System.currentTimeMillis() - start);
+                        }
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        writeError.compareAndSet(null, cause instanceof Exception ? (Exception) cause : e);
+                    } catch (InterruptedException | IndexUpdater.UpdateException | RuntimeException e) {
+                        writeError.compareAndSet(null, e);
+                    } finally {
+                        batchesInFlight.release();
+                    }
+                }
+            });
         }
     }
 
-    private void flushApksToDbInBatch(Map<String, Long> appIds) throws IndexUpdater.UpdateException {
-        List<Apk> apksToSaveList = new ArrayList<>();
-        for (Map.Entry<String, List<Apk>> entries : apksToSave.entrySet()) {
-            for (Apk apk : entries.getValue()) {
-                apk.appId = appIds.get(apk.packageName);
+    /**
+     * Blocks until every batch handed off so far was written to the temporary tables.
+     */
+    private void waitForWriter() throws IndexUpdater.UpdateException {
+        if (writer != null) {
+            writer.shutdown();
+            preparePool.shutdown();
+            try {
+                while (!writer.awaitTermination(1, TimeUnit.SECONDS)) {
+                    Utils.debugLog(TAG, "Waiting for the last batches to be written...");
+                }
+            } catch (InterruptedException e) {
+                throw new IndexUpdater.UpdateException("Interrupted while saving to the database", e);
             }
-            apksToSaveList.addAll(entries.getValue());
+            writer = null;
+            preparePool = null;
+            tempTableWriter.close();
+            tempTableWriter = null;
         }
+        throwIfWriteFailed();
+        profiler.log("All batches written, " + prepareMillis.get() + "ms checking compatibility, "
+                + writeMillis.get() + "ms writing, " + waitMillis + "ms parser blocked on the writer");
+    }
 
-        calcApkCompatibilityFlags(apksToSaveList);
-
-        ArrayList<ContentProviderOperation> apkOperations = insertApks(apksToSaveList);
-
-        try {
-            context.getContentResolver().applyBatch(TempApkProvider.getAuthority(), apkOperations);
-        } catch (RemoteException | OperationApplicationException e) {
+    private void throwIfWriteFailed() throws IndexUpdater.UpdateException {
+        Exception e = writeError.get();
+        if (e instanceof IndexUpdater.UpdateException) {
+            throw (IndexUpdater.UpdateException) e;
+        } else if (e != null) {
             throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
         }
     }
 
     /**
-     * Will first insert new or update existing rows in the database for each {@link RepoPersister#appsToSave}.
-     * Then, will query the database for the ID + packageName for each of these apps, so that they
-     * can be returned and the relevant apks can be joined to the app table correctly.
+     * Everything needed to write a batch, built off the writer thread.  The
+     * apk rows still lack their {@link Schema.ApkTable.Cols#APP_ID}, which only
+     * exists once the apps were written.
      */
-    private Map<String, Long> flushAppsToDbInBatch() throws IndexUpdater.UpdateException {
-        ArrayList<ContentProviderOperation> appOperations = insertApps(appsToSave);
-
-        try {
-            context.getContentResolver().applyBatch(TempAppProvider.getAuthority(), appOperations);
-            return getIdsForPackages(appsToSave);
-        } catch (RemoteException | OperationApplicationException e) {
-            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
+    private static final class PreparedBatch {
+        final List<ContentValues> appValues;
+        final List<ContentValues> apkValues;
+        final List<String> apkPackageNames;
+        final List<String> packagesToRemove;
+
+        PreparedBatch(List<ContentValues> appValues, List<ContentValues> apkValues, List<String> apkPackageNames,
+                      List<String> packagesToRemove) {
+            this.appValues = appValues;
+            this.apkValues = apkValues;
+            this.apkPackageNames = apkPackageNames;
+            this.packagesToRemove = packagesToRemove;
         }
     }
 
-    /**
-     * Although this might seem counter intuitive - receiving a list of apps, then querying the
-     * database again for info about these apps, it is required because the apps came from the
-     * repo metadata, but we are really interested in their IDs from the database. These IDs only
-     * exist in SQLite and not the repo metadata.
-     */
-    private Map<String, Long> getIdsForPackages(List<App> apps) {
-        List<String> packageNames = new ArrayList<>(appsToSave.size());
+    private PreparedBatch prepareBatch(List<App> apps, Map<String, List<Apk>> apks, List<String> packagesToRemove) {
+        List<ContentValues> appValues = new ArrayList<>(apps.size());
+        NameSortKeys nameSortKeys = new NameSortKeys(FDroidApp.getLocale());
         for (App app : apps) {
-            packageNames.add(app.packageName);
+            ContentValues values = app.toContentValues();
+            if (app.name != null) {
+                values.put(Schema.AppMetadataTable.Cols.NAME_SORT_KEY, nameSortKeys.get(app.name.trim()));
+            }
+            appValues.add(values);
         }
 
-        String[] projection = {
-                Schema.AppMetadataTable.Cols.ROW_ID,
-                Schema.AppMetadataTable.Cols.Package.PACKAGE_NAME,
-        };
-
-        List<App> fromDb = TempAppProvider.Helper.findByPackageNames(context, packageNames, repo.id, projection);
-
-        Map<String, Long> ids = new HashMap<>(fromDb.size());
-        for (App app : fromDb) {
-            ids.put(app.packageName, app.getId());
+        List<Apk> apksToSaveList = new ArrayList<>();
+        for (List<Apk> packages : apks.values()) {
+            apksToSaveList.addAll(packages);
         }
-        return ids;
-    }
+        calcApkCompatibilityFlags(apksToSaveList);
 
-    private ArrayList<ContentProviderOperation> insertApps(List<App> apps) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(apps.size());
-        for (App app : apps) {
-            ContentValues values = app.toContentValues();
-            Uri uri = TempAppProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        List<ContentValues> apkValues = new ArrayList<>(apksToSaveList.size());
+        List<String> apkPackageNames = new ArrayList<>(apksToSaveList.size());
+        for (Apk apk : apksToSaveList) {
+            apkValues.add(apk.toContentValues());
+            apkPackageNames.add(apk.packageName);
         }
-        return operations;
+        return new PreparedBatch(appValues, apkValues, apkPackageNames, packagesToRemove);
     }
 
-    private ArrayList<ContentProviderOperation> insertApks(List<Apk> packages) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(packages.size());
-        for (Apk apk : packages) {
-            ContentValues values = apk.toContentValues();
-            Uri uri = TempApkProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+    /**
+     * Inserts the apps of the batch, then links each apk to the rowid its app was
+     * given, which only exists in SQLite and not in the repo metadata.  The whole
+     * batch is written in a single transaction.
+     */
+    private void writeBatch(PreparedBatch batch) throws IndexUpdater.UpdateException {
+        try {
+            tempTableWriter.beginTransaction();
+            try {
+                if (!batch.packagesToRemove.isEmpty()) {
+                    tempTableWriter.deleteApps(batch.packagesToRemove);
+                }
+                Map<String, Long> appIds = tempTableWriter.insertApps(batch.appValues);
+                for (int i = 0; i < batch.apkValues.size(); i++) {
+                    batch.apkValues.get(i).put(Schema.ApkTable.Cols.APP_ID, appIds.get(batch.apkPackageNames.get(i)));
+                }
+                tempTableWriter.insertApks(batch.apkValues);
+                tempTableWriter.setTransactionSuccessful();
+            } finally {
+                tempTableWriter.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
         }
-
-        return operations;
     }
 
     /**
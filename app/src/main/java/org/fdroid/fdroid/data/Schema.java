@@ -164,6 +164,12 @@ public interface Schema {
             String PACKAGE_ID = "packageId";
             String REPO_ID = "repoId";
             String NAME = "name";
+
+            /**
+             * The key of {@link #NAME} made by a {@link java.text.Collator}, to sort apps by name.
+             * @see NameSortKeys
+             */
+            String NAME_SORT_KEY = "nameSortKey";
             String SUMMARY = "summary";
             String ICON = "icon";
             String DESCRIPTION = "description";
@@ -240,7 +246,7 @@ public interface Schema {
                     ANTI_FEATURES, REQUIREMENTS, ICON_URL,
                     FEATURE_GRAPHIC, PROMO_GRAPHIC, TV_BANNER, PHONE_SCREENSHOTS,
                     SEVEN_INCH_SCREENSHOTS, TEN_INCH_SCREENSHOTS, TV_SCREENSHOTS, WEAR_SCREENSHOTS,
-                    PREFERRED_SIGNER, SUGGESTED_VERSION_CODE, IS_APK,
+                    PREFERRED_SIGNER, SUGGESTED_VERSION_CODE, IS_APK, NAME_SORT_KEY,
             };
 
             /**
@@ -263,6 +269,106 @@ public interface Schema {
         }
     }
 
+    /**
+     * Full-text index of the name, summary and package name of every row in
+     * {@link AppMetadataTable}, using the rowid of the app as the docid.
+     * @see AppSearchIndex
+     */
+    interface AppSearchTable {
+
+        String NAME = "fdroid_appSearch";
+
+        interface Cols {
+            String DOC_ID = "docid";
+            String NAME = "name";
+            String SUMMARY = "summary";
+            String PACKAGE_NAME = "packageName";
+        }
+    }
+
+    /**
+     * Full-text index of the descriptions in {@link AppMetadataTable}, which are
+     * read from there rather than being stored a second time.  Descriptions are
+     * long, so they are kept apart from {@link AppSearchTable}, which then stays
+     * small enough to be searched for each column separately.
+     * @see AppSearchIndex
+     */
+    interface AppDescriptionSearchTable {
+
+        String NAME = "fdroid_appDescriptionSearch";
+
+        interface Cols {
+            String DOC_ID = "docid";
+            String DESCRIPTION = AppMetadataTable.Cols.DESCRIPTION;
+        }
+    }
+
+    /**
+     * What the lists of apps show of each app, one row for each package that is listed,
+     * taken from its preferred metadata with the versions installed and suggested, and
+     * whether it can be updated.  The lists read this table alone instead of joining
+     * {@link AppMetadataTable} with its related tables on every query.  The columns are
+     * named like the columns of a query of {@link AppMetadataTable}, so the rows are
+     * read into {@link App}s the same way.  The rowid is the rowid of the app.
+     * @see AppListItems
+     */
+    interface AppListItemTable {
+
+        String NAME = "fdroid_appListItem";
+
+        interface Cols {
+            String ROW_ID = "rowid";
+            String APP_ID = "appId";
+            String PACKAGE_ID = AppMetadataTable.Cols.PACKAGE_ID;
+            String PACKAGE_NAME = AppMetadataTable.Cols.Package.PACKAGE_NAME;
+            String REPO_ID = AppMetadataTable.Cols.REPO_ID;
+            String NAME = AppMetadataTable.Cols.NAME;
+            String NAME_SORT_KEY = AppMetadataTable.Cols.NAME_SORT_KEY;
+            String SUMMARY = AppMetadataTable.Cols.SUMMARY;
+            String IS_COMPATIBLE = AppMetadataTable.Cols.IS_COMPATIBLE;
+            String LICENSE = AppMetadataTable.Cols.LICENSE;
+            String ICON = AppMetadataTable.Cols.ICON;
+            String ICON_URL = AppMetadataTable.Cols.ICON_URL;
+            String REQUIREMENTS = AppMetadataTable.Cols.REQUIREMENTS;
+            String ANTI_FEATURES = AppMetadataTable.Cols.ANTI_FEATURES;
+            String IS_APK = AppMetadataTable.Cols.IS_APK;
+            String ADDED = AppMetadataTable.Cols.ADDED;
+            String LAST_UPDATED = AppMetadataTable.Cols.LAST_UPDATED;
+            String SUGGESTED_VERSION_CODE = AppMetadataTable.Cols.SUGGESTED_VERSION_CODE;
+            String SUGGESTED_VERSION_NAME = AppMetadataTable.Cols.SuggestedApk.VERSION_NAME;
+            String INSTALLED_VERSION_CODE = AppMetadataTable.Cols.InstalledApp.VERSION_CODE;
+            String INSTALLED_VERSION_NAME = AppMetadataTable.Cols.InstalledApp.VERSION_NAME;
+            String IS_INSTALLED = "isInstalled";
+            String CAN_UPDATE = "canUpdate";
+
+            /**
+             * The columns which can be asked for by a query of {@link AppMetadataTable}
+             * and be answered from this table instead.
+             */
+            String[] LISTED = {
+                    AppMetadataTable.Cols._ID, PACKAGE_NAME, REPO_ID, NAME, SUMMARY, IS_COMPATIBLE,
+                    LICENSE, ICON, ICON_URL, REQUIREMENTS, ANTI_FEATURES, IS_APK, ADDED, LAST_UPDATED,
+                    SUGGESTED_VERSION_CODE, SUGGESTED_VERSION_NAME, INSTALLED_VERSION_CODE, INSTALLED_VERSION_NAME,
+            };
+        }
+    }
+
+    /**
+     * The packages which changed in a repo that was committed without calculating their
+     * preferred metadata, compatible flags and suggested versions.  They are kept here
+     * rather than in memory, so they are still calculated by the next update if F-Droid
+     * was stopped before that happened.
+     * @see AppProvider.Helper#updateDeferredAppDetails(android.content.Context)
+     */
+    interface PendingAppDetailsTable {
+
+        String NAME = "fdroid_pendingAppDetails";
+
+        interface Cols {
+            String PACKAGE_ID = "packageId";
+        }
+    }
+
     /**
      * This table stores details of all the application versions we
      * know about. Each relates directly back to an entry in TABLE_APP.
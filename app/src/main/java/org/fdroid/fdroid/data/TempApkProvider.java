@@ -20,6 +20,13 @@ public class TempApkProvider extends ApkProvider {
 
     static final String TABLE_TEMP_APK = "temp_" + ApkTable.NAME;
 
+    /**
+     * Unlike {@link Cols#ALL_COLS}, this includes the rowid, so that the anti-feature
+     * join table still points at the right apks in the temp table, and so that
+     * {@link TempAppProvider} can tell which apks changed when committing.
+     */
+    static final String[] COLS_WITH_ROW_ID = withRowId(Cols.ALL_COLS);
+
     private static final String PATH_INIT = "init";
 
     private static final int CODE_INIT = 10000;
@@ -66,10 +73,12 @@ public class TempApkProvider extends ApkProvider {
          * dependence, that method invokes this one itself, rather than leaving it to the
          * {@link RepoPersister}.
          */
-        static void init(Context context, long repoIdToUpdate) {
+        static void init(Context context, long repoIdToUpdate, boolean keepRepo, boolean deferAppDetails) {
             Uri uri = getContentUri().buildUpon()
                     .appendPath(PATH_INIT)
                     .appendPath(Long.toString(repoIdToUpdate))
+                    .appendQueryParameter(TempAppProvider.QUERY_KEEP_REPO, Boolean.toString(keepRepo))
+                    .appendQueryParameter(TempAppProvider.QUERY_DEFER_APP_DETAILS, Boolean.toString(deferAppDetails))
                     .build();
             context.getContentResolver().insert(uri, new ContentValues());
         }
@@ -78,7 +87,9 @@ public class TempApkProvider extends ApkProvider {
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         if (MATCHER.match(uri) == CODE_INIT) {
-            initTable(Long.parseLong(uri.getLastPathSegment()));
+            initTable(Long.parseLong(uri.getLastPathSegment()),
+                    uri.getBooleanQueryParameter(TempAppProvider.QUERY_KEEP_REPO, false),
+                    uri.getBooleanQueryParameter(TempAppProvider.QUERY_DEFER_APP_DETAILS, false));
             return null;
         }
 
@@ -95,29 +106,55 @@ public class TempApkProvider extends ApkProvider {
         throw new UnsupportedOperationException("Invalid URI for apk content provider: " + uri);
     }
 
-    private void initTable(long repoIdBeingUpdated) {
+    /**
+     * Like the apps in {@link TempAppProvider}, the apks of the other repos are only
+     * copied when the app details are calculated on the temp tables.
+     */
+    private void initTable(long repoIdBeingUpdated, boolean keepRepo, boolean deferAppDetails) {
         final SQLiteDatabase db = db();
         final String memoryDbName = TempAppProvider.DB;
         db.execSQL(DBHelper.CREATE_TABLE_APK.replaceFirst(ApkTable.NAME, memoryDbName + "." + getTableName()));
         db.execSQL(DBHelper.CREATE_TABLE_APK_ANTI_FEATURE_JOIN.replaceFirst(Schema.ApkAntiFeatureJoinTable.NAME, memoryDbName + "." + getApkAntiFeatureJoinTableName()));
 
-        String where = ApkTable.NAME + "." + Cols.REPO_ID + " != ?";
         String[] whereArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(TempAppProvider.copyData(Cols.ALL_COLS, ApkTable.NAME, memoryDbName + "." + getTableName(), where), whereArgs);
+        if (!deferAppDetails) {
+            copyApks("!=", whereArgs);
+        }
+        if (keepRepo) {
+            copyApks("=", whereArgs);
+        }
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_appId on " + getTableName() + " (" + Cols.APP_ID + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
+    }
+
+    /**
+     * Copies the apks whose repo ID compares to the one in {@code whereArgs} with
+     * {@code operator}, along with their anti-features.
+     */
+    private void copyApks(String operator, String[] whereArgs) {
+        final SQLiteDatabase db = db();
+        final String memoryDbName = TempAppProvider.DB;
+        String where = ApkTable.NAME + "." + Cols.REPO_ID + " " + operator + " ?";
+        db.execSQL(TempAppProvider.copyData(COLS_WITH_ROW_ID, ApkTable.NAME, memoryDbName + "." + getTableName(), where), whereArgs);
 
         String antiFeaturesWhere =
                 Schema.ApkAntiFeatureJoinTable.NAME + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN " +
                         "(SELECT innerApk." + Cols.ROW_ID + " FROM " + ApkTable.NAME + " AS innerApk " +
-                        "WHERE innerApk." + Cols.REPO_ID + " != ?)";
+                        "WHERE innerApk." + Cols.REPO_ID + " " + operator + " ?)";
 
         db.execSQL(TempAppProvider.copyData(
                 Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
                 Schema.ApkAntiFeatureJoinTable.NAME,
                 memoryDbName + "." + getApkAntiFeatureJoinTableName(),
                 antiFeaturesWhere), whereArgs);
+    }
 
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_appId on " + getTableName() + " (" + Cols.APP_ID + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
+    private static String[] withRowId(String[] cols) {
+        String[] colsWithRowId = new String[cols.length + 1];
+        colsWithRowId[0] = Cols.ROW_ID;
+        System.arraycopy(cols, 0, colsWithRowId, 1, cols.length);
+        return colsWithRowId;
     }
 
 }
@@ -1,22 +1,28 @@
 package org.fdroid.fdroid.data;
 
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import androidx.annotation.NonNull;
 import android.text.TextUtils;
-import android.util.Log;
 
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.fdroid.fdroid.data.Schema.PendingAppDetailsTable;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -38,9 +44,31 @@ public class TempAppProvider extends AppProvider {
     static final String TABLE_TEMP_APK_ANTI_FEATURE_JOIN = "temp_" + Schema.ApkAntiFeatureJoinTable.NAME;
     static final String TABLE_TEMP_CAT_JOIN = "temp_" + CatJoinTable.NAME;
 
+    private static final String DIFF_APP = DB + ".diff_app";
+    private static final String DIFF_APK = DB + ".diff_apk";
+    private static final String CHANGED_PACKAGE = DB + ".changed_package";
+
+    /**
+     * When more packages than this changed in a commit, the whole {@link ApkProvider} is
+     * notified instead of each package on its own.
+     */
+    private static final int MAX_PACKAGE_NOTIFICATIONS = 100;
+
     private static final String PATH_INIT = "init";
     private static final String PATH_COMMIT = "commit";
 
+    /**
+     * Query parameter of the init URIs, set when the apps of the repo being updated should
+     * be copied into the temp tables as well, because only some of them are going to change.
+     */
+    static final String QUERY_KEEP_REPO = "keepRepo";
+
+    /**
+     * Query parameter of the init and commit URIs, set when the app details are to be
+     * calculated later on by {@link AppProvider.Helper#updateDeferredAppDetails(Context)}.
+     */
+    static final String QUERY_DEFER_APP_DETAILS = "deferAppDetails";
+
     private static final int CODE_INIT = 10000;
     private static final int CODE_COMMIT = CODE_INIT + 1;
     private static final int APPS = CODE_COMMIT + 1;
@@ -64,6 +92,15 @@ public class TempAppProvider extends AppProvider {
         return TABLE_TEMP_CAT_JOIN;
     }
 
+    /**
+     * The live {@link AppSearchIndex} and {@link AppListItems} are brought in line with the
+     * temp table when it is committed.
+     */
+    @Override
+    protected boolean isLive() {
+        return false;
+    }
+
     public static String getAuthority() {
         return AUTHORITY + "." + PROVIDER_NAME;
     }
@@ -98,12 +135,33 @@ public class TempAppProvider extends AppProvider {
          * table and populates it with all the data from the real apk provider table.
          */
         public static void init(Context context, long repoIdToUpdate) {
+            init(context, repoIdToUpdate, false);
+        }
+
+        /**
+         * @param keepRepo whether to also copy the apps of {@code repoIdToUpdate} into the
+         *                 temporary tables, for applying an index diff on top of them.
+         * @see #init(Context, long)
+         */
+        public static void init(Context context, long repoIdToUpdate, boolean keepRepo) {
+            init(context, repoIdToUpdate, keepRepo, false);
+        }
+
+        /**
+         * @param deferAppDetails whether the temporary tables are going to be committed with
+         *                        {@link #commitAppsAndApks(Context, long, boolean)} deferring the
+         *                        app details, then the apps of the other repos are left out.
+         * @see #init(Context, long, boolean)
+         */
+        public static void init(Context context, long repoIdToUpdate, boolean keepRepo, boolean deferAppDetails) {
             Uri uri = getContentUri().buildUpon()
                     .appendPath(PATH_INIT)
                     .appendPath(Long.toString(repoIdToUpdate))
+                    .appendQueryParameter(QUERY_KEEP_REPO, Boolean.toString(keepRepo))
+                    .appendQueryParameter(QUERY_DEFER_APP_DETAILS, Boolean.toString(deferAppDetails))
                     .build();
             context.getContentResolver().insert(uri, new ContentValues());
-            TempApkProvider.Helper.init(context, repoIdToUpdate);
+            TempApkProvider.Helper.init(context, repoIdToUpdate, keepRepo, deferAppDetails);
         }
 
         public static List<App> findByPackageNames(Context context,
@@ -118,9 +176,20 @@ public class TempAppProvider extends AppProvider {
          * apk table and inserting all of the records from here. The temporary table is then removed.
          */
         public static void commitAppsAndApks(Context context, long repoIdToCommit) {
+            commitAppsAndApks(context, repoIdToCommit, false);
+        }
+
+        /**
+         * @param deferAppDetails whether to leave calculating the preferred metadata, compatible
+         *                        flags and suggested versions of the changed packages to
+         *                        {@link AppProvider.Helper#updateDeferredAppDetails(Context)}
+         * @see #commitAppsAndApks(Context, long)
+         */
+        public static void commitAppsAndApks(Context context, long repoIdToCommit, boolean deferAppDetails) {
             Uri uri = getContentUri().buildUpon()
                     .appendPath(PATH_COMMIT)
                     .appendPath(Long.toString(repoIdToCommit))
+                    .appendQueryParameter(QUERY_DEFER_APP_DETAILS, Boolean.toString(deferAppDetails))
                     .build();
             context.getContentResolver().insert(uri, new ContentValues());
         }
@@ -139,11 +208,18 @@ public class TempAppProvider extends AppProvider {
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         switch (MATCHER.match(uri)) {
             case CODE_INIT:
-                initTable(Long.parseLong(uri.getLastPathSegment()));
+                initTable(Long.parseLong(uri.getLastPathSegment()), uri.getBooleanQueryParameter(QUERY_KEEP_REPO, false),
+                        uri.getBooleanQueryParameter(QUERY_DEFER_APP_DETAILS, false));
                 return null;
             case CODE_COMMIT:
-                updateAllAppDetails();
-                commitTable(Long.parseLong(uri.getLastPathSegment()));
+                long repoId = Long.parseLong(uri.getLastPathSegment());
+                boolean deferAppDetails = uri.getBooleanQueryParameter(QUERY_DEFER_APP_DETAILS, false);
+                if (!deferAppDetails) {
+                    Utils.Profiler profiler = new Utils.Profiler(TAG);
+                    updateAllAppDetails();
+                    profiler.log("Updated app details of all apps for repo " + repoId);
+                }
+                commitTable(repoId, deferAppDetails);
                 return null;
             default:
                 return super.insert(uri, values);
@@ -156,8 +232,8 @@ public class TempAppProvider extends AppProvider {
     }
 
     @Override
-    public Cursor query(@NonNull Uri uri, String[] projection,
-                        String customSelection, String[] selectionArgs, String sortOrder) {
+    public Cursor query(@NonNull Uri uri, String[] projection, String customSelection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
         AppQuerySelection selection = new AppQuerySelection(customSelection, selectionArgs);
         switch (MATCHER.match(uri)) {
             case APPS:
@@ -166,7 +242,7 @@ public class TempAppProvider extends AppProvider {
                 break;
         }
 
-        return super.runQuery(uri, selection, projection, sortOrder, 0);
+        return super.runQuery(uri, selection, projection, sortOrder, 0, 0, cancellationSignal);
     }
 
     private void ensureTempTableDetached(SQLiteDatabase db) {
@@ -182,7 +258,14 @@ public class TempAppProvider extends AppProvider {
         }
     }
 
-    private void initTable(long repoIdBeingUpdated) {
+    /**
+     * Creates the temp tables and copies the rows into them which the commit needs.  That
+     * is the apps of the repo being updated when keeping them, along with their categories.
+     * Unless the app details are deferred, it is also the apps of all other repos, since
+     * {@link #updateAllAppDetails()} calculates the details of the repo's apps from all
+     * apps with the same package.  Their categories are never needed.
+     */
+    private void initTable(long repoIdBeingUpdated, boolean keepRepo, boolean deferAppDetails) {
         final SQLiteDatabase db = db();
 
         String mainApp = AppMetadataTable.NAME;
@@ -195,12 +278,16 @@ public class TempAppProvider extends AppProvider {
         db.execSQL(DBHelper.CREATE_TABLE_APP_METADATA.replaceFirst(AppMetadataTable.NAME, tempApp));
         db.execSQL(DBHelper.CREATE_TABLE_CAT_JOIN.replaceFirst(CatJoinTable.NAME, tempCat));
 
-        String appWhere = mainApp + "." + Cols.REPO_ID + " != ?";
         String[] repoArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(copyData(Cols.ALL_COLS, mainApp, tempApp, appWhere), repoArgs);
-
-        // TODO: String catWhere = mainCat + "." + CatJoinTable.Cols..Cols.REPO_ID + " != ?";
-        db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, mainCat, tempCat, null));
+        if (!deferAppDetails) {
+            db.execSQL(copyData(Cols.ALL_COLS, mainApp, tempApp, mainApp + "." + Cols.REPO_ID + " != ?"), repoArgs);
+        }
+        if (keepRepo) {
+            db.execSQL(copyData(Cols.ALL_COLS, mainApp, tempApp, mainApp + "." + Cols.REPO_ID + " = ?"), repoArgs);
+            String catWhere = mainCat + "." + CatJoinTable.Cols.APP_METADATA_ID + " IN "
+                    + "(SELECT " + Cols.ROW_ID + " FROM " + mainApp + " WHERE " + Cols.REPO_ID + " = ?)";
+            db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, mainCat, tempCat, catWhere), repoArgs);
+        }
 
         db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_id ON " + getTableName() + " (" + Cols.PACKAGE_ID + ");");
         db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_upstreamVercode ON " + getTableName() + " (" + Cols.UPSTREAM_VERSION_CODE + ");");
@@ -212,16 +299,67 @@ public class TempAppProvider extends AppProvider {
      * into another. The list of columns to copy are explicitly specified using colsToCopy.
      */
     static String copyData(String[] colsToCopy, String fromTable, String toTable, String where) {
+        return copyData("INSERT INTO ", colsToCopy, fromTable, toTable, where);
+    }
+
+    private static String copyData(String insert, String[] colsToCopy, String fromTable, String toTable, String where) {
         String cols = TextUtils.join(", ", colsToCopy);
-        String sql = "INSERT INTO " + toTable + " (" + cols + ") SELECT " + cols + " FROM " + fromTable;
+        String sql = insert + toTable + " (" + cols + ") SELECT " + cols + " FROM " + fromTable;
         if (!TextUtils.isEmpty(where)) {
             sql += " WHERE " + where;
         }
         return sql;
     }
 
-    private void commitTable(long repoIdToCommit) {
+    /**
+     * Selects the rows of {@code table} for a repo which are not exactly the same in
+     * {@code otherTable}, comparing every column in {@code cols}.  Takes the repo ID twice.
+     */
+    private static String selectDifferentRows(String[] cols, String table, String otherTable, String repoIdCol) {
+        String colList = TextUtils.join(", ", cols);
+        return "SELECT " + colList + " FROM " + table + " WHERE " + repoIdCol + " = ? "
+                + "EXCEPT SELECT " + colList + " FROM " + otherTable + " WHERE " + repoIdCol + " = ?";
+    }
+
+    /**
+     * Selects the IDs which appear in differing rows of two join tables, that is, the IDs for
+     * which a join was either added or removed.  Takes the repo ID four times.
+     */
+    private static String selectIdsWithDifferentJoins(String idCol, String otherIdCol, String joinTable, String otherJoinTable,
+                                                      String idsInRepo, String otherIdsInRepo) {
+        String rows = "SELECT " + idCol + ", " + otherIdCol + " FROM " + joinTable
+                + " WHERE " + idCol + " IN (" + idsInRepo + ")";
+        String otherRows = "SELECT " + idCol + ", " + otherIdCol + " FROM " + otherJoinTable
+                + " WHERE " + idCol + " IN (" + otherIdsInRepo + ")";
+        return "SELECT " + idCol + " FROM (" + rows + " EXCEPT " + otherRows + ") "
+                + "UNION SELECT " + idCol + " FROM (" + otherRows + " EXCEPT " + rows + ")";
+    }
+
+    /**
+     * Brings the live tables in line with the temp tables for the repo being committed,
+     * only writing the rows which differ between them.  {@link TempTableWriter} gives apps
+     * and apks the same rowid as their live row, so the rows are compared with all of their
+     * columns including the rowid: live rows which are not in the temp tables any more are
+     * deleted, and temp rows which are not exactly the same in the live tables are inserted,
+     * replacing the old version of the row if there is one.  The {@link AppSearchIndex} is
+     * updated for the same apps.  The category and anti-feature joins are then rewritten for
+     * just the packages which changed, and so are their {@link AppListItems}.
+     * <p>
+     * The rowids of the differing rows and the package IDs they belong to are collected in
+     * scratch tables in {@link #DB}, which go away with it when it is detached.
+     * <p>
+     * When {@code deferAppDetails} is set, the compatible flags and suggested versions in the
+     * temp tables were not calculated.  The values of the live rows are copied over first so
+     * that these columns alone don't make every row differ, and the changed packages are
+     * added to {@link PendingAppDetailsTable} in the same transaction, to be calculated later
+     * by {@link AppProvider.Helper#updateDeferredAppDetails(android.content.Context)}, which is
+     * also when their {@link AppListItems} are written.
+     */
+    private void commitTable(long repoIdToCommit, boolean deferAppDetails) {
         final SQLiteDatabase db = db();
+        final List<String> changedPackages = new ArrayList<>();
+        final long changedApps;
+        final boolean categoriesChanged;
         try {
             db.beginTransaction();
 
@@ -229,55 +367,166 @@ public class TempAppProvider extends AppProvider {
             final String tempApk = DB + "." + TempApkProvider.TABLE_TEMP_APK;
             final String tempCatJoin = DB + "." + TABLE_TEMP_CAT_JOIN;
             final String tempAntiFeatureJoin = DB + "." + TABLE_TEMP_APK_ANTI_FEATURE_JOIN;
-
-            final String[] repoArgs = new String[]{Long.toString(repoIdToCommit)};
-
-            db.execSQL("DELETE FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(Cols.ALL_COLS, tempApp, AppMetadataTable.NAME, Cols.REPO_ID + " = ?"), repoArgs);
-
-            db.execSQL("DELETE FROM " + ApkTable.NAME + " WHERE " + ApkTable.Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(ApkTable.Cols.ALL_COLS, tempApk, ApkTable.NAME, ApkTable.Cols.REPO_ID + " = ?"), repoArgs);
-
-            db.execSQL("DELETE FROM " + CatJoinTable.NAME + " WHERE " + getCatRepoWhere(CatJoinTable.NAME), repoArgs);
-            db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, tempCatJoin, CatJoinTable.NAME, getCatRepoWhere(tempCatJoin)), repoArgs);
-
-            db.execSQL(
-                    "DELETE FROM " + Schema.ApkAntiFeatureJoinTable.NAME + " " +
-                            "WHERE " + getAntiFeatureRepoWhere(Schema.ApkAntiFeatureJoinTable.NAME), repoArgs);
-
-            db.execSQL(copyData(
-                    Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                    tempAntiFeatureJoin,
-                    Schema.ApkAntiFeatureJoinTable.NAME,
-                    getAntiFeatureRepoWhere(tempAntiFeatureJoin)), repoArgs);
+            final String app = AppMetadataTable.NAME;
+            final String apk = ApkTable.NAME;
+            final String catJoin = CatJoinTable.NAME;
+            final String antiFeatureJoin = ApkAntiFeatureJoinTable.NAME;
+            final String[] apkCols = TempApkProvider.COLS_WITH_ROW_ID;
+
+            final String repoId = Long.toString(repoIdToCommit);
+            final String[] repoArgs = new String[]{repoId};
+            final String[] repoArgsTwice = new String[]{repoId, repoId};
+            final String[] repoArgsFourTimes = new String[]{repoId, repoId, repoId, repoId};
+
+            if (deferAppDetails) {
+                final String liveApp = "SELECT %s FROM " + app + " WHERE " + app + "." + Cols.ROW_ID + " = " + tempApp + "." + Cols.ROW_ID;
+                final String hasLiveApp = Cols.ROW_ID + " IN (SELECT " + Cols.ROW_ID + " FROM " + app + " WHERE " + Cols.REPO_ID + " = ?)";
+                db.execSQL("UPDATE " + tempApp + " SET " + Cols.IS_COMPATIBLE + " = ("
+                        + String.format(liveApp, Cols.IS_COMPATIBLE) + ") WHERE " + hasLiveApp, repoArgs);
+                db.execSQL("UPDATE " + tempApp + " SET " + Cols.SUGGESTED_VERSION_CODE + " = ("
+                        + String.format(liveApp, Cols.SUGGESTED_VERSION_CODE) + ") WHERE " + Cols.UPSTREAM_VERSION_CODE + " > 0 AND "
+                        + hasLiveApp, repoArgs);
+            }
+
+            // Joins for apps and apks which were left out of this index
+            db.execSQL("DELETE FROM " + tempCatJoin + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID
+                    + " NOT IN (SELECT " + Cols.ROW_ID + " FROM " + tempApp + ")");
+            db.execSQL("DELETE FROM " + tempAntiFeatureJoin + " WHERE " + ApkAntiFeatureJoinTable.Cols.APK_ID
+                    + " NOT IN (SELECT " + ApkTable.Cols.ROW_ID + " FROM " + tempApk + ")");
+
+            db.execSQL("CREATE TABLE " + DIFF_APP + " (id INTEGER PRIMARY KEY, removed INT NOT NULL)");
+            db.execSQL("CREATE TABLE " + DIFF_APK + " (id INTEGER PRIMARY KEY, removed INT NOT NULL)");
+            db.execSQL("CREATE TABLE " + CHANGED_PACKAGE + " (id INTEGER PRIMARY KEY)");
+
+            db.execSQL("INSERT INTO " + DIFF_APP + " SELECT " + Cols.ROW_ID + ", 0 FROM ("
+                    + selectDifferentRows(Cols.ALL_COLS, tempApp, app, Cols.REPO_ID) + ")", repoArgsTwice);
+            db.execSQL("INSERT INTO " + DIFF_APP + " SELECT " + Cols.ROW_ID + ", 1 FROM " + app
+                    + " WHERE " + Cols.REPO_ID + " = ? AND " + Cols.ROW_ID + " NOT IN "
+                    + "(SELECT " + Cols.ROW_ID + " FROM " + tempApp + " WHERE " + Cols.REPO_ID + " = ?)", repoArgsTwice);
+            db.execSQL("INSERT INTO " + DIFF_APK + " SELECT " + ApkTable.Cols.ROW_ID + ", 0 FROM ("
+                    + selectDifferentRows(apkCols, tempApk, apk, ApkTable.Cols.REPO_ID) + ")", repoArgsTwice);
+            db.execSQL("INSERT INTO " + DIFF_APK + " SELECT " + ApkTable.Cols.ROW_ID + ", 1 FROM " + apk
+                    + " WHERE " + ApkTable.Cols.REPO_ID + " = ? AND " + ApkTable.Cols.ROW_ID + " NOT IN "
+                    + "(SELECT " + ApkTable.Cols.ROW_ID + " FROM " + tempApk + " WHERE " + ApkTable.Cols.REPO_ID + " = ?)", repoArgsTwice);
+
+            final String addedApps = "SELECT id FROM " + DIFF_APP + " WHERE removed = 0";
+            final String removedApps = "SELECT id FROM " + DIFF_APP + " WHERE removed = 1";
+            final String addedApks = "SELECT id FROM " + DIFF_APK + " WHERE removed = 0";
+            final String removedApks = "SELECT id FROM " + DIFF_APK + " WHERE removed = 1";
+            final String insertChangedPackage = "INSERT OR IGNORE INTO " + CHANGED_PACKAGE + " ";
+
+            db.execSQL(insertChangedPackage + "SELECT " + Cols.PACKAGE_ID + " FROM " + tempApp
+                    + " WHERE " + Cols.ROW_ID + " IN (" + addedApps + ")");
+            db.execSQL(insertChangedPackage + "SELECT " + Cols.PACKAGE_ID + " FROM " + app
+                    + " WHERE " + Cols.ROW_ID + " IN (" + removedApps + ")");
+            db.execSQL(insertChangedPackage + selectPackageIdsOfApks(tempApk, tempApp, addedApks));
+            db.execSQL(insertChangedPackage + selectPackageIdsOfApks(apk, app, removedApks));
+
+            final String appsInRepo = "SELECT " + Cols.ROW_ID + " FROM %s WHERE " + Cols.REPO_ID + " = ?";
+            final String appsWithChangedCategories = selectIdsWithDifferentJoins(
+                    CatJoinTable.Cols.APP_METADATA_ID, CatJoinTable.Cols.CATEGORY_ID, tempCatJoin, catJoin,
+                    String.format(appsInRepo, tempApp), String.format(appsInRepo, app));
+            categoriesChanged = DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM (" + appsWithChangedCategories + ")", repoArgsFourTimes) > 0;
+            db.execSQL(insertChangedPackage + "SELECT " + Cols.PACKAGE_ID + " FROM " + tempApp
+                    + " WHERE " + Cols.ROW_ID + " IN (" + appsWithChangedCategories + ")", repoArgsFourTimes);
+
+            final String apksInRepo = "SELECT " + ApkTable.Cols.ROW_ID + " FROM %s WHERE " + ApkTable.Cols.REPO_ID + " = ?";
+            final String apksWithChangedAntiFeatures = selectIdsWithDifferentJoins(
+                    ApkAntiFeatureJoinTable.Cols.APK_ID, ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID,
+                    tempAntiFeatureJoin, antiFeatureJoin,
+                    String.format(apksInRepo, tempApk), String.format(apksInRepo, apk));
+            db.execSQL(insertChangedPackage + selectPackageIdsOfApks(tempApk, tempApp, apksWithChangedAntiFeatures),
+                    repoArgsFourTimes);
+
+            changedApps = DatabaseUtils.queryNumEntries(db, DIFF_APP);
+            Cursor cursor = db.query(PackageTable.NAME, new String[]{PackageTable.Cols.PACKAGE_NAME},
+                    PackageTable.Cols.ROW_ID + " IN (SELECT id FROM " + CHANGED_PACKAGE + ")", null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    changedPackages.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            AppSearchIndex.remove(db, "SELECT id FROM " + DIFF_APP);
+            db.execSQL("DELETE FROM " + app + " WHERE " + Cols.ROW_ID + " IN (" + removedApps + ")");
+            db.execSQL(copyData("INSERT OR REPLACE INTO ", Cols.ALL_COLS, tempApp, app,
+                    Cols.ROW_ID + " IN (" + addedApps + ")"));
+            AppSearchIndex.add(db, addedApps);
+            db.execSQL("DELETE FROM " + apk + " WHERE " + ApkTable.Cols.ROW_ID + " IN (" + removedApks + ")");
+            db.execSQL(copyData("INSERT OR REPLACE INTO ", apkCols, tempApk, apk,
+                    ApkTable.Cols.ROW_ID + " IN (" + addedApks + ")"));
+
+            final String appsOfChangedPackages = "SELECT " + Cols.ROW_ID + " FROM " + tempApp
+                    + " WHERE " + Cols.REPO_ID + " = ? AND " + Cols.PACKAGE_ID + " IN (SELECT id FROM " + CHANGED_PACKAGE + ")";
+            db.execSQL("DELETE FROM " + catJoin + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " IN (" + removedApps + ") "
+                    + "OR " + CatJoinTable.Cols.APP_METADATA_ID + " IN (" + appsOfChangedPackages + ")", repoArgs);
+            db.execSQL(copyData(new String[]{CatJoinTable.Cols.APP_METADATA_ID, CatJoinTable.Cols.CATEGORY_ID}, tempCatJoin, catJoin,
+                    CatJoinTable.Cols.APP_METADATA_ID + " IN (" + appsOfChangedPackages + ")"), repoArgs);
+
+            final String apksOfChangedPackages = "SELECT tempApk." + ApkTable.Cols.ROW_ID + " FROM " + tempApk + " AS tempApk "
+                    + "JOIN " + tempApp + " AS tempApp ON (tempApp." + Cols.ROW_ID + " = tempApk." + ApkTable.Cols.APP_ID + ") "
+                    + "WHERE tempApk." + ApkTable.Cols.REPO_ID + " = ? "
+                    + "AND tempApp." + Cols.PACKAGE_ID + " IN (SELECT id FROM " + CHANGED_PACKAGE + ")";
+            db.execSQL("DELETE FROM " + antiFeatureJoin + " WHERE " + ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + removedApks + ") "
+                    + "OR " + ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + apksOfChangedPackages + ")", repoArgs);
+            db.execSQL(copyData(ApkAntiFeatureJoinTable.Cols.ALL_COLS, tempAntiFeatureJoin, antiFeatureJoin,
+                    ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + apksOfChangedPackages + ")"), repoArgs);
+
+            if (deferAppDetails) {
+                db.execSQL("INSERT OR IGNORE INTO " + PendingAppDetailsTable.NAME
+                        + " (" + PendingAppDetailsTable.Cols.PACKAGE_ID + ") SELECT id FROM " + CHANGED_PACKAGE);
+            } else {
+                AppListItems.refresh(db, "SELECT id FROM " + CHANGED_PACKAGE);
+            }
 
             db.setTransactionSuccessful();
-            Log.d(TAG, "delete: notifying" + ApkProvider.getContentUri() + ", " + AppProvider.getContentUri() + ", " + CategoryProvider.getContentUri());
-            getContext().getContentResolver().notifyChange(AppProvider.getContentUri(), null);
-            getContext().getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
-            getContext().getContentResolver().notifyChange(CategoryProvider.getContentUri(), null);
         } finally {
             db.endTransaction();
             db.execSQL("DETACH DATABASE " + DB); // Can't be done in a transaction.
         }
-    }
 
-    private String getCatRepoWhere(String categoryTable) {
-        String catRepoSubquery =
-                "SELECT DISTINCT innerCatJoin." + CatJoinTable.Cols.ROW_ID + " " +
-                        "FROM " + categoryTable + " AS innerCatJoin " +
-                        "JOIN " + getTableName() + " AS app ON (app." + Cols.ROW_ID + " = innerCatJoin." + CatJoinTable.Cols.APP_METADATA_ID + ") " +
-                        "WHERE app." + Cols.REPO_ID + " = ?";
+        Utils.debugLog(TAG, "Committed repo " + repoIdToCommit + ": " + changedApps + " app rows differed, "
+                + changedPackages.size() + " packages changed");
+        notifyChangedPackages(changedPackages, changedApps > 0 || categoriesChanged, categoriesChanged);
+    }
 
-        return CatJoinTable.Cols.ROW_ID + " IN (" + catRepoSubquery + ")";
+    private static String selectPackageIdsOfApks(String apkTable, String appTable, String apkIds) {
+        return "SELECT app." + Cols.PACKAGE_ID + " FROM " + apkTable + " AS apk "
+                + "JOIN " + appTable + " AS app ON (app." + Cols.ROW_ID + " = apk." + ApkTable.Cols.APP_ID + ") "
+                + "WHERE apk." + ApkTable.Cols.ROW_ID + " IN (" + apkIds + ")";
     }
 
-    private String getAntiFeatureRepoWhere(String antiFeatureTable) {
-        String subquery =
-                "SELECT innerApk." + ApkTable.Cols.ROW_ID + " " +
-                        "FROM " + ApkTable.NAME + " AS innerApk " +
-                        "WHERE innerApk." + ApkTable.Cols.REPO_ID + " = ?";
+    /**
+     * Nothing is notified when the index did not change anything.  The app lists are queried
+     * through all sorts of URIs below {@link AppProvider#getContentUri()}, so that is notified as
+     * a whole whenever an app row or a category changed.  Otherwise only the details of the
+     * changed packages are notified, unless there are too many of them to be worth it.
+     */
+    private void notifyChangedPackages(List<String> changedPackages, boolean appListsChanged, boolean categoriesChanged) {
+        if (changedPackages.isEmpty()) {
+            return;
+        }
 
-        return antiFeatureTable + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + subquery + ")";
+        ContentResolver resolver = getContext().getContentResolver();
+        boolean tooManyPackages = changedPackages.size() > MAX_PACKAGE_NOTIFICATIONS;
+        if (appListsChanged || tooManyPackages) {
+            resolver.notifyChange(AppProvider.getContentUri(), null);
+        }
+        if (tooManyPackages) {
+            resolver.notifyChange(ApkProvider.getContentUri(), null);
+        } else {
+            for (String packageName : changedPackages) {
+                if (!appListsChanged) {
+                    resolver.notifyChange(AppProvider.getHighestPriorityMetadataUri(packageName), null);
+                }
+                resolver.notifyChange(ApkProvider.getAppUri(packageName), null);
+            }
+        }
+        if (categoriesChanged) {
+            resolver.notifyChange(CategoryProvider.getContentUri(), null);
+        }
     }
 }
@@ -0,0 +1,406 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.data.Schema.CatJoinTable;
+import org.fdroid.fdroid.data.Schema.CategoryTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes apps and apks straight into the tables of {@link TempAppProvider#DB},
+ * doing the same work as {@link AppProvider#insert} and {@link ApkProvider#insert}
+ * without going through {@link android.content.ContentResolver#applyBatch}.  Every
+ * row is bound to a precompiled {@link SQLiteStatement}, and package, category and
+ * anti-feature IDs are looked up in maps which are loaded from the database once,
+ * rather than with a query per row.
+ * <p>
+ * This only accepts rows built by {@link App#toContentValues()} and
+ * {@link Apk#toContentValues()}, it does not validate the columns like the
+ * providers do.  It must be created after {@link TempAppProvider.Helper#init(Context, long)}
+ * and only be used from one thread at a time.
+ * <p>
+ * Apps and apks which are already in the live tables for the repo being updated get
+ * their existing rowid back, everything else gets a rowid which is not used in the
+ * live tables at all.  That is what allows {@link TempAppProvider} to commit only the
+ * rows which actually changed.
+ * <p>
+ * When applying an index diff, the temp tables were initialised with the apps of the
+ * repo being updated still in them, see {@link TempAppProvider.Helper#init(Context, long, boolean)}.
+ * Then each app which gets inserted replaces the existing row along with all of its apks,
+ * and {@link #deleteApps(List)} drops the apps which were removed from the repo.
+ */
+@SuppressWarnings("LineLength")
+final class TempTableWriter {
+
+    private static final String TEMP_APP = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APP;
+    private static final String TEMP_APK = TempAppProvider.DB + "." + TempApkProvider.TABLE_TEMP_APK;
+    private static final String TEMP_CAT_JOIN = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_CAT_JOIN;
+    private static final String TEMP_ANTI_FEATURE_JOIN = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN;
+
+    private final SQLiteDatabase db;
+    private final boolean replaceExisting;
+
+    /**
+     * The rowids of the apps in the live table for this repo, keyed by package ID.
+     */
+    private final Map<Long, Long> liveAppIds = new HashMap<>();
+
+    /**
+     * The rowids of the apks in the live table for this repo.
+     * @see #apkKey(Object, Object, Object)
+     */
+    private final Map<String, Long> liveApkIds = new HashMap<>();
+
+    private long nextAppId;
+    private long nextApkId;
+
+    private final Map<String, Long> packageIds = new HashMap<>();
+
+    /**
+     * Keyed by the lower case name, since categories are matched case insensitively.
+     * @see CategoryProvider.Helper#ensureExists(Context, String)
+     */
+    private final Map<String, Long> categoryIds = new HashMap<>();
+
+    private final Map<String, Long> antiFeatureIds = new HashMap<>();
+
+    /**
+     * Insert statements for the app and apk tables, keyed by table and column list.
+     */
+    private final Map<String, SQLiteStatement> insertStatements = new HashMap<>();
+
+    private final SQLiteStatement insertPackage;
+    private final SQLiteStatement insertCategory;
+    private final SQLiteStatement insertAntiFeature;
+    private final SQLiteStatement deleteCatJoins;
+    private final SQLiteStatement insertCatJoin;
+    private final SQLiteStatement deleteAntiFeatureJoins;
+    private final SQLiteStatement insertAntiFeatureJoin;
+    private final SQLiteStatement deleteApp;
+    private final SQLiteStatement deleteApks;
+    private final SQLiteStatement deleteApkAntiFeatureJoins;
+
+    TempTableWriter(Context context, long repoId) {
+        this(context, repoId, false);
+    }
+
+    /**
+     * @param replaceExisting whether the temp tables already hold the apps of {@code repoId},
+     *                        which then need to be deleted before they are inserted again.
+     */
+    TempTableWriter(Context context, long repoId, boolean replaceExisting) {
+        db = DBHelper.getInstance(context).getWritableDatabase();
+        this.replaceExisting = replaceExisting;
+        loadLiveIds(repoId);
+
+        loadIds(PackageTable.NAME, PackageTable.Cols.ROW_ID, PackageTable.Cols.PACKAGE_NAME, packageIds, false);
+        loadIds(CategoryTable.NAME, CategoryTable.Cols.ROW_ID, CategoryTable.Cols.NAME, categoryIds, true);
+        loadIds(AntiFeatureTable.NAME, AntiFeatureTable.Cols.ROW_ID, AntiFeatureTable.Cols.NAME, antiFeatureIds, false);
+
+        insertPackage = db.compileStatement("INSERT INTO " + PackageTable.NAME + " (" + PackageTable.Cols.PACKAGE_NAME + ") VALUES (?)");
+        insertCategory = db.compileStatement("INSERT INTO " + CategoryTable.NAME + " (" + CategoryTable.Cols.NAME + ") VALUES (?)");
+        insertAntiFeature = db.compileStatement("INSERT INTO " + AntiFeatureTable.NAME + " (" + AntiFeatureTable.Cols.NAME + ") VALUES (?)");
+        deleteCatJoins = db.compileStatement("DELETE FROM " + TEMP_CAT_JOIN + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " = ?");
+        // the joins ignore conflicts, like SQLiteDatabase#insert() does in the providers
+        insertCatJoin = db.compileStatement("INSERT OR IGNORE INTO " + TEMP_CAT_JOIN + " (" + CatJoinTable.Cols.APP_METADATA_ID + ", " + CatJoinTable.Cols.CATEGORY_ID + ") VALUES (?, ?)");
+        deleteAntiFeatureJoins = db.compileStatement("DELETE FROM " + TEMP_ANTI_FEATURE_JOIN + " WHERE " + ApkAntiFeatureJoinTable.Cols.APK_ID + " = ?");
+        insertAntiFeatureJoin = db.compileStatement("INSERT OR IGNORE INTO " + TEMP_ANTI_FEATURE_JOIN + " (" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") VALUES (?, ?)");
+        deleteApp = db.compileStatement("DELETE FROM " + TEMP_APP + " WHERE " + Cols.ROW_ID + " = ?");
+        deleteApks = db.compileStatement("DELETE FROM " + TEMP_APK + " WHERE " + ApkTable.Cols.APP_ID + " = ?");
+        deleteApkAntiFeatureJoins = db.compileStatement("DELETE FROM " + TEMP_ANTI_FEATURE_JOIN + " WHERE " + ApkAntiFeatureJoinTable.Cols.APK_ID
+                + " IN (SELECT " + ApkTable.Cols.ROW_ID + " FROM " + TEMP_APK + " WHERE " + ApkTable.Cols.APP_ID + " = ?)");
+    }
+
+    private void loadLiveIds(long repoId) {
+        String[] repoArgs = {Long.toString(repoId)};
+        Cursor cursor = db.query(AppMetadataTable.NAME, new String[]{Cols.ROW_ID, Cols.PACKAGE_ID},
+                Cols.REPO_ID + " = ?", repoArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                liveAppIds.put(cursor.getLong(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = db.query(ApkTable.NAME,
+                new String[]{ApkTable.Cols.ROW_ID, ApkTable.Cols.APP_ID, ApkTable.Cols.VERSION_CODE, ApkTable.Cols.HASH},
+                ApkTable.Cols.REPO_ID + " = ?", repoArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                liveApkIds.put(apkKey(cursor.getLong(1), cursor.getInt(2), cursor.getString(3)), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        nextAppId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + Cols.ROW_ID + "), 0) + 1 FROM " + AppMetadataTable.NAME, null);
+        nextApkId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + ApkTable.Cols.ROW_ID + "), 0) + 1 FROM " + ApkTable.NAME, null);
+    }
+
+    /**
+     * An apk is identified by the app it belongs to, its version code and the hash of the file.
+     */
+    private static String apkKey(Object appId, Object versionCode, Object hash) {
+        return appId + ":" + versionCode + ":" + hash;
+    }
+
+    private void loadIds(String table, String idCol, String nameCol, Map<String, Long> ids, boolean lowerCase) {
+        Cursor cursor = db.query(table, new String[]{idCol, nameCol}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(1);
+                ids.put(lowerCase ? name.toLowerCase(Locale.ENGLISH) : name, cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Starts the transaction which a whole batch of inserts and deletes is written in,
+     * so a batch is committed once rather than once per table.
+     */
+    void beginTransaction() {
+        db.beginTransaction();
+    }
+
+    void setTransactionSuccessful() {
+        db.setTransactionSuccessful();
+    }
+
+    void endTransaction() {
+        db.endTransaction();
+    }
+
+    /**
+     * Inserts all {@code apps}, which should be done inside {@link #beginTransaction()}.
+     *
+     * @return The rowid of each new app row, keyed by package name, which is what
+     * {@link ApkTable.Cols#APP_ID} of their apks needs to be set to.
+     */
+    Map<String, Long> insertApps(List<ContentValues> apps) {
+        Map<String, Long> appIds = new HashMap<>(apps.size());
+        for (ContentValues values : apps) {
+            String packageName = values.getAsString(Cols.Package.PACKAGE_NAME);
+            appIds.put(packageName, insertApp(values));
+        }
+        return appIds;
+    }
+
+    /**
+     * Inserts all {@code apks}, which should be done inside {@link #beginTransaction()}.
+     * Each one must already have its {@link ApkTable.Cols#APP_ID} set.
+     */
+    void insertApks(List<ContentValues> apks) {
+        for (ContentValues values : apks) {
+            insertApk(values);
+        }
+    }
+
+    /**
+     * Deletes the apps with these package names from the temp tables, along with their
+     * categories and apks.  Package names which are not in the repo are ignored.
+     */
+    void deleteApps(List<String> packageNames) {
+        for (String packageName : packageNames) {
+            Long packageId = packageIds.get(packageName);
+            Long appId = packageId == null ? null : liveAppIds.remove(packageId);
+            if (appId != null) {
+                deleteApp(appId);
+            }
+        }
+    }
+
+    private void deleteApp(long appId) {
+        deleteApkAntiFeatureJoins.bindLong(1, appId);
+        deleteApkAntiFeatureJoins.executeUpdateDelete();
+        deleteApks.bindLong(1, appId);
+        deleteApks.executeUpdateDelete();
+        deleteCatJoins.bindLong(1, appId);
+        deleteCatJoins.executeUpdateDelete();
+        deleteApp.bindLong(1, appId);
+        deleteApp.executeUpdateDelete();
+    }
+
+    /**
+     * @see AppProvider#insert(android.net.Uri, ContentValues)
+     */
+    private long insertApp(ContentValues values) {
+        long packageId = ensurePackage(values.getAsString(Cols.Package.PACKAGE_NAME));
+        values.remove(Cols.Package.PACKAGE_NAME);
+        values.put(Cols.PACKAGE_ID, packageId);
+
+        Long rowId = liveAppIds.remove(packageId);
+        if (rowId != null && replaceExisting) {
+            deleteApp(rowId);
+        }
+        values.put(Cols.ROW_ID, rowId != null ? rowId : nextAppId++);
+
+        if (values.getAsString(Cols.DESCRIPTION) == null) {
+            // the current structure assumes that description is always present and non-null
+            values.put(Cols.DESCRIPTION, "");
+        }
+
+        // Trim these to avoid unwanted newlines in the UI
+        values.put(Cols.SUMMARY, values.getAsString(Cols.SUMMARY).trim());
+        values.put(Cols.NAME, values.getAsString(Cols.NAME).trim());
+
+        String[] categories = null;
+        boolean saveCategories = false;
+        if (values.containsKey(Cols.ForWriting.Categories.CATEGORIES)) {
+            saveCategories = true;
+            categories = Utils.parseCommaSeparatedString(values.getAsString(Cols.ForWriting.Categories.CATEGORIES));
+            values.remove(Cols.ForWriting.Categories.CATEGORIES);
+        }
+
+        long appMetadataId = insert(TEMP_APP, values);
+
+        if (saveCategories) {
+            deleteCatJoins.bindLong(1, appMetadataId);
+            deleteCatJoins.executeUpdateDelete();
+            if (categories != null) {
+                Set<String> categoriesSet = new HashSet<>();
+                for (String categoryName : categories) {
+                    if (categoriesSet.add(categoryName)) {
+                        insertCatJoin.bindLong(1, appMetadataId);
+                        insertCatJoin.bindLong(2, ensureCategory(categoryName));
+                        insertCatJoin.executeInsert();
+                    }
+                }
+            }
+        }
+        return appMetadataId;
+    }
+
+    /**
+     * @see ApkProvider#insert(android.net.Uri, ContentValues)
+     */
+    private void insertApk(ContentValues values) {
+        String[] antiFeatures = null;
+        boolean saveAntiFeatures = false;
+        if (values.containsKey(ApkTable.Cols.AntiFeatures.ANTI_FEATURES)) {
+            saveAntiFeatures = true;
+            antiFeatures = Utils.parseCommaSeparatedString(values.getAsString(ApkTable.Cols.AntiFeatures.ANTI_FEATURES));
+            values.remove(ApkTable.Cols.AntiFeatures.ANTI_FEATURES);
+        }
+
+        Long rowId = liveApkIds.remove(apkKey(values.get(ApkTable.Cols.APP_ID),
+                values.get(ApkTable.Cols.VERSION_CODE), values.get(ApkTable.Cols.HASH)));
+        values.put(ApkTable.Cols.ROW_ID, rowId != null ? rowId : nextApkId++);
+
+        long apkId = insert(TEMP_APK, values);
+
+        if (saveAntiFeatures) {
+            deleteAntiFeatureJoins.bindLong(1, apkId);
+            deleteAntiFeatureJoins.executeUpdateDelete();
+            if (antiFeatures != null) {
+                Set<String> antiFeatureSet = new HashSet<>();
+                for (String antiFeatureName : antiFeatures) {
+                    if (antiFeatureSet.add(antiFeatureName)) {
+                        insertAntiFeatureJoin.bindLong(1, apkId);
+                        insertAntiFeatureJoin.bindLong(2, ensureAntiFeature(antiFeatureName));
+                        insertAntiFeatureJoin.executeInsert();
+                    }
+                }
+            }
+        }
+    }
+
+    private long insert(String table, ContentValues values) {
+        List<String> columns = new ArrayList<>(values.keySet());
+        Collections.sort(columns);
+        StringBuilder key = new StringBuilder(table);
+        for (String column : columns) {
+            key.append(',').append(column);
+        }
+        SQLiteStatement statement = insertStatements.get(key.toString());
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                    placeholders.append(", ");
+                }
+                sql.append(columns.get(i));
+                placeholders.append('?');
+            }
+            sql.append(") VALUES (").append(placeholders).append(')');
+            statement = db.compileStatement(sql.toString());
+            insertStatements.put(key.toString(), statement);
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns.get(i)));
+        }
+        return statement.executeInsert();
+    }
+
+    private long ensurePackage(String packageName) {
+        Long id = packageIds.get(packageName);
+        if (id == null) {
+            insertPackage.bindString(1, packageName);
+            id = insertPackage.executeInsert();
+            packageIds.put(packageName, id);
+        }
+        return id;
+    }
+
+    private long ensureCategory(String categoryName) {
+        String lowerCaseCategory = categoryName.toLowerCase(Locale.ENGLISH);
+        Long id = categoryIds.get(lowerCaseCategory);
+        if (id == null) {
+            insertCategory.bindString(1, categoryName);
+            id = insertCategory.executeInsert();
+            categoryIds.put(lowerCaseCategory, id);
+        }
+        return id;
+    }
+
+    private long ensureAntiFeature(String antiFeatureName) {
+        Long id = antiFeatureIds.get(antiFeatureName);
+        if (id == null) {
+            insertAntiFeature.bindString(1, antiFeatureName);
+            id = insertAntiFeature.executeInsert();
+            antiFeatureIds.put(antiFeatureName, id);
+        }
+        return id;
+    }
+
+    void close() {
+        for (SQLiteStatement statement : insertStatements.values()) {
+            statement.close();
+        }
+        insertStatements.clear();
+        insertPackage.close();
+        insertCategory.close();
+        insertAntiFeature.close();
+        deleteCatJoins.close();
+        insertCatJoin.close();
+        deleteAntiFeatureJoins.close();
+        insertAntiFeatureJoin.close();
+        deleteApp.close();
+        deleteApks.close();
+        deleteApkAntiFeatureJoins.close();
+    }
+}
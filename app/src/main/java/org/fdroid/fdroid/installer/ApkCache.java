@@ -30,18 +30,29 @@ import com.google.common.io.Files;
 import com.nostra13.universalimageloader.utils.StorageUtils;
 
 import org.fdroid.fdroid.HashingUtils;
+import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
+import org.fdroid.fdroid.net.FileTransfer;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Locale;
 
 public class ApkCache {
+    private static final String TAG = "ApkCache";
 
     private static final String CACHE_DIR = "apks";
 
+    /**
+     * Appended to the name of a cached APK for the file with its hash.
+     */
+    static final String HASH_SUFFIX = ".hash";
+
     /**
      * Same as {@link #copyApkFromCacheToFiles(Context, File, Apk)}, except it does not need to
      * verify the hash after copying. This is because we are copying from an installed apk, which
@@ -83,12 +94,17 @@ public class ApkCache {
             throws IOException {
         SanitizedFile sanitizedApkFile = new SanitizedFile(context.getFilesDir(), destinationName);
 
-        Files.copy(apkFile, sanitizedApkFile);
-
-        // verify copied file's hash with expected hash from Apk class
-        if (verifyHash && !HashingUtils.isFileMatchingHash(sanitizedApkFile, hash, hashType)) {
-            apkFile.delete();
-            throw new IOException(apkFile + " failed to verify!");
+        if (verifyHash) {
+            // hash the bytes on their way into the protected copy, which is what gets installed
+            MessageDigest digest = HashingUtils.getMessageDigest(hashType);
+            FileTransfer.copy(apkFile, sanitizedApkFile, digest);
+            if (hash == null || !HashingUtils.hex(digest.digest()).equals(hash.toLowerCase(Locale.ENGLISH))) {
+                apkFile.delete();
+                sanitizedApkFile.delete();
+                throw new IOException(apkFile + " failed to verify!");
+            }
+        } else {
+            FileTransfer.copy(apkFile, sanitizedApkFile);
         }
 
         // 20 minutes after the start of the install process, delete the file
@@ -110,7 +126,24 @@ public class ApkCache {
     }
 
     /**
-     * Get the full path for where an APK URL will be downloaded into.
+     * Get the full path for where an APK with a known hash will be downloaded into.
+     * The file is named after the hash, so it is found in the cache no matter which
+     * mirror it was downloaded from, and the same APK is never cached twice.  These
+     * files are tracked by {@link ApkCacheIndex}.  Files without a hash, like OBBs,
+     * go to {@link #getApkDownloadPath(Context, Uri)}.
+     */
+    @Nullable
+    public static SanitizedFile getApkDownloadPath(Context context, Uri uri,
+                                                   @Nullable String hashType, @Nullable String hash) {
+        if (hashType == null || hash == null || !hashType.matches("[a-z0-9]+") || !hash.matches("[0-9a-fA-F]+")) {
+            return getApkDownloadPath(context, uri);
+        }
+        return new SanitizedFile(getApkCacheDir(context), hashType + "-" + hash.toLowerCase(Locale.ENGLISH) + ".apk");
+    }
+
+    /**
+     * Get the full path for where a URL will be downloaded into, in a directory for
+     * the host and port, since each repo only enforces unique file names on its own.
      */
     @Nullable
     public static SanitizedFile getApkDownloadPath(Context context, Uri uri) {
@@ -126,13 +159,79 @@ public class ApkCache {
     }
 
     /**
-     * Verifies the size of the file on disk matches, and then hashes the file to compare with what
+     * Verifies the size of the file on disk matches, and then compares its hash with what
      * we received from the signed repo (i.e. {@link Apk#hash} and {@link Apk#hashType}).
      * Bails out if the file sizes don't match to prevent having to do the work of hashing the file.
+     * The hash which was calculated while downloading is used if the file was not changed since,
+     * otherwise the file is hashed and that is saved for the next time.  This only decides
+     * whether to download again, the APK is still verified when it is copied to be installed.
      */
     public static boolean apkIsCached(File apkFile, Apk apkToCheck) {
-        return apkFile.length() == apkToCheck.size &&
-                HashingUtils.isFileMatchingHash(apkFile, apkToCheck.hash, apkToCheck.hashType);
+        if (apkFile.length() != apkToCheck.size || apkToCheck.hash == null) {
+            return false;
+        }
+        String hash = readHash(apkFile, apkToCheck.hashType);
+        if (hash == null) {
+            MessageDigest digest = HashingUtils.getMessageDigest(apkToCheck.hashType);
+            try {
+                FileTransfer.hash(apkFile, digest);
+            } catch (IOException e) {
+                return false;
+            }
+            hash = HashingUtils.hex(digest.digest());
+            saveHash(apkFile, apkToCheck.hashType, hash);
+        }
+        return hash.equals(apkToCheck.hash.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Saves the hash of a cached APK next to it, together with its size and
+     * modification time, so it is only used as long as the APK is not changed.
+     *
+     * @see #readHash(File, String)
+     */
+    public static void saveHash(File apkFile, String hashType, String hash) {
+        String line = hashType + " " + hash + " " + apkFile.length() + " " + apkFile.lastModified();
+        try {
+            Files.write(line, getHashFile(apkFile), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Utils.debugLog(TAG, "Could not save the hash of " + apkFile, e);
+        }
+    }
+
+    /**
+     * @return the hash saved by {@link #saveHash(File, String, String)}, or null
+     * if there is none of this type or the APK changed since
+     */
+    @Nullable
+    static String readHash(File apkFile, String hashType) {
+        File hashFile = getHashFile(apkFile);
+        if (!hashFile.exists()) {
+            return null;
+        }
+        try {
+            String[] fields = Files.asCharSource(hashFile, StandardCharsets.UTF_8).read().trim().split(" ");
+            if (fields.length == 4 && fields[0].equals(hashType)
+                    && Long.parseLong(fields[2]) == apkFile.length()
+                    && Long.parseLong(fields[3]) == apkFile.lastModified()) {
+                return fields[1];
+            }
+        } catch (IOException | NumberFormatException e) {
+            Utils.debugLog(TAG, "Could not read the hash of " + apkFile, e);
+        }
+        hashFile.delete();
+        return null;
+    }
+
+    /**
+     * Deletes the saved hash of an APK which is about to be downloaded again.
+     */
+    public static void deleteHash(File apkFile) {
+        getHashFile(apkFile).delete();
+    }
+
+    private static File getHashFile(File apkFile) {
+        return new File(apkFile.getPath() + HASH_SUFFIX);
     }
 
     /**
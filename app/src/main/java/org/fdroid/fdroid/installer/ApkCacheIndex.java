@@ -0,0 +1,223 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the APKs in {@link ApkCache#getApkCacheDir(Context)}, how big
+ * they are and when they were last used, so the cache can be kept within a size
+ * budget by deleting the least recently used APKs first.  This is stored in its
+ * own {@link SharedPreferences}, so that evicting never needs to walk through the
+ * cache directory: every download or cache hit updates a single entry, and only
+ * evicts as many APKs as are needed to make room for it.
+ * <p>
+ * Entries are keyed by the name of the file, which is made from the hash of the
+ * APK, see {@link ApkCache#getApkDownloadPath(Context, android.net.Uri, String, String)}.
+ * <p>
+ * APKs which are being downloaded or are waiting to be installed are {@link #pin(File) pinned}
+ * by {@link InstallManagerService}, and are never evicted until they are unpinned, however
+ * far over the budget the cache is, so an update of many apps at once does not delete the
+ * APKs it has not installed yet.
+ */
+public final class ApkCacheIndex {
+    private static final String TAG = "ApkCacheIndex";
+
+    private static final String PREFERENCES_FILE = "apk-cache";
+
+    private static ApkCacheIndex instance;
+
+    private final SharedPreferences preferences;
+
+    /**
+     * In the order of the last use, the least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * How many times each APK is pinned, by its name.
+     */
+    private final Map<String, Integer> pinned = new HashMap<>();
+
+    public static synchronized ApkCacheIndex get(Context context) {
+        if (instance == null) {
+            instance = new ApkCacheIndex(context.getApplicationContext()
+                    .getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    ApkCacheIndex(SharedPreferences preferences) {
+        this.preferences = preferences;
+        List<Map.Entry<String, Entry>> stored = new ArrayList<>();
+        for (Map.Entry<String, ?> value : preferences.getAll().entrySet()) {
+            Entry entry = Entry.parse(String.valueOf(value.getValue()));
+            if (entry != null) {
+                stored.add(new AbstractMap.SimpleEntry<>(value.getKey(), entry));
+            }
+        }
+        Collections.sort(stored, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                long lastUsedA = a.getValue().lastUsed;
+                long lastUsedB = b.getValue().lastUsed;
+                return lastUsedA < lastUsedB ? -1 : (lastUsedA == lastUsedB ? 0 : 1);
+            }
+        });
+        for (Map.Entry<String, Entry> entry : stored) {
+            entries.put(entry.getKey(), entry.getValue());
+            totalBytes += entry.getValue().size;
+        }
+    }
+
+    /**
+     * The size and last use of one cached APK.
+     */
+    static final class Entry {
+        final long size;
+        final long lastUsed;
+
+        Entry(long size, long lastUsed) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+
+        static Entry parse(String value) {
+            String[] fields = value.split(",");
+            try {
+                return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return size + "," + lastUsed;
+        }
+    }
+
+    /**
+     * Records that {@code apkFile} was just downloaded or found in the cache,
+     * then evicts the least recently used other APKs until the cache fits into
+     * {@code maxBytes}.  The APK which was just used is never evicted here, even
+     * if it is bigger than {@code maxBytes} on its own, and neither are pinned APKs.
+     *
+     * @return how many APKs were evicted
+     */
+    public synchronized int add(File apkFile, long maxBytes) {
+        String name = apkFile.getName();
+        put(name, new Entry(apkFile.length(), System.currentTimeMillis()));
+        File dir = apkFile.getParentFile();
+        int evicted = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (!entry.getKey().equals(name) && !pinned.containsKey(entry.getKey())) {
+                delete(dir, iterator, entry);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts the APKs which were last used before {@code olderThan}, then the least
+     * recently used ones until the cache fits into {@code maxBytes}, other than the
+     * pinned ones.  APKs which are gone already, e.g. since the system cleared the
+     * cache, are forgotten.
+     *
+     * @param dir the directory of the cached APKs
+     * @return how many APKs were evicted
+     */
+    public synchronized int evict(File dir, long maxBytes, long olderThan) {
+        int evicted = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (pinned.containsKey(entry.getKey())) {
+                continue;
+            }
+            if (totalBytes > maxBytes || entry.getValue().lastUsed < olderThan) {
+                delete(dir, iterator, entry);
+                evicted++;
+            } else if (!new File(dir, entry.getKey()).exists()) {
+                remove(iterator, entry);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Keeps {@code apkFile} from being evicted until it is {@link #unpin(File) unpinned}
+     * as many times as it was pinned.  It does not need to exist yet.
+     */
+    public synchronized void pin(File apkFile) {
+        String name = apkFile.getName();
+        Integer count = pinned.get(name);
+        pinned.put(name, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void unpin(File apkFile) {
+        String name = apkFile.getName();
+        Integer count = pinned.get(name);
+        if (count == null || count <= 1) {
+            pinned.remove(name);
+        } else {
+            pinned.put(name, count - 1);
+        }
+    }
+
+    /**
+     * @return whether {@code file} is a tracked APK or the saved hash of one, files
+     * which are not should be cleaned up by their age
+     */
+    public synchronized boolean contains(File file) {
+        String name = file.getName();
+        if (name.endsWith(ApkCache.HASH_SUFFIX)) {
+            name = name.substring(0, name.length() - ApkCache.HASH_SUFFIX.length());
+        }
+        return entries.containsKey(name);
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void put(String name, Entry entry) {
+        Entry previous = entries.remove(name);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        entries.put(name, entry);
+        totalBytes += entry.size;
+        preferences.edit().putString(name, entry.toString()).apply();
+    }
+
+    private void delete(File dir, Iterator<Map.Entry<String, Entry>> iterator, Map.Entry<String, Entry> entry) {
+        File apkFile = new File(dir, entry.getKey());
+        Utils.debugLog(TAG, "Evicting " + apkFile + " from the cache");
+        apkFile.delete();
+        ApkCache.deleteHash(apkFile);
+        remove(iterator, entry);
+    }
+
+    private void remove(Iterator<Map.Entry<String, Entry>> iterator, Map.Entry<String, Entry> entry) {
+        totalBytes -= entry.getValue().size;
+        iterator.remove();
+        preferences.edit().remove(entry.getKey()).apply();
+    }
+}
@@ -28,21 +28,30 @@ import com.google.common.io.Files;
 
 import org.fdroid.fdroid.AppDetails;
 import org.fdroid.fdroid.AppUpdateStatusManager;
-import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.HashingUtils;
+import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.compat.PackageManagerCompat;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.net.Downloader;
+import org.fdroid.fdroid.net.DownloadScheduler;
 import org.fdroid.fdroid.net.DownloaderService;
+import org.fdroid.fdroid.net.FileTransfer;
+import org.fdroid.fdroid.net.MirrorRanking;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Manages the whole process when a background update triggers an install or the user
@@ -105,6 +114,7 @@ public class InstallManagerService extends Service {
 
     private static final String EXTRA_APP = "org.fdroid.fdroid.installer.extra.APP";
     private static final String EXTRA_APK = "org.fdroid.fdroid.installer.extra.APK";
+    private static final String EXTRA_PRIORITY = "org.fdroid.fdroid.installer.extra.PRIORITY";
 
     private static SharedPreferences pendingInstalls;
 
@@ -114,6 +124,12 @@ public class InstallManagerService extends Service {
 
     private boolean running = false;
 
+    /**
+     * The APKs pinned in {@link ApkCacheIndex} while they are being downloaded or
+     * installed, by the {@code urlString} of their download.
+     */
+    private final Map<String, File> pinnedApks = new HashMap<>();
+
     /**
      * This service does not use binding, so no need to implement this method
      */
@@ -190,6 +206,7 @@ public class InstallManagerService extends Service {
         String action = intent.getAction();
 
         if (ACTION_CANCEL.equals(action)) {
+            unpinApk(urlString);
             DownloaderService.cancel(this, urlString);
             Apk apk = appUpdateStatusManager.getApk(urlString);
             if (apk != null) {
@@ -235,40 +252,83 @@ public class InstallManagerService extends Service {
             Log.i(TAG, "INSTALL Intent no longer valid since its installed, ignoring: " + intent);
             return START_NOT_STICKY;
         }
+        int priority = intent.getIntExtra(EXTRA_PRIORITY, DownloadScheduler.PRIORITY_USER);
         NotificationCompat.Builder builder = createNotificationBuilder(urlString, apk);
         notificationManager.notify(urlString.hashCode(), builder.build());
 
-        FDroidApp.resetMirrorVars();
-        DownloaderService.setTimeout(FDroidApp.getTimeout());
+        List<String> mirrorUrls = MirrorRanking.get(this)
+                .getRankedUrls(RepoProvider.Helper.findById(this, apk.repoId), urlString);
 
         appUpdateStatusManager.addApk(apk, AppUpdateStatusManager.Status.Downloading, null);
 
-        registerPackageDownloaderReceivers(urlString, builder);
-        getObb(urlString, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256, builder);
-        getObb(urlString, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256, builder);
+        registerPackageDownloaderReceivers(urlString, builder, priority, apk, mirrorUrls);
+        getObb(urlString, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256, builder, priority);
+        getObb(urlString, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256, builder, priority);
 
-        File apkFilePath = ApkCache.getApkDownloadPath(this, intent.getData());
+        File apkFilePath = ApkCache.getApkDownloadPath(this, intent.getData(), apk.hashType, apk.hash);
         if (apkFilePath == null) {
             Utils.debugLog(TAG, "getApkDownloadPath returned null from:  " + intent);
             return START_NOT_STICKY;
         }
+        pinApk(urlString, apkFilePath);
         long apkFileSize = apkFilePath.length();
         if (!apkFilePath.exists() || apkFileSize < apk.size) {
             Utils.debugLog(TAG, "download " + urlString + " " + apkFilePath);
-            DownloaderService.queue(this, urlString, apk.repoId, urlString);
+            queueApkDownload(this, apk, urlString, priority, mirrorUrls, 0,
+                    !apkFilePath.exists() && apk.size <= MirrorRanking.RACE_MAX_SIZE);
         } else if (ApkCache.apkIsCached(apkFilePath, apk)) {
             Utils.debugLog(TAG, "skip download, we have it, straight to install " + urlString + " " + apkFilePath);
+            ApkCacheIndex.get(this).add(apkFilePath, Preferences.get().getApkCacheSize());
             sendBroadcast(intent.getData(), Downloader.ACTION_STARTED, apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_COMPLETE, apkFilePath);
         } else {
             Utils.debugLog(TAG, "delete and download again " + urlString + " " + apkFilePath);
             apkFilePath.delete();
-            DownloaderService.queue(this, urlString, apk.repoId, urlString);
+            queueApkDownload(this, apk, urlString, priority, mirrorUrls, 0,
+                    apk.size <= MirrorRanking.RACE_MAX_SIZE);
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
     }
 
+    /**
+     * Keeps the APK of {@code urlString} in the cache until {@link #unpinApk(String)},
+     * since {@link ApkCacheIndex} could otherwise evict it to make room for the other
+     * APKs which are downloaded at the same time, before it was installed.
+     */
+    private void pinApk(String urlString, File apkFile) {
+        File previous = pinnedApks.put(urlString, apkFile);
+        if (previous != null) {
+            ApkCacheIndex.get(this).unpin(previous);
+        }
+        ApkCacheIndex.get(this).pin(apkFile);
+    }
+
+    private void unpinApk(String urlString) {
+        File apkFile = pinnedApks.remove(urlString);
+        if (apkFile != null) {
+            ApkCacheIndex.get(this).unpin(apkFile);
+        }
+    }
+
+    /**
+     * Queues the download of an APK from the mirror which is next in line for
+     * {@code attempt}, counting from zero, with the timeout for that attempt.
+     *
+     * @param mirrorUrls the URLs of the APK on all mirrors, the best first
+     * @param race       whether to download from the two best mirrors at once,
+     *                   which only makes sense for small files which are not partly
+     *                   downloaded yet
+     * @see MirrorRanking#getRankedUrls(org.fdroid.fdroid.data.Repo, String)
+     */
+    private static void queueApkDownload(Context context, Apk apk, String urlString, int priority,
+                                         List<String> mirrorUrls, int attempt, boolean race) {
+        int mirrors = mirrorUrls.size();
+        String raceUrlString = race && mirrors > 1 ? mirrorUrls.get(1) : null;
+        DownloaderService.queue(context, mirrorUrls.get(attempt % mirrors), apk.repoId, urlString, priority,
+                MirrorRanking.getTimeout(attempt, mirrors), raceUrlString, apk.hashType, apk.hash);
+    }
+
     private void sendBroadcast(Uri uri, String action, File file) {
         Intent intent = new Intent(action);
         intent.setData(uri);
@@ -285,7 +345,7 @@ public class InstallManagerService extends Service {
      */
     private void getObb(final String urlString, String obbUrlString,
                         final File obbDestFile, final String hash,
-                        final NotificationCompat.Builder builder) {
+                        final NotificationCompat.Builder builder, final int priority) {
         if (obbDestFile == null || obbDestFile.exists() || TextUtils.isEmpty(obbUrlString)) {
             return;
         }
@@ -314,10 +374,12 @@ public class InstallManagerService extends Service {
                             + " to " + localApkUri);
 
                     try {
-                        if (HashingUtils.isFileMatchingHash(localFile, hash, "sha256")) {
-                            Utils.debugLog(TAG, "Installing OBB " + localFile + " to " + obbDestFile);
-                            Files.createParentDirs(obbDestFile);
-                            Files.copy(localFile, obbDestFile);
+                        // hashed while copying, so the OBB is only read once
+                        Files.createParentDirs(obbDestFile);
+                        MessageDigest digest = HashingUtils.getMessageDigest("sha256");
+                        FileTransfer.copy(localFile, obbDestFile, digest);
+                        if (hash != null && HashingUtils.hex(digest.digest()).equals(hash.toLowerCase(Locale.ENGLISH))) {
+                            Utils.debugLog(TAG, "Installed OBB " + localFile + " to " + obbDestFile);
                             FileFilter filter = pathname ->
                                     pathname.getName().startsWith(obbDestFile.getName().substring(0, 4))
                                             && pathname.getName().endsWith(".obb");
@@ -329,22 +391,24 @@ public class InstallManagerService extends Service {
                             }
                         } else {
                             Utils.debugLog(TAG, localFile + " deleted, did not match hash: " + hash);
+                            obbDestFile.delete();
                         }
                     } catch (IOException e) {
                         e.printStackTrace();
+                        obbDestFile.delete();
                     } finally {
                         localFile.delete();
                     }
                 } else if (Downloader.ACTION_INTERRUPTED.equals(action)) {
                     localBroadcastManager.unregisterReceiver(this);
                 } else if (Downloader.ACTION_CONNECTION_FAILED.equals(action)) {
-                    DownloaderService.queue(context, urlString, 0, urlString);
+                    DownloaderService.queue(context, urlString, 0, urlString, priority);
                 } else {
                     throw new RuntimeException("intent action not handled!");
                 }
             }
         };
-        DownloaderService.queue(this, obbUrlString, 0, obbUrlString);
+        DownloaderService.queue(this, obbUrlString, 0, obbUrlString, priority);
         localBroadcastManager.registerReceiver(downloadReceiver,
                 DownloaderService.getIntentFilter(obbUrlString));
     }
@@ -353,9 +417,13 @@ public class InstallManagerService extends Service {
      * Register a {@link BroadcastReceiver} for tracking download progress for a
      * give {@code urlString}.  There can be multiple of these registered at a time.
      */
-    private void registerPackageDownloaderReceivers(String urlString, final NotificationCompat.Builder builder) {
+    private void registerPackageDownloaderReceivers(String urlString, final NotificationCompat.Builder builder,
+                                                    final int priority, final Apk queuedApk,
+                                                    final List<String> mirrorUrls) {
 
         BroadcastReceiver downloadReceiver = new BroadcastReceiver() {
+            private int attempt;
+
             @Override
             public void onReceive(Context context, Intent intent) {
                 if (!running) {
@@ -364,7 +432,6 @@ public class InstallManagerService extends Service {
                 }
                 Uri downloadUri = intent.getData();
                 String urlString = downloadUri.toString();
-                long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
                 String mirrorUrlString = intent.getStringExtra(Downloader.EXTRA_MIRROR_URL);
 
                 switch (intent.getAction()) {
@@ -400,16 +467,19 @@ public class InstallManagerService extends Service {
                         break;
                     case Downloader.ACTION_INTERRUPTED:
                         appUpdateStatusManager.setDownloadError(urlString, intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
+                        unpinApk(urlString);
                         localBroadcastManager.unregisterReceiver(this);
                         cancelNotification(urlString);
                         break;
                     case Downloader.ACTION_CONNECTION_FAILED:
-                        try {
-                            DownloaderService.queue(context, FDroidApp.getMirror(mirrorUrlString, repoId), repoId, urlString);
-                            DownloaderService.setTimeout(FDroidApp.getTimeout());
-                        } catch (IOException e) {
+                        attempt++;
+                        if (attempt < MirrorRanking.getAttempts(mirrorUrls.size())) {
+                            Utils.debugLog(TAG, mirrorUrlString + " failed, trying the next mirror");
+                            queueApkDownload(context, queuedApk, urlString, priority, mirrorUrls, attempt, false);
+                        } else {
                             Toast.makeText(context, "Ran out of mirrors", Toast.LENGTH_SHORT).show();
                             appUpdateStatusManager.setDownloadError(urlString, intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
+                            unpinApk(urlString);
                             localBroadcastManager.unregisterReceiver(this);
                             cancelNotification(urlString);
                         }
@@ -457,6 +527,7 @@ public class InstallManagerService extends Service {
                                 cancelNotification(downloadUrl);
                             }
                         }
+                        unpinApk(downloadUrl);
                         localBroadcastManager.unregisterReceiver(this);
                         break;
                     case Installer.ACTION_INSTALL_INTERRUPTED:
@@ -477,6 +548,7 @@ public class InstallManagerService extends Service {
                                 notifyError(downloadUrl, aus.app, errorMessage);
                             }
                         }
+                        unpinApk(downloadUrl);
                         localBroadcastManager.unregisterReceiver(this);
                         break;
                     case Installer.ACTION_INSTALL_USER_INTERACTION:
@@ -514,6 +586,16 @@ public class InstallManagerService extends Service {
      * @param context this app's {@link Context}
      */
     public static void queue(Context context, App app, @NonNull Apk apk) {
+        queue(context, app, apk, DownloadScheduler.PRIORITY_USER);
+    }
+
+    /**
+     * @param priority how to order the download of {@code apk} against others, see
+     *                 {@link DownloadScheduler#PRIORITY_USER} and
+     *                 {@link DownloadScheduler#PRIORITY_AUTO_DOWNLOAD}
+     * @see #queue(Context, App, Apk)
+     */
+    public static void queue(Context context, App app, @NonNull Apk apk, int priority) {
         String urlString = apk.getCanonicalUrl();
         AppUpdateStatusManager.getInstance(context).addApk(apk, AppUpdateStatusManager.Status.PendingInstall, null);
         putPendingInstall(context, urlString, apk.packageName);
@@ -523,6 +605,7 @@ public class InstallManagerService extends Service {
         intent.setData(Uri.parse(urlString));
         intent.putExtra(EXTRA_APP, app);
         intent.putExtra(EXTRA_APK, apk);
+        intent.putExtra(EXTRA_PRIORITY, priority);
         context.startService(intent);
     }
 
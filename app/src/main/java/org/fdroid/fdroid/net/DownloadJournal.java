@@ -0,0 +1,165 @@
+package org.fdroid.fdroid.net;
+
+import androidx.annotation.Nullable;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * What is known about a partly downloaded file, stored next to it, so that the
+ * download can be resumed safely after it was cancelled, failed, or the process
+ * died and {@link DownloaderService} got its {@code Intent} again.  The journal
+ * records which version of the file on the server the bytes belong to, as the
+ * {@code ETag} or {@code Last-Modified} it was sent with, its complete length,
+ * and up to where the file was written to the disk for sure.
+ * <p>
+ * Anything after {@link #offset} may have been torn by a crash, so it is cut off
+ * before resuming.  A partial file without a journal is never resumed, since
+ * there is no telling which version of the file on the server it is part of.
+ * <p>
+ * The state of the {@link java.security.MessageDigest} cannot be saved, so a
+ * resumed download is hashed again from the bytes on disk up to {@link #offset},
+ * which does not need the network.
+ */
+final class DownloadJournal {
+    private static final String TAG = "DownloadJournal";
+
+    static final String SUFFIX = ".journal";
+
+    /**
+     * How much is written between two checkpoints, which is the most that
+     * has to be downloaded again after the process died.
+     */
+    static final long CHECKPOINT_BYTES = 1024 * 1024;
+
+    private static final String URL = "url";
+    private static final String VALIDATOR = "validator";
+    private static final String LENGTH = "length";
+    private static final String OFFSET = "offset";
+
+    private final File journalFile;
+    String urlString;
+    final String validator;
+    final long length;
+    long offset;
+
+    DownloadJournal(File outputFile, String urlString, String validator, long length) {
+        this.journalFile = getJournalFile(outputFile);
+        this.urlString = urlString;
+        this.validator = validator;
+        this.length = length;
+    }
+
+    /**
+     * @return the journal of {@code outputFile}, or null if there is none or it
+     * could not be read
+     */
+    @Nullable
+    static DownloadJournal read(File outputFile) {
+        File journalFile = getJournalFile(outputFile);
+        if (!journalFile.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(journalFile);
+            properties.load(input);
+            String validator = properties.getProperty(VALIDATOR);
+            if (validator != null) {
+                DownloadJournal journal = new DownloadJournal(outputFile, properties.getProperty(URL),
+                        validator, Long.parseLong(properties.getProperty(LENGTH)));
+                journal.offset = Long.parseLong(properties.getProperty(OFFSET));
+                return journal;
+            }
+        } catch (IOException | NumberFormatException e) {
+            Utils.debugLog(TAG, "Could not read " + journalFile, e);
+        } finally {
+            Utils.closeQuietly(input);
+        }
+        journalFile.delete();
+        return null;
+    }
+
+    /**
+     * Deletes the journal of a download which is complete or starts over.
+     */
+    static void delete(File outputFile) {
+        getJournalFile(outputFile).delete();
+    }
+
+    private static File getJournalFile(File outputFile) {
+        return new File(outputFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Cuts off {@code outputFile} after {@link #offset}, where it is resumed.
+     *
+     * @return false if the file is shorter than the journal says, so it cannot be resumed
+     */
+    boolean truncate(File outputFile) throws IOException {
+        if (offset <= 0 || outputFile.length() < offset) {
+            return false;
+        }
+        if (outputFile.length() > offset) {
+            RandomAccessFile file = new RandomAccessFile(outputFile, "rw");
+            try {
+                file.setLength(offset);
+            } finally {
+                file.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether a response with {@code validator} for a file of {@code length}
+     * is the same version of the file that the journal is about
+     */
+    boolean matches(@Nullable String validator, long length) {
+        return this.validator.equals(validator) && this.length == length;
+    }
+
+    /**
+     * Makes sure everything in {@code output} so far is on the disk, then records
+     * that as the offset to resume from.
+     */
+    void checkpoint(FileChannel output) throws IOException {
+        output.force(false);
+        offset = output.size();
+        save();
+    }
+
+    /**
+     * Writes the journal to a new file, which then replaces the old one, so a
+     * crash while saving leaves either the old or the new journal behind.
+     */
+    private void save() throws IOException {
+        Properties properties = new Properties();
+        if (urlString != null) {
+            properties.setProperty(URL, urlString);
+        }
+        properties.setProperty(VALIDATOR, validator);
+        properties.setProperty(LENGTH, Long.toString(length));
+        properties.setProperty(OFFSET, Long.toString(offset));
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            properties.store(output, null);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(journalFile)) {
+            tempFile.delete();
+            throw new IOException("Could not move " + tempFile + " to " + journalFile);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.fdroid.fdroid.net;
+
+import androidx.annotation.NonNull;
+
+import org.fdroid.fdroid.Utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs queued downloads on a limited number of slots at the same time.  The
+ * next download to start is the queued one with the best priority, in the
+ * order they were queued, which doesn't go over the limit of connections to
+ * its host.  Downloads to a busy host stay queued without holding up the ones
+ * to other hosts.
+ * <p>
+ * Like everywhere else in F-Droid, a download is identified by its canonical
+ * URL, while the host it is limited by is the one of the mirror it is
+ * actually downloaded from.  A canonical URL can be queued while it is
+ * running, which is how a failed download is retried from another mirror,
+ * but it only starts once the running one finished.
+ */
+public class DownloadScheduler {
+    private static final String TAG = "DownloadScheduler";
+
+    /**
+     * For downloads the user asked for, these go ahead of {@link #PRIORITY_AUTO_DOWNLOAD}.
+     */
+    public static final int PRIORITY_USER = 0;
+
+    /**
+     * For updates which are downloaded in the background, e.g. by
+     * {@link org.fdroid.fdroid.UpdateService#autoDownloadUpdates(android.content.Context)}.
+     */
+    public static final int PRIORITY_AUTO_DOWNLOAD = 1;
+
+    /**
+     * The work of a single download, which is run on one of the slots.
+     */
+    public interface Task {
+        void run();
+
+        /**
+         * Called from another thread when the download is cancelled while running.
+         */
+        void cancel();
+    }
+
+    /**
+     * Called whenever the last download finished and nothing else is queued.
+     */
+    public interface IdleListener {
+        void onIdle();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final String canonicalUrl;
+        final String host;
+        final int priority;
+        final long sequence;
+        final Task task;
+
+        Entry(String canonicalUrl, String host, int priority, long sequence, Task task) {
+            this.canonicalUrl = canonicalUrl;
+            this.host = host;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(@NonNull Entry other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final Executor executor;
+    private final IdleListener idleListener;
+
+    private final TreeSet<Entry> queue = new TreeSet<>();
+    private final Map<String, Entry> active = new HashMap<>();
+    private final Map<String, Integer> activePerHost = new HashMap<>();
+
+    private int slots;
+    private int connectionsPerHost;
+    private long nextSequence;
+
+    /**
+     * @param executor     runs the tasks on other threads than the one calling this, it needs to
+     *                     be able to run as many at the same time as there are slots
+     * @param idleListener may be null
+     */
+    public DownloadScheduler(Executor executor, int slots, int connectionsPerHost, IdleListener idleListener) {
+        this.executor = executor;
+        this.idleListener = idleListener;
+        setLimits(slots, connectionsPerHost);
+    }
+
+    /**
+     * Changes how many downloads run at the same time, in total and to any one host.
+     * Running downloads are never stopped because of this, but no new ones are started
+     * until they are below the new limits.
+     */
+    public synchronized void setLimits(int slots, int connectionsPerHost) {
+        this.slots = Math.max(1, slots);
+        this.connectionsPerHost = Math.max(1, connectionsPerHost);
+        startNext();
+    }
+
+    /**
+     * Queues a download, unless the same canonical URL is already queued.
+     * A download which is queued again with a better priority moves ahead.
+     *
+     * @param host the host the download connects to, which can be null for downloads
+     *             which don't use the network, e.g. from local content
+     * @return whether the task was queued
+     */
+    public synchronized boolean queue(String canonicalUrl, String host, int priority, Task task) {
+        Entry queued = findQueued(canonicalUrl);
+        if (queued != null) {
+            if (queued.priority <= priority) {
+                Utils.debugLog(TAG, canonicalUrl + " is already queued");
+                return false;
+            }
+            queue.remove(queued);
+        }
+        queue.add(new Entry(canonicalUrl, host, priority, nextSequence++, task));
+        startNext();
+        return true;
+    }
+
+    /**
+     * Removes a download from the queue, and cancels it if it is already running.
+     *
+     * @return whether it was taken out of the queue before it started, in which case
+     * its {@link Task} will never be run
+     */
+    public boolean cancel(String canonicalUrl) {
+        boolean removed;
+        Task running;
+        synchronized (this) {
+            Entry queued = findQueued(canonicalUrl);
+            removed = queued != null && queue.remove(queued);
+            Entry entry = active.get(canonicalUrl);
+            running = entry == null ? null : entry.task;
+            notifyIfIdle();
+        }
+        if (running != null) {
+            running.cancel();
+        }
+        return removed;
+    }
+
+    public synchronized boolean isQueuedOrActive(String canonicalUrl) {
+        return active.containsKey(canonicalUrl) || findQueued(canonicalUrl) != null;
+    }
+
+    public synchronized boolean isIdle() {
+        return active.isEmpty() && queue.isEmpty();
+    }
+
+    private Entry findQueued(String canonicalUrl) {
+        for (Entry entry : queue) {
+            if (entry.canonicalUrl.equals(canonicalUrl)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts queued downloads in the order of the queue, skipping those to a host
+     * which is at its limit already and those which are running already, until all
+     * slots are taken.
+     */
+    private void startNext() {
+        Iterator<Entry> iterator = queue.iterator();
+        while (active.size() < slots && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            int hostCount = getActiveCount(entry.host);
+            if (entry.host != null && hostCount >= connectionsPerHost || active.containsKey(entry.canonicalUrl)) {
+                continue;
+            }
+            iterator.remove();
+            active.put(entry.canonicalUrl, entry);
+            activePerHost.put(entry.host, hostCount + 1);
+            executor.execute(() -> {
+                try {
+                    entry.task.run();
+                } finally {
+                    finished(entry);
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(Entry entry) {
+        active.remove(entry.canonicalUrl);
+        int hostCount = getActiveCount(entry.host) - 1;
+        if (hostCount > 0) {
+            activePerHost.put(entry.host, hostCount);
+        } else {
+            activePerHost.remove(entry.host);
+        }
+        startNext();
+        notifyIfIdle();
+    }
+
+    private int getActiveCount(String host) {
+        Integer count = activePerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private void notifyIfIdle() {
+        if (idleListener != null && isIdle()) {
+            idleListener.onIdle();
+        }
+    }
+}
@@ -3,7 +3,9 @@ package org.fdroid.fdroid.net;
 import android.net.Uri;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import org.fdroid.fdroid.HashingUtils;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.Utils;
 
@@ -11,10 +13,14 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.ConnectException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class Downloader {
 
@@ -35,7 +41,7 @@ public abstract class Downloader {
     public static final String EXTRA_MIRROR_URL = "org.fdroid.fdroid.net.Downloader.extra.ERROR_MIRROR_URL";
 
     private volatile boolean cancelled = false;
-    private volatile long bytesRead;
+    private final AtomicLong bytesRead = new AtomicLong();
     private volatile long totalBytes;
 
     public final File outputFile;
@@ -46,6 +52,22 @@ public abstract class Downloader {
 
     private volatile int timeout = 10000;
 
+    private String hashType;
+    private volatile String hash;
+
+    /**
+     * If not null, {@link #downloadFromStream(boolean)} checkpoints what it wrote
+     * into this, so the download can be resumed after it was interrupted.
+     */
+    DownloadJournal journal;
+
+    /**
+     * How long the server took to answer, and then to send the file, which is how
+     * {@link MirrorRanking} tells fast mirrors from slow ones.  Both are -1 until known.
+     */
+    volatile long responseMillis = -1;
+    volatile long transferMillis = -1;
+
     /**
      * For sending download progress, should only be called in {@link #progressTask}
      */
@@ -69,6 +91,25 @@ public abstract class Downloader {
         this.downloaderProgressListener = listener;
     }
 
+    /**
+     * Hashes the file with this type from the index, like {@code sha256}, while
+     * it is downloaded, so it does not have to be read again to be verified.
+     *
+     * @see #getHash()
+     */
+    public void setHashType(@Nullable String hashType) {
+        this.hashType = hashType;
+    }
+
+    /**
+     * @return the hash of the whole downloaded file, or null if it was not hashed
+     * while downloading, like when it was downloaded in segments or was already complete
+     */
+    @Nullable
+    public String getHash() {
+        return hash;
+    }
+
     public void setTimeout(int ms) {
         timeout = ms;
     }
@@ -107,10 +148,16 @@ public abstract class Downloader {
         return notFound;
     }
 
-    void downloadFromStream(int bufferSize, boolean resumable) throws IOException, InterruptedException {
+    void downloadFromStream(boolean resumable) throws IOException, InterruptedException {
         Utils.debugLog(TAG, "Downloading from stream");
+        hash = null;
+        MessageDigest digest = hashType == null ? null : HashingUtils.getMessageDigest(hashType);
+        if (digest != null && resumable && outputFile.exists()) {
+            // only the part downloaded before is read again, which is needed for resuming anyway
+            FileTransfer.hash(outputFile, digest);
+        }
         InputStream input = null;
-        OutputStream outputStream = new FileOutputStream(outputFile, resumable);
+        FileOutputStream outputStream = new FileOutputStream(outputFile, resumable);
         try {
             input = getInputStream();
 
@@ -118,7 +165,7 @@ public abstract class Downloader {
             // we were interrupted before proceeding to the download.
             throwExceptionIfInterrupted();
 
-            copyInputToOutputStream(input, bufferSize, outputStream);
+            copyInputToChannel(input, outputStream.getChannel(), digest);
         } finally {
             Utils.closeQuietly(outputStream);
             Utils.closeQuietly(input);
@@ -127,6 +174,10 @@ public abstract class Downloader {
         // Even if we have completely downloaded the file, we should probably respect
         // the wishes of the user who wanted to cancel us.
         throwExceptionIfInterrupted();
+
+        if (digest != null) {
+            hash = HashingUtils.hex(digest.digest());
+        }
     }
 
     /**
@@ -137,7 +188,7 @@ public abstract class Downloader {
      *
      * @throws InterruptedException
      */
-    private void throwExceptionIfInterrupted() throws InterruptedException {
+    void throwExceptionIfInterrupted() throws InterruptedException {
         if (cancelled) {
             Utils.debugLog(TAG, "Received interrupt, cancelling download");
             throw new InterruptedException();
@@ -152,17 +203,67 @@ public abstract class Downloader {
     }
 
     /**
-     * This copies the downloaded data from the InputStream to the OutputStream,
+     * This copies the downloaded data from the InputStream to the end of the file,
      * keeping track of the number of bytes that have flowed through for the
      * progress counter.
+     *
+     * @see FileTransfer#transfer(ReadableByteChannel, FileChannel, long, long, MessageDigest, FileTransfer.Progress)
      */
-    private void copyInputToOutputStream(InputStream input, int bufferSize, OutputStream output)
-            throws IOException, InterruptedException {
+    private void copyInputToChannel(final InputStream input, final FileChannel output,
+                                    @Nullable final MessageDigest digest) throws IOException, InterruptedException {
+        final ReadableByteChannel source = Channels.newChannel(input);
+        final DownloadJournal journal = this.journal;
+        transferWithProgress(totalDownloadSize(), () -> {
+            try {
+                FileTransfer.transfer(source, output, output.size(), Long.MAX_VALUE, digest, count -> {
+                    bytesRead.addAndGet(count);
+                    if (journal != null && output.size() - journal.offset >= DownloadJournal.CHECKPOINT_BYTES) {
+                        journal.checkpoint(output);
+                    }
+                    throwExceptionIfInterrupted();
+                });
+                if (journal != null && output.size() < journal.length) {
+                    throw new IOException(urlString + " ended after " + output.size() + " of "
+                            + journal.length + " bytes");
+                }
+            } catch (IOException | InterruptedException e) {
+                if (journal != null) {
+                    checkpointQuietly(journal, output);
+                }
+                throw e;
+            }
+            Utils.debugLog(TAG, "Finished downloading from stream");
+        });
+    }
+
+    /**
+     * Records how far an interrupted download got, so it resumes from there
+     * instead of the last checkpoint.
+     */
+    private void checkpointQuietly(DownloadJournal journal, FileChannel output) {
+        try {
+            journal.checkpoint(output);
+        } catch (IOException e) {
+            Utils.debugLog(TAG, "Could not save the progress of " + urlString, e);
+        }
+    }
+
+    /**
+     * Writing the downloaded file, which may happen on several threads at once
+     * as long as they all report what they wrote to {@link #addBytesRead(long)}.
+     */
+    interface Transfer {
+        void run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs {@code transfer} while sending progress updates to the listener.
+     */
+    void transferWithProgress(long totalDownloadSize, Transfer transfer) throws IOException, InterruptedException {
         Timer timer = new Timer();
         try {
-            bytesRead = 0;
-            totalBytes = totalDownloadSize();
-            byte[] buffer = new byte[bufferSize];
+            bytesRead.set(0);
+            totalBytes = totalDownloadSize;
 
             timer.scheduleAtFixedRate(progressTask, 0, 100);
 
@@ -170,36 +271,26 @@ public abstract class Downloader {
             // it is implemented, so we may as well check this before we proceed.
             throwExceptionIfInterrupted();
 
-            while (true) {
-
-                int count;
-                if (input.available() > 0) {
-                    int readLength = Math.min(input.available(), buffer.length);
-                    count = input.read(buffer, 0, readLength);
-                } else {
-                    count = input.read(buffer);
-                }
-
-                throwExceptionIfInterrupted();
-
-                if (count == -1) {
-                    Utils.debugLog(TAG, "Finished downloading from stream");
-                    break;
-                }
-                bytesRead += count;
-                output.write(buffer, 0, count);
-            }
+            long start = System.currentTimeMillis();
+            transfer.run();
+            transferMillis = System.currentTimeMillis() - start;
         } finally {
             synchronized (syncObject) {
                 downloaderProgressListener = null;
             }
             timer.cancel();
             timer.purge();
-            output.flush();
-            output.close();
         }
     }
 
+    void addBytesRead(long count) {
+        bytesRead.addAndGet(count);
+    }
+
+    long getBytesRead() {
+        return bytesRead.get();
+    }
+
     /**
      * Send progress updates on a timer to avoid flooding receivers with pointless events.
      */
@@ -208,7 +299,7 @@ public abstract class Downloader {
         public void run() {
             synchronized (syncObject) {
                 if (downloaderProgressListener != null) {
-                    downloaderProgressListener.onProgress(urlString, bytesRead, totalBytes);
+                    downloaderProgressListener.onProgress(urlString, bytesRead.get(), totalBytes);
                 }
             }
         }
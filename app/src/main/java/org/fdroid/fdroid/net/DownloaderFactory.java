@@ -2,12 +2,17 @@ package org.fdroid.fdroid.net;
 
 import android.content.Context;
 import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DownloaderFactory {
 
@@ -26,16 +31,38 @@ public class DownloaderFactory {
 
     public static Downloader create(Context context, Uri uri, File destFile)
             throws IOException {
-        Downloader downloader;
-
-        String scheme = uri.getScheme();
-            final String[] projection = {Schema.RepoTable.Cols.USERNAME, Schema.RepoTable.Cols.PASSWORD};
-            Repo repo = RepoProvider.Helper.findByUrl(context, uri, projection);
-            if (repo == null) {
-                downloader = new HttpDownloader(uri, destFile);
-            } else {
-                downloader = new HttpDownloader(uri, destFile, repo.username, repo.password);
+        final String[] projection = {Schema.RepoTable.Cols.USERNAME, Schema.RepoTable.Cols.PASSWORD};
+        return create(uri, destFile, RepoProvider.Helper.findByUrl(context, uri, projection));
+    }
+
+    /**
+     * Like {@link #create(Context, Uri, File)}, but big files are downloaded in up to
+     * {@code segments} parts at the same time, which are spread over the best mirrors
+     * of {@code repo}, unless it needs a username and password.
+     */
+    public static Downloader createSegmented(Context context, Uri uri, File destFile, int segments,
+                                             @Nullable Repo repo) throws IOException {
+        final String[] projection = {Schema.RepoTable.Cols.USERNAME, Schema.RepoTable.Cols.PASSWORD};
+        Repo credentials = RepoProvider.Helper.findByUrl(context, uri, projection);
+        HttpDownloader downloader = create(uri, destFile, credentials);
+        List<String> mirrorUrlStrings = new ArrayList<>();
+        String urlString = uri.toString();
+        if (repo != null && repo.username == null) {
+            for (String mirrorUrlString : MirrorRanking.get(context).getRankedUrls(repo, urlString)) {
+                if (!mirrorUrlString.equals(urlString)) {
+                    mirrorUrlStrings.add(mirrorUrlString);
+                }
             }
+        }
+        downloader.setSegments(segments, mirrorUrlStrings);
         return downloader;
     }
+
+    private static HttpDownloader create(Uri uri, File destFile, Repo repo) throws IOException {
+        if (repo == null) {
+            return new HttpDownloader(uri, destFile);
+        } else {
+            return new HttpDownloader(uri, destFile, repo.username, repo.password);
+        }
+    }
 }
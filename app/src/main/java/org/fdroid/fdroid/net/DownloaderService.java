@@ -22,21 +22,21 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
+import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
@@ -50,6 +50,10 @@ import java.net.NoRouteToHostException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * DownloaderService is a service that handles asynchronous download requests
@@ -66,12 +70,15 @@ import java.net.UnknownHostException;
  * This "work queue processor" pattern is commonly used to offload tasks
  * from an application's main thread.  The DownloaderService class exists to
  * simplify this pattern and take care of the mechanics. DownloaderService
- * will receive the Intents, launch a worker thread, and stop the service as
- * appropriate.
+ * will receive the Intents, hand them to a {@link DownloadScheduler}, and stop
+ * the service once that has nothing left to do.
  * <p>
- * All requests are handled on a single worker thread -- they may take as
- * long as necessary (and will not block the application's main loop), but
- * only one request will be processed at a time.
+ * Requests are handled on worker threads -- they may take as long as necessary
+ * (and will not block the application's main loop).  As many requests as set in
+ * {@link Preferences#getDownloadSlots()} are processed at a time, with at most
+ * {@link Preferences#getDownloadConnectionsPerHost()} of them to the same host.
+ * Downloads the user asked for go ahead of those queued with
+ * {@link DownloadScheduler#PRIORITY_AUTO_DOWNLOAD}.
  * <p>
  * The full URL for the file to download is also used as the unique ID to
  * represent the download itself throughout F-Droid.  This follows the model
@@ -91,22 +98,50 @@ public class DownloaderService extends Service {
     private static final String ACTION_QUEUE = "org.fdroid.fdroid.net.DownloaderService.action.QUEUE";
     private static final String ACTION_CANCEL = "org.fdroid.fdroid.net.DownloaderService.action.CANCEL";
 
-    private volatile Looper serviceLooper;
-    private static volatile ServiceHandler serviceHandler;
-    private static volatile Downloader downloader;
+    private static final String EXTRA_PRIORITY = "org.fdroid.fdroid.net.DownloaderService.extra.PRIORITY";
+    private static final String EXTRA_TIMEOUT = "org.fdroid.fdroid.net.DownloaderService.extra.TIMEOUT";
+    private static final String EXTRA_RACE_URL = "org.fdroid.fdroid.net.DownloaderService.extra.RACE_URL";
+    private static final String EXTRA_HASH_TYPE = "org.fdroid.fdroid.net.DownloaderService.extra.HASH_TYPE";
+    private static final String EXTRA_HASH = "org.fdroid.fdroid.net.DownloaderService.extra.HASH";
+
+    private static volatile DownloadScheduler scheduler;
+    private ExecutorService executor;
     private LocalBroadcastManager localBroadcastManager;
-    private static volatile int timeout;
+    private volatile int lastStartId;
+
+    /**
+     * A single download, which can be cancelled before it even created its {@link Downloader}s.
+     * There are two of them when it races two mirrors.
+     */
+    private final class DownloadTask implements DownloadScheduler.Task {
+        private final Intent intent;
+        private volatile boolean cancelled;
+        private final List<Downloader> downloaders = new CopyOnWriteArrayList<>();
 
-    private final class ServiceHandler extends Handler {
-        ServiceHandler(Looper looper) {
-            super(looper);
+        DownloadTask(Intent intent) {
+            this.intent = intent;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            Utils.debugLog(TAG, "Handling download message with ID of " + msg.what);
-            handleIntent((Intent) msg.obj);
-            stopSelf(msg.arg1);
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Utils.debugLog(TAG, "Handling download of " + intent.getDataString());
+            handleIntent(intent, this);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            for (Downloader downloader : downloaders) {
+                downloader.cancelDownload();
+            }
+        }
+
+        void addDownloader(Downloader downloader) {
+            downloaders.add(downloader);
+            if (cancelled) {
+                downloader.cancelDownload();
+            }
         }
     }
 
@@ -115,11 +150,11 @@ public class DownloaderService extends Service {
         super.onCreate();
         Utils.debugLog(TAG, "Creating downloader service.");
 
-        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        serviceLooper = thread.getLooper();
-        serviceHandler = new ServiceHandler(serviceLooper);
+        executor = Executors.newCachedThreadPool();
+        Preferences preferences = Preferences.get();
+        scheduler = new DownloadScheduler(executor, preferences.getDownloadSlots(),
+                // only stops the service if no other request came in since
+                preferences.getDownloadConnectionsPerHost(), () -> stopSelf(lastStartId));
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
     }
 
@@ -136,28 +171,29 @@ public class DownloaderService extends Service {
             Utils.debugLog(TAG, "Received Intent with no URI: " + intent);
             return START_NOT_STICKY;
         }
+        lastStartId = startId;
 
         if (ACTION_CANCEL.equals(intent.getAction())) {
             Utils.debugLog(TAG, "Cancelling download of " + uriString);
-            Integer whatToRemove = uriString.hashCode();
-            if (serviceHandler.hasMessages(whatToRemove)) {
-                Utils.debugLog(TAG, "Removing download with ID of " + whatToRemove
-                        + " from service handler, then sending interrupted event.");
-                serviceHandler.removeMessages(whatToRemove);
-                sendBroadcast(intent.getData(), Downloader.ACTION_INTERRUPTED);
-            } else if (isActive(uriString)) {
-                downloader.cancelDownload();
-            } else {
-                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
-                        + " (expected to find message with ID of " + whatToRemove + " in queue).");
+            if (scheduler.cancel(uriString)) {
+                Utils.debugLog(TAG, "Removed download of " + uriString + " from the queue, then sending interrupted event.");
+                sendBroadcast(intent.getData(), Downloader.ACTION_INTERRUPTED, null, 0, uriString);
+            } else if (!scheduler.isQueuedOrActive(uriString)) {
+                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running: " + uriString);
+                if (scheduler.isIdle()) {
+                    stopSelf(startId);
+                }
             }
         } else if (ACTION_QUEUE.equals(intent.getAction())) {
-            Message msg = serviceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = intent;
-            msg.what = uriString.hashCode();
-            serviceHandler.sendMessage(msg);
-            Utils.debugLog(TAG, "Queued download of " + uriString);
+            String canonicalUrl = intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL);
+            if (canonicalUrl == null) {
+                canonicalUrl = uriString;
+            }
+            int priority = intent.getIntExtra(EXTRA_PRIORITY, DownloadScheduler.PRIORITY_USER);
+            Preferences preferences = Preferences.get();
+            scheduler.setLimits(preferences.getDownloadSlots(), preferences.getDownloadConnectionsPerHost());
+            scheduler.queue(canonicalUrl, intent.getData().getHost(), priority, new DownloadTask(intent));
+            Utils.debugLog(TAG, "Queued download of " + uriString + " with priority " + priority);
         } else {
             Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
         }
@@ -167,8 +203,9 @@ public class DownloaderService extends Service {
 
     @Override
     public void onDestroy() {
-        Utils.debugLog(TAG, "Destroying downloader service. Will move to background and stop our Looper.");
-        serviceLooper.quit(); //NOPMD - this is copied from IntentService, no super call needed
+        Utils.debugLog(TAG, "Destroying downloader service. Will stop the download threads.");
+        scheduler = null;
+        executor.shutdown(); //NOPMD - this is copied from IntentService, no super call needed
     }
 
     /**
@@ -180,47 +217,84 @@ public class DownloaderService extends Service {
     }
 
     /**
-     * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
-     * worker thread that runs independently from other application logic.
-     * So, if this code takes a long time, it will hold up other requests to
-     * the same DownloaderService, but it will not hold up anything else.
+     * This method is invoked on a worker thread with a request to process.
+     * Several Intents can be processed at the same time, each on a worker
+     * thread that runs independently from other application logic.  So, if
+     * this code takes a long time, it will take up one of the slots of the
+     * {@link DownloadScheduler}, but it will not hold up anything else.
      * When all requests have been handled, the DownloaderService stops itself,
      * so you should not ever call {@link #stopSelf}.
      * <p/>
-     * Downloads are put into subdirectories based on hostname/port of each repo
+     * APKs with a known hash are stored under that hash, so they are found in the
+     * cache whichever mirror they came from, and are added to {@link ApkCacheIndex}.
+     * Other downloads are put into subdirectories based on hostname/port of each repo
      * to prevent files with the same names from conflicting.  Each repo enforces
      * unique APK file names on the server side.
+     * <p/>
+     * A download which was interrupted, even by the process dying before this
+     * {@code Intent} was redelivered, continues where its {@link DownloadJournal}
+     * says it got to.
+     * <p/>
+     * Every download is measured for {@link MirrorRanking}.  If the {@code Intent}
+     * has a second mirror to race, both are downloaded at the same time and the
+     * file of the one which completed first is kept.
      *
      * @param intent The {@link Intent} passed via {@link
      *               android.content.Context#startService(Intent)}.
      * @see org.fdroid.fdroid.IndexV1Updater#update()
      */
-    private void handleIntent(Intent intent) {
+    private void handleIntent(Intent intent, DownloadTask task) {
         final Uri uri = intent.getData();
-        final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, uri);
+        String hashType = intent.getStringExtra(EXTRA_HASH_TYPE);
+        final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, uri, hashType,
+                intent.getStringExtra(EXTRA_HASH));
         long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
         String originalUrlString = intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL);
         sendBroadcast(uri, Downloader.ACTION_STARTED, localFile, repoId, originalUrlString);
 
+        Repo repo = repoId > 0 ? RepoProvider.Helper.findById(this, repoId) : null;
+        MirrorRanking ranking = MirrorRanking.get(this);
+        String raceUrlString = intent.getStringExtra(EXTRA_RACE_URL);
+        int timeout = intent.getIntExtra(EXTRA_TIMEOUT, MirrorRanking.getTimeout(0, 1));
+        ProgressListener listener = new ProgressListener() {
+            @Override
+            public void onProgress(String urlString, long bytesRead, long totalBytes) {
+                Intent intent = new Intent(Downloader.ACTION_PROGRESS);
+                intent.setData(uri);
+                intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
+                intent.putExtra(Downloader.EXTRA_TOTAL_BYTES, totalBytes);
+                localBroadcastManager.sendBroadcast(intent);
+            }
+        };
+
+        Downloader downloader = null;
         try {
-            downloader = DownloaderFactory.create(this, uri, localFile);
-            downloader.setListener(new ProgressListener() {
-                @Override
-                public void onProgress(String urlString, long bytesRead, long totalBytes) {
-                    Intent intent = new Intent(Downloader.ACTION_PROGRESS);
-                    intent.setData(uri);
-                    intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
-                    intent.putExtra(Downloader.EXTRA_TOTAL_BYTES, totalBytes);
-                    localBroadcastManager.sendBroadcast(intent);
+            ApkCache.deleteHash(localFile);
+            if (raceUrlString == null) {
+                downloader = DownloaderFactory.createSegmented(this, uri, localFile,
+                        Preferences.get().getDownloadSegments(), repo);
+                task.addDownloader(downloader);
+                downloader.setListener(listener);
+                downloader.setTimeout(timeout);
+                downloader.setHashType(hashType);
+                downloader.download();
+                if (!downloader.isNotFound()) {
+                    ranking.recordSuccess(repo, uri.toString(), downloader);
                 }
-            });
-            downloader.setTimeout(timeout);
-            downloader.download();
+            } else {
+                downloader = race(repo, uri, Uri.parse(raceUrlString), localFile, listener, timeout, hashType, task);
+            }
+            if (downloader.getHash() != null) {
+                ApkCache.saveHash(localFile, hashType, downloader.getHash());
+            }
             if (downloader.isNotFound()) {
                 sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, getString(R.string.download_404),
                         repoId, originalUrlString);
             } else {
+                // only APKs named after their hash are tracked, the rest is cleaned up by age
+                if (localFile.getParentFile().equals(ApkCache.getApkCacheDir(this))) {
+                    ApkCacheIndex.get(this).add(localFile, Preferences.get().getApkCacheSize());
+                }
                 sendBroadcast(uri, Downloader.ACTION_COMPLETE, localFile, repoId, originalUrlString);
             }
         } catch (InterruptedException e) {
@@ -228,11 +302,17 @@ public class DownloaderService extends Service {
         } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                 | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
                 | ProtocolException | UnknownHostException e) {
-            // if the above list of exceptions changes, also change it in IndexV1Updater.update()
+            // if the above list of exceptions changes, also change it in IndexV1Updater.downloadFromMirrors()
             Log.e(TAG, e.getLocalizedMessage());
+            if (raceUrlString == null) {
+                ranking.recordFailure(repo, uri.toString());
+            }
             sendBroadcast(uri, Downloader.ACTION_CONNECTION_FAILED, localFile, repoId, originalUrlString);
         } catch (IOException e) {
             e.printStackTrace();
+            if (raceUrlString == null) {
+                ranking.recordFailure(repo, uri.toString());
+            }
             sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile,
                     e.getLocalizedMessage(), repoId, originalUrlString);
         } finally {
@@ -240,21 +320,39 @@ public class DownloaderService extends Service {
                 downloader.close();
             }
         }
-        downloader = null;
     }
 
-    private void sendBroadcast(Uri uri, String action) {
-        sendBroadcast(uri, action, null, null);
+    /**
+     * Downloads the same file from two mirrors into files next to {@code localFile},
+     * then moves the one which completed first to {@code localFile}.
+     *
+     * @see MirrorRanking#race(Repo, Downloader, Downloader)
+     */
+    private Downloader race(Repo repo, Uri uri, Uri raceUri, SanitizedFile localFile, ProgressListener listener,
+                            int timeout, String hashType, DownloadTask task) throws IOException, InterruptedException {
+        Downloader first = DownloaderFactory.create(this, uri, new File(localFile.getAbsolutePath() + ".race1"));
+        Downloader second = DownloaderFactory.create(this, raceUri, new File(localFile.getAbsolutePath() + ".race2"));
+        for (Downloader downloader : new Downloader[]{first, second}) {
+            task.addDownloader(downloader);
+            downloader.setListener(listener);
+            downloader.setTimeout(timeout);
+            downloader.setHashType(hashType);
+        }
+        Downloader winner = MirrorRanking.get(this).race(repo, first, second);
+        if (!winner.isNotFound()) {
+            Utils.debugLog(TAG, "Won the race: " + winner.urlString);
+            localFile.delete();
+            if (!winner.outputFile.renameTo(localFile)) {
+                throw new IOException("Could not move " + winner.outputFile + " to " + localFile);
+            }
+        }
+        return winner;
     }
 
     private void sendBroadcast(Uri uri, String action, File file, long repoId, String originalUrlString) {
         sendBroadcast(uri, action, file, null, repoId, originalUrlString);
     }
 
-    private void sendBroadcast(Uri uri, String action, File file, String errorMessage) {
-        sendBroadcast(uri, action, file, errorMessage, 0, null);
-    }
-
     private void sendBroadcast(Uri uri, String action, File file, String errorMessage, long repoId,
                                String originalUrlString) {
         Intent intent = new Intent(action);
@@ -284,6 +382,29 @@ public class DownloaderService extends Service {
      * @see #cancel(Context, String)
      */
     public static void queue(Context context, String mirrorUrlString, long repoId, String urlString) {
+        queue(context, mirrorUrlString, repoId, urlString, DownloadScheduler.PRIORITY_USER);
+    }
+
+    /**
+     * @param priority {@link DownloadScheduler#PRIORITY_USER} or {@link DownloadScheduler#PRIORITY_AUTO_DOWNLOAD}
+     * @see #queue(Context, String, long, String)
+     */
+    public static void queue(Context context, String mirrorUrlString, long repoId, String urlString, int priority) {
+        queue(context, mirrorUrlString, repoId, urlString, priority, MirrorRanking.getTimeout(0, 1), null, null, null);
+    }
+
+    /**
+     * @param timeout       the connect timeout in milliseconds, see {@link MirrorRanking#getTimeout(int, int)}
+     * @param raceUrlString if not null, the same file on another mirror, which is downloaded
+     *                      at the same time to keep whichever completes first
+     * @param hashType      if not null, the file is hashed with this while it is downloaded,
+     *                      and the hash is saved with {@link ApkCache#saveHash(File, String, String)}
+     * @param hash          if not null, the expected hash of the APK, which the file in the cache
+     *                      is named after, see {@link ApkCache#getApkDownloadPath(Context, Uri, String, String)}
+     * @see #queue(Context, String, long, String)
+     */
+    public static void queue(Context context, String mirrorUrlString, long repoId, String urlString, int priority,
+                             int timeout, String raceUrlString, String hashType, String hash) {
         if (TextUtils.isEmpty(mirrorUrlString)) {
             return;
         }
@@ -293,6 +414,17 @@ public class DownloaderService extends Service {
         intent.setData(Uri.parse(mirrorUrlString));
         intent.putExtra(Downloader.EXTRA_REPO_ID, repoId);
         intent.putExtra(Downloader.EXTRA_CANONICAL_URL, urlString);
+        intent.putExtra(EXTRA_PRIORITY, priority);
+        intent.putExtra(EXTRA_TIMEOUT, timeout);
+        if (raceUrlString != null) {
+            intent.putExtra(EXTRA_RACE_URL, raceUrlString);
+        }
+        if (hashType != null) {
+            intent.putExtra(EXTRA_HASH_TYPE, hashType);
+        }
+        if (hash != null) {
+            intent.putExtra(EXTRA_HASH, hash);
+        }
         context.startService(intent);
     }
 
@@ -302,7 +434,7 @@ public class DownloaderService extends Service {
      * All notifications are sent as an {@link Intent} via local broadcasts to be received by
      *
      * @param context   this app's {@link Context}
-     * @param urlString The URL to remove from the download queue
+     * @param urlString The canonical URL to remove from the download queue
      * @see #queue(Context, String, long, String)
      */
     public static void cancel(Context context, String urlString) {
@@ -317,7 +449,7 @@ public class DownloaderService extends Service {
     }
 
     /**
-     * Check if a URL is waiting in the queue for downloading or if actively being downloaded.
+     * Check if a canonical URL is waiting in the queue for downloading or if actively being downloaded.
      * This is useful for checking whether to re-register {@link android.content.BroadcastReceiver}s
      * in {@link android.app.Activity#onResume()}.
      */
@@ -325,21 +457,11 @@ public class DownloaderService extends Service {
         if (TextUtils.isEmpty(urlString)) { //NOPMD - suggests unreadable format
             return false;
         }
-        if (serviceHandler == null) {
+        DownloadScheduler scheduler = DownloaderService.scheduler;
+        if (scheduler == null) {
             return false; // this service is not even running
         }
-        return serviceHandler.hasMessages(urlString.hashCode()) || isActive(urlString);
-    }
-
-    /**
-     * Check if a URL is actively being downloaded.
-     */
-    private static boolean isActive(String urlString) {
-        return downloader != null && TextUtils.equals(urlString, downloader.urlString);
-    }
-
-    public static void setTimeout(int ms) {
-        timeout = ms;
+        return scheduler.isQueuedOrActive(urlString);
     }
 
     /**
@@ -0,0 +1,182 @@
+package org.fdroid.fdroid.net;
+
+import androidx.annotation.Nullable;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Moves bytes into and between files through NIO channels.  Copies from one file
+ * to another use {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * which the kernel can do without passing the data through Java at all.  Anything
+ * else, like an HTTP response, goes through a single direct {@link ByteBuffer}
+ * per transfer, which {@link FileChannel} writes from without copying it first.
+ * A {@link MessageDigest} can be updated from that buffer on the way, so a file
+ * is hashed while it is written instead of being read again afterwards.
+ * <p>
+ * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)} is not used for
+ * streams, since on older Android versions it allocates a new buffer of the whole
+ * requested size on every call, and it reads at most once per call.
+ */
+public final class FileTransfer {
+
+    /**
+     * How much is moved between two calls to {@link Progress#onTransferred(long)},
+     * which is also how often a cancelled download notices that it was cancelled.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Called after every {@link #BUFFER_SIZE} or less that was written.  Throwing
+     * stops the transfer, which is how a download is cancelled.
+     */
+    interface Progress {
+        void onTransferred(long count) throws IOException, InterruptedException;
+    }
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Writes {@code source} into {@code destination} starting at {@code position},
+     * until the source ends or {@code maxCount} bytes were written.  This does not
+     * change the position of {@code destination}.
+     *
+     * @param digest if not null, is updated with every byte that is written
+     * @return how many bytes were written
+     */
+    static long transfer(ReadableByteChannel source, FileChannel destination, long position, long maxCount,
+                         @Nullable MessageDigest digest, Progress progress)
+            throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, Math.max(1, maxCount)));
+        long total = 0;
+        while (total < maxCount) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), maxCount - total));
+            int count = source.read(buffer);
+            if (count == -1) {
+                break;
+            }
+            buffer.flip();
+            update(digest, buffer);
+            while (buffer.hasRemaining()) {
+                position += destination.write(buffer, position);
+            }
+            total += count;
+            progress.onTransferred(count);
+        }
+        return total;
+    }
+
+    /**
+     * Replaces {@code destination} with a copy of {@code source}, and updates
+     * {@code digest} with the bytes on their way, so the copy can be verified
+     * without reading either file again.
+     */
+    public static void copy(File source, File destination, MessageDigest digest) throws IOException {
+        FileInputStream input = new FileInputStream(source);
+        try {
+            FileOutputStream output = new FileOutputStream(destination);
+            try {
+                pump(input.getChannel(), output.getChannel(), digest);
+            } finally {
+                output.close();
+            }
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Updates {@code digest} with the whole contents of {@code file}.
+     */
+    public static void hash(File file, MessageDigest digest) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            pump(input.getChannel(), null, digest);
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    private static void pump(ReadableByteChannel source, @Nullable WritableByteChannel destination,
+                             @Nullable MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (source.read(buffer) != -1) {
+            buffer.flip();
+            update(digest, buffer);
+            while (destination != null && buffer.hasRemaining()) {
+                destination.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Updates {@code digest} with what is left in {@code buffer}, without using it up.
+     */
+    private static void update(@Nullable MessageDigest digest, ByteBuffer buffer) {
+        if (digest != null) {
+            buffer.mark();
+            digest.update(buffer);
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Replaces {@code destination} with a copy of {@code source}.
+     */
+    public static void copy(File source, File destination) throws IOException {
+        FileInputStream input = new FileInputStream(source);
+        try {
+            FileOutputStream output = new FileOutputStream(destination);
+            try {
+                copy(input.getChannel(), output.getChannel());
+            } finally {
+                output.close();
+            }
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Copies everything left in {@code input} to {@code output}, without closing
+     * either of them.  Between files, the copy is done by the kernel.
+     */
+    public static void copy(InputStream input, OutputStream output) throws IOException {
+        WritableByteChannel destination = output instanceof FileOutputStream
+                ? ((FileOutputStream) output).getChannel() : Channels.newChannel(output);
+        if (input instanceof FileInputStream) {
+            copy(((FileInputStream) input).getChannel(), destination);
+        } else {
+            pump(Channels.newChannel(input), destination, null);
+        }
+        output.flush();
+    }
+
+    private static void copy(FileChannel source, WritableByteChannel destination) throws IOException {
+        long position = source.position();
+        long size = source.size();
+        while (position < size) {
+            long count = source.transferTo(position, size - position, destination);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+        }
+        source.position(position);
+    }
+}
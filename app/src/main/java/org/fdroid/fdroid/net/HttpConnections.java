@@ -0,0 +1,140 @@
+package org.fdroid.fdroid.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import info.guardianproject.netcipher.NetCipher;
+
+/**
+ * Opens the connections of all {@link HttpDownloader}s, so they can be kept alive
+ * and reused by the next download from the same host, whether that is an index,
+ * an APK or an icon.  {@link HttpURLConnection} keeps a pool of idle connections
+ * per host and proxy, but it only reuses one for a request with the same
+ * {@link SSLSocketFactory}.  {@link NetCipher} still decides which proxy to use,
+ * including Tor, but it makes a new {@code SSLSocketFactory} for every connection.
+ * So all HTTPS connections get the first one NetCipher made, wrapped to count how
+ * many TLS handshakes there were.
+ * <p>
+ * A connection only goes back to the pool once its response was read to the
+ * end and its stream was closed, without calling
+ * {@link HttpURLConnection#disconnect()}.
+ */
+public final class HttpConnections {
+
+    private static final AtomicLong HTTPS_REQUESTS = new AtomicLong();
+    private static final AtomicLong TLS_HANDSHAKES = new AtomicLong();
+
+    private static SSLSocketFactory sharedSocketFactory;
+
+    private HttpConnections() {
+    }
+
+    static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = NetCipher.getHttpURLConnection(url);
+        if (connection instanceof HttpsURLConnection) {
+            HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+            httpsConnection.setSSLSocketFactory(getSharedSocketFactory(httpsConnection.getSSLSocketFactory()));
+            HTTPS_REQUESTS.incrementAndGet();
+        }
+        return connection;
+    }
+
+    private static synchronized SSLSocketFactory getSharedSocketFactory(SSLSocketFactory netCipherFactory) {
+        if (sharedSocketFactory == null) {
+            sharedSocketFactory = new CountingSocketFactory(netCipherFactory);
+        }
+        return sharedSocketFactory;
+    }
+
+    /**
+     * Sets how many idle connections are kept, and for how long.  This has to be
+     * called before the first connection is made, since {@link HttpURLConnection}
+     * only reads these system properties once.
+     */
+    public static void configureKeepAlive(int maxIdleConnections, long keepAliveMillis) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveMillis));
+    }
+
+    public static long getHttpsRequests() {
+        return HTTPS_REQUESTS.get();
+    }
+
+    public static long getTlsHandshakes() {
+        return TLS_HANDSHAKES.get();
+    }
+
+    /**
+     * @return how many HTTPS requests went over a connection that was kept alive
+     */
+    public static long getHandshakesAvoided() {
+        return Math.max(0, HTTPS_REQUESTS.get() - TLS_HANDSHAKES.get());
+    }
+
+    /**
+     * Counts every TLS socket it creates, which is one handshake each.
+     */
+    static final class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory wrapped;
+
+        CountingSocketFactory(SSLSocketFactory wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return wrapped.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return wrapped.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            TLS_HANDSHAKES.incrementAndGet();
+            return wrapped.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            TLS_HANDSHAKES.incrementAndGet();
+            return wrapped.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            TLS_HANDSHAKES.incrementAndGet();
+            return wrapped.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            TLS_HANDSHAKES.incrementAndGet();
+            return wrapped.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            TLS_HANDSHAKES.incrementAndGet();
+            return wrapped.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            TLS_HANDSHAKES.incrementAndGet();
+            return wrapped.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -27,6 +27,8 @@ import android.os.Build;
 import android.text.TextUtils;
 import android.util.Base64;
 
+import androidx.annotation.Nullable;
+
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Utils;
@@ -34,13 +36,22 @@ import org.fdroid.fdroid.Utils;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-
-import info.guardianproject.netcipher.NetCipher;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Download files over HTTP, with support for proxies, {@code .onion} addresses,
@@ -54,11 +65,26 @@ public class HttpDownloader extends Downloader {
 
     static final String HEADER_FIELD_ETAG = "ETag";
 
+    /**
+     * Files smaller than this are always downloaded in one piece, since
+     * opening more connections would take longer than it saves.
+     */
+    static final long SEGMENTED_MIN_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * No segment is smaller than this, even if that means fewer segments.
+     */
+    static final long SEGMENT_MIN_SIZE = 2 * 1024 * 1024;
+
     private final String username;
     private final String password;
     private final URL sourceUrl;
     private HttpURLConnection connection;
+    private ResponseStream responseStream;
     private boolean newFileAvailableOnServer;
+    private int segments = 1;
+    private List<String> mirrorUrlStrings = Collections.emptyList();
+    private volatile boolean segmentFailed;
 
     /**
      * String to append to all HTTP downloads, created in {@link FDroidApp#onCreate()}
@@ -91,64 +117,365 @@ public class HttpDownloader extends Downloader {
     @Override
     protected InputStream getDownloadersInputStream() throws IOException {
         setupConnection(false);
-        return new BufferedInputStream(connection.getInputStream());
+        responseStream = new ResponseStream(connection.getInputStream());
+        return new BufferedInputStream(responseStream);
+    }
+
+    /**
+     * Notices when the whole response was read, after which the connection
+     * can be kept alive for the next download.
+     */
+    private static final class ResponseStream extends FilterInputStream {
+        private volatile boolean ended;
+
+        ResponseStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            ended |= b == -1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            ended |= read == -1;
+            return read;
+        }
     }
 
     /**
      * Get a remote file, checking the HTTP response code and the {@code etag}.
      * In order to prevent the {@code etag} from being used as a form of tracking
      * cookie, this code never sends the {@code etag} to the server.  Instead, it
-     * uses a {@code HEAD} request to get the {@code etag} from the server, then
-     * only issues a {@code GET} if the {@code etag} has changed.
+     * issues the {@code GET} right away and compares the {@code etag} in its
+     * response headers.  If that has not changed, the connection is dropped
+     * before the body is read, which saves the round trip a {@code HEAD} request
+     * would take on every download.
+     * <p>
+     * A partial file is resumed by asking for the rest of it in the same request,
+     * but only if its {@link DownloadJournal} says which version of the file it is
+     * part of.  Like {@code If-Range} would, but again without sending anything
+     * back to the server, the validator and length in the response are compared
+     * with the journal, and if the file changed on the server, it is downloaded
+     * again from the start.  If the server answers with the whole file instead,
+     * that replaces it.
      *
      * @see <a href="http://lucb1e.com/rp/cookielesscookies">Cookieless cookies</a>
      */
     @Override
     public void download() throws IOException, InterruptedException {
-        // get the file size from the server
-        HttpURLConnection tmpConn = getConnection();
-        tmpConn.setRequestMethod("HEAD");
-        String etag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
-
-        int contentLength = -1;
-        int statusCode = tmpConn.getResponseCode();
-        tmpConn.disconnect();
+        journal = null;
+        DownloadJournal previous = DownloadJournal.read(outputFile);
+        boolean resumable = previous != null && previous.truncate(outputFile);
+        if (previous != null && !resumable) {
+            DownloadJournal.delete(outputFile);
+        }
+        setupConnection(resumable);
+        long start = System.currentTimeMillis();
+        int statusCode = connection.getResponseCode();
+        responseMillis = System.currentTimeMillis() - start;
+        String etag = connection.getHeaderField(HEADER_FIELD_ETAG);
         newFileAvailableOnServer = false;
         switch (statusCode) {
-            case 200:
-                contentLength = tmpConn.getContentLength();
+            case HttpURLConnection.HTTP_OK:
+            case HttpURLConnection.HTTP_PARTIAL:
                 if (!TextUtils.isEmpty(etag) && etag.equals(cacheTag)) {
                     Utils.debugLog(TAG, urlString + " is cached, not downloading");
+                    close();
                     return;
                 }
                 newFileAvailableOnServer = true;
                 break;
-            case 404:
+            case HttpURLConnection.HTTP_NOT_FOUND:
                 notFound = true;
+                close();
+                return;
+            case 416: // Range Not Satisfiable
+                newFileAvailableOnServer = true;
+                if (resumable && outputFile.length() == getCompleteLength(connection)
+                        && outputFile.length() == previous.length) {
+                    close();
+                    DownloadJournal.delete(outputFile);
+                    return; // already have it!
+                }
+                Utils.debugLog(TAG, outputFile + " is longer than " + urlString + ", downloading it again");
+                downloadAgain();
                 return;
             default:
-                Utils.debugLog(TAG, "HEAD check of " + urlString + " returned " + statusCode + ": "
-                        + tmpConn.getResponseMessage());
+                Utils.debugLog(TAG, "GET of " + urlString + " returned " + statusCode + ": "
+                        + connection.getResponseMessage());
         }
 
-        boolean resumable = false;
-        long fileLength = outputFile.length();
-        if (fileLength > contentLength) {
-            outputFile.delete();
-        } else if (fileLength == contentLength && outputFile.isFile()) {
-            return; // already have it!
-        } else if (fileLength > 0) {
-            resumable = true;
+        String validator = getValidator(connection);
+        if (statusCode == HttpURLConnection.HTTP_PARTIAL) {
+            if (!resumable || !previous.matches(validator, getCompleteLength(connection))
+                    || getRangeStart(connection) != outputFile.length()) {
+                Utils.debugLog(TAG, urlString + " changed since " + outputFile + " was started, downloading it again");
+                downloadAgain();
+                return;
+            }
+            previous.urlString = urlString;
+            journal = previous;
+        } else if (statusCode == HttpURLConnection.HTTP_OK) {
+            // the server sent the whole file, even if only the rest of it was asked for
+            resumable = false;
+            DownloadJournal.delete(outputFile);
+            int contentLength = connection.getContentLength();
+            boolean acceptsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+            if (segments > 1 && acceptsRanges && contentLength >= SEGMENTED_MIN_SIZE) {
+                // dropping this connection costs no more than the HEAD request did before
+                close();
+                connection = null;
+                downloadSegmented(contentLength);
+                cacheTag = etag;
+                return;
+            }
+            if (validator != null && contentLength > 0) {
+                journal = new DownloadJournal(outputFile, urlString, validator, contentLength);
+            }
         }
-        setupConnection(resumable);
         Utils.debugLog(TAG, "downloading " + urlString + " (is resumable: " + resumable + ")");
-        downloadFromStream(8192, resumable);
+        downloadFromStream(resumable);
+        DownloadJournal.delete(outputFile);
+        journal = null;
         cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
     }
 
+    /**
+     * Throws away the partial file and its journal, then downloads the whole file.
+     */
+    private void downloadAgain() throws IOException, InterruptedException {
+        close();
+        connection = null;
+        DownloadJournal.delete(outputFile);
+        outputFile.delete();
+        download();
+    }
+
+    /**
+     * @return what tells this version of the file on the server apart from others,
+     * which is the {@code ETag}, or {@code Last-Modified} if there is no strong one,
+     * or null if there is neither, then the download cannot be resumed
+     */
+    @Nullable
+    private static String getValidator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField(HEADER_FIELD_ETAG);
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        String lastModified = connection.getHeaderField("Last-Modified");
+        return TextUtils.isEmpty(lastModified) ? null : lastModified;
+    }
+
+    /**
+     * @return where the range in a {@code Content-Range} header like
+     * {@code bytes 1000-1233/1234} starts, or -1 if there is none
+     */
+    private static long getRangeStart(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ") || contentRange.indexOf('-') < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), contentRange.indexOf('-')).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the length of the whole file from a {@code Content-Range} header
+     * like {@code bytes *&#47;1234}, or -1 if there is none
+     */
+    private static long getCompleteLength(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || contentRange.indexOf('/') < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Downloads files of at least {@link #SEGMENTED_MIN_SIZE} in up to this many
+     * segments at the same time, if the server says it supports {@code Range}
+     * requests.  The segments are spread over the mirrors, if there are any.
+     *
+     * @param mirrorUrlStrings the URLs of the same file on other mirrors, which
+     *                         must not need the credentials of this downloader
+     */
+    void setSegments(int segments, List<String> mirrorUrlStrings) {
+        this.segments = Math.max(1, segments);
+        this.mirrorUrlStrings = mirrorUrlStrings;
+    }
+
+    /**
+     * Splits the file into ranges which are downloaded at the same time, each written
+     * to its place in a preallocated file.  That file only replaces {@link #outputFile}
+     * once all segments are complete, so an interrupted segmented download is never
+     * mistaken for a partial file to resume, or for a complete one.  Whether the
+     * contents match the expected hash is checked by whoever uses the file, like for
+     * any other download.
+     */
+    private void downloadSegmented(final long contentLength) throws IOException, InterruptedException {
+        final int count = (int) Math.max(1, Math.min(segments, contentLength / SEGMENT_MIN_SIZE));
+        final List<String> urlStrings = new ArrayList<>();
+        urlStrings.add(urlString);
+        urlStrings.addAll(mirrorUrlStrings);
+        Utils.debugLog(TAG, "downloading " + urlString + " in " + count + " segments from "
+                + Math.min(count, urlStrings.size()) + " servers");
+
+        final File partFile = new File(outputFile.getPath() + ".part");
+        final RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        final ExecutorService executor = Executors.newFixedThreadPool(count);
+        boolean complete = false;
+        segmentFailed = false;
+        try {
+            file.setLength(contentLength);
+            final FileChannel channel = file.getChannel();
+            transferWithProgress(contentLength, () -> {
+                List<Future<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    final Segment segment = new Segment(contentLength * i / count,
+                            contentLength * (i + 1) / count - 1);
+                    final String segmentUrlString = urlStrings.get(i % urlStrings.size());
+                    futures.add(executor.submit(() -> {
+                        try {
+                            downloadSegment(channel, segmentUrlString, segment);
+                        } catch (IOException | RuntimeException e) {
+                            segmentFailed = true;
+                            throw e;
+                        }
+                        return null;
+                    }));
+                }
+                waitForSegments(futures);
+            });
+            file.close();
+            outputFile.delete();
+            complete = partFile.renameTo(outputFile);
+            if (!complete) {
+                throw new IOException("Could not move " + partFile + " to " + outputFile);
+            }
+        } finally {
+            executor.shutdownNow();
+            Utils.closeQuietly(file);
+            if (!complete) {
+                partFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Waits for all segments, then throws the first error of a segment that failed, rather
+     * than the {@link InterruptedException}s of the segments which stopped because of it.
+     */
+    private void waitForSegments(List<Future<Void>> futures) throws IOException, InterruptedException {
+        Exception failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                boolean onlyInterrupted = failure instanceof InterruptedException;
+                if (failure == null || onlyInterrupted && !(cause instanceof InterruptedException)) {
+                    failure = cause instanceof Exception ? (Exception) cause : new IOException(cause);
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof InterruptedException) {
+            throw (InterruptedException) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    /**
+     * The part of the file from {@link #position} to {@link #end}, both inclusive,
+     * which still needs to be downloaded.
+     */
+    private static final class Segment {
+        long position;
+        final long end;
+
+        Segment(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+    /**
+     * If a mirror fails, the rest of the segment is downloaded from {@link #sourceUrl}.
+     */
+    private void downloadSegment(FileChannel channel, String segmentUrlString, Segment segment)
+            throws IOException, InterruptedException {
+        try {
+            downloadRange(channel, new URL(segmentUrlString), segment);
+        } catch (IOException e) {
+            if (urlString.equals(segmentUrlString)) {
+                throw e;
+            }
+            Utils.debugLog(TAG, "Segment from " + segmentUrlString + " failed, continuing from " + urlString
+                    + ": " + e.getLocalizedMessage());
+            downloadRange(channel, sourceUrl, segment);
+        }
+    }
+
+    private void downloadRange(FileChannel channel, URL url, Segment segment)
+            throws IOException, InterruptedException {
+        HttpURLConnection rangeConnection = getConnection(url);
+        rangeConnection.setRequestProperty("Range", "bytes=" + segment.position + "-" + segment.end);
+        // the connection is kept alive for the next download if the whole range was read
+        try {
+            int statusCode = rangeConnection.getResponseCode();
+            if (statusCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException(url + " returned " + statusCode + " instead of the range "
+                        + segment.position + "-" + segment.end);
+            }
+            InputStream input = rangeConnection.getInputStream();
+            boolean complete = false;
+            try {
+                FileTransfer.transfer(Channels.newChannel(input), channel, segment.position,
+                        segment.end - segment.position + 1, null, count -> {
+                            segment.position += count;
+                            addBytesRead(count);
+                            throwExceptionIfInterrupted();
+                            if (segmentFailed) {
+                                throw new InterruptedException();
+                            }
+                        });
+                if (segment.position <= segment.end) {
+                    throw new IOException(url + " ended at " + segment.position + " before " + segment.end);
+                }
+                complete = true;
+            } finally {
+                Utils.closeQuietly(input);
+                if (!complete) {
+                    rangeConnection.disconnect();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            rangeConnection.disconnect();
+            throw e;
+        }
+    }
+
     private HttpURLConnection getConnection() throws IOException {
+        return getConnection(sourceUrl);
+    }
+
+    private HttpURLConnection getConnection(URL url) throws IOException {
         HttpURLConnection connection;
-        connection = NetCipher.getHttpURLConnection(sourceUrl);
+        connection = HttpConnections.open(url);
 
         connection.setRequestProperty("User-Agent", "F-Droid Classic " + BuildConfig.VERSION_NAME);
         connection.setConnectTimeout(getTimeout());
@@ -197,9 +524,16 @@ public class HttpDownloader extends Downloader {
         return newFileAvailableOnServer;
     }
 
+    /**
+     * Keeps the connection alive if its response was read to the end, since it is
+     * only returned to the pool once its stream is closed.  Otherwise, like when
+     * the body of an unchanged file was not even read, it is disconnected.
+     */
     @Override
     public void close() {
-        if (connection != null) {
+        if (responseStream != null && responseStream.ended) {
+            Utils.closeQuietly(responseStream);
+        } else if (connection != null) {
             connection.disconnect();
         }
     }
@@ -0,0 +1,424 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Repo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ranks the mirrors of each repo by how fast and reliable they were in past
+ * downloads, so every download starts with the best one instead of a random one.
+ * For every mirror, this keeps moving averages of how long the server took to
+ * answer and of the throughput, and counts the successes and failures.  They are
+ * stored per repo in their own {@link SharedPreferences}, so they survive restarts.
+ * <p>
+ * A mirror which failed recently is only tried after all others, until it waited
+ * out a backoff that doubles with every failure in a row.  Mirrors which were never
+ * measured keep the order of {@link Repo#getUsableMirrorList()}, so the canonical
+ * address comes first, after any measured ones that were faster than
+ * {@link #UNKNOWN_MILLIS}.
+ * <p>
+ * There is no global state about which mirror is tried: every download goes
+ * through the ranked list on its own, with the timeout given by
+ * {@link #getTimeout(int, int)} growing with every round through the list.
+ */
+public final class MirrorRanking {
+    private static final String TAG = "MirrorRanking";
+
+    private static final String PREFERENCES_FILE = "mirror-ranking";
+
+    /**
+     * Connect timeouts for the first, second and third round through all mirrors.
+     */
+    private static final int[] TIMEOUTS = {10000, 30000, 60000};
+
+    /**
+     * Files up to this size are downloaded from the two best mirrors at the same
+     * time, since for them, the latency of a mirror matters more than its throughput.
+     */
+    public static final long RACE_MAX_SIZE = 512 * 1024;
+
+    /**
+     * What a download of {@link #REFERENCE_SIZE} is assumed to take from a mirror
+     * which was never measured.
+     */
+    static final long UNKNOWN_MILLIS = 2000;
+
+    private static final long REFERENCE_SIZE = 1024 * 1024;
+
+    /**
+     * Only downloads at least this big tell something about the throughput.
+     */
+    private static final long MIN_THROUGHPUT_SIZE = 64 * 1024;
+
+    /**
+     * How much the newest measurement counts in the moving averages.
+     */
+    private static final double WEIGHT = 0.3;
+
+    /**
+     * Bounds for {@link #getHedgeDelay(Repo, String)}.
+     */
+    private static final long HEDGE_MIN_DELAY_MILLIS = 500;
+    private static final long HEDGE_MAX_DELAY_MILLIS = 5000;
+    private static final long HEDGE_UNKNOWN_DELAY_MILLIS = 2000;
+
+    private static final long BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static MirrorRanking instance;
+
+    private final SharedPreferences preferences;
+    private final Map<String, Health> healthByMirror = new HashMap<>();
+
+    public static synchronized MirrorRanking get(Context context) {
+        if (instance == null) {
+            instance = new MirrorRanking(context.getApplicationContext()
+                    .getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    MirrorRanking(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * @return how many downloads to try before giving up, which is one round through
+     * the mirrors for each of the timeouts, or just one if there are no mirrors
+     */
+    public static int getAttempts(int mirrors) {
+        return mirrors <= 1 ? 1 : mirrors * TIMEOUTS.length;
+    }
+
+    /**
+     * @param attempt counting from zero, for a download which tries the mirrors in turn
+     */
+    public static int getTimeout(int attempt, int mirrors) {
+        return TIMEOUTS[Math.min(TIMEOUTS.length - 1, attempt / Math.max(1, mirrors))];
+    }
+
+    /**
+     * The measurements of one mirror of one repo.
+     */
+    static final class Health {
+        double responseMillis = -1;
+        double bytesPerSecond = -1;
+        int successes;
+        int failures;
+        int failuresInARow;
+        long lastFailure;
+
+        static Health parse(String value) {
+            Health health = new Health();
+            if (value == null) {
+                return health;
+            }
+            String[] fields = value.split(",");
+            try {
+                health.responseMillis = Double.parseDouble(fields[0]);
+                health.bytesPerSecond = Double.parseDouble(fields[1]);
+                health.successes = Integer.parseInt(fields[2]);
+                health.failures = Integer.parseInt(fields[3]);
+                health.failuresInARow = Integer.parseInt(fields[4]);
+                health.lastFailure = Long.parseLong(fields[5]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return new Health();
+            }
+            return health;
+        }
+
+        @Override
+        public String toString() {
+            return responseMillis + "," + bytesPerSecond + "," + successes + "," + failures + ","
+                    + failuresInARow + "," + lastFailure;
+        }
+
+        boolean isHealthy(long now) {
+            if (failuresInARow == 0) {
+                return true;
+            }
+            long backoff = BACKOFF_MILLIS << Math.min(failuresInARow - 1, 10);
+            return now - lastFailure >= Math.min(backoff, MAX_BACKOFF_MILLIS);
+        }
+
+        /**
+         * @return how long a download of {@link #REFERENCE_SIZE} is expected to take, made
+         * longer for mirrors which often fail, since a failure costs at least a timeout
+         */
+        long estimateMillis() {
+            if (responseMillis < 0) {
+                return UNKNOWN_MILLIS;
+            }
+            double millis = responseMillis;
+            if (bytesPerSecond > 0) {
+                millis += REFERENCE_SIZE * 1000 / bytesPerSecond;
+            }
+            double failureRate = (double) failures / Math.max(1, successes + failures);
+            return (long) (millis * (1 + 3 * failureRate));
+        }
+    }
+
+    private Health getHealth(long repoId, String mirror) {
+        String key = repoId + " " + mirror;
+        Health health = healthByMirror.get(key);
+        if (health == null) {
+            health = Health.parse(preferences.getString(key, null));
+            healthByMirror.put(key, health);
+        }
+        return health;
+    }
+
+    private void saveHealth(long repoId, String mirror, Health health) {
+        preferences.edit().putString(repoId + " " + mirror, health.toString()).apply();
+    }
+
+    /**
+     * @return the usable mirrors of {@code repo}, the best first
+     */
+    public synchronized List<String> getRankedMirrors(Repo repo) {
+        final List<String> mirrors = repo.getUsableMirrorList();
+        final long now = System.currentTimeMillis();
+        final Map<String, Health> health = new HashMap<>();
+        for (String mirror : mirrors) {
+            health.put(mirror, getHealth(repo.getId(), mirror));
+        }
+        // a stable sort, so mirrors which compare the same keep their order
+        Collections.sort(mirrors, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                Health healthA = health.get(a);
+                Health healthB = health.get(b);
+                boolean healthyA = healthA.isHealthy(now);
+                if (healthyA != healthB.isHealthy(now)) {
+                    return healthyA ? -1 : 1;
+                }
+                long millisA = healthA.estimateMillis();
+                long millisB = healthB.estimateMillis();
+                return millisA < millisB ? -1 : (millisA == millisB ? 0 : 1);
+            }
+        });
+        return mirrors;
+    }
+
+    /**
+     * @return the URLs of the file at {@code urlString} on all usable mirrors of
+     * {@code repo}, the best first, or only {@code urlString} if it is not in the repo
+     */
+    public List<String> getRankedUrls(@Nullable Repo repo, String urlString) {
+        String mirror = repo == null ? null : findMirror(repo, urlString);
+        if (mirror == null) {
+            return Collections.singletonList(urlString);
+        }
+        String path = urlString.substring(mirror.length());
+        List<String> urls = new ArrayList<>();
+        for (String rankedMirror : getRankedMirrors(repo)) {
+            urls.add(rankedMirror + path);
+        }
+        return urls;
+    }
+
+    /**
+     * @return the mirror of {@code repo} which {@code urlString} is on, or null
+     */
+    @Nullable
+    private static String findMirror(Repo repo, String urlString) {
+        String found = null;
+        for (String mirror : repo.getUsableMirrorList()) {
+            if (urlString.startsWith(mirror)
+                    && (urlString.length() == mirror.length() || urlString.charAt(mirror.length()) == '/')
+                    && (found == null || mirror.length() > found.length())) {
+                found = mirror;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Records the time a completed download took, if it came from a mirror of {@code repo}.
+     */
+    public synchronized void recordSuccess(@Nullable Repo repo, String urlString, Downloader downloader) {
+        String mirror = repo == null ? null : findMirror(repo, urlString);
+        if (mirror == null || downloader.responseMillis < 0) {
+            return;
+        }
+        Health health = getHealth(repo.getId(), mirror);
+        health.responseMillis = average(health.responseMillis, downloader.responseMillis);
+        long bytes = downloader.getBytesRead();
+        if (bytes >= MIN_THROUGHPUT_SIZE && downloader.transferMillis > 0) {
+            health.bytesPerSecond = average(health.bytesPerSecond, bytes * 1000.0 / downloader.transferMillis);
+        }
+        health.successes++;
+        health.failuresInARow = 0;
+        saveHealth(repo.getId(), mirror, health);
+    }
+
+    /**
+     * Records that a download from a mirror of {@code repo} failed, which moves that
+     * mirror to the end of the list for a while.
+     */
+    public synchronized void recordFailure(@Nullable Repo repo, String urlString) {
+        String mirror = repo == null ? null : findMirror(repo, urlString);
+        if (mirror == null) {
+            return;
+        }
+        Health health = getHealth(repo.getId(), mirror);
+        health.failures++;
+        health.failuresInARow++;
+        health.lastFailure = System.currentTimeMillis();
+        saveHealth(repo.getId(), mirror, health);
+        Utils.debugLog(TAG, mirror + " failed " + health.failuresInARow + " times in a row");
+    }
+
+    private static double average(double average, double sample) {
+        return average < 0 ? sample : average + WEIGHT * (sample - average);
+    }
+
+    /**
+     * Runs two downloads of the same file from different mirrors at the same time.
+     * The first one to complete wins and the other one is cancelled.  Each must have
+     * its own {@link Downloader#outputFile}, since the ones which did not win delete
+     * theirs once they stopped.
+     *
+     * @return the download which completed first, or one which was not found if
+     * neither was found
+     * @throws IOException if both failed, this is the first of their errors
+     */
+    public Downloader race(@Nullable Repo repo, Downloader first, Downloader second)
+            throws IOException, InterruptedException {
+        return hedge(repo, first, second, 0);
+    }
+
+    /**
+     * How long to wait for the mirror at {@code urlString} to answer before also
+     * asking the next one, see {@link #hedge(Repo, Downloader, Downloader, long)}.
+     * This is a few times what the mirror usually takes, so it only hedges when
+     * this mirror is much slower than usual.
+     */
+    public synchronized long getHedgeDelay(@Nullable Repo repo, String urlString) {
+        String mirror = repo == null ? null : findMirror(repo, urlString);
+        double responseMillis = mirror == null ? -1 : getHealth(repo.getId(), mirror).responseMillis;
+        if (responseMillis < 0) {
+            return HEDGE_UNKNOWN_DELAY_MILLIS;
+        }
+        return Math.max(HEDGE_MIN_DELAY_MILLIS, Math.min(HEDGE_MAX_DELAY_MILLIS, (long) (responseMillis * 3)));
+    }
+
+    /**
+     * Starts {@code first}, and if it has not answered after {@code delayMillis},
+     * starts {@code second} as well and keeps whichever completes first, like
+     * {@link #race(Repo, Downloader, Downloader)}.  If {@code first} fails before
+     * that, {@code second} is started right away.  If {@code second} is never
+     * started, its {@link Downloader#outputFile} is deleted.
+     */
+    public Downloader hedge(@Nullable Repo repo, Downloader first, Downloader second, long delayMillis)
+            throws IOException, InterruptedException {
+        AtomicReference<Downloader> winner = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CompletionService<Downloader> completion = new ExecutorCompletionService<>(executor);
+        completion.submit(raceTask(repo, first, winner));
+        int running = 1;
+        boolean secondStarted = false;
+        boolean secondDecided = false;
+
+        Downloader notFound = null;
+        Throwable failure = null;
+        try {
+            while (running > 0) {
+                Future<Downloader> done = secondDecided ? completion.take()
+                        : completion.poll(Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    secondDecided = true;
+                    if (delayMillis <= 0 || first.responseMillis < 0) {
+                        Utils.debugLog(TAG, "No answer from " + first.urlString + " after " + delayMillis
+                                + "ms, also trying " + second.urlString);
+                        completion.submit(raceTask(repo, second, winner));
+                        secondStarted = true;
+                        running++;
+                    }
+                    continue;
+                }
+                running--;
+                try {
+                    Downloader downloader = done.get();
+                    if (winner.get() == downloader) {
+                        (downloader == first ? second : first).cancelDownload();
+                        return downloader;
+                    }
+                    notFound = downloader;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    if (!secondDecided) {
+                        secondDecided = true;
+                        completion.submit(raceTask(repo, second, winner));
+                        secondStarted = true;
+                        running++;
+                    }
+                }
+                secondDecided = true;
+            }
+        } catch (InterruptedException e) {
+            first.cancelDownload();
+            second.cancelDownload();
+            throw e;
+        } finally {
+            executor.shutdown();
+            if (!secondStarted) {
+                second.outputFile.delete();
+            }
+        }
+        if (notFound != null) {
+            return notFound;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof InterruptedException) {
+            throw (InterruptedException) failure;
+        }
+        throw new IOException(failure);
+    }
+
+    private Callable<Downloader> raceTask(final Repo repo, final Downloader downloader,
+                                          final AtomicReference<Downloader> winner) {
+        return () -> {
+            boolean won = false;
+            try {
+                downloader.download();
+                if (!downloader.isNotFound()) {
+                    recordSuccess(repo, downloader.urlString, downloader);
+                    won = winner.compareAndSet(null, downloader);
+                }
+                return downloader;
+            } catch (IOException e) {
+                recordFailure(repo, downloader.urlString);
+                throw e;
+            } finally {
+                if (!won) {
+                    downloader.close();
+                    downloader.outputFile.delete();
+                }
+            }
+        };
+    }
+}
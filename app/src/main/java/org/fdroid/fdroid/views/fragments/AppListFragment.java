@@ -13,7 +13,6 @@ import androidx.annotation.Nullable;
 import androidx.core.app.ActivityOptionsCompat;
 import androidx.fragment.app.ListFragment;
 import androidx.loader.app.LoaderManager;
-import androidx.loader.content.CursorLoader;
 import androidx.loader.content.Loader;
 import androidx.core.util.Pair;
 import android.text.TextUtils;
@@ -64,6 +63,15 @@ public abstract class AppListFragment extends ListFragment implements
 
     @Nullable private String searchQuery;
 
+    private final SearchSession searchSession = new SearchSession(new Runnable() {
+        @Override
+        public void run() {
+            if (isAdded()) {
+                LoaderManager.getInstance(AppListFragment.this).restartLoader(0, null, AppListFragment.this);
+            }
+        }
+    });
+
     protected abstract AppListAdapter getAppListAdapter();
 
     protected abstract String getFromTitle();
@@ -123,6 +131,12 @@ public abstract class AppListFragment extends ListFragment implements
         LoaderManager.getInstance(this).initLoader(0, null, this);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        searchSession.stop();
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -180,6 +194,7 @@ public abstract class AppListFragment extends ListFragment implements
 
     @Override
     public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
+        searchSession.onLoadFinished(loader, data);
         appAdapter.swapCursor(data);
     }
 
@@ -188,12 +203,18 @@ public abstract class AppListFragment extends ListFragment implements
         appAdapter.swapCursor(null);
     }
 
+    /**
+     * Lists are read a page at a time as they are scrolled, see {@link PagedAppCursor}.
+     * The results of a search are read all at once, see {@link SearchSession}.
+     */
     @NonNull
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        Uri uri = updateSearchStatus() ? getDataUri(searchQuery) : getDataUri();
-        return new CursorLoader(
-                getActivity(), uri, APP_PROJECTION, null, null, APP_SORT);
+        if (updateSearchStatus()) {
+            return searchSession.createLoader(getActivity(), getDataUri(searchQuery), APP_PROJECTION, APP_SORT,
+                    searchQuery);
+        }
+        return new PagedAppCursor.PagedLoader(getActivity(), getDataUri(), APP_PROJECTION, APP_SORT);
     }
 
     /**
@@ -214,11 +235,14 @@ public abstract class AppListFragment extends ListFragment implements
         return true;
     }
 
+    /**
+     * Searches for {@code query} once the user paused typing, see {@link SearchSession}.
+     */
     public void updateSearchQuery(@Nullable String query) {
         if (!TextUtils.equals(query, searchQuery)) {
             searchQuery = query;
             if (isAdded()) {
-                LoaderManager.getInstance(this).restartLoader(0, null, this);
+                searchSession.onQueryChanged(query, LoaderManager.getInstance(this).getLoader(0));
             }
         }
     }
@@ -0,0 +1,360 @@
+package org.fdroid.fdroid.views.fragments;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+import androidx.loader.content.CursorLoader;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.AppProvider;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A list of apps which is read one page at a time, as it is scrolled through, so that
+ * the first apps are shown as soon as they are read, however many apps there are.  Only
+ * the number of apps is counted up front, which {@link android.widget.ListView} needs.
+ * <p>
+ * Each page is read from where the page before it ended, see
+ * {@link AppProvider#getPageUri(Uri, int, int, long)}, unless the list jumped there,
+ * such as with the fast scroller, and the page before was not read.  Once the list is
+ * scrolled to within {@link #PREFETCH_DISTANCE} apps of a page which was not read yet,
+ * that page is read in the background.  A page which is still needed when it is looked
+ * at is read right away.  At most {@link #MAX_PAGES} pages are kept open.
+ * <p>
+ * The first page is the one {@link PagedLoader} reads, which it watches for changes to
+ * the apps, so it stays open as long as this does.
+ */
+final class PagedAppCursor extends AbstractCursor {
+    private static final String TAG = "PagedAppCursor";
+
+    static final int PAGE_SIZE = 50;
+    static final int PREFETCH_DISTANCE = 20;
+    static final int MAX_PAGES = 8;
+
+    /**
+     * Reads the pages of every list, one at a time, so prefetching never gets in the
+     * way of the page which is looked at more than once.
+     */
+    private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor();
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final String[] projection;
+    private final String sortOrder;
+    private final String[] columnNames;
+    private final int count;
+
+    /**
+     * The pages which were read or are being read, by their index.  Guarded by itself.
+     */
+    private final SparseArray<FutureTask<Page>> pages = new SparseArray<>();
+
+    private volatile boolean closed;
+
+    /**
+     * The index of the page the list is at, which is set before that page is looked up,
+     * so that {@link #evictPages()} never closes it from under the list.
+     */
+    private volatile int currentPage;
+
+    @Nullable private volatile Cursor page;
+
+    private PagedAppCursor(ContentResolver resolver, Uri uri, String[] projection, String sortOrder,
+                           Cursor firstPage, int count) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.projection = projection;
+        this.sortOrder = sortOrder;
+        this.columnNames = firstPage.getColumnNames();
+        this.count = count;
+
+        final Page first = new Page(firstPage);
+        FutureTask<Page> task = new FutureTask<>(new Callable<Page>() {
+            @Override
+            public Page call() {
+                return first;
+            }
+        });
+        task.run();
+        pages.put(0, task);
+    }
+
+    /**
+     * A page which was read, along with the last app on it, which the next page starts after.
+     */
+    private static final class Page {
+        final Cursor cursor;
+        final long lastAppId;
+
+        Page(Cursor cursor) {
+            this.cursor = cursor;
+            if (cursor.moveToLast()) {
+                lastAppId = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
+            } else {
+                lastAppId = 0;
+            }
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int index = newPosition / PAGE_SIZE;
+        int positionInPage = newPosition % PAGE_SIZE;
+        currentPage = index;
+        Page current = getPage(index);
+        if (current == null || !current.cursor.moveToPosition(positionInPage)) {
+            page = null;
+            return false;
+        }
+        page = current.cursor;
+
+        if (positionInPage >= PAGE_SIZE - PREFETCH_DISTANCE && (index + 1) * PAGE_SIZE < count) {
+            prefetch(index + 1);
+        } else if (positionInPage < PREFETCH_DISTANCE && index > 0) {
+            prefetch(index - 1);
+        }
+        return true;
+    }
+
+    @Nullable
+    private Page getPage(int index) {
+        FutureTask<Page> task;
+        boolean readHere = false;
+        synchronized (pages) {
+            task = pages.get(index);
+            if (task == null) {
+                task = createTask(index);
+                pages.put(index, task);
+                readHere = true;
+            }
+        }
+        if (readHere) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Utils.debugLog(TAG, "Could not read page " + index + " of " + uri + ": " + e.getMessage());
+            synchronized (pages) {
+                if (pages.get(index) == task) {
+                    pages.remove(index);
+                }
+            }
+            return null;
+        }
+    }
+
+    private void prefetch(int index) {
+        FutureTask<Page> task;
+        synchronized (pages) {
+            if (pages.get(index) != null) {
+                return;
+            }
+            task = createTask(index);
+            pages.put(index, task);
+        }
+        PREFETCHER.execute(task);
+    }
+
+    private FutureTask<Page> createTask(final int index) {
+        return new FutureTask<>(new Callable<Page>() {
+            @Override
+            public Page call() {
+                return readPage(index);
+            }
+        });
+    }
+
+    /**
+     * Reads the page after the last app of the page before, if that was read already,
+     * otherwise by its offset.
+     */
+    private Page readPage(int index) {
+        long afterAppId = 0;
+        synchronized (pages) {
+            FutureTask<Page> before = pages.get(index - 1);
+            if (before != null && before.isDone()) {
+                try {
+                    afterAppId = before.get().lastAppId;
+                } catch (InterruptedException | ExecutionException ignored) {
+                    // read it by its offset instead
+                }
+            }
+        }
+
+        Uri pageUri = AppProvider.getPageUri(uri, index * PAGE_SIZE, PAGE_SIZE, afterAppId);
+        Cursor cursor = resolver.query(pageUri, projection, null, null, sortOrder);
+        if (cursor == null) {
+            throw new IllegalStateException("No cursor for " + pageUri);
+        }
+        Page page = new Page(cursor);
+        synchronized (pages) {
+            if (closed) {
+                cursor.close();
+            } else {
+                evictPages();
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Closes the pages furthest away from the {@link #currentPage}, other than the first,
+     * until there are no more than {@link #MAX_PAGES}.  This runs on whichever thread read
+     * a page, so neither the current page nor the one {@link #page} still points at are
+     * ever closed.  Must hold the lock of {@link #pages}.
+     */
+    private void evictPages() {
+        int index = currentPage;
+        Cursor reading = page;
+        while (pages.size() > MAX_PAGES) {
+            int furthest = -1;
+            for (int i = 0; i < pages.size(); i++) {
+                int key = pages.keyAt(i);
+                FutureTask<Page> task = pages.valueAt(i);
+                if (key != 0 && key != index && task.isDone() && !isReading(task, reading)
+                        && (furthest < 0 || Math.abs(key - index) > Math.abs(furthest - index))) {
+                    furthest = key;
+                }
+            }
+            if (furthest < 0 || Math.abs(furthest - index) <= 1) {
+                return;
+            }
+            closePage(pages.get(furthest));
+            pages.remove(furthest);
+        }
+    }
+
+    private static boolean isReading(FutureTask<Page> task, @Nullable Cursor reading) {
+        try {
+            return reading != null && task.get().cursor == reading;
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    private static void closePage(FutureTask<Page> task) {
+        try {
+            task.get().cursor.close();
+        } catch (InterruptedException | ExecutionException ignored) {
+            // there is no cursor to close
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (pages) {
+            closed = true;
+            for (int i = 0; i < pages.size(); i++) {
+                FutureTask<Page> task = pages.valueAt(i);
+                if (task.isDone()) {
+                    closePage(task);
+                }
+            }
+            pages.clear();
+        }
+        page = null;
+    }
+
+    private Cursor page() {
+        if (page == null) {
+            throw new IllegalStateException("No app at position " + getPosition() + " of " + count);
+        }
+        return page;
+    }
+
+    @Override
+    public int getType(int column) {
+        return page().getType(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return page().getString(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return page().getBlob(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return page().getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return page().getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return page().getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return page().getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return page().getDouble(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return page().isNull(column);
+    }
+
+    /**
+     * Loads a {@link PagedAppCursor} over the list of apps at a {@link Uri}, by reading its
+     * first page and counting its apps.  The loader is reloaded whenever the apps change,
+     * since the first page is watched for changes like any other cursor of a {@link CursorLoader}.
+     */
+    static final class PagedLoader extends CursorLoader {
+        private final Uri listUri;
+
+        PagedLoader(Context context, Uri uri, String[] projection, String sortOrder) {
+            super(context, AppProvider.getPageUri(uri, 0, PAGE_SIZE, 0), projection, null, null, sortOrder);
+            this.listUri = uri;
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            Cursor firstPage = super.loadInBackground();
+            if (firstPage == null) {
+                return null;
+            }
+            int count = firstPage.getCount();
+            if (count == PAGE_SIZE) {
+                count = AppProvider.Helper.count(getContext(), listUri);
+            }
+            return new PagedAppCursor(getContext().getContentResolver(), listUri, getProjection(),
+                    getSortOrder(), firstPage, count);
+        }
+    }
+}
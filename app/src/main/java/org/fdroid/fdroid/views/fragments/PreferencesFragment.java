@@ -33,6 +33,11 @@ public class PreferencesFragment extends PreferenceFragmentCompat
             Preferences.PREF_UPD_WIFI_ONLY,
             Preferences.PREF_UPD_NOTIFY,
             Preferences.PREF_UPD_HISTORY,
+            Preferences.PREF_UPD_PARALLEL_DOWNLOADS,
+            Preferences.PREF_DOWNLOAD_SLOTS,
+            Preferences.PREF_DOWNLOAD_CONNECTIONS_PER_HOST,
+            Preferences.PREF_DOWNLOAD_SEGMENTS,
+            Preferences.PREF_CONNECTION_KEEP_ALIVE,
             Preferences.PREF_ROOTED,
             Preferences.PREF_HIDE_ANTI_FEATURE_APPS,
             Preferences.PREF_INCOMP_VER,
@@ -40,6 +45,7 @@ public class PreferencesFragment extends PreferenceFragmentCompat
             Preferences.PREF_IGN_TOUCH,
             Preferences.PREF_LANGUAGE,
             Preferences.PREF_KEEP_CACHE_TIME,
+            Preferences.PREF_APK_CACHE_SIZE,
             Preferences.PREF_EXPERT,
             Preferences.PREF_PRIVILEGED_INSTALLER,
             Preferences.PREF_ENABLE_PROXY,
@@ -119,6 +125,26 @@ public class PreferencesFragment extends PreferenceFragmentCompat
                 textSummary(key, R.string.update_history_summ);
                 break;
 
+            case Preferences.PREF_UPD_PARALLEL_DOWNLOADS:
+                textSummary(key, R.string.update_parallel_downloads_summ);
+                break;
+
+            case Preferences.PREF_DOWNLOAD_SLOTS:
+                textSummary(key, R.string.download_slots_summ);
+                break;
+
+            case Preferences.PREF_DOWNLOAD_CONNECTIONS_PER_HOST:
+                textSummary(key, R.string.download_connections_per_host_summ);
+                break;
+
+            case Preferences.PREF_DOWNLOAD_SEGMENTS:
+                textSummary(key, R.string.download_segments_summ);
+                break;
+
+            case Preferences.PREF_CONNECTION_KEEP_ALIVE:
+                textSummary(key, R.string.connection_keep_alive_summ);
+                break;
+
             case Preferences.PREF_THEME:
                 entrySummary(key);
                 if (changing) {
@@ -166,6 +192,10 @@ public class PreferencesFragment extends PreferenceFragmentCompat
                 }
                 break;
 
+            case Preferences.PREF_APK_CACHE_SIZE:
+                textSummary(key, R.string.apk_cache_size_summ);
+                break;
+
             case Preferences.PREF_EXPERT:
                 checkSummary(key, R.string.expert_on);
                 break;
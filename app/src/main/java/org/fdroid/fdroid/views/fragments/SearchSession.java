@@ -0,0 +1,175 @@
+package org.fdroid.fdroid.views.fragments;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+import androidx.loader.content.CursorLoader;
+import androidx.loader.content.Loader;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+
+/**
+ * Loads the search results of an {@link AppListFragment} while the search is typed.
+ * A search only starts once typing paused for {@link #DEBOUNCE_MILLIS}, and each
+ * key typed cancels the search still running, which stops its query through the
+ * {@link android.os.CancellationSignal} of the {@link CursorLoader}.
+ * <p>
+ * When the search typed only adds to the one before, such as "ma" to "map", the
+ * query is narrowed down to the apps which were found already, if there were few
+ * enough to remember.  The {@link org.fdroid.fdroid.data.AppProvider} still looks
+ * up the terms in the index, but only has to read and sort those apps.
+ */
+class SearchSession {
+    private static final String TAG = "SearchSession";
+
+    static final long DEBOUNCE_MILLIS = 200;
+
+    /**
+     * The most apps which are remembered to narrow the next search down to.
+     */
+    static final int MAX_NARROWED_APPS = 500;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable startSearch;
+
+    /**
+     * The search which {@link #resultIds} were found by.
+     */
+    @Nullable private String resultQuery;
+    @Nullable private long[] resultIds;
+
+    private long typedAt;
+
+    /**
+     * @param startSearch restarts the loader of the fragment, which then creates
+     *                    a new one with {@link #createLoader(Context, Uri, String[], String, String)}
+     */
+    SearchSession(Runnable startSearch) {
+        this.startSearch = startSearch;
+    }
+
+    /**
+     * Starts a search for {@code query} after a pause in typing, or right away when
+     * the search was cleared.
+     *
+     * @param loader the loader which is running the last search, if any
+     */
+    void onQueryChanged(@Nullable String query, @Nullable Loader<?> loader) {
+        typedAt = SystemClock.elapsedRealtime();
+        if (loader != null) {
+            loader.cancelLoad();
+        }
+        handler.removeCallbacks(startSearch);
+        if (TextUtils.isEmpty(query)) {
+            startSearch.run();
+        } else {
+            handler.postDelayed(startSearch, DEBOUNCE_MILLIS);
+        }
+    }
+
+    /**
+     * Forgets about the search being typed, when the fragment goes away.
+     */
+    void stop() {
+        handler.removeCallbacks(startSearch);
+        typedAt = 0;
+    }
+
+    Loader<Cursor> createLoader(Context context, Uri uri, String[] projection, String sortOrder,
+                                @Nullable String query) {
+        String selection = null;
+        if (!TextUtils.isEmpty(query) && resultIds != null && AppProvider.Helper.narrowsSearch(resultQuery, query)) {
+            selection = selectApps(resultIds);
+        }
+        return new SearchLoader(context, uri, projection, selection, sortOrder, query);
+    }
+
+    /**
+     * Remembers the apps found by a search, and logs how long it took from the
+     * last key typed to the results.
+     */
+    void onLoadFinished(Loader<Cursor> loader, @Nullable Cursor cursor) {
+        if (!(loader instanceof SearchLoader)) {
+            return;
+        }
+        SearchLoader searchLoader = (SearchLoader) loader;
+        String query = searchLoader.query;
+        int count = cursor == null ? 0 : cursor.getCount();
+        if (TextUtils.isEmpty(query) || cursor == null || count > MAX_NARROWED_APPS) {
+            resultQuery = null;
+            resultIds = null;
+        } else {
+            resultQuery = query;
+            resultIds = getIds(cursor);
+        }
+
+        if (typedAt > 0) {
+            Utils.debugLog(TAG, "Found " + count + " apps for '" + query + "' "
+                    + (SystemClock.elapsedRealtime() - typedAt) + "ms after it was typed"
+                    + (searchLoader.getSelection() == null ? "" : ", narrowed down from '" + searchLoader.narrowedFrom + "'"));
+            typedAt = 0;
+        }
+    }
+
+    private void onContentChanged() {
+        resultQuery = null;
+        resultIds = null;
+    }
+
+    private static long[] getIds(Cursor cursor) {
+        long[] ids = new long[cursor.getCount()];
+        int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+        int position = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ids[cursor.getPosition()] = cursor.getLong(idColumn);
+        }
+        cursor.moveToPosition(position);
+        return ids;
+    }
+
+    private static String selectApps(long[] ids) {
+        StringBuilder selection = new StringBuilder(AppMetadataTable.NAME)
+                .append('.').append(AppMetadataTable.Cols.ROW_ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * A {@link CursorLoader} which knows the search it loads.  When the apps change,
+     * such as after a repo update, it is no longer narrowed down to the apps found
+     * before, since others might be found now.
+     */
+    private final class SearchLoader extends CursorLoader {
+        @Nullable final String query;
+        @Nullable final String narrowedFrom;
+
+        SearchLoader(Context context, Uri uri, String[] projection, @Nullable String selection,
+                     String sortOrder, @Nullable String query) {
+            super(context, uri, projection, selection, null, sortOrder);
+            this.query = query;
+            this.narrowedFrom = selection == null ? null : resultQuery;
+        }
+
+        @Override
+        public void onContentChanged() {
+            setSelection(null);
+            SearchSession.this.onContentChanged();
+            super.onContentChanged();
+        }
+    }
+}
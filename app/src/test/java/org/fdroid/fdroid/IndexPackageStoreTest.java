@@ -0,0 +1,53 @@
+package org.fdroid.fdroid;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+public class IndexPackageStoreTest {
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        File file = File.createTempFile("index-v1-packages-", ".bin");
+        IndexPackageStore store = new IndexPackageStore(file);
+        store.put("org.fdroid.fdroid", bytes("[{\"versionCode\":1}]"));
+        store.put("org.example.empty", new byte[0]);
+        store.put("org.example.app", bytes("[{\"versionCode\":2},{\"versionCode\":3}]"));
+        assertThat(store.size()).isEqualTo(3);
+
+        assertThat(store.get("org.example.app")).isEqualTo(bytes("[{\"versionCode\":2},{\"versionCode\":3}]"));
+        assertThat(store.get("org.fdroid.fdroid")).isEqualTo(bytes("[{\"versionCode\":1}]"));
+        assertThat(store.get("org.example.empty")).isEqualTo(new byte[0]);
+        assertThat(store.get("org.example.missing")).isNull();
+
+        store.close();
+        assertThat(file.exists()).isFalse();
+    }
+
+    @Test
+    public void testLaterValueReplacesEarlier() throws Exception {
+        IndexPackageStore store = new IndexPackageStore(File.createTempFile("index-v1-packages-", ".bin"));
+        store.put("org.fdroid.fdroid", bytes("[1]"));
+        store.put("org.fdroid.fdroid", bytes("[2]"));
+        assertThat(store.size()).isEqualTo(1);
+        assertThat(store.get("org.fdroid.fdroid")).isEqualTo(bytes("[2]"));
+        store.close();
+    }
+
+    @Test
+    public void testNoPutAfterGet() throws Exception {
+        IndexPackageStore store = new IndexPackageStore(File.createTempFile("index-v1-packages-", ".bin"));
+        store.put("org.fdroid.fdroid", bytes("[1]"));
+        store.get("org.fdroid.fdroid");
+        assertThrows(IllegalStateException.class, () -> store.put("org.example.app", bytes("[2]")));
+        store.close();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -7,6 +7,7 @@ import android.content.pm.ProviderInfo;
 
 import androidx.test.core.app.ApplicationProvider;
 
+import org.junit.Assume;
 import org.mockito.AdditionalAnswers;
 import org.robolectric.Robolectric;
 
@@ -75,9 +76,17 @@ public class TestUtils {
         };
     }
 
-    public static <T extends ContentProvider> void registerContentProvider(String authority, Class<T> providerClass) {
+    public static <T extends ContentProvider> T registerContentProvider(String authority, Class<T> providerClass) {
         ProviderInfo info = new ProviderInfo();
         info.authority = authority;
-        Robolectric.buildContentProvider(providerClass).create(info);
+        return Robolectric.buildContentProvider(providerClass).create(info).get();
+    }
+
+    /**
+     * Skips a benchmark unless the tests are run with {@code ./gradlew test -Pbenchmarks},
+     * since they take long and only report their timings.
+     */
+    public static void assumeBenchmarks() {
+        Assume.assumeTrue("Benchmarks only run with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
     }
 }
@@ -0,0 +1,279 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.data.Schema.InstalledAppTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the lists of apps read from the {@link Schema.AppListItemTable} against
+ * the same lists read by joining the app table with its related tables, which
+ * {@link AppProvider} still does when a column is asked for which is not listed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class AppListItemsTest {
+
+    private static final String[] LIST_PROJECTION = {
+            Cols._ID,
+            Cols.Package.PACKAGE_NAME,
+            Cols.NAME,
+            Cols.SUMMARY,
+            Cols.IS_COMPATIBLE,
+            Cols.LICENSE,
+            Cols.ICON,
+            Cols.ICON_URL,
+            Cols.InstalledApp.VERSION_CODE,
+            Cols.InstalledApp.VERSION_NAME,
+            Cols.SuggestedApk.VERSION_NAME,
+            Cols.SUGGESTED_VERSION_CODE,
+            Cols.REQUIREMENTS,
+            Cols.ANTI_FEATURES,
+            Cols.IS_APK,
+            Cols.REPO_ID,
+    };
+
+    private static final String[] SIGNATURES = {"aaaa", "bbbb", "cccc"};
+
+    protected ContentResolver contentResolver;
+    protected ContextWrapper context;
+
+    @Before
+    public final void setupBase() {
+        contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        TestUtils.registerContentProvider(AppProvider.getAuthority(), AppProvider.class);
+        TestUtils.registerContentProvider(AppPrefsProvider.getAuthority(), AppPrefsProvider.class);
+    }
+
+    @Test
+    public void listsMatchJoinedTables() throws IndexUpdater.UpdateException {
+        Random random = new Random(20201018);
+        Repo repo = IndexUpdaterTest.createRepo("Test", "https://example.com/fdroid/repo", context, "deadbeef");
+        Repo otherRepo = IndexUpdaterTest.createRepo("Other", "https://example.org/fdroid/repo", context, "deadbeef");
+        commitRandomApps(random, repo);
+        commitRandomApps(random, otherRepo);
+        assertListsMatch();
+
+        installRandomApps(random);
+        AppProvider.Helper.calcSuggestedApks(context);
+        assertThat(read(AppProvider.getInstalledUri(), LIST_PROJECTION)).isNotEmpty();
+        assertThat(read(AppProvider.getCanUpdateUri(), LIST_PROJECTION)).isNotEmpty();
+        assertListsMatch();
+
+        for (App app : AppProvider.Helper.findCanUpdate(context, new String[]{Cols.Package.PACKAGE_NAME, Cols.SUGGESTED_VERSION_CODE})) {
+            AppPrefsProvider.Helper.update(context, app, new AppPrefs(app.suggestedVersionCode, false, false));
+        }
+        assertThat(read(AppProvider.getCanUpdateUri(), LIST_PROJECTION)).isEmpty();
+        assertListsMatch();
+
+        commitRandomApps(random, repo);
+        RepoProvider.Helper.purgeApps(context, otherRepo);
+        assertListsMatch();
+    }
+
+    @Test
+    public void sortsNamesForTheLocale() throws IndexUpdater.UpdateException {
+        Repo repo = IndexUpdaterTest.createRepo("Test", "https://example.com/fdroid/repo", context, "deadbeef");
+        RepoPersister persister = new RepoPersister(context, repo);
+        try {
+            for (String name : new String[]{"Zebra", "apple", "\u00c4pfel", "banana"}) {
+                App app = new App();
+                app.packageName = "org.example." + name.toLowerCase(Locale.ENGLISH);
+                app.repoId = repo.getId();
+                app.name = name;
+                app.summary = "Summary of " + name;
+                app.license = "GPL-3.0-or-later";
+                persister.saveToDb(app, new ArrayList<Apk>());
+            }
+            ContentValues values = new ContentValues();
+            values.put(Schema.RepoTable.Cols.TIMESTAMP, System.currentTimeMillis());
+            persister.commit(values, repo.getId());
+        } finally {
+            persister.close();
+        }
+        assertThat(readNames()).containsExactly("\u00c4pfel", "apple", "banana", "Zebra").inOrder();
+
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        NameSortKeys.update(db, new Locale("sv"));
+        AppListItems.refresh(db, null);
+        assertThat(readNames()).containsExactly("apple", "banana", "Zebra", "\u00c4pfel").inOrder();
+    }
+
+    @Test
+    public void pagesAddUpToTheWholeList() throws IndexUpdater.UpdateException {
+        Random random = new Random(20201018);
+        Repo repo = IndexUpdaterTest.createRepo("Test", "https://example.com/fdroid/repo", context, "deadbeef");
+        RepoPersister persister = new RepoPersister(context, repo);
+        try {
+            for (int i = 0; i < 100; i++) {
+                App app = new App();
+                app.packageName = "org.example.app" + i;
+                app.repoId = repo.getId();
+                app.name = "App " + random.nextInt(10);
+                app.summary = "Summary of app " + i;
+                app.license = "GPL-3.0-or-later";
+                persister.saveToDb(app, new ArrayList<Apk>());
+            }
+            ContentValues values = new ContentValues();
+            values.put(Schema.RepoTable.Cols.TIMESTAMP, System.currentTimeMillis());
+            persister.commit(values, repo.getId());
+        } finally {
+            persister.close();
+        }
+
+        String[] joinedProjection = {Cols._ID, Cols.NAME, Cols.DESCRIPTION};
+        for (String[] projection : new String[][]{LIST_PROJECTION, joinedProjection}) {
+            List<List<String>> all = read(AppProvider.getContentUri(), projection);
+            assertThat(all).hasSize(100);
+
+            List<List<String>> byKey = new ArrayList<>();
+            List<List<String>> byOffset = new ArrayList<>();
+            long afterAppId = 0;
+            for (int offset = 0; offset < all.size(); offset += 7) {
+                List<List<String>> page = read(AppProvider.getPageUri(AppProvider.getContentUri(), offset, 7, afterAppId),
+                        projection);
+                byKey.addAll(page);
+                afterAppId = Long.parseLong(page.get(page.size() - 1).get(0));
+                byOffset.addAll(read(AppProvider.getPageUri(AppProvider.getContentUri(), offset, 7, 0), projection));
+            }
+            assertThat(byKey).isEqualTo(all);
+            assertThat(byOffset).isEqualTo(all);
+        }
+    }
+
+    private List<String> readNames() {
+        List<String> names = new ArrayList<>();
+        for (List<String> row : read(AppProvider.getContentUri(), new String[]{Cols.NAME})) {
+            names.add(row.get(0));
+        }
+        return names;
+    }
+
+    private void assertListsMatch() {
+        Uri[] uris = {
+                AppProvider.getContentUri(),
+                AppProvider.getInstalledUri(),
+                AppProvider.getCanUpdateUri(),
+                AppProvider.getSearchUri("app"),
+                AppProvider.getSearchInstalledUri("summary"),
+        };
+        List<String> joinedProjection = new ArrayList<>(Arrays.asList(LIST_PROJECTION));
+        joinedProjection.add(Cols.DESCRIPTION);
+        for (Uri uri : uris) {
+            List<List<String>> joined = read(uri, joinedProjection.toArray(new String[0]));
+            for (List<String> row : joined) {
+                row.remove(row.size() - 1);
+            }
+            assertThat(read(uri, LIST_PROJECTION)).isEqualTo(joined);
+        }
+    }
+
+    private List<List<String>> read(Uri uri, String[] projection) {
+        List<List<String>> rows = new ArrayList<>();
+        Cursor cursor = contentResolver.query(uri, projection, null, null, Cols.NAME);
+        try {
+            while (cursor.moveToNext()) {
+                List<String> row = new ArrayList<>();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    row.add(cursor.getString(i));
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private void commitRandomApps(Random random, Repo repo) throws IndexUpdater.UpdateException {
+        RepoPersister persister = new RepoPersister(context, repo);
+        try {
+            for (int i = 0; i < 100; i++) {
+                if (random.nextInt(4) == 0) {
+                    continue;
+                }
+                App app = new App();
+                app.packageName = "org.example.app" + i;
+                app.repoId = repo.getId();
+                app.name = "App " + i + " from " + repo.name + " " + random.nextInt(10);
+                app.summary = "Summary of app " + i;
+                app.license = "GPL-3.0-or-later";
+                app.isApk = true;
+
+                List<Apk> apks = new ArrayList<>();
+                for (int versionCode = 1; versionCode <= 4; versionCode++) {
+                    if (random.nextBoolean()) {
+                        continue;
+                    }
+                    Apk apk = new Apk();
+                    apk.packageName = app.packageName;
+                    apk.repoId = repo.getId();
+                    apk.versionCode = versionCode;
+                    apk.versionName = "1." + versionCode;
+                    apk.apkName = app.packageName + "_" + versionCode + ".apk";
+                    apk.hash = app.packageName + versionCode;
+                    apk.hashType = "sha256";
+                    apk.sig = SIGNATURES[random.nextInt(2)];
+                    apk.minSdkVersion = random.nextInt(3) == 0 ? 99 : 14;
+                    apk.size = 1024;
+                    apks.add(apk);
+                }
+                persister.saveToDb(app, apks);
+            }
+            ContentValues values = new ContentValues();
+            values.put(Schema.RepoTable.Cols.TIMESTAMP, System.currentTimeMillis());
+            persister.commit(values, repo.getId());
+        } finally {
+            persister.close();
+        }
+    }
+
+    private void installRandomApps(Random random) {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        Cursor cursor = db.query(PackageTable.NAME, new String[]{PackageTable.Cols.ROW_ID},
+                null, null, null, null, PackageTable.Cols.ROW_ID);
+        try {
+            while (cursor.moveToNext()) {
+                if (random.nextInt(3) > 0) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(InstalledAppTable.Cols.PACKAGE_ID, cursor.getLong(0));
+                values.put(InstalledAppTable.Cols.VERSION_CODE, 1);
+                values.put(InstalledAppTable.Cols.VERSION_NAME, "1.1");
+                values.put(InstalledAppTable.Cols.APPLICATION_LABEL, "Installed");
+                values.put(InstalledAppTable.Cols.SIGNATURE, SIGNATURES[random.nextInt(SIGNATURES.length)]);
+                values.put(InstalledAppTable.Cols.HASH_TYPE, "sha256");
+                values.put(InstalledAppTable.Cols.HASH, "abcd");
+                db.insertOrThrow(InstalledAppTable.NAME, null, values);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
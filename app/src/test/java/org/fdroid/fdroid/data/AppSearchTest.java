@@ -0,0 +1,245 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Searches apps through {@link AppProvider#getSearchUri(String)}, which uses
+ * the {@link AppSearchIndex} as it is kept up to date by {@link TempAppProvider}.
+ * The timings of {@link #benchmark()} on 10000 apps are reported, and only asserted
+ * loosely since the tests do not run on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class AppSearchTest {
+
+    private static final String[] WORDS = {
+        "android", "app", "browser", "calendar", "camera", "chat", "client", "download", "editor", "email",
+        "encrypted", "file", "free", "game", "keyboard", "launcher", "manager", "maps", "music", "news",
+        "notes", "offline", "open", "password", "photo", "player", "privacy", "reader", "secure", "simple",
+        "source", "sync", "terminal", "the", "tool", "video", "wallet", "weather", "widget", "wiki",
+    };
+
+    protected ContentResolver contentResolver;
+    protected ContextWrapper context;
+
+    private Repo repo;
+    private AppProvider appProvider;
+
+    @Before
+    public final void setupBase() {
+        contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        appProvider = TestUtils.registerContentProvider(AppProvider.getAuthority(), AppProvider.class);
+        repo = IndexUpdaterTest.createRepo("Test", "https://example.com/fdroid/repo", context, "deadbeef");
+    }
+
+    @Test
+    public void ranksNameAboveSummaryAboveDescription() throws IndexUpdater.UpdateException {
+        List<App> apps = new ArrayList<>();
+        apps.add(createApp("org.example.description", "Atlas", "Find your way", "Works with offline maps"));
+        apps.add(createApp("org.example.summary", "Compass", "Offline maps and navigation", ""));
+        apps.add(createApp("org.example.name", "Maps", "Find your way", ""));
+        apps.add(createApp("org.example.other", "Notes", "Write things down", "Nothing to see here"));
+        commit(apps);
+
+        assertThat(search("maps")).containsExactly(
+                "org.example.name", "org.example.summary", "org.example.description").inOrder();
+        assertThat(search("MAP")).containsExactly(
+                "org.example.name", "org.example.summary", "org.example.description").inOrder();
+        assertThat(search("offline maps")).containsExactly(
+                "org.example.summary", "org.example.description").inOrder();
+        assertThat(search("example.summary")).containsExactly("org.example.summary");
+        assertThat(search("ma")).containsExactly("org.example.name", "org.example.summary").inOrder();
+        assertThat(search("\"maps* OR notes")).isEmpty();
+    }
+
+    @Test
+    public void followsCommitsAndPurges() throws IndexUpdater.UpdateException {
+        commit(Arrays.asList(
+                createApp("org.example.kept", "Weather", "Forecasts", "Rain or shine"),
+                createApp("org.example.changed", "Calculator", "Numbers", "Adds them up"),
+                createApp("org.example.removed", "Weather Widget", "Forecasts", "")));
+        assertThat(search("weather")).containsExactly("org.example.kept", "org.example.removed");
+
+        commit(Arrays.asList(
+                createApp("org.example.kept", "Weather", "Forecasts", "Rain or shine"),
+                createApp("org.example.changed", "Weather Calculator", "Numbers", "Adds them up"),
+                createApp("org.example.added", "Clock", "Tells the time and the weather", "")));
+        assertThat(search("weather")).containsExactly("org.example.kept", "org.example.changed", "org.example.added");
+        assertThat(search("calculator")).containsExactly("org.example.changed");
+        assertThat(search("widget")).isEmpty();
+        assertThat(search("shine")).containsExactly("org.example.kept");
+
+        RepoProvider.Helper.purgeApps(context, repo);
+        assertThat(search("weather")).isEmpty();
+    }
+
+    @Test
+    public void narrowsSearchesWhichAreTypedFurther() {
+        assertThat(AppProvider.Helper.narrowsSearch("map", "maps")).isTrue();
+        assertThat(AppProvider.Helper.narrowsSearch("map", "maps offline")).isTrue();
+        assertThat(AppProvider.Helper.narrowsSearch("offline ma", "Offline MA maps")).isTrue();
+        assertThat(AppProvider.Helper.narrowsSearch("", "maps")).isTrue();
+        assertThat(AppProvider.Helper.narrowsSearch("ma", "map")).isFalse();
+        assertThat(AppProvider.Helper.narrowsSearch("maps", "map")).isFalse();
+        assertThat(AppProvider.Helper.narrowsSearch("maps offline", "maps")).isFalse();
+    }
+
+    @Test
+    public void searchesWithinNarrowedSelection() throws IndexUpdater.UpdateException {
+        commit(Arrays.asList(
+                createApp("org.example.maps", "Maps", "Offline maps", ""),
+                createApp("org.example.mapper", "Mapper", "Draw maps", ""),
+                createApp("org.example.music", "Music", "Play songs", "")));
+
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = contentResolver.query(AppProvider.getSearchUri("map"),
+                new String[]{Cols._ID}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertThat(ids).hasSize(2);
+
+        String selection = Schema.AppMetadataTable.NAME + "." + Cols.ROW_ID + " IN (" + TextUtils.join(",", ids) + ")";
+        assertThat(search("mapp", selection)).containsExactly("org.example.mapper");
+        assertThat(search("maps", selection)).containsExactly("org.example.maps", "org.example.mapper").inOrder();
+    }
+
+    @Test(expected = OperationCanceledException.class)
+    public void cancelledSearchStops() throws IndexUpdater.UpdateException {
+        commit(Arrays.asList(createApp("org.example.maps", "Maps", "Offline maps", "")));
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+        Cursor cursor = appProvider.query(AppProvider.getSearchUri("maps"),
+                new String[]{Cols.Package.PACKAGE_NAME}, null, null, null, cancellationSignal);
+        if (cursor != null) {
+            cursor.getCount();
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void findsPackageNameAmongManyApps() throws IndexUpdater.UpdateException {
+        Random random = new Random(20201018);
+        List<App> apps = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            apps.add(createApp("org.example.app" + i, randomWords(random, 2), randomWords(random, 6),
+                    randomWords(random, 20)));
+        }
+        commit(apps);
+
+        assertThat(search("app123")).containsExactly("org.example.app123");
+        assertThat(search("zzz")).isEmpty();
+    }
+
+    @Test
+    public void benchmark() throws IndexUpdater.UpdateException {
+        TestUtils.assumeBenchmarks();
+        Random random = new Random(20201018);
+        List<App> apps = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            apps.add(createApp("org.example.app" + i, randomWords(random, 2), randomWords(random, 6),
+                    randomWords(random, 120)));
+        }
+        commit(apps);
+
+        String[] queries = {"m", "ma", "maps", "offline maps", "the", "privacy secure wallet", "app1234", "zzz"};
+        StringBuilder report = new StringBuilder("Searching 10000 apps:");
+        for (String query : queries) {
+            search(query);
+            long start = System.nanoTime();
+            int found = search(query).size();
+            long millis = (System.nanoTime() - start) / 1000000;
+            report.append(' ').append('"').append(query).append("\" ").append(found).append(" in ").append(millis).append("ms,");
+            assertThat(millis).isLessThan(2000L);
+        }
+        System.out.println(report);
+        assertThat(search("app1234")).containsExactly("org.example.app1234");
+    }
+
+    /**
+     * Words picked with Zipf's law, so a few of them are in nearly every app.
+     */
+    private static String randomWords(Random random, int count) {
+        List<String> words = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            words.add(WORDS[(int) Math.floor(Math.pow(WORDS.length + 1, random.nextDouble())) - 1]);
+        }
+        Collections.shuffle(words, random);
+        return TextUtils.join(" ", words);
+    }
+
+    private App createApp(String packageName, String name, String summary, String description) {
+        App app = new App();
+        app.packageName = packageName;
+        app.repoId = repo.getId();
+        app.name = name;
+        app.summary = summary;
+        app.description = description;
+        app.preferredSigner = "cafebabe";
+        app.isApk = true;
+        return app;
+    }
+
+    private void commit(List<App> apps) throws IndexUpdater.UpdateException {
+        RepoPersister persister = new RepoPersister(context, repo);
+        try {
+            for (App app : apps) {
+                persister.saveToDb(app, new ArrayList<Apk>());
+            }
+            ContentValues values = new ContentValues();
+            values.put(Schema.RepoTable.Cols.TIMESTAMP, System.currentTimeMillis());
+            persister.commit(values, repo.getId());
+        } finally {
+            persister.close();
+        }
+    }
+
+    private List<String> search(String query) {
+        return search(query, null);
+    }
+
+    private List<String> search(String query, String selection) {
+        List<String> packageNames = new ArrayList<>();
+        Cursor cursor = contentResolver.query(AppProvider.getSearchUri(query),
+                new String[]{Cols.Package.PACKAGE_NAME}, selection, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                packageNames.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return packageNames;
+    }
+}
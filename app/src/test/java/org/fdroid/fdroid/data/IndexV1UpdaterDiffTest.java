@@ -0,0 +1,265 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.content.ContentResolver;
+import android.content.ContextWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs {@link IndexV1Updater#update()} against a local server, which serves
+ * {@code index-v1_diff_base.jar} first, then either a diff from it or the
+ * whole {@code index-v1_diff_target.jar}.  All fixtures are signed with the
+ * key of {@link #REPO_CERT}, except for {@code diff_1600000000_other_key.jar}.
+ * {@code diff_1600000000_other_base.jar} is the same diff, made from an index
+ * other than {@code index-v1_diff_base.jar}.  {@code index-v1_diff_next.jar} is
+ * a newer copy of {@code index-v1_diff_target.jar}, which says it has diffs.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class IndexV1UpdaterDiffTest {
+    private static final String REPO_CERT = "308202cd308201b5a0030201020208423ed03ee653415b300d06092a864886f70d01010b05003014311230100603550403130954657374205265706f3020170d3236313031383037323132305a180f32313236303932343037323132305a3014311230100603550403130954657374205265706f30820122300d06092a864886f70d01010105000382010f003082010a0282010100a79ed6fbf1a64d62baf562527a07992f0d8ad46e2b67afe739f62b0a198531be243837322c8d40466672d0295d0c7520c56fff31d413080f9fdc2a945449a83238543a2f39128d54ed9669a9e61262d8784eb7f1f7951665d5600220538c952a43e49039b08d55064931d9e92393661209c6fd770294d2dd11f9cf2cd9a9858b41d2575e7f930095a4984f3f73a8aeca3f5f0d0524e628ad4705187bcd92767f8cbff78f28b01ad6454766977e31e085c469bea2da1a2c78c079f70c80163fd930ad48adc11f8e4bd2cd8b4f290ccb773fd77df3ba12a2650560323a8f75e8dd69deb5f4c50b0bad101eb4b3a51e7e9894e734675815e0528dbf5322390074c50203010001a321301f301d0603551d0e04160414a791e4ffb4db9192cc29a96399714515fc1228d2300d06092a864886f70d01010b0500038201010011c3ad4a35923da8b2aeb3f560f7b9896bb6ca339fc5bcf7515bb362dc76957ca20e554a62dd9dcd8e52aefaa1bcefe3b38a0bdf367ce6a9c651c3e2183a778ac21ad4c2e5df363c2bad1ed6f6474b8a8c9a31666910efc4a281e456a41686b9f451e3c01b432cd15f91d1ae727e85ccbfa010a8b692d4e3c4e6516634427371a6451a2bad3aed640ab3e5f3d5f3165daf423cd13d5c9fab7c06edc42d2796199c2a69965dfbb5534975438e2c6309cb073b014d8f4579de9119ac2f9f353b1a1a6914f16deda587c0f12ce5658a6d97e09f857f141cabc56e676c80776bffb9c8d37dc4f0af47d2f52ac7354c9cb6bc0b19ac88b099e7e1f9d0a6c925a5c3d2";
+
+    private static final String INDEX_PATH = "/repo/" + IndexV1Updater.SIGNED_FILE_NAME;
+    private static final String DIFF_PATH = "/repo/" + IndexV1Updater.DIFF_DIR + "/1600000000.jar";
+    private static final String NEXT_DIFF_PATH = "/repo/" + IndexV1Updater.DIFF_DIR + "/1600086400.jar";
+    private static final String LAST_DIFF_PATH = "/repo/" + IndexV1Updater.DIFF_DIR + "/1600172800.jar";
+
+    private static final List<String> TARGET_APPS = sorted(
+            "org.example.added|Added",
+            "org.example.changed|Changed Again",
+            "org.example.kept|Kept");
+    private static final List<String> TARGET_APKS = sorted(
+            "org.example.added:1:dd01",
+            "org.example.changed:1:aa01",
+            "org.example.changed:2:aa02",
+            "org.example.kept:1:bb01");
+
+    protected ContentResolver contentResolver;
+    protected ContextWrapper context;
+
+    private HttpServer server;
+    private final Map<String, String> resources = new ConcurrentHashMap<>();
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private Repo repo;
+
+    @Before
+    public final void setupBase() throws IOException, IndexUpdater.UpdateException {
+        contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        TestUtils.registerContentProvider(AppProvider.getAuthority(), AppProvider.class);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::serve);
+        server.start();
+        String address = "http://127.0.0.1:" + server.getAddress().getPort() + "/repo";
+        repo = IndexUpdaterTest.createRepo("Diff Test Repo", address, context, REPO_CERT);
+
+        resources.put(INDEX_PATH, "index-v1_diff_base.jar");
+        update();
+        requests.clear();
+    }
+
+    @After
+    public final void tearDownBase() {
+        server.stop(0);
+    }
+
+    @Test
+    public void appliesDiff() throws IndexUpdater.UpdateException {
+        long keptId = appId("org.example.kept");
+        resources.put(DIFF_PATH, "diff_1600000000.jar");
+        resources.put(INDEX_PATH, "index-v1_diff_target.jar");
+
+        assertThat(update()).isTrue();
+
+        assertThat(requests).containsExactly("GET " + DIFF_PATH);
+        assertThat(apps()).containsExactlyElementsIn(TARGET_APPS).inOrder();
+        assertThat(apks()).containsExactlyElementsIn(TARGET_APKS).inOrder();
+        assertThat(appId("org.example.kept")).isEqualTo(keptId);
+        assertThat(reloadRepo().timestamp).isEqualTo(1600086400L);
+    }
+
+    @Test
+    public void fallsBackToIndexWithoutDiff() throws IndexUpdater.UpdateException {
+        resources.put(INDEX_PATH, "index-v1_diff_target.jar");
+
+        assertThat(update()).isTrue();
+
+        assertThat(requests).containsExactly("GET " + DIFF_PATH, "GET " + INDEX_PATH).inOrder();
+        assertThat(apps()).containsExactlyElementsIn(TARGET_APPS).inOrder();
+        assertThat(apks()).containsExactlyElementsIn(TARGET_APKS).inOrder();
+    }
+
+    @Test
+    public void stopsAskingForDiffsUntilIndexHasThem() throws IndexUpdater.UpdateException {
+        resources.put(INDEX_PATH, "index-v1_diff_target.jar");
+        assertThat(update()).isTrue();
+        assertThat(requests).containsExactly("GET " + DIFF_PATH, "GET " + INDEX_PATH).inOrder();
+        requests.clear();
+
+        resources.put(INDEX_PATH, "index-v1_diff_next.jar");
+        assertThat(update()).isTrue();
+        assertThat(requests).containsExactly("GET " + INDEX_PATH);
+        assertThat(reloadRepo().timestamp).isEqualTo(1600172800L);
+        requests.clear();
+
+        assertThat(update()).isTrue();
+        assertThat(requests).containsExactly("GET " + LAST_DIFF_PATH, "GET " + INDEX_PATH).inOrder();
+    }
+
+    @Test
+    public void rejectsDiffSignedWithOtherKey() {
+        List<String> appsBefore = apps();
+        resources.put(DIFF_PATH, "diff_1600000000_other_key.jar");
+        resources.put(INDEX_PATH, "index-v1_diff_target.jar");
+
+        assertThrows(IndexUpdater.SigningException.class, this::update);
+
+        assertThat(requests).doesNotContain("GET " + INDEX_PATH);
+        assertThat(apps()).containsExactlyElementsIn(appsBefore).inOrder();
+        assertThat(reloadRepo().timestamp).isEqualTo(1600000000L);
+    }
+
+    @Test
+    public void fallsBackToIndexForDiffFromOtherBase() throws IndexUpdater.UpdateException {
+        resources.put(DIFF_PATH, "diff_1600000000_other_base.jar");
+        resources.put(INDEX_PATH, "index-v1_diff_target.jar");
+
+        assertThat(update()).isTrue();
+
+        assertThat(requests).containsExactly("GET " + DIFF_PATH, "GET " + INDEX_PATH).inOrder();
+        assertThat(apps()).containsExactlyElementsIn(TARGET_APPS).inOrder();
+        assertThat(apks()).containsExactlyElementsIn(TARGET_APKS).inOrder();
+        assertThat(reloadRepo().lastetag).isEqualTo(etag("index-v1_diff_target.jar"));
+    }
+
+    @Test
+    public void onlyStoresEtagOfIndexWhichWasAppliedAsDiff() throws IndexUpdater.UpdateException {
+        resources.put(DIFF_PATH, "diff_1600000000.jar");
+        resources.put(INDEX_PATH, "index-v1_diff_target.jar");
+        assertThat(update()).isTrue();
+        requests.clear();
+
+        // this app is only put back if the index is committed again
+        long keptId = appId("org.example.kept");
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        db.delete(Schema.AppMetadataTable.NAME, Schema.AppMetadataTable.Cols.ROW_ID + " = ?",
+                new String[]{Long.toString(keptId)});
+
+        assertThat(update()).isTrue();
+
+        assertThat(requests).containsExactly("GET " + NEXT_DIFF_PATH, "GET " + INDEX_PATH).inOrder();
+        assertThat(reloadRepo().lastetag).isEqualTo(etag("index-v1_diff_target.jar"));
+        assertThat(reloadRepo().timestamp).isEqualTo(1600086400L);
+        assertThat(DatabaseUtils.queryNumEntries(db, Schema.AppMetadataTable.NAME,
+                Schema.AppMetadataTable.Cols.ROW_ID + " = ?", new String[]{Long.toString(keptId)})).isEqualTo(0);
+    }
+
+    private boolean update() throws IndexUpdater.UpdateException {
+        repo = reloadRepo();
+        return new IndexV1Updater(context, repo).update();
+    }
+
+    private Repo reloadRepo() {
+        return RepoProvider.Helper.findById(context, repo.getId());
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requests.add(exchange.getRequestMethod() + " " + path);
+        String resource = resources.get(path);
+        if (resource == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = readResource(resource);
+        exchange.getResponseHeaders().set("ETag", etag(resource));
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(body);
+            output.close();
+        }
+        exchange.close();
+    }
+
+    private static String etag(String resource) {
+        return "\"" + resource + "\"";
+    }
+
+    private static byte[] readResource(String resource) throws IOException {
+        InputStream input = IndexV1UpdaterDiffTest.class.getClassLoader().getResourceAsStream(resource);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Utils.copy(input, output);
+            return output.toByteArray();
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    private long appId(String packageName) {
+        return AppProvider.Helper.findSpecificApp(contentResolver, packageName, repo.getId()).getId();
+    }
+
+    private List<String> apps() {
+        List<String> apps = new ArrayList<>();
+        for (App app : AppProvider.Helper.all(contentResolver)) {
+            apps.add(app.packageName + "|" + app.name);
+        }
+        Collections.sort(apps);
+        return apps;
+    }
+
+    private List<String> apks() {
+        List<String> apks = new ArrayList<>();
+        for (Apk apk : ApkProvider.Helper.findByRepo(context, repo, Schema.ApkTable.Cols.ALL)) {
+            apks.add(apk.packageName + ":" + apk.versionCode + ":" + apk.hash);
+        }
+        Collections.sort(apks);
+        return apks;
+    }
+
+    private static List<String> sorted(String... values) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        Collections.sort(list);
+        return list;
+    }
+}
@@ -0,0 +1,263 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.data.Schema.InstalledAppTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the suggested versions calculated by {@link AppProvider} against
+ * the correlated subqueries it used before, which are kept here as
+ * {@link #updateSuggestedWithSubqueries(boolean)}, on random apps and on the
+ * {@code index-v1_20200916.jar} fixture.  The timings of both on the fixture are
+ * only reported, by {@link #fixtureTimings()}, which is a benchmark.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class SuggestedVersionTest {
+
+    private static final String[] SIGNATURES = {"aaaa", "bbbb", "cccc"};
+
+    protected ContentResolver contentResolver;
+    protected ContextWrapper context;
+
+    @Before
+    public final void setupBase() {
+        contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        TestUtils.registerContentProvider(AppProvider.getAuthority(), AppProvider.class);
+    }
+
+    @After
+    public final void tearDownBase() {
+        setUnstableUpdates(false);
+    }
+
+    @Test
+    public void randomAppsMatchSubqueries() throws IndexUpdater.UpdateException {
+        Random random = new Random(20201018);
+        Repo repo = IndexUpdaterTest.createRepo("Test", "https://example.com/fdroid/repo", context, "deadbeef");
+        Repo otherRepo = IndexUpdaterTest.createRepo("Other", "https://example.org/fdroid/repo", context, "deadbeef");
+        commitRandomApps(random, repo);
+        commitRandomApps(random, otherRepo);
+        installRandomApps(random);
+
+        for (boolean unstableUpdates : new boolean[]{false, true}) {
+            setUnstableUpdates(unstableUpdates);
+
+            resetSuggestedVersions();
+            updateSuggestedWithSubqueries(unstableUpdates);
+            Map<Long, Long> expected = suggestedVersions();
+
+            resetSuggestedVersions();
+            AppProvider.Helper.calcSuggestedApks(context);
+
+            assertThat(suggestedVersions()).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void sameAsSubqueriesForFixture() throws IOException, IndexUpdater.UpdateException {
+        File index = TestUtils.copyResourceToTempFile("index-v1_20200916.jar");
+        Repo repo = IndexUpdaterTest.createRepo("F-Droid", "https://f-droid.org/repo", context,
+                IndexUpdaterTest.FDROID_CERT);
+        new IndexV1Updater(context, repo).processDownloadedIndex(index, "");
+        installRandomApps(new Random(2));
+
+        resetSuggestedVersions();
+        updateSuggestedWithSubqueries(false);
+        Map<Long, Long> expected = suggestedVersions();
+
+        resetSuggestedVersions();
+        AppProvider.Helper.calcSuggestedApks(context);
+        assertThat(suggestedVersions()).isEqualTo(expected);
+    }
+
+    @Test
+    public void fixtureTimings() throws IOException, IndexUpdater.UpdateException {
+        TestUtils.assumeBenchmarks();
+        File index = TestUtils.copyResourceToTempFile("index-v1_20200916.jar");
+        Repo repo = IndexUpdaterTest.createRepo("F-Droid", "https://f-droid.org/repo", context,
+                IndexUpdaterTest.FDROID_CERT);
+        new IndexV1Updater(context, repo).processDownloadedIndex(index, "");
+        installRandomApps(new Random(2));
+
+        resetSuggestedVersions();
+        long start = System.nanoTime();
+        updateSuggestedWithSubqueries(false);
+        long subqueryMillis = (System.nanoTime() - start) / 1000000;
+        Map<Long, Long> expected = suggestedVersions();
+
+        resetSuggestedVersions();
+        start = System.nanoTime();
+        AppProvider.Helper.calcSuggestedApks(context);
+        long aggregateMillis = (System.nanoTime() - start) / 1000000;
+
+        System.out.println("Suggested versions of " + expected.size() + " apps: " + subqueryMillis
+                + "ms with correlated subqueries, " + aggregateMillis + "ms with a grouped aggregate");
+        assertThat(suggestedVersions()).isEqualTo(expected);
+    }
+
+    private void commitRandomApps(Random random, Repo repo) throws IndexUpdater.UpdateException {
+        RepoPersister persister = new RepoPersister(context, repo);
+        try {
+            for (int i = 0; i < 100; i++) {
+                if (random.nextInt(4) == 0) {
+                    continue;
+                }
+                App app = new App();
+                app.packageName = "org.example.app" + i;
+                app.repoId = repo.getId();
+                app.name = "App " + i;
+                app.summary = "Summary of app " + i;
+                app.upstreamVersionCode = random.nextInt(7);
+                app.isApk = true;
+
+                List<Apk> apks = new ArrayList<>();
+                for (int versionCode = 1; versionCode <= 6; versionCode++) {
+                    if (random.nextBoolean()) {
+                        continue;
+                    }
+                    Apk apk = new Apk();
+                    apk.packageName = app.packageName;
+                    apk.repoId = repo.getId();
+                    apk.versionCode = versionCode;
+                    apk.versionName = "1." + versionCode;
+                    apk.apkName = app.packageName + "_" + versionCode + ".apk";
+                    apk.hash = app.packageName + versionCode;
+                    apk.hashType = "sha256";
+                    apk.sig = SIGNATURES[random.nextInt(2)];
+                    // a minSdkVersion above the SDK of the tests makes the apk incompatible
+                    apk.minSdkVersion = random.nextInt(3) == 0 ? 99 : 14;
+                    apk.size = 1024;
+                    apks.add(apk);
+                }
+                persister.saveToDb(app, apks);
+            }
+            ContentValues values = new ContentValues();
+            values.put(Schema.RepoTable.Cols.TIMESTAMP, System.currentTimeMillis());
+            persister.commit(values, repo.getId());
+        } finally {
+            persister.close();
+        }
+    }
+
+    /**
+     * Marks a random third of the packages as installed, with any of the signatures,
+     * including one which none of the apks are signed with.
+     */
+    private void installRandomApps(Random random) {
+        SQLiteDatabase db = db();
+        Cursor cursor = db.query(PackageTable.NAME, new String[]{PackageTable.Cols.ROW_ID},
+                null, null, null, null, PackageTable.Cols.ROW_ID);
+        try {
+            while (cursor.moveToNext()) {
+                if (random.nextInt(3) > 0) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(InstalledAppTable.Cols.PACKAGE_ID, cursor.getLong(0));
+                values.put(InstalledAppTable.Cols.VERSION_CODE, 1);
+                values.put(InstalledAppTable.Cols.VERSION_NAME, "1.1");
+                values.put(InstalledAppTable.Cols.APPLICATION_LABEL, "Installed");
+                values.put(InstalledAppTable.Cols.SIGNATURE, SIGNATURES[random.nextInt(SIGNATURES.length)]);
+                values.put(InstalledAppTable.Cols.HASH_TYPE, "sha256");
+                values.put(InstalledAppTable.Cols.HASH, "abcd");
+                db.insertOrThrow(InstalledAppTable.NAME, null, values);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void setUnstableUpdates(boolean unstableUpdates) {
+        PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext()).edit()
+                .putBoolean(Preferences.PREF_UNSTABLE_UPDATES, unstableUpdates).commit();
+    }
+
+    /**
+     * Gives every calculation the same starting point, with some suggested versions
+     * missing, since that decides which apps fall back to the latest version.
+     */
+    private void resetSuggestedVersions() {
+        db().execSQL("UPDATE " + AppMetadataTable.NAME + " SET " + Cols.SUGGESTED_VERSION_CODE
+                + " = CASE WHEN " + Cols.ROW_ID + " % 3 = 0 THEN NULL ELSE 1 END");
+    }
+
+    private Map<Long, Long> suggestedVersions() {
+        Map<Long, Long> versions = new HashMap<>();
+        Cursor cursor = db().query(AppMetadataTable.NAME, new String[]{Cols.ROW_ID, Cols.SUGGESTED_VERSION_CODE},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                versions.put(cursor.getLong(0), cursor.isNull(1) ? null : cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return versions;
+    }
+
+    /**
+     * What {@link AppProvider#updateSuggestedApks()} did before the suggested versions
+     * were calculated with a grouped aggregate.
+     */
+    private void updateSuggestedWithSubqueries(boolean unstableUpdates) {
+        final String apk = ApkTable.NAME;
+        final String app = AppMetadataTable.NAME;
+        final String installed = InstalledAppTable.NAME;
+
+        String restrictToStable = unstableUpdates ? "" : (apk + "." + ApkTable.Cols.VERSION_CODE + " <= " + app + "." + Cols.UPSTREAM_VERSION_CODE + " AND ");
+        String selectSuggested =
+                " SELECT MAX( " + apk + "." + ApkTable.Cols.VERSION_CODE + " ) " +
+                        " FROM " + apk +
+                        "   JOIN " + app + " AS appForThisApk ON (appForThisApk." + Cols.ROW_ID + " = " + apk + "." + ApkTable.Cols.APP_ID + ") " +
+                        "   LEFT JOIN " + installed + " ON (" + installed + "." + InstalledAppTable.Cols.PACKAGE_ID + " = " + app + "." + Cols.PACKAGE_ID + ") " +
+                        " WHERE " +
+                        app + "." + Cols.PACKAGE_ID + " = appForThisApk." + Cols.PACKAGE_ID + " AND " +
+                        apk + "." + ApkTable.Cols.SIGNATURE + " IS COALESCE(" + installed + "." + InstalledAppTable.Cols.SIGNATURE + ", " + apk + "." + ApkTable.Cols.SIGNATURE + ") AND " +
+                        "%s ( " + app + "." + Cols.IS_COMPATIBLE + " = 0 OR " + apk + "." + ApkTable.Cols.IS_COMPATIBLE + " = 1 ) ";
+
+        db().execSQL("UPDATE " + app + " SET " + Cols.SUGGESTED_VERSION_CODE + " = ( "
+                + String.format(selectSuggested, restrictToStable) + " ) "
+                + " WHERE " + Cols.UPSTREAM_VERSION_CODE + " > 0 ");
+        db().execSQL("UPDATE " + app + " SET " + Cols.SUGGESTED_VERSION_CODE + " = ( "
+                + String.format(selectSuggested, "") + " ) "
+                + " WHERE COALESCE(" + Cols.UPSTREAM_VERSION_CODE + ", 0) = 0 OR " + Cols.SUGGESTED_VERSION_CODE + " IS NULL ");
+    }
+
+    private SQLiteDatabase db() {
+        return DBHelper.getInstance(context).getWritableDatabase();
+    }
+}
@@ -0,0 +1,310 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.CatJoinTable;
+import org.fdroid.fdroid.data.Schema.CategoryTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+import org.fdroid.fdroid.data.Schema.PendingAppDetailsTable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that committing only the rows which differ between two consecutive
+ * indexes leaves the database in the same state as committing the second
+ * index from scratch, and that deferring the app details of several commits
+ * until after the last of them gives the same details as calculating them
+ * for every app.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class TempAppProviderTest {
+
+    private static final int PACKAGE_COUNT = 200;
+
+    private static final String[] CATEGORIES = {"Games", "Internet", "Multimedia", "Navigation", "System"};
+    private static final String[] ANTI_FEATURES = {"Ads", "NonFreeNet", "Tracking"};
+
+    protected ContentResolver contentResolver;
+    protected ContextWrapper context;
+
+    private AppProvider appProvider;
+    private Repo repo;
+    private Repo otherRepo;
+
+    @Before
+    public final void setupBase() {
+        contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        appProvider = TestUtils.registerContentProvider(AppProvider.getAuthority(), AppProvider.class);
+        repo = IndexUpdaterTest.createRepo("Test", "https://example.com/fdroid/repo", context, "deadbeef");
+        otherRepo = IndexUpdaterTest.createRepo("Other", "https://example.org/fdroid/repo", context, "deadbeef");
+    }
+
+    @Test
+    public void consecutiveIndexesMatchFullRebuild() throws IndexUpdater.UpdateException {
+        Random random = new Random(20200916);
+        Map<String, AppEntry> first = randomIndex(random, null);
+        Map<String, AppEntry> second = randomIndex(random, first);
+
+        commit(otherRepo, randomIndex(random, null));
+        commit(repo, first);
+        Map<String, Long> firstIds = appIds(repo);
+
+        commit(repo, second);
+        Map<String, Long> secondIds = appIds(repo);
+        List<String> incremental = snapshot();
+
+        for (Map.Entry<String, Long> entry : secondIds.entrySet()) {
+            if (firstIds.containsKey(entry.getKey())) {
+                assertThat(entry.getValue()).isEqualTo(firstIds.get(entry.getKey()));
+            }
+        }
+
+        RepoProvider.Helper.purgeApps(context, repo);
+        commit(repo, second);
+        List<String> rebuilt = snapshot();
+
+        assertThat(incremental).isNotEmpty();
+        assertThat(incremental).containsExactlyElementsIn(rebuilt).inOrder();
+    }
+
+    @Test
+    public void sameIndexTwiceKeepsEverything() throws IndexUpdater.UpdateException {
+        Map<String, AppEntry> index = randomIndex(new Random(1), null);
+        commit(repo, index);
+        Map<String, Long> ids = appIds(repo);
+        List<String> before = snapshot();
+
+        commit(repo, index);
+
+        assertThat(appIds(repo)).isEqualTo(ids);
+        assertThat(snapshot()).containsExactlyElementsIn(before).inOrder();
+    }
+
+    @Test
+    public void deferredAppDetailsMatchFullCalculation() throws IndexUpdater.UpdateException {
+        Random random = new Random(20201018);
+        Map<String, AppEntry> first = randomIndex(random, null);
+        Map<String, AppEntry> otherFirst = randomIndex(random, null);
+        commit(otherRepo, otherFirst);
+        commit(repo, first);
+        appProvider.updateAllAppDetails();
+
+        commit(repo, randomIndex(random, first), true);
+        commit(otherRepo, randomIndex(random, otherFirst), true);
+        assertThat(DatabaseUtils.queryNumEntries(db(), PendingAppDetailsTable.NAME)).isGreaterThan(0L);
+        AppProvider.Helper.updateDeferredAppDetails(context);
+        assertThat(DatabaseUtils.queryNumEntries(db(), PendingAppDetailsTable.NAME)).isEqualTo(0L);
+        List<String> deferred = snapshot();
+
+        appProvider.updateAllAppDetails();
+        List<String> calculated = snapshot();
+
+        assertThat(deferred).isNotEmpty();
+        assertThat(deferred).containsExactlyElementsIn(calculated).inOrder();
+    }
+
+    private static final class AppEntry {
+        final String name;
+        final int upstreamVersionCode;
+        final String[] categories;
+        final List<ApkEntry> apks;
+
+        AppEntry(String name, int upstreamVersionCode, String[] categories, List<ApkEntry> apks) {
+            this.name = name;
+            this.upstreamVersionCode = upstreamVersionCode;
+            this.categories = categories;
+            this.apks = apks;
+        }
+    }
+
+    private static final class ApkEntry {
+        final int versionCode;
+        final int minSdkVersion;
+        final String hash;
+        final String[] antiFeatures;
+
+        ApkEntry(int versionCode, int minSdkVersion, String hash, String[] antiFeatures) {
+            this.versionCode = versionCode;
+            this.minSdkVersion = minSdkVersion;
+            this.hash = hash;
+            this.antiFeatures = antiFeatures;
+        }
+    }
+
+    /**
+     * Generates an index of random apps, or if {@code previous} is given, one where
+     * some apps of {@code previous} were removed, changed or kept as they are, and
+     * some apps were added.
+     */
+    private static Map<String, AppEntry> randomIndex(Random random, Map<String, AppEntry> previous) {
+        Map<String, AppEntry> index = new LinkedHashMap<>();
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            String packageName = "org.example.app" + i;
+            if (random.nextInt(8) == 0) {
+                continue;
+            }
+            if (previous != null && previous.containsKey(packageName) && random.nextInt(3) > 0) {
+                index.put(packageName, previous.get(packageName));
+                continue;
+            }
+            List<ApkEntry> apks = new ArrayList<>();
+            for (int versionCode = 1; versionCode <= 5; versionCode++) {
+                if (random.nextBoolean()) {
+                    // a minSdkVersion above the SDK of the tests makes the apk incompatible
+                    apks.add(new ApkEntry(versionCode, random.nextInt(4) == 0 ? 99 : 14,
+                            packageName + versionCode + random.nextInt(2), randomSubset(random, ANTI_FEATURES)));
+                }
+            }
+            index.put(packageName, new AppEntry("App " + i + " " + random.nextInt(2), random.nextInt(6),
+                    randomSubset(random, CATEGORIES), apks));
+        }
+        return index;
+    }
+
+    private static String[] randomSubset(Random random, String[] values) {
+        List<String> subset = new ArrayList<>(Arrays.asList(values));
+        Collections.shuffle(subset, random);
+        return subset.subList(0, random.nextInt(3)).toArray(new String[0]);
+    }
+
+    private void commit(Repo repo, Map<String, AppEntry> index) throws IndexUpdater.UpdateException {
+        commit(repo, index, false);
+    }
+
+    private void commit(Repo repo, Map<String, AppEntry> index, boolean deferAppDetails)
+            throws IndexUpdater.UpdateException {
+        RepoPersister persister = new RepoPersister(context, repo, false, deferAppDetails);
+        try {
+            for (Map.Entry<String, AppEntry> entry : index.entrySet()) {
+                AppEntry appEntry = entry.getValue();
+                App app = new App();
+                app.packageName = entry.getKey();
+                app.repoId = repo.getId();
+                app.name = appEntry.name;
+                app.upstreamVersionCode = appEntry.upstreamVersionCode;
+                app.summary = "Summary of " + appEntry.name;
+                app.categories = appEntry.categories;
+                app.preferredSigner = "cafebabe";
+                app.isApk = true;
+
+                List<Apk> apks = new ArrayList<>();
+                for (ApkEntry apkEntry : appEntry.apks) {
+                    Apk apk = new Apk();
+                    apk.packageName = app.packageName;
+                    apk.repoId = repo.getId();
+                    apk.versionCode = apkEntry.versionCode;
+                    apk.versionName = "1." + apkEntry.versionCode;
+                    apk.minSdkVersion = apkEntry.minSdkVersion;
+                    apk.apkName = app.packageName + "_" + apkEntry.versionCode + ".apk";
+                    apk.hash = apkEntry.hash;
+                    apk.hashType = "sha256";
+                    apk.sig = "cafebabe";
+                    apk.size = 1024;
+                    apk.antiFeatures = apkEntry.antiFeatures;
+                    apks.add(apk);
+                }
+                persister.saveToDb(app, apks);
+            }
+            ContentValues values = new ContentValues();
+            values.put(Schema.RepoTable.Cols.TIMESTAMP, System.currentTimeMillis());
+            persister.commit(values, repo.getId());
+        } finally {
+            persister.close();
+        }
+    }
+
+    private Map<String, Long> appIds(Repo repo) {
+        Map<String, Long> ids = new HashMap<>();
+        Cursor cursor = db().rawQuery("SELECT p." + PackageTable.Cols.PACKAGE_NAME + ", a." + AppMetadataTable.Cols.ROW_ID
+                + " FROM " + AppMetadataTable.NAME + " AS a"
+                + " JOIN " + PackageTable.NAME + " AS p ON (p." + PackageTable.Cols.ROW_ID + " = a." + AppMetadataTable.Cols.PACKAGE_ID + ")"
+                + " WHERE a." + AppMetadataTable.Cols.REPO_ID + " = ?", new String[]{Long.toString(repo.getId())});
+        try {
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Every app, apk, category and anti-feature of every repo and the preferred metadata of
+     * every package as sorted strings, with the rowids replaced by package names so that
+     * databases can be compared.
+     */
+    private List<String> snapshot() {
+        String app = "SELECT p." + PackageTable.Cols.PACKAGE_NAME + " || '@' || a." + AppMetadataTable.Cols.REPO_ID + " FROM " + AppMetadataTable.NAME + " AS a"
+                + " JOIN " + PackageTable.NAME + " AS p ON (p." + PackageTable.Cols.ROW_ID + " = a." + AppMetadataTable.Cols.PACKAGE_ID + ")"
+                + " WHERE a." + AppMetadataTable.Cols.ROW_ID + " = ";
+        List<String> rows = new ArrayList<>();
+        addRows(rows, "app", "SELECT (" + app + "x." + AppMetadataTable.Cols.ROW_ID + "), x.* FROM "
+                + AppMetadataTable.NAME + " AS x", AppMetadataTable.Cols.PACKAGE_ID);
+        addRows(rows, "apk", "SELECT (" + app + "x." + ApkTable.Cols.APP_ID + "), x.* FROM "
+                + ApkTable.NAME + " AS x", ApkTable.Cols.APP_ID);
+        addRows(rows, "category", "SELECT (" + app + "j." + CatJoinTable.Cols.APP_METADATA_ID + "), c." + CategoryTable.Cols.NAME
+                + " FROM " + CatJoinTable.NAME + " AS j"
+                + " JOIN " + CategoryTable.NAME + " AS c ON (c." + CategoryTable.Cols.ROW_ID + " = j." + CatJoinTable.Cols.CATEGORY_ID + ")");
+        addRows(rows, "package", "SELECT p." + PackageTable.Cols.PACKAGE_NAME + ", (" + app + "p." + PackageTable.Cols.PREFERRED_METADATA
+                + ") FROM " + PackageTable.NAME + " AS p");
+        addRows(rows, "antiFeature", "SELECT k." + ApkTable.Cols.REPO_ID + ", k." + ApkTable.Cols.NAME + ", k." + ApkTable.Cols.HASH
+                + ", f." + Schema.AntiFeatureTable.Cols.NAME
+                + " FROM " + ApkAntiFeatureJoinTable.NAME + " AS j"
+                + " JOIN " + ApkTable.NAME + " AS k ON (k." + ApkTable.Cols.ROW_ID + " = j." + ApkAntiFeatureJoinTable.Cols.APK_ID + ")"
+                + " JOIN " + Schema.AntiFeatureTable.NAME + " AS f ON (f." + Schema.AntiFeatureTable.Cols.ROW_ID + " = j." + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ")");
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private void addRows(List<String> rows, String table, String sql, String... ignoredColumns) {
+        Cursor cursor = db().rawQuery(sql, null);
+        List<String> ignored = Arrays.asList(ignoredColumns);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder(table);
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (!ignored.contains(cursor.getColumnName(i))) {
+                        row.append('|').append(cursor.getString(i));
+                    }
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private SQLiteDatabase db() {
+        return DBHelper.getInstance(context).getWritableDatabase();
+    }
+}
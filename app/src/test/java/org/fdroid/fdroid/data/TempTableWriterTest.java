@@ -0,0 +1,188 @@
+package org.fdroid.fdroid.data;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.RemoteException;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares writing to the temp tables with {@link TempTableWriter} against the
+ * {@link ContentResolver#applyBatch} path that {@link RepoPersister} used before.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class TempTableWriterTest {
+
+    private static final int APP_COUNT = 1000;
+    private static final int APKS_PER_APP = 3;
+    private static final int BATCH_SIZE = 50;
+
+    private static final String[] CATEGORIES = {"Games", "games", "Internet", "Multimedia", "System"};
+    private static final String[] ANTI_FEATURES = {"Ads", "NonFreeNet", "Tracking"};
+
+    protected ContentResolver contentResolver;
+    protected ContextWrapper context;
+
+    private Repo repo;
+
+    @Before
+    public final void setupBase() {
+        contentResolver = ApplicationProvider.getApplicationContext().getContentResolver();
+        context = TestUtils.createContextWithContentResolver(contentResolver);
+        TestUtils.registerContentProvider(AppProvider.getAuthority(), AppProvider.class);
+        repo = IndexUpdaterTest.createRepo("Test", "https://example.com/fdroid/repo", context, "deadbeef");
+    }
+
+    @Test
+    public void sameRowsAsApplyBatch() throws RemoteException, OperationApplicationException {
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+
+        TempAppProvider.Helper.init(context, repo.getId());
+        for (int i = 0; i < APP_COUNT; i += BATCH_SIZE) {
+            writeWithApplyBatch(i);
+        }
+        Map<String, Long> applyBatchCounts = countTempRows(db);
+
+        TempAppProvider.Helper.init(context, repo.getId());
+        TempTableWriter writer = new TempTableWriter(context, repo.getId());
+        for (int i = 0; i < APP_COUNT; i += BATCH_SIZE) {
+            writeWithTempTableWriter(writer, i);
+        }
+        writer.close();
+        Map<String, Long> writerCounts = countTempRows(db);
+
+        assertThat(writerCounts.get(TempAppProvider.TABLE_TEMP_APP)).isEqualTo((long) APP_COUNT);
+        assertThat(writerCounts.get(TempApkProvider.TABLE_TEMP_APK)).isEqualTo((long) APP_COUNT * APKS_PER_APP);
+        assertThat(writerCounts).isEqualTo(applyBatchCounts);
+    }
+
+    @Test
+    public void insertAppsReturnsRowIds() {
+        TempAppProvider.Helper.init(context, repo.getId());
+        TempTableWriter writer = new TempTableWriter(context, repo.getId());
+        Map<String, Long> appIds = writer.insertApps(appValues(0));
+        writer.close();
+
+        assertThat(appIds).hasSize(BATCH_SIZE);
+        assertThat(appIds).isEqualTo(findAppIds(0));
+    }
+
+    private void writeWithApplyBatch(int first) throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> appOperations = new ArrayList<>();
+        for (ContentValues values : appValues(first)) {
+            appOperations.add(ContentProviderOperation.newInsert(TempAppProvider.getContentUri())
+                    .withValues(values).build());
+        }
+        contentResolver.applyBatch(TempAppProvider.getAuthority(), appOperations);
+
+        ArrayList<ContentProviderOperation> apkOperations = new ArrayList<>();
+        for (ContentValues values : apkValues(first, findAppIds(first))) {
+            apkOperations.add(ContentProviderOperation.newInsert(TempApkProvider.getContentUri())
+                    .withValues(values).build());
+        }
+        contentResolver.applyBatch(TempApkProvider.getAuthority(), apkOperations);
+    }
+
+    private void writeWithTempTableWriter(TempTableWriter writer, int first) {
+        writer.beginTransaction();
+        try {
+            Map<String, Long> appIds = writer.insertApps(appValues(first));
+            writer.insertApks(apkValues(first, appIds));
+            writer.setTransactionSuccessful();
+        } finally {
+            writer.endTransaction();
+        }
+    }
+
+    private List<ContentValues> appValues(int first) {
+        List<ContentValues> values = new ArrayList<>(BATCH_SIZE);
+        for (int i = first; i < first + BATCH_SIZE; i++) {
+            App app = new App();
+            app.packageName = packageName(i);
+            app.name = "App " + i + "\n";
+            app.summary = " Summary of app " + i;
+            app.repoId = repo.getId();
+            app.license = "GPL-3.0-or-later";
+            app.categories = new String[]{CATEGORIES[i % CATEGORIES.length], CATEGORIES[(i + 1) % CATEGORIES.length]};
+            values.add(app.toContentValues());
+        }
+        return values;
+    }
+
+    /**
+     * The {@link ContentResolver#applyBatch} path has to query the IDs of the apps
+     * it just inserted, the way {@link RepoPersister} used to.
+     */
+    private Map<String, Long> findAppIds(int first) {
+        List<String> packageNames = new ArrayList<>(BATCH_SIZE);
+        for (int i = first; i < first + BATCH_SIZE; i++) {
+            packageNames.add(packageName(i));
+        }
+        String[] projection = {AppMetadataTable.Cols.ROW_ID, AppMetadataTable.Cols.Package.PACKAGE_NAME};
+        Map<String, Long> appIds = new HashMap<>();
+        for (App app : TempAppProvider.Helper.findByPackageNames(context, packageNames, repo.getId(), projection)) {
+            appIds.put(app.packageName, app.getId());
+        }
+        return appIds;
+    }
+
+    private List<ContentValues> apkValues(int first, Map<String, Long> appIds) {
+        List<ContentValues> values = new ArrayList<>(BATCH_SIZE * APKS_PER_APP);
+        for (int i = first; i < first + BATCH_SIZE; i++) {
+            for (int versionCode = 1; versionCode <= APKS_PER_APP; versionCode++) {
+                Apk apk = new Apk();
+                apk.packageName = packageName(i);
+                apk.appId = appIds.get(apk.packageName);
+                apk.repoId = repo.getId();
+                apk.versionCode = versionCode;
+                apk.versionName = "1." + versionCode;
+                apk.apkName = apk.packageName + "_" + versionCode + ".apk";
+                apk.hash = Integer.toHexString(i * APKS_PER_APP + versionCode);
+                apk.hashType = "sha256";
+                apk.size = 1024 * i;
+                apk.antiFeatures = new String[]{ANTI_FEATURES[(i + versionCode) % ANTI_FEATURES.length]};
+                values.add(apk.toContentValues());
+            }
+        }
+        return values;
+    }
+
+    private static String packageName(int i) {
+        return "org.example.app" + i;
+    }
+
+    private static Map<String, Long> countTempRows(SQLiteDatabase db) {
+        Map<String, Long> counts = new HashMap<>();
+        for (String table : new String[]{
+                TempAppProvider.TABLE_TEMP_APP,
+                TempApkProvider.TABLE_TEMP_APK,
+                TempAppProvider.TABLE_TEMP_CAT_JOIN,
+                TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN,
+        }) {
+            counts.put(table, DatabaseUtils.queryNumEntries(db, TempAppProvider.DB + "." + table));
+        }
+        return counts;
+    }
+}
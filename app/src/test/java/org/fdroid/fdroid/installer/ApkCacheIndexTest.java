@@ -0,0 +1,153 @@
+package org.fdroid.fdroid.installer;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class ApkCacheIndexTest {
+    private static final long MB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedPreferences preferences;
+
+    @Before
+    public final void setUp() {
+        preferences = ApplicationProvider.getApplicationContext()
+                .getSharedPreferences("apk-cache-test", Context.MODE_PRIVATE);
+        preferences.edit().clear().commit();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedToFitBudget() throws IOException {
+        ApkCacheIndex index = new ApkCacheIndex(preferences);
+        File a = createApk("a", MB);
+        File b = createApk("b", MB);
+        File c = createApk("c", MB);
+        index.add(a, 3 * MB);
+        index.add(b, 3 * MB);
+        index.add(a, 3 * MB);
+        assertThat(index.add(c, 2 * MB)).isEqualTo(1);
+
+        assertThat(b.exists()).isFalse();
+        assertThat(a.exists()).isTrue();
+        assertThat(c.exists()).isTrue();
+        assertThat(index.getTotalBytes()).isEqualTo(2 * MB);
+    }
+
+    @Test
+    public void neverEvictsTheApkJustAdded() throws IOException {
+        ApkCacheIndex index = new ApkCacheIndex(preferences);
+        File a = createApk("a", MB);
+        File big = createApk("big", 3 * MB);
+        index.add(a, 2 * MB);
+        index.add(big, 2 * MB);
+
+        assertThat(a.exists()).isFalse();
+        assertThat(big.exists()).isTrue();
+        assertThat(index.contains(big)).isTrue();
+    }
+
+    @Test
+    public void neverEvictsPinnedApks() throws IOException {
+        ApkCacheIndex index = new ApkCacheIndex(preferences);
+        File a = createApk("a", MB);
+        File b = createApk("b", MB);
+        File c = createApk("c", MB);
+        index.pin(a);
+        index.pin(a);
+        index.add(a, 3 * MB);
+        index.add(b, 3 * MB);
+        assertThat(index.add(c, MB)).isEqualTo(1);
+        assertThat(a.exists()).isTrue();
+        assertThat(b.exists()).isFalse();
+
+        assertThat(index.evict(folder.getRoot(), 0, Long.MAX_VALUE)).isEqualTo(1);
+        assertThat(a.exists()).isTrue();
+        assertThat(c.exists()).isFalse();
+
+        index.unpin(a);
+        assertThat(index.evict(folder.getRoot(), 0, Long.MAX_VALUE)).isEqualTo(0);
+        index.unpin(a);
+        assertThat(index.evict(folder.getRoot(), 0, Long.MAX_VALUE)).isEqualTo(1);
+        assertThat(a.exists()).isFalse();
+    }
+
+    @Test
+    public void keepsOrderAcrossInstances() throws IOException {
+        File a = createApk("a", MB);
+        File b = createApk("b", MB);
+        ApkCacheIndex index = new ApkCacheIndex(preferences);
+        index.add(b, 10 * MB);
+        preferences.edit().putString(a.getName(), MB + "," + (System.currentTimeMillis() + 1000)).commit();
+
+        index = new ApkCacheIndex(preferences);
+        assertThat(index.getTotalBytes()).isEqualTo(2 * MB);
+        assertThat(index.evict(folder.getRoot(), MB, 0)).isEqualTo(1);
+        assertThat(b.exists()).isFalse();
+        assertThat(a.exists()).isTrue();
+    }
+
+    @Test
+    public void evictsByAgeAndForgetsMissingFiles() throws IOException {
+        File a = createApk("a", MB);
+        File gone = createApk("gone", MB);
+        ApkCacheIndex index = new ApkCacheIndex(preferences);
+        index.add(a, 10 * MB);
+        index.add(gone, 10 * MB);
+        gone.delete();
+
+        assertThat(index.evict(folder.getRoot(), 10 * MB, 0)).isEqualTo(0);
+        assertThat(index.contains(gone)).isFalse();
+        assertThat(index.contains(new File(a.getPath() + ApkCache.HASH_SUFFIX))).isTrue();
+
+        assertThat(index.evict(folder.getRoot(), 10 * MB, System.currentTimeMillis() + 1)).isEqualTo(1);
+        assertThat(a.exists()).isFalse();
+        assertThat(index.getTotalBytes()).isEqualTo(0);
+        assertThat(preferences.getAll()).isEmpty();
+    }
+
+    @Test
+    public void namesApksAfterTheirHash() {
+        Context context = ApplicationProvider.getApplicationContext();
+        Uri mirror1 = Uri.parse("https://mirror1.example/fdroid/repo/org.example_1.apk");
+        Uri mirror2 = Uri.parse("https://mirror2.example:8443/repo/org.example_1.apk");
+
+        File apk = ApkCache.getApkDownloadPath(context, mirror1, "sha256", "ABCDEF0123");
+        assertThat(apk).isEqualTo(ApkCache.getApkDownloadPath(context, mirror2, "sha256", "abcdef0123"));
+        assertThat(apk.getName()).isEqualTo("sha256-abcdef0123.apk");
+        assertThat(apk.getParentFile()).isEqualTo(ApkCache.getApkCacheDir(context));
+
+        assertThat(ApkCache.getApkDownloadPath(context, mirror1, null, null))
+                .isNotEqualTo(ApkCache.getApkDownloadPath(context, mirror2, null, null));
+        assertThat(ApkCache.getApkDownloadPath(context, mirror1, "sha256", "../../etc"))
+                .isEqualTo(ApkCache.getApkDownloadPath(context, mirror1));
+    }
+
+    private File createApk(String name, long size) throws IOException {
+        File file = new File(folder.getRoot(), "sha256-" + name + ".apk");
+        Files.write(new byte[(int) size], file);
+        return file;
+    }
+}
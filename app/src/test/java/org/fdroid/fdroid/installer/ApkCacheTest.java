@@ -0,0 +1,70 @@
+package org.fdroid.fdroid.installer;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.fdroid.fdroid.data.Apk;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class ApkCacheTest {
+    private static final byte[] CONTENT = "not really an APK".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void usesHashSavedWhileDownloading() throws IOException {
+        File apkFile = folder.newFile("org.example_1.apk");
+        Files.write(CONTENT, apkFile);
+        Apk apk = createApk("feedc0de");
+        // a hash which does not belong to the file shows that the file was not read
+        ApkCache.saveHash(apkFile, "sha256", "feedc0de");
+
+        assertThat(ApkCache.apkIsCached(apkFile, apk)).isTrue();
+    }
+
+    @Test
+    public void hashesFileOnceWithoutSavedHash() throws IOException {
+        File apkFile = folder.newFile("org.example_1.apk");
+        Files.write(CONTENT, apkFile);
+        Apk apk = createApk(Hashing.sha256().hashBytes(CONTENT).toString());
+
+        assertThat(ApkCache.readHash(apkFile, "sha256")).isNull();
+        assertThat(ApkCache.apkIsCached(apkFile, apk)).isTrue();
+        assertThat(ApkCache.readHash(apkFile, "sha256")).isEqualTo(apk.hash);
+        assertThat(ApkCache.readHash(apkFile, "sha512")).isNull();
+    }
+
+    @Test
+    public void ignoresSavedHashOfChangedFile() throws IOException {
+        File apkFile = folder.newFile("org.example_1.apk");
+        Files.write(CONTENT, apkFile);
+        ApkCache.saveHash(apkFile, "sha256", "feedc0de");
+        Files.write("not really an APK either".getBytes(StandardCharsets.UTF_8), apkFile);
+
+        assertThat(ApkCache.readHash(apkFile, "sha256")).isNull();
+        assertThat(new File(apkFile.getPath() + ApkCache.HASH_SUFFIX).exists()).isFalse();
+    }
+
+    private static Apk createApk(String hash) {
+        Apk apk = new Apk();
+        apk.size = CONTENT.length;
+        apk.hash = hash;
+        apk.hashType = "sha256";
+        return apk;
+    }
+}
@@ -0,0 +1,273 @@
+package org.fdroid.fdroid.net;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs {@link DownloadScheduler} with tasks which only sleep or wait instead
+ * of downloading.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class DownloadSchedulerTest {
+
+    private ExecutorService executor;
+    private CountDownLatch idle;
+
+    private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private final Map<String, Integer> maxPerHost = new HashMap<>();
+    private int running;
+    private int maxRunning;
+
+    @Before
+    public final void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public final void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void startsUserDownloadsBeforeAutoDownloads() throws InterruptedException {
+        DownloadScheduler scheduler = createScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.queue("https://a.example/first.apk", "a.example", DownloadScheduler.PRIORITY_AUTO_DOWNLOAD,
+                new BlockingTask("first", release));
+        scheduler.queue("https://a.example/auto1.apk", "a.example", DownloadScheduler.PRIORITY_AUTO_DOWNLOAD,
+                new SleepingTask("auto1", "a.example", 0));
+        scheduler.queue("https://a.example/auto2.apk", "a.example", DownloadScheduler.PRIORITY_AUTO_DOWNLOAD,
+                new SleepingTask("auto2", "a.example", 0));
+        scheduler.queue("https://a.example/user.apk", "a.example", DownloadScheduler.PRIORITY_USER,
+                new SleepingTask("user", "a.example", 0));
+        // queuing it again with a better priority moves it ahead
+        scheduler.queue("https://a.example/auto2.apk", "a.example", DownloadScheduler.PRIORITY_USER,
+                new SleepingTask("auto2", "a.example", 0));
+
+        release.countDown();
+        awaitIdle();
+
+        assertThat(started).containsExactly("first", "user", "auto2", "auto1").inOrder();
+    }
+
+    @Test
+    public void keepsToConnectionsPerHost() throws InterruptedException {
+        DownloadScheduler scheduler = createScheduler(4, 2);
+        for (int i = 0; i < 6; i++) {
+            scheduler.queue("https://busy.example/" + i + ".apk", "busy.example", DownloadScheduler.PRIORITY_USER,
+                    new SleepingTask("busy" + i, "busy.example", 50));
+        }
+        for (int i = 0; i < 2; i++) {
+            scheduler.queue("https://quiet.example/" + i + ".apk", "quiet.example", DownloadScheduler.PRIORITY_USER,
+                    new SleepingTask("quiet" + i, "quiet.example", 50));
+        }
+        awaitIdle();
+
+        assertThat(started).hasSize(8);
+        assertThat(maxPerHost.get("busy.example")).isEqualTo(2);
+        assertThat(maxPerHost.get("quiet.example")).isEqualTo(2);
+        // the downloads from the busy host did not keep the quiet host waiting
+        assertThat(started.indexOf("quiet1")).isLessThan(4);
+        assertThat(maxRunning).isEqualTo(4);
+    }
+
+    @Test
+    public void cancelsByCanonicalUrl() throws InterruptedException {
+        DownloadScheduler scheduler = createScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingTask active = new BlockingTask("active", release);
+        scheduler.queue("https://a.example/active.apk", "mirror.example", DownloadScheduler.PRIORITY_USER, active);
+        scheduler.queue("https://a.example/queued.apk", "mirror.example", DownloadScheduler.PRIORITY_USER,
+                new SleepingTask("queued", "mirror.example", 0));
+
+        assertThat(scheduler.isQueuedOrActive("https://a.example/queued.apk")).isTrue();
+        assertThat(scheduler.cancel("https://a.example/queued.apk")).isTrue();
+        assertThat(scheduler.isQueuedOrActive("https://a.example/queued.apk")).isFalse();
+
+        assertThat(scheduler.cancel("https://a.example/active.apk")).isFalse();
+        assertThat(active.cancelled.get()).isTrue();
+        release.countDown();
+        awaitIdle();
+
+        assertThat(started).containsExactly("active");
+        assertThat(scheduler.isQueuedOrActive("https://a.example/active.apk")).isFalse();
+    }
+
+    @Test
+    public void retryWaitsForRunningDownload() throws InterruptedException {
+        DownloadScheduler scheduler = createScheduler(2, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.queue("https://a.example/app.apk", "mirror1.example", DownloadScheduler.PRIORITY_USER,
+                new BlockingTask("mirror1", release));
+        scheduler.queue("https://a.example/app.apk", "mirror2.example", DownloadScheduler.PRIORITY_USER,
+                new SleepingTask("mirror2", "mirror2.example", 0));
+
+        Thread.sleep(50);
+        assertThat(started).containsExactly("mirror1");
+        release.countDown();
+        awaitIdle();
+
+        assertThat(started).containsExactly("mirror1", "mirror2").inOrder();
+    }
+
+    @Test
+    public void runsAsManyDownloadsAsThereAreSlots() throws InterruptedException {
+        for (int slots : new int[]{1, 2, 4, 8}) {
+            started.clear();
+            synchronized (this) {
+                maxRunning = 0;
+            }
+            DownloadScheduler scheduler = createScheduler(slots, slots);
+            CountDownLatch allSlotsBusy = new CountDownLatch(slots);
+            CountDownLatch release = new CountDownLatch(1);
+            for (int i = 0; i < slots * 3; i++) {
+                scheduler.queue("https://f-droid.example/repo/app" + i + ".apk", "f-droid.example",
+                        DownloadScheduler.PRIORITY_AUTO_DOWNLOAD,
+                        new GatedTask("app" + i, "f-droid.example", allSlotsBusy, release));
+            }
+
+            assertThat(allSlotsBusy.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(started).hasSize(slots);
+            release.countDown();
+            awaitIdle();
+
+            assertThat(started).hasSize(slots * 3);
+            synchronized (this) {
+                assertThat(maxRunning).isEqualTo(slots);
+            }
+        }
+    }
+
+    private DownloadScheduler createScheduler(int slots, int connectionsPerHost) {
+        idle = new CountDownLatch(1);
+        return new DownloadScheduler(executor, slots, connectionsPerHost, () -> idle.countDown());
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        assertThat(idle.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private synchronized void starting(String name, String host) {
+        started.add(name);
+        running++;
+        maxRunning = Math.max(maxRunning, running);
+        Integer count = runningPerHost.get(host);
+        count = count == null ? 1 : count + 1;
+        runningPerHost.put(host, count);
+        Integer max = maxPerHost.get(host);
+        maxPerHost.put(host, max == null ? count : Math.max(max, count));
+    }
+
+    private synchronized void stopping(String host) {
+        running--;
+        runningPerHost.put(host, runningPerHost.get(host) - 1);
+    }
+
+    private class SleepingTask implements DownloadScheduler.Task {
+        private final String name;
+        private final String host;
+        private final long millis;
+
+        SleepingTask(String name, String host, long millis) {
+            this.name = name;
+            this.host = host;
+            this.millis = millis;
+        }
+
+        @Override
+        public void run() {
+            starting(name, host);
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                stopping(host);
+            }
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+
+    /**
+     * Counts as running until {@code release}, and counts down {@code started} once it runs.
+     */
+    private class GatedTask implements DownloadScheduler.Task {
+        private final String name;
+        private final String host;
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+
+        GatedTask(String name, String host, CountDownLatch started, CountDownLatch release) {
+            this.name = name;
+            this.host = host;
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            starting(name, host);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                stopping(host);
+            }
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+
+    private class BlockingTask implements DownloadScheduler.Task {
+        private final String name;
+        private final CountDownLatch release;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+
+        BlockingTask(String name, CountDownLatch release) {
+            this.name = name;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            started.add(name);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+    }
+}
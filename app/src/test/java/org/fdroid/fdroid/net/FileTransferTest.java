@@ -0,0 +1,190 @@
+package org.fdroid.fdroid.net;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.Files;
+
+import org.fdroid.fdroid.TestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link FileTransfer} copies exactly the bytes it was asked to.
+ * {@link #benchmark()} compares it with the {@code byte[]} copy loop which
+ * downloads used before, reporting the throughput and the bytes allocated
+ * while copying a 200MB file, which depend on the machine running it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class FileTransferTest {
+    private static final int BENCHMARK_SIZE = 200 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void transfersIntoPositionUpToMaxCount() throws IOException, InterruptedException {
+        byte[] content = randomBytes(300000);
+        File file = folder.newFile();
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        output.setLength(content.length + 1000);
+        final long[] progress = new long[1];
+        long count = FileTransfer.transfer(Channels.newChannel(new ByteArrayInputStream(content)),
+                output.getChannel(), 1000, 200000, null, transferred -> progress[0] += transferred);
+        output.close();
+
+        assertThat(count).isEqualTo(200000);
+        assertThat(progress[0]).isEqualTo(200000);
+        byte[] written = Files.toByteArray(file);
+        assertThat(Arrays.copyOfRange(written, 1000, 201000)).isEqualTo(Arrays.copyOf(content, 200000));
+    }
+
+    @Test
+    public void stopsWhenProgressThrows() throws IOException {
+        byte[] content = randomBytes(FileTransfer.BUFFER_SIZE * 10);
+        FileOutputStream output = new FileOutputStream(folder.newFile());
+        final long[] progress = new long[1];
+        try {
+            FileTransfer.transfer(Channels.newChannel(new ByteArrayInputStream(content)),
+                    output.getChannel(), 0, Long.MAX_VALUE, null, transferred -> {
+                        progress[0] += transferred;
+                        throw new InterruptedException();
+                    });
+            throw new AssertionError("the transfer should have been cancelled");
+        } catch (InterruptedException e) {
+            // expected
+        } finally {
+            output.close();
+        }
+        assertThat(progress[0]).isAtMost(FileTransfer.BUFFER_SIZE);
+    }
+
+    @Test
+    public void copiesFiles() throws IOException {
+        byte[] content = randomBytes(1234567);
+        File source = folder.newFile();
+        Files.write(content, source);
+        File destination = new File(folder.getRoot(), "copy");
+        Files.write(new byte[2000000], destination);
+
+        FileTransfer.copy(source, destination);
+        assertThat(Files.toByteArray(destination)).isEqualTo(content);
+
+        File streamed = folder.newFile();
+        OutputStream output = new FileOutputStream(streamed);
+        FileTransfer.copy(new ByteArrayInputStream(content), output);
+        output.close();
+        assertThat(Files.toByteArray(streamed)).isEqualTo(content);
+    }
+
+    @Test
+    public void benchmark() throws IOException, InterruptedException {
+        TestUtils.assumeBenchmarks();
+        File source = folder.newFile();
+        RandomAccessFile file = new RandomAccessFile(source, "rw");
+        byte[] block = randomBytes(1024 * 1024);
+        for (int i = 0; i < BENCHMARK_SIZE / block.length; i++) {
+            file.write(block);
+        }
+        file.close();
+
+        // the first round only warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            measure("byte[] loop", () -> copyWithByteArrayLoop(source, folder.newFile()));
+            measure("direct buffer", () -> copyWithChannels(source, folder.newFile()));
+            measure("transferTo", () -> FileTransfer.copy(source, folder.newFile()));
+        }
+    }
+
+    private interface Copy {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private void measure(String name, Copy copy) throws IOException, InterruptedException {
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        copy.run();
+        long nanos = System.nanoTime() - start;
+        long allocated = getAllocatedBytes() - allocatedBefore;
+        double megabytesPerSecond = BENCHMARK_SIZE / 1024.0 / 1024.0 / (nanos / 1e9);
+        System.out.println(String.format("%s: %.0f MB/s, %d bytes allocated, %.1f KB per MB",
+                name, megabytesPerSecond, allocated, allocated / 1024.0 / (BENCHMARK_SIZE / 1024.0 / 1024.0)));
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or 0 on JVMs which do not count them
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * How {@link Downloader} copied before, with the file hidden behind a plain
+     * {@link InputStream} like an HTTP response.
+     */
+    private static void copyWithByteArrayLoop(File source, File destination) throws IOException {
+        InputStream input = new BufferedInputStream(new FilterInputStream(new FileInputStream(source)) {
+        });
+        OutputStream output = new FileOutputStream(destination);
+        byte[] buffer = new byte[8192];
+        while (true) {
+            int count;
+            if (input.available() > 0) {
+                int readLength = Math.min(input.available(), buffer.length);
+                count = input.read(buffer, 0, readLength);
+            } else {
+                count = input.read(buffer);
+            }
+            if (count == -1) {
+                break;
+            }
+            output.write(buffer, 0, count);
+        }
+        output.close();
+        input.close();
+    }
+
+    private static void copyWithChannels(File source, File destination) throws IOException, InterruptedException {
+        InputStream input = new FilterInputStream(new FileInputStream(source)) {
+        };
+        FileOutputStream output = new FileOutputStream(destination);
+        FileChannel channel = output.getChannel();
+        FileTransfer.transfer(Channels.newChannel(input), channel, 0, Long.MAX_VALUE, null, count -> {
+        });
+        assertThat(channel.size()).isEqualTo(BENCHMARK_SIZE);
+        output.close();
+        input.close();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,357 @@
+package org.fdroid.fdroid.net;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a file which is big enough to be split into segments from local
+ * servers, one for the repo and one for a mirror.  The servers count every
+ * request and connection, to check that no more round trips are made than needed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class HttpDownloaderTest {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final String PATH = "/repo/org.example.game_1.obb";
+    private static final String ETAG = "\"5f61e2a0-80303c\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[(int) HttpDownloader.SEGMENTED_MIN_SIZE + 12345];
+    private TestServer repo;
+    private TestServer mirror;
+
+    @Before
+    public final void setUp() throws IOException {
+        new Random(12).nextBytes(content);
+        repo = new TestServer();
+        mirror = new TestServer();
+    }
+
+    @After
+    public final void tearDown() {
+        repo.server.stop(0);
+        mirror.server.stop(0);
+    }
+
+    @Test
+    public void downloadsInSegments() throws IOException, InterruptedException {
+        File file = download(4, Collections.<String>emptyList());
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).contains("GET " + PATH);
+        assertThat(repo.requests).hasSize(5);
+        assertThat(repo.ranges()).hasSize(4);
+    }
+
+    @Test
+    public void spreadsSegmentsOverMirrors() throws IOException, InterruptedException {
+        File file = download(4, Collections.singletonList(mirror.address + PATH));
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.ranges()).hasSize(2);
+        assertThat(mirror.ranges()).hasSize(2);
+    }
+
+    @Test
+    public void continuesFromRepoWhenMirrorFails() throws IOException, InterruptedException {
+        mirror.failRanges = true;
+        File file = download(4, Collections.singletonList(mirror.address + PATH));
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.ranges()).hasSize(4);
+        assertThat(mirror.requests).hasSize(2);
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWithoutAcceptRanges() throws IOException, InterruptedException {
+        repo.acceptRanges = false;
+        File file = download(4, Collections.<String>emptyList());
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).containsExactly("GET " + PATH);
+    }
+
+    @Test
+    public void downloadsWithOneRequest() throws IOException, InterruptedException {
+        File file = download(1, Collections.<String>emptyList());
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).containsExactly("GET " + PATH);
+    }
+
+    @Test
+    public void reusesConnectionAfterCompleteDownload() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            HttpDownloader downloader = new HttpDownloader(Uri.parse(repo.address + PATH), folder.newFile());
+            downloader.download();
+            downloader.close();
+        }
+        assertThat(repo.requests).hasSize(3);
+        assertThat(repo.clientPorts).hasSize(1);
+    }
+
+    @Test
+    public void dropsUnchangedFileWithoutSendingEtag() throws IOException, InterruptedException {
+        HttpDownloader first = new HttpDownloader(Uri.parse(repo.address + PATH), folder.newFile());
+        first.download();
+        assertThat(first.getCacheTag()).isEqualTo(ETAG);
+        repo.requests.clear();
+
+        File file = new File(folder.getRoot(), "unchanged.obb");
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(repo.address + PATH), file);
+        downloader.setCacheTag(ETAG);
+        downloader.download();
+
+        assertThat(downloader.hasChanged()).isFalse();
+        assertThat(repo.requests).containsExactly("GET " + PATH);
+        assertThat(repo.sentEtag).isFalse();
+        assertThat(file.exists()).isFalse();
+    }
+
+    @Test
+    public void resumesInTheSameRequest() throws IOException, InterruptedException {
+        writePartialFile(1000, ETAG);
+        File file = download(4, Collections.<String>emptyList());
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).containsExactly("GET " + PATH + " bytes=1000-");
+        assertThat(repo.sentEtag).isFalse();
+        assertThat(DownloadJournal.read(file)).isNull();
+    }
+
+    @Test
+    public void keepsCompleteFile() throws IOException, InterruptedException {
+        writePartialFile(content.length, ETAG);
+        File file = download(4, Collections.<String>emptyList());
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).containsExactly("GET " + PATH + " bytes=" + content.length + "-");
+    }
+
+    @Test
+    public void doesNotResumeWithoutJournal() throws IOException, InterruptedException {
+        Files.write(new byte[1000], new File(folder.getRoot(), "game.obb"));
+        File file = download(1, Collections.<String>emptyList());
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).containsExactly("GET " + PATH);
+    }
+
+    @Test
+    public void downloadsAgainWhenChangedOnServer() throws IOException, InterruptedException {
+        writePartialFile(1000, "\"an-older-version\"");
+        File file = download(1, Collections.<String>emptyList());
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).containsExactly("GET " + PATH + " bytes=1000-", "GET " + PATH).inOrder();
+    }
+
+    @Test
+    public void cutsOffWhatWasWrittenAfterTheCheckpoint() throws IOException, InterruptedException {
+        File file = writePartialFile(1000, ETAG);
+        Files.append("torn by a crash", file, StandardCharsets.UTF_8);
+        download(1, Collections.<String>emptyList());
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).containsExactly("GET " + PATH + " bytes=1000-");
+    }
+
+    @Test
+    public void resumesWhereTheConnectionDropped() throws IOException, InterruptedException {
+        int dropAt = 3 * (int) DownloadJournal.CHECKPOINT_BYTES + 12345;
+        repo.dropAt = dropAt;
+        File file = new File(folder.getRoot(), "game.obb");
+        try {
+            new HttpDownloader(Uri.parse(repo.address + PATH), file).download();
+            throw new AssertionError("download should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(DownloadJournal.read(file).offset).isEqualTo(dropAt);
+
+        repo.dropAt = -1;
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(repo.address + PATH), file);
+        downloader.setHashType("sha256");
+        downloader.download();
+
+        assertThat(Files.toByteArray(file)).isEqualTo(content);
+        assertThat(repo.requests).containsExactly("GET " + PATH, "GET " + PATH + " bytes=" + dropAt + "-").inOrder();
+        assertThat(downloader.getHash()).isEqualTo(Hashing.sha256().hashBytes(content).toString());
+        assertThat(DownloadJournal.read(file)).isNull();
+    }
+
+    @Test
+    public void leavesNoFileWhenSegmentFails() throws IOException {
+        repo.failRanges = true;
+        File file = new File(folder.getRoot(), "game.obb");
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(repo.address + PATH), file);
+        downloader.setSegments(4, Collections.<String>emptyList());
+        try {
+            downloader.download();
+            throw new AssertionError("download should have failed");
+        } catch (IOException | InterruptedException e) {
+            // expected
+        }
+        assertThat(folder.getRoot().list()).isEmpty();
+    }
+
+    @Test
+    public void hashesWhileDownloading() throws IOException, InterruptedException {
+        File file = new File(folder.getRoot(), "game.obb");
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(repo.address + PATH), file);
+        downloader.setHashType("sha256");
+        downloader.download();
+
+        assertThat(downloader.getHash()).isEqualTo(Hashing.sha256().hashBytes(content).toString());
+    }
+
+    @Test
+    public void hashesResumedDownload() throws IOException, InterruptedException {
+        File file = writePartialFile(1000, ETAG);
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(repo.address + PATH), file);
+        downloader.setHashType("sha256");
+        downloader.download();
+
+        assertThat(repo.requests).containsExactly("GET " + PATH + " bytes=1000-");
+        assertThat(downloader.getHash()).isEqualTo(Hashing.sha256().hashBytes(content).toString());
+    }
+
+    /**
+     * Writes the start of {@link #content} with a journal, like a download which was interrupted.
+     */
+    private File writePartialFile(int length, String validator) throws IOException {
+        File file = new File(folder.getRoot(), "game.obb");
+        Files.write(Arrays.copyOf(content, length), file);
+        DownloadJournal journal = new DownloadJournal(file, repo.address + PATH, validator, content.length);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        journal.checkpoint(output.getChannel());
+        output.close();
+        return file;
+    }
+
+    private File download(int segments, List<String> mirrorUrlStrings) throws IOException, InterruptedException {
+        File file = new File(folder.getRoot(), "game.obb");
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(repo.address + PATH), file);
+        downloader.setSegments(segments, mirrorUrlStrings);
+        downloader.download();
+        assertThat(downloader.hasChanged()).isTrue();
+        return file;
+    }
+
+    private class TestServer {
+        final HttpServer server;
+        final String address;
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        volatile boolean acceptRanges = true;
+        volatile boolean failRanges;
+        volatile boolean sentEtag;
+        volatile int dropAt = -1;
+        final Set<Integer> clientPorts = new CopyOnWriteArraySet<>();
+
+        TestServer() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/", this::serve);
+            server.start();
+            address = "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        List<String> ranges() {
+            List<String> ranges = new ArrayList<>();
+            for (String request : requests) {
+                if (request.contains("bytes=")) {
+                    ranges.add(request);
+                }
+            }
+            return ranges;
+        }
+
+        private void serve(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath()
+                    + (range == null ? "" : " " + range));
+            if (exchange.getRequestHeaders().containsKey("If-None-Match")
+                    || exchange.getRequestHeaders().containsKey("If-Range")) {
+                sentEtag = true;
+            }
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            if (acceptRanges) {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            }
+            Matcher matcher = range == null ? null : RANGE.matcher(range);
+            byte[] body = content;
+            int statusCode = 200;
+            if (matcher != null && matcher.matches() && acceptRanges) {
+                if (failRanges) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+                int start = Integer.parseInt(matcher.group(1));
+                if (start >= content.length) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                int end = matcher.group(2).isEmpty() ? content.length - 1 : Integer.parseInt(matcher.group(2));
+                body = Arrays.copyOfRange(content, start, end + 1);
+                statusCode = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + content.length);
+            }
+            exchange.sendResponseHeaders(statusCode, body.length);
+            OutputStream output = exchange.getResponseBody();
+            try {
+                if (statusCode == 200 && dropAt >= 0) {
+                    output.write(body, 0, dropAt);
+                    output.flush();
+                    // closes the connection without the rest of the body, like when it dropped
+                    exchange.close();
+                    return;
+                }
+                output.write(body);
+                output.close();
+            } catch (IOException e) {
+                // the downloader dropped the connection without reading the body
+            }
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.fdroid.fdroid.net;
+
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.fdroid.fdroid.data.Repo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = {LOLLIPOP})
+public class MirrorRankingTest {
+    private static final String CANONICAL = "https://f-droid.org/repo";
+    private static final String FAST = "https://fast.example/fdroid/repo";
+    private static final String SLOW = "https://slow.example/fdroid/repo";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedPreferences preferences;
+    private Repo repo;
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final Map<String, AtomicInteger> requests = new HashMap<>();
+
+    @Before
+    public final void setUp() {
+        preferences = ApplicationProvider.getApplicationContext()
+                .getSharedPreferences("mirror-ranking-test", Context.MODE_PRIVATE);
+        preferences.edit().clear().commit();
+        repo = new Repo();
+        repo.address = CANONICAL;
+        repo.mirrors = new String[]{CANONICAL + "/", SLOW + "/", FAST};
+    }
+
+    @After
+    public final void tearDown() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void keepsRepoOrderWithoutMeasurements() {
+        MirrorRanking ranking = new MirrorRanking(preferences);
+        assertThat(ranking.getRankedMirrors(repo)).containsExactly(CANONICAL, SLOW, FAST).inOrder();
+    }
+
+    @Test
+    public void ranksByMeasuredSpeed() throws IOException {
+        MirrorRanking ranking = new MirrorRanking(preferences);
+        ranking.recordSuccess(repo, SLOW + "/index-v1.jar", measured(SLOW, 900, 1024 * 1024, 4000));
+        ranking.recordSuccess(repo, FAST + "/index-v1.jar", measured(FAST, 50, 1024 * 1024, 200));
+
+        // the canonical address was never measured, so it is assumed to be in between
+        assertThat(ranking.getRankedMirrors(repo)).containsExactly(FAST, CANONICAL, SLOW).inOrder();
+    }
+
+    @Test
+    public void movesFailedMirrorToTheEnd() throws IOException {
+        MirrorRanking ranking = new MirrorRanking(preferences);
+        ranking.recordSuccess(repo, FAST + "/index-v1.jar", measured(FAST, 50, 1024 * 1024, 200));
+        ranking.recordFailure(repo, FAST + "/index-v1.jar");
+
+        assertThat(ranking.getRankedMirrors(repo)).containsExactly(CANONICAL, SLOW, FAST).inOrder();
+    }
+
+    @Test
+    public void failedMirrorIsHealthyAgainAfterBackoff() {
+        MirrorRanking.Health health = new MirrorRanking.Health();
+        health.failures = 3;
+        health.failuresInARow = 3;
+        health.lastFailure = 1000000;
+
+        assertThat(health.isHealthy(health.lastFailure + 60 * 1000)).isFalse();
+        assertThat(health.isHealthy(health.lastFailure + 4 * 60 * 1000)).isTrue();
+        assertThat(MirrorRanking.Health.parse(health.toString()).toString()).isEqualTo(health.toString());
+    }
+
+    @Test
+    public void keepsMeasurementsAcrossInstances() throws IOException {
+        new MirrorRanking(preferences).recordSuccess(repo, FAST + "/index-v1.jar",
+                measured(FAST, 50, 1024 * 1024, 200));
+
+        MirrorRanking ranking = new MirrorRanking(preferences);
+        assertThat(ranking.getRankedMirrors(repo).get(0)).isEqualTo(FAST);
+    }
+
+    @Test
+    public void mapsUrlsToAllMirrors() throws IOException {
+        MirrorRanking ranking = new MirrorRanking(preferences);
+        ranking.recordSuccess(repo, FAST + "/index-v1.jar", measured(FAST, 50, 1024 * 1024, 200));
+
+        assertThat(ranking.getRankedUrls(repo, SLOW + "/org.example_1.apk")).containsExactly(
+                FAST + "/org.example_1.apk", CANONICAL + "/org.example_1.apk", SLOW + "/org.example_1.apk")
+                .inOrder();
+        assertThat(ranking.getRankedUrls(repo, "https://other.example/repo/a.apk"))
+                .containsExactly("https://other.example/repo/a.apk");
+        assertThat(ranking.getRankedUrls(null, FAST + "/a.apk")).containsExactly(FAST + "/a.apk");
+    }
+
+    @Test
+    public void timeoutGrowsWithEveryRound() {
+        assertThat(MirrorRanking.getAttempts(1)).isEqualTo(1);
+        assertThat(MirrorRanking.getAttempts(3)).isEqualTo(9);
+        assertThat(MirrorRanking.getTimeout(2, 3)).isLessThan(MirrorRanking.getTimeout(3, 3));
+        assertThat(MirrorRanking.getTimeout(8, 3)).isEqualTo(MirrorRanking.getTimeout(100, 3));
+    }
+
+    @Test
+    public void raceKeepsFirstCompleteDownload() throws IOException, InterruptedException {
+        byte[] content = "index".getBytes();
+        String fast = startServer(content, 0);
+        String slow = startServer(content, 2000);
+        repo.address = slow;
+        repo.mirrors = new String[]{fast};
+        File slowFile = folder.newFile();
+        File fastFile = folder.newFile();
+
+        MirrorRanking ranking = new MirrorRanking(preferences);
+        Downloader winner = ranking.race(repo,
+                new HttpDownloader(Uri.parse(slow + "/diff/1.jar"), slowFile),
+                new HttpDownloader(Uri.parse(fast + "/diff/1.jar"), fastFile));
+
+        assertThat(winner.outputFile).isEqualTo(fastFile);
+        assertThat(Files.toByteArray(fastFile)).isEqualTo(content);
+        assertThat(ranking.getRankedMirrors(repo).get(0)).isEqualTo(fast);
+        for (int i = 0; i < 150 && slowFile.exists(); i++) {
+            Thread.sleep(20);
+        }
+        assertThat(slowFile.exists()).isFalse();
+    }
+
+    @Test
+    public void hedgesWhenFirstIsSlowToAnswer() throws IOException, InterruptedException {
+        byte[] content = "index".getBytes();
+        String slow = startServer(content, 2000);
+        String fast = startServer(content, 0);
+        repo.address = slow;
+        repo.mirrors = new String[]{fast};
+        File fastFile = folder.newFile();
+
+        MirrorRanking ranking = new MirrorRanking(preferences);
+        Downloader winner = ranking.hedge(repo,
+                new HttpDownloader(Uri.parse(slow + "/index-v1.jar"), folder.newFile()),
+                new HttpDownloader(Uri.parse(fast + "/index-v1.jar"), fastFile), 200);
+
+        assertThat(winner.outputFile).isEqualTo(fastFile);
+        assertThat(requests.get(fast).get()).isEqualTo(1);
+    }
+
+    @Test
+    public void doesNotHedgeWhenFirstAnswersInTime() throws IOException, InterruptedException {
+        byte[] content = "index".getBytes();
+        String first = startServer(content, 0);
+        String second = startServer(content, 0);
+        repo.address = first;
+        repo.mirrors = new String[]{second};
+        File firstFile = folder.newFile();
+        File secondFile = folder.newFile();
+
+        MirrorRanking ranking = new MirrorRanking(preferences);
+        Downloader winner = ranking.hedge(repo,
+                new HttpDownloader(Uri.parse(first + "/index-v1.jar"), firstFile),
+                new HttpDownloader(Uri.parse(second + "/index-v1.jar"), secondFile),
+                ranking.getHedgeDelay(repo, first + "/index-v1.jar"));
+
+        assertThat(winner.outputFile).isEqualTo(firstFile);
+        assertThat(Files.toByteArray(firstFile)).isEqualTo(content);
+        assertThat(requests.get(second).get()).isEqualTo(0);
+        assertThat(secondFile.exists()).isFalse();
+    }
+
+    private Downloader measured(String mirror, long responseMillis, long bytes, long transferMillis)
+            throws IOException {
+        Downloader downloader = new HttpDownloader(Uri.parse(mirror + "/index-v1.jar"), folder.newFile());
+        downloader.responseMillis = responseMillis;
+        downloader.transferMillis = transferMillis;
+        downloader.addBytesRead(bytes);
+        return downloader;
+    }
+
+    private String startServer(final byte[] content, final long delayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        final AtomicInteger count = new AtomicInteger();
+        server.createContext("/", (HttpExchange exchange) -> {
+            count.incrementAndGet();
+            try {
+                Thread.sleep(delayMillis);
+                exchange.sendResponseHeaders(200, content.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(content);
+                output.close();
+            } catch (InterruptedException | IOException e) {
+                // the downloader was cancelled
+            }
+            exchange.close();
+        });
+        server.start();
+        servers.add(server);
+        String address = "http://127.0.0.1:" + server.getAddress().getPort();
+        requests.put(address, count);
+        return address;
+    }
+}